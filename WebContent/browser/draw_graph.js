@@ -12,6 +12,8 @@ var GRAPH_SERVLET_URL = "http://localhost:8080/Dynamic_Graph_Visualization_Juno/
 var MAX_NUM_NODES = 50; // If the graph has nodes less than MAX_NUM_NODES, then
 // draw the whole graph.
 var MAX_K = 1000; // Max value for the k parameter.
+var BINARY_RESPONSE = true; // Request the compact binary servlet response
+// instead of the text one.
 var graph1_data; // Graph 1 content.
 var graph2_data; // Graph 2 content.
 var svg1; // Drawing object for graph 1.
@@ -245,7 +247,8 @@ function colorGraph() {
 	// Call the servlet to calculate the distortion colors.
 	var url = GRAPH_SERVLET_URL;
 	var params = "graph1file=" + graph1_data + "&graph2file=" + graph2_data
-			+ "&k=" + k + "&measure=" + measure + "&region=" + region;
+			+ "&k=" + k + "&measure=" + measure + "&region=" + region
+			+ "&approximate=" + document.getElementById("approximate").checked;
 	var http;
 	if (window.XMLHttpRequest) {
 		// Code for IE7+, Firefox, Chrome, Opera, Safari.
@@ -258,11 +261,25 @@ function colorGraph() {
 	http.setRequestHeader("Content-type", "application/x-www-form-urlencoded");
 	http.setRequestHeader("Content-length", params.length);
 	http.setRequestHeader("Connection", "close");
+	if (BINARY_RESPONSE) {
+		// Ask for the compact binary response.
+		http.setRequestHeader("X-Response-Format", "binary");
+		http.responseType = "arraybuffer";
+	}
 	http.onreadystatechange = function() {
 		// Get the servlet results.
 		if (http.readyState == 4 && http.status == 200) {
-			var response = http.responseText;
-			parseResponse(response);
+			var content_type = http.getResponseHeader("Content-Type") || "";
+			if (content_type.indexOf("application/octet-stream") == 0) {
+				parseBinaryResponse(http.response);
+			} else if (BINARY_RESPONSE) {
+				// The servlet answers errors in the text format.
+				parseResponse(new TextDecoder("utf-8").decode(http.response));
+			} else {
+				parseResponse(http.responseText);
+			}
+			showRegionSearch(http.getResponseHeader("X-Region-Search"), http
+					.getResponseHeader("X-Region-Search-Confidence"));
 			// Color graph1 with the result.
 			svg1.selectAll(".node").append("circle").attr("r", 10).style(
 					"fill", function(d1) {
@@ -286,49 +303,131 @@ function colorGraph() {
 }
 
 /**
- * Parse the servlet response.
+ * Tell the user whether the regions are exact, or approximate and with which
+ * confidence.
+ */
+function showRegionSearch(search, confidence) {
+	var text = "";
+	if (search == "approximate") {
+		text = "Approximate regions, confidence "
+				+ Math.round(parseFloat(confidence) * 100) + "%";
+	}
+	document.getElementById("region_search").textContent = text;
+}
+
+/**
+ * Parse the servlet response in the text format.
  */
 function parseResponse(response) {
 	var distorition = response.split('_');
+	var graph1_edges = parseTextEdges(distorition[1]);
+	var graph2_edges = parseTextEdges(distorition[2]);
+	updateResponse(graph1_edges, graph2_edges, distorition[0].split(','));
+}
+
+/**
+ * Parse a '-' separated list of "source,target" edges.
+ */
+function parseTextEdges(text) {
+	var edges = [];
+	var graph = text.split('-');
+	for ( var i = 0; i < graph.length; i++) {
+		if (graph[i].length == 0) {
+			continue;
+		}
+		edges.push(graph[i].split(","));
+	}
+	return edges;
+}
+
+/**
+ * Parse the servlet response in the binary format, see ResponseEncoder for the
+ * layout.
+ */
+function parseBinaryResponse(buffer) {
+	var bytes = new Uint8Array(buffer);
+	var position = 1; // Skip the format version.
+	// Read an unsigned LEB128 varint.
+	function readVarint() {
+		var value = 0;
+		var multiplier = 1;
+		var b;
+		do {
+			b = bytes[position++];
+			value += (b & 0x7F) * multiplier;
+			multiplier *= 128;
+		} while (b & 0x80);
+		return value;
+	}
+	var nodes = readVarint();
+	var palette_size = readVarint();
+	var palette = [];
+	for ( var i = 0; i < palette_size; i++) {
+		var length = readVarint();
+		palette.push(String.fromCharCode.apply(null, bytes.subarray(position,
+				position + length)));
+		position += length;
+	}
+	var index_width = bytes[position++];
+	var colors_array = [];
+	for ( var i = 0; i < nodes; i++) {
+		var index = 0;
+		for ( var b = 0; b < index_width; b++) {
+			index += bytes[position++] << (8 * b);
+		}
+		colors_array.push(palette[index]);
+	}
+	var graphs_edges = [];
+	for ( var graph = 0; graph < 2; graph++) {
+		var edges = [];
+		var edges_number = readVarint();
+		var source = 0;
+		var target = 0;
+		for ( var i = 0; i < edges_number; i++) {
+			var source_delta = readVarint();
+			source += source_delta;
+			if (source_delta == 0) {
+				target += readVarint();
+			} else {
+				target = readVarint();
+			}
+			edges.push([ source, target ]);
+		}
+		graphs_edges.push(edges);
+	}
+	updateResponse(graphs_edges[0], graphs_edges[1], colors_array);
+}
+
+/**
+ * Convert edges based on the system IDs to links based on the user IDs.
+ */
+function toLinks(edges) {
+	var links = [];
+	for ( var i = 0; i < edges.length; i++) {
+		var link = {};
+		// As the returned edges are based on the system ID,
+		// convert them to user ID for visualization.
+		link['source'] = system_to_user_ids_mapping[edges[i][0]];
+		link['target'] = system_to_user_ids_mapping[edges[i][1]];
+		links.push(link);
+	}
+	return links;
+}
+
+/**
+ * Re-draw the selected regions and update the node colors with the servlet
+ * result.
+ */
+function updateResponse(graph1_edges, graph2_edges, colors_array) {
 	// If the region changed or the first time to draw the graph
 	// then re-draw the graph.
 	if (region != prev_region || firstDraw) {
 		prev_region = region;
-		var graph1 = distorition[1].split('-');
-		var links1 = [];
-		for ( var i = 0; i < graph1.length; i++) {
-			if (graph1[i].length == 0) {
-				continue;
-			}
-			var edge = graph1[i].split(",");
-			var link = {};
-			// As the returned edges are based on the system ID,
-			// convert them to user ID for visualization.
-			link['source'] = system_to_user_ids_mapping[edge[0]];
-			link['target'] = system_to_user_ids_mapping[edge[1]];
-			links1.push(link);
-		}
-		drawGraph(links1, svg1, GRAPH1_DIV_NAME);
-		var graph2 = distorition[2].split('-');
-		var links2 = [];
-		for ( var i = 0; i < graph2.length; i++) {
-			if (graph2[i].length == 0) {
-				continue;
-			}
-			var edge = graph2[i].split(",");
-			var link = {};
-			// As the returned edges are based on the system ID,
-			// convert them to user ID for visualization.
-			link['source'] = system_to_user_ids_mapping[edge[0]];
-			link['target'] = system_to_user_ids_mapping[edge[1]];
-			links2.push(link);
-
-		}
-		drawGraph(links2, svg2, GRAPH2_DIV_NAME);
+		drawGraph(toLinks(graph1_edges), svg1, GRAPH1_DIV_NAME);
+		drawGraph(toLinks(graph2_edges), svg2, GRAPH2_DIV_NAME);
 	}
 	// Change the colors array based on the servlet result.
 	colors = [];
-	var colors_array = distorition[0].split(',');
 	for ( var i = 0; i < num_nodes; i++) {
 		colors[i + 1] = colors_array[i];
 	}
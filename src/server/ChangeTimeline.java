@@ -0,0 +1,210 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Timeline of the changes of a snapshot series: which vertices changed the most and when. The
+ * delta change of every vertex is calculated for every pair of consecutive snapshots, all the
+ * pairs in parallel, and each pair is reduced to its total change mass and its top changing
+ * vertices as soon as its deltas are calculated, so only the top (vertex, time) changes of the
+ * whole series are kept instead of the deltas of all the pairs.
+ */
+public class ChangeTimeline {
+
+  // Series the timeline was calculated from.
+  private final SnapshotSeries series;
+  // Sum of the vertex delta changes of each consecutive pair.
+  private final double[] changeMass;
+  // Number of vertices with a nonzero delta change in each consecutive pair.
+  private final int[] changedVertices;
+  // Top changes of the whole series, from the highest to the lowest delta change.
+  private final ArrayList<Change> topChanges;
+
+  /**
+   * Delta change of a vertex from snapshot t to snapshot t + 1.
+   */
+  public static class Change {
+    // Index t of the first snapshot of the pair.
+    private final int time;
+    // Vertex index in the series.
+    private final int vertex;
+    // Delta change of the vertex.
+    private final double delta;
+
+    private Change(int time, int vertex, double delta) {
+      this.time = time;
+      this.vertex = vertex;
+      this.delta = delta;
+    }
+
+    /**
+     * @return index t of the first snapshot of the pair.
+     */
+    public int getTime() {
+      return time;
+    }
+
+    /**
+     * @return vertex index in the series.
+     */
+    public int getVertex() {
+      return vertex;
+    }
+
+    /**
+     * @return delta change of the vertex.
+     */
+    public double getDelta() {
+      return delta;
+    }
+  }
+
+  private ChangeTimeline(SnapshotSeries series, double[] changeMass, int[] changedVertices,
+      ArrayList<Change> topChanges) {
+    this.series = series;
+    this.changeMass = changeMass;
+    this.changedVertices = changedVertices;
+    this.topChanges = topChanges;
+  }
+
+  /**
+   * Calculate the timeline of a snapshot series. Changes with the same delta change are ranked
+   * by time and then by vertex index.
+   *
+   * @param series of snapshots.
+   * @param changesNumber number of top (vertex, time) changes to keep.
+   * @return timeline.
+   */
+  public static ChangeTimeline calculate(final SnapshotSeries series, final int changesNumber) {
+    long start = Metrics.startTimer();
+    SearchPhaseEvent event = SearchPhaseEvent.begin(SearchPhaseEvent.DELTA, "change_timeline",
+        series.getVerticesNumber());
+    int pairsNumber = Math.max(0, series.getSnapshotsNumber() - 1);
+    final double[] changeMass = new double[pairsNumber];
+    final int[] changedVertices = new int[pairsNumber];
+    // Top changing vertices of each pair and their delta changes, from the highest delta change.
+    final int[][] pairTopVertices = new int[pairsNumber][];
+    final double[][] pairTopDeltas = new double[pairsNumber][];
+    IntStream.range(0, pairsNumber).parallel().forEach(new IntConsumer() {
+      @Override
+      public void accept(int t) {
+        double[] deltas = series.getDeltas(t, t + 1);
+        TopRegions top = new TopRegions(changesNumber);
+        double mass = 0;
+        int changed = 0;
+        for (int vertex = 0; vertex < deltas.length; vertex++) {
+          double delta = deltas[vertex];
+          mass += delta;
+          if (delta != 0) {
+            changed++;
+          }
+          if (top.accepts(delta, vertex)) {
+            top.add(delta, vertex, new int[] {vertex});
+          }
+        }
+        ArrayList<int[]> vertices = top.getRegions();
+        pairTopVertices[t] = new int[vertices.size()];
+        pairTopDeltas[t] = new double[vertices.size()];
+        for (int rank = 0; rank < vertices.size(); rank++) {
+          pairTopVertices[t][rank] = vertices.get(rank)[0];
+          pairTopDeltas[t][rank] = deltas[vertices.get(rank)[0]];
+        }
+        changeMass[t] = mass;
+        changedVertices[t] = changed;
+      }
+    });
+    // Merge the top vertices of the pairs, the order of a change is its time then its rank in
+    // its pair, which ranks equal delta changes by vertex index.
+    TopRegions top = new TopRegions(changesNumber);
+    for (int t = 0; t < pairsNumber; t++) {
+      for (int rank = 0; rank < pairTopVertices[t].length; rank++) {
+        double delta = pairTopDeltas[t][rank];
+        int order = t * changesNumber + rank;
+        if (!top.accepts(delta, order)) {
+          break; // The next changes of the pair rank lower.
+        }
+        top.add(delta, order, new int[] {t, rank});
+      }
+    }
+    ArrayList<Change> topChanges = new ArrayList<Change>(top.size());
+    for (int[] change : top.getRegions()) {
+      int t = change[0];
+      int rank = change[1];
+      topChanges.add(new Change(t, pairTopVertices[t][rank], pairTopDeltas[t][rank]));
+    }
+    Metrics.observeSince("change_timeline_seconds", start);
+    event.setBatch(0, pairsNumber).finish();
+    return new ChangeTimeline(series, changeMass, changedVertices, topChanges);
+  }
+
+  /**
+   * Get the total change mass of each consecutive pair, the sum of its vertex delta changes, so
+   * each changed edge weight is counted once for each of its vertices.
+   *
+   * @return change mass from snapshot t to snapshot t + 1, for each t.
+   */
+  public double[] getChangeMass() {
+    return changeMass;
+  }
+
+  /**
+   * @return number of vertices with a nonzero delta change from snapshot t to snapshot t + 1,
+   *         for each t.
+   */
+  public int[] getChangedVertices() {
+    return changedVertices;
+  }
+
+  /**
+   * @return top (vertex, time) changes of the series, from the highest to the lowest delta
+   *         change.
+   */
+  public ArrayList<Change> getTopChanges() {
+    return topChanges;
+  }
+
+  /**
+   * Get the timeline as a table of comma separated rows: one row per consecutive pair with its
+   * change mass and changed vertices number, then one row per top change with its rank, pair,
+   * vertex id and delta change.
+   *
+   * @return table rows, starting with the header of each part.
+   */
+  public ArrayList<String> getTable() {
+    ArrayList<String> rows = new ArrayList<String>();
+    rows.add("from,to,change_mass,changed_vertices");
+    for (int t = 0; t < changeMass.length; t++) {
+      rows.add(series.getSnapshot(t).getLabel() + "," + series.getSnapshot(t + 1).getLabel() + ","
+          + changeMass[t] + "," + changedVertices[t]);
+    }
+    rows.add("rank,from,to,vertex,delta");
+    for (int rank = 0; rank < topChanges.size(); rank++) {
+      Change change = topChanges.get(rank);
+      rows.add((rank + 1) + "," + series.getSnapshot(change.getTime()).getLabel() + ","
+          + series.getSnapshot(change.getTime() + 1).getLabel() + ","
+          + series.getVertexId(change.getVertex()) + "," + change.getDelta());
+    }
+    return rows;
+  }
+
+  /**
+   * @param args argument sent for the program.
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("Java -jar ChangeTimeline.jar seriesDirectory changesNumber");
+      return;
+    }
+    String directory = args[0];
+    int changesNumber = Integer.parseInt(args[1]); // 20
+    Metrics.startServerIfConfigured();
+    SnapshotSeries series = SnapshotSeries.readDirectory(directory);
+    for (String row : calculate(series, changesNumber).getTable()) {
+      System.out.println(row);
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import matlabcontrol.MatlabInvocationException;
+import matlabcontrol.MatlabProxy;
+import matlabcontrol.extensions.MatlabNumericArray;
+import matlabcontrol.extensions.MatlabTypeConverter;
+
+/**
+ * Transfer of the graph edge arrays to the MATLAB backend through shared memory-mapped files.
+ * Each snapshot is written once per content hash as its node1, node2 and edge value columns of
+ * little endian doubles, the layout memmapfile reads as an edges x 3 matrix, and is referred to by
+ * its handle afterwards. Each MATLAB workspace variable is paired with a variable holding the
+ * content hash of its snapshot, such as G1_hash for G1, so an unchanged graph isn't transferred
+ * again and a new one is read by MATLAB from the mapped file instead of being serialized through
+ * the proxy. The hash lives in the MATLAB session rather than in the JVM, so a restarted session,
+ * or one shared with a servlet that writes the variable without this class, is loaded again.
+ */
+public class EdgeArrayStore {
+
+  // Maximum number of snapshot files kept, the least recently used file is deleted first.
+  private static final int MAX_SNAPSHOTS = 8;
+  // Directory of the snapshot files.
+  private static final File directory =
+      new File(System.getProperty("java.io.tmpdir"), "graph-snapshots");
+  // Snapshot files by content hash, in access order.
+  private static final LinkedHashMap<Long, Handle> handles =
+      new LinkedHashMap<Long, Handle>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Handle> eldest) {
+          if (size() > MAX_SNAPSHOTS) {
+            eldest.getValue().getFile().delete();
+            return true;
+          }
+          return false;
+        }
+      };
+
+  static {
+    // Delete the remaining snapshot files on exit, the evicted ones are deleted on eviction.
+    Runtime.getRuntime().addShutdownHook(new Thread("edge-array-store-cleanup") {
+      @Override
+      public void run() {
+        synchronized (EdgeArrayStore.class) {
+          for (Handle handle : handles.values()) {
+            handle.getFile().delete();
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Snapshot written to a memory-mapped file.
+   */
+  public static class Handle {
+    // Content hash of the snapshot.
+    private final long hash;
+    // File holding the edge columns.
+    private final File file;
+    // Number of edges.
+    private final int rows;
+    // Number of columns of each edge.
+    private final int columns;
+
+    private Handle(long hash, File file, int rows, int columns) {
+      this.hash = hash;
+      this.file = file;
+      this.rows = rows;
+      this.columns = columns;
+    }
+
+    /**
+     * @return content hash of the snapshot.
+     */
+    public long getHash() {
+      return hash;
+    }
+
+    /**
+     * @return file holding the edge columns.
+     */
+    public File getFile() {
+      return file;
+    }
+
+    /**
+     * Get the MATLAB statements reading the snapshot into a workspace variable.
+     *
+     * @param variable MATLAB workspace variable.
+     * @return MATLAB statements.
+     */
+    public String getReadStatement(String variable) {
+      if (rows == 0) { // memmapfile can't map an empty file.
+        return variable + " = zeros(0, " + columns + ");";
+      }
+      String path = file.getAbsolutePath().replace("'", "''");
+      return "edges_map = memmapfile('" + path + "', 'Format', {'double', [" + rows + " "
+          + columns + "], 'edges'}); " + variable + " = edges_map.Data.edges; clear edges_map;";
+    }
+  }
+
+  /**
+   * Get the handle of a snapshot, writing it to a memory-mapped file the first time.
+   *
+   * @param graph edges as node1, node2, edge value.
+   * @return handle of the snapshot.
+   * @throws IOException if the file can't be written.
+   */
+  public static synchronized Handle getHandle(double[][] graph) throws IOException {
+    return getHandle(graph, RegionCache.fingerprint(graph));
+  }
+
+  /**
+   * Get the handle of a snapshot, writing it to a memory-mapped file the first time.
+   *
+   * @param graph edges as node1, node2, edge value.
+   * @param hash content hash of the graph.
+   * @return handle of the snapshot.
+   * @throws IOException if the file can't be written.
+   */
+  private static Handle getHandle(double[][] graph, long hash) throws IOException {
+    Handle handle = handles.get(hash);
+    if (handle != null && handle.getFile().exists()) {
+      return handle;
+    }
+    long start = Metrics.startTimer();
+    int rows = graph.length;
+    int columns = rows == 0 ? 3 : graph[0].length;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can't create " + directory);
+    }
+    // MATLAB only reads the files of the handles, which are made once the file is written, so a
+    // file left over from an earlier run is simply overwritten.
+    File file = new File(directory, Long.toHexString(hash) + ".edges");
+    long size = (long) rows * columns * 8;
+    RandomAccessFile output = new RandomAccessFile(file, "rw");
+    try {
+      output.setLength(size);
+      FileChannel channel = output.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      DoubleBuffer values = buffer.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+      // Column major, as MATLAB stores matrices.
+      for (int column = 0; column < columns; column++) {
+        for (int row = 0; row < rows; row++) {
+          values.put(graph[row][column]);
+        }
+      }
+    } finally {
+      output.close();
+    }
+    handle = new Handle(hash, file, rows, columns);
+    handles.put(hash, handle);
+    Metrics.observeSince("edge_transfer_write_seconds", start);
+    return handle;
+  }
+
+  /**
+   * Load a snapshot into a MATLAB workspace variable, unless the hash variable paired with it
+   * shows it already holds the snapshot. If the snapshot file can't be written, the edges are sent
+   * through the proxy instead.
+   *
+   * @param proxy MATLAB proxy.
+   * @param variable MATLAB workspace variable.
+   * @param graph edges as node1, node2, edge value.
+   * @throws MatlabInvocationException
+   */
+  public static synchronized void load(MatlabProxy proxy, String variable, double[][] graph)
+      throws MatlabInvocationException {
+    long hash = RegionCache.fingerprint(graph);
+    String hashVariable = variable + "_hash";
+    String hashValue = "'" + Long.toHexString(hash) + "'";
+    Object[] loaded = proxy.returningEval("exist('" + hashVariable + "', 'var') == 1 && isequal("
+        + hashVariable + ", " + hashValue + ")", 1);
+    if (loaded[0] instanceof boolean[] && ((boolean[]) loaded[0])[0]) {
+      Metrics.increment("edge_transfer_reused_total");
+      return;
+    }
+    // The hash is cleared before and set after the variable in a single statement, so a failed
+    // load leaves no hash behind.
+    try {
+      proxy.eval("clear " + hashVariable + "; " + getHandle(graph, hash).getReadStatement(variable)
+          + " " + hashVariable + " = " + hashValue + ";");
+      Metrics.increment("edge_transfer_mapped_total");
+    } catch (IOException e) {
+      proxy.eval("clear " + hashVariable + ";");
+      MatlabTypeConverter processor = new MatlabTypeConverter(proxy);
+      processor.setNumericArray(variable, new MatlabNumericArray(graph, null));
+      proxy.eval(hashVariable + " = " + hashValue + ";");
+      Metrics.increment("edge_transfer_serialized_total");
+    }
+  }
+}
@@ -5,16 +5,33 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.DoubleSummaryStatistics;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 
 public class GraphCalculator {
 
+  // Metrics recorded by every graph load, delta calculation and traversal.
+  private static final Metrics.Histogram READ_GRAPHS_SECONDS =
+      Metrics.histogram("calculator_read_graphs_seconds", null);
+  private static final Metrics.Histogram DELTA_SECONDS =
+      Metrics.histogram("calculator_delta_seconds", null);
+  private static final Metrics.Counter BFS_TRAVERSALS =
+      Metrics.counter("calculator_traversals_total", "method=\"bfs\"");
+  private static final Metrics.Counter BFS_RADIUS_TRAVERSALS =
+      Metrics.counter("calculator_traversals_total", "method=\"bfs_radius\"");
+  private static final Metrics.Counter BFS_BIASED_TRAVERSALS =
+      Metrics.counter("calculator_traversals_total", "method=\"bfs_biased\"");
+  private static final Metrics.Counter BFS_PRIORITY_QUEUE_TRAVERSALS =
+      Metrics.counter("calculator_traversals_total", "method=\"bfs_priority_queue\"");
+
   // graph1 adjacency list of graph 1.
   private HashMap<Node, HashMap<Node, Integer>> graph1;
   // nodeMapping1 contains the mapping between the node ID and the node object of graph 1.
@@ -23,6 +40,21 @@ public class GraphCalculator {
   private HashMap<Node, HashMap<Node, Integer>> graph2;
   // nodeMapping2 contains the mapping between the node ID and the node object of graph 2.
   private HashMap<String, Node> nodeMapping2;
+  // Graph 1 nodes indexed by their integer id, or null if the graph wasn't loaded from an array.
+  private Node[] nodesByNumber1;
+  // Graph 2 nodes indexed by their integer id, or null if the graph wasn't loaded from an array.
+  private Node[] nodesByNumber2;
+  // Graph 2 neighbors of each node sorted by distortion value from the highest to the lowest,
+  // built on first use by biased BFS and dropped whenever graph 2 or the deltas change.
+  private volatile HashMap<Node, Node[]> sortedNeighbors2;
+  // Graph 2 nodes by their dense index, built on first use by the priority queue BFS.
+  private volatile Node[] nodesByIndex2;
+  // Visited marks of the priority queue BFS not in use, reused by the next traversals.
+  private final ConcurrentLinkedQueue<VisitedMarks> freeVisitedMarks =
+      new ConcurrentLinkedQueue<VisitedMarks>();
+  // Compressed rows of both graphs over the graph 2 node indices, built on first use by the
+  // region evaluation and dropped whenever the graphs or the deltas change.
+  private volatile RegionScorer regionScorer;
   // Min delta value of a node.
   private double minDelta;
   // Max delta value of a node.
@@ -61,6 +93,7 @@ public class GraphCalculator {
    */
   public void setGraph1(HashMap<Node, HashMap<Node, Integer>> graph1) {
     this.graph1 = graph1;
+    this.regionScorer = null;
   }
 
   /**
@@ -79,6 +112,9 @@ public class GraphCalculator {
    */
   public void setGraph2(HashMap<Node, HashMap<Node, Integer>> graph2) {
     this.graph2 = graph2;
+    this.sortedNeighbors2 = null;
+    this.nodesByIndex2 = null;
+    this.regionScorer = null;
   }
 
   /**
@@ -97,6 +133,8 @@ public class GraphCalculator {
    */
   public void setNodeMapping1(HashMap<String, Node> nodeMapping1) {
     this.nodeMapping1 = nodeMapping1;
+    this.nodesByNumber1 = null;
+    this.regionScorer = null;
   }
 
   /**
@@ -115,6 +153,44 @@ public class GraphCalculator {
    */
   public void setNodeMapping2(HashMap<String, Node> nodeMapping2) {
     this.nodeMapping2 = nodeMapping2;
+    this.nodesByNumber2 = null;
+    this.regionScorer = null;
+  }
+
+  /**
+   * Get the graph1 node with the same id as a node of either graph.
+   * 
+   * @param node of graph1 or graph2.
+   * @return graph1 node with the same id, or null if graph1 doesn't contain it.
+   */
+  public Node getNodeInGraph1(Node node) {
+    return getNode(node, nodesByNumber1, nodeMapping1);
+  }
+
+  /**
+   * Get the graph2 node with the same id as a node of either graph.
+   * 
+   * @param node of graph1 or graph2.
+   * @return graph2 node with the same id, or null if graph2 doesn't contain it.
+   */
+  public Node getNodeInGraph2(Node node) {
+    return getNode(node, nodesByNumber2, nodeMapping2);
+  }
+
+  /**
+   * Get the node with the same id as a given node, by its integer id when it has one.
+   * 
+   * @param node to look up.
+   * @param nodesByNumber nodes indexed by their integer id, or null.
+   * @param nodeMapping mapping between the node ID and the node object.
+   * @return node with the same id, or null if there is none.
+   */
+  private static Node getNode(Node node, Node[] nodesByNumber, HashMap<String, Node> nodeMapping) {
+    int number = node.getNumber();
+    if (number >= 0 && nodesByNumber != null) {
+      return number < nodesByNumber.length ? nodesByNumber[number] : null;
+    }
+    return nodeMapping.get(node.getId());
   }
 
   /**
@@ -161,16 +237,27 @@ public class GraphCalculator {
    * @throws IOException
    */
   public void readGraphs(String inputFile1, String inputFile2) throws IOException {
+    long start = Metrics.startTimer();
+    SearchPhaseEvent event = SearchPhaseEvent.begin(SearchPhaseEvent.GRAPH_LOAD, "graph_reader", 0);
     // Read the first graph.
     GraphReader reader1 = new GraphReader();
     reader1.readGraph(inputFile1);
     graph1 = reader1.getGraph();
     nodeMapping1 = reader1.getNodeMapping();
+    nodesByNumber1 = null;
     // Read the second graph.
     GraphReader reader2 = new GraphReader();
     reader2.readGraph(inputFile2);
     graph2 = reader2.getGraph();
+    sortedNeighbors2 = null;
+    nodesByIndex2 = null;
+    regionScorer = null;
     nodeMapping2 = reader2.getNodeMapping();
+    nodesByNumber2 = null;
+    READ_GRAPHS_SECONDS.observeSince(start);
+    Metrics.setGauge("graph1_nodes", graph1.size());
+    Metrics.setGauge("graph2_nodes", graph2.size());
+    event.setNodes(Math.max(graph1.size(), graph2.size())).finish();
   }
 
   /**
@@ -181,16 +268,27 @@ public class GraphCalculator {
    * @throws IOException
    */
   public void readGraphs(double[][] graph1Array, double[][] graph2Array) throws IOException {
+    long start = Metrics.startTimer();
+    SearchPhaseEvent event = SearchPhaseEvent.begin(SearchPhaseEvent.GRAPH_LOAD, "graph_reader", 0);
     // Read the first graph.
     GraphReader reader1 = new GraphReader();
     reader1.loadGraphArray(graph1Array);
     graph1 = reader1.getGraph();
     nodeMapping1 = reader1.getNodeMapping();
+    nodesByNumber1 = reader1.getNodesByNumber();
     // Read the second graph.
     GraphReader reader2 = new GraphReader();
     reader2.loadGraphArray(graph2Array);
     graph2 = reader2.getGraph();
+    sortedNeighbors2 = null;
+    nodesByIndex2 = null;
+    regionScorer = null;
     nodeMapping2 = reader2.getNodeMapping();
+    nodesByNumber2 = reader2.getNodesByNumber();
+    READ_GRAPHS_SECONDS.observeSince(start);
+    Metrics.setGauge("graph1_nodes", graph1.size());
+    Metrics.setGauge("graph2_nodes", graph2.size());
+    event.setNodes(Math.max(graph1.size(), graph2.size())).finish();
   }
 
   /**
@@ -230,12 +328,15 @@ public class GraphCalculator {
    * its edges in graph 1 and its edges in graph 2.
    */
   public void calculateDeltaGraph() {
+    long start = Metrics.startTimer();
+    SearchPhaseEvent event =
+        SearchPhaseEvent.begin(SearchPhaseEvent.DELTA, "absolute_edge_difference", graph1.size());
     for (Node node1 : graph1.keySet()) {
       HashMap<Node, Integer> node1NeighborsInGraph1 = graph1.get(node1);
       if(node1NeighborsInGraph1 == null) {
     	  node1NeighborsInGraph1 = new HashMap<Node, Integer>();
       }
-      Node node2 = nodeMapping2.get(node1.getId());
+      Node node2 = getNodeInGraph2(node1);
       HashMap<Node, Integer> node1NeighborsInGraph2 = graph2.get(node2);
       if(node1NeighborsInGraph2 == null) {
     	  node1NeighborsInGraph2 = new HashMap<Node, Integer>();
@@ -244,7 +345,7 @@ public class GraphCalculator {
       for (Node node1NeighborInGraph1 : node1NeighborsInGraph1.keySet()) {
         // Get the weight of this edge in graph 1.
         int edge1Weight = node1NeighborsInGraph1.get(node1NeighborInGraph1);
-        Node node1NeighborInGraph2 = nodeMapping2.get(node1NeighborInGraph1.getId());
+        Node node1NeighborInGraph2 = getNodeInGraph2(node1NeighborInGraph1);
         if (node1NeighborsInGraph2 != null
             && node1NeighborsInGraph2.containsKey(node1NeighborInGraph2)) {
           // If this edge exists in graph 2, get its weight in graph 2.
@@ -259,7 +360,7 @@ public class GraphCalculator {
       }
       if (node1NeighborsInGraph2 != null) {
         for (Node node1NeighborInGraph2 : node1NeighborsInGraph2.keySet()) {
-          Node node1NeighborInGraph1 = nodeMapping1.get(node1NeighborInGraph2.getId());
+          Node node1NeighborInGraph1 = getNodeInGraph1(node1NeighborInGraph2);
           int edge2Weight = node1NeighborsInGraph2.get(node1NeighborInGraph2);
           if (!node1NeighborsInGraph1.containsKey(node1NeighborInGraph1)) {
             // If the edge only exist in graph 2 and not in graph 1, then
@@ -278,6 +379,10 @@ public class GraphCalculator {
       minDelta = Math.min(minDelta, node1.getDistortionValue());
       maxDelta = Math.max(maxDelta, node1.getDistortionValue());
     }
+    sortedNeighbors2 = null;
+    regionScorer = null;
+    DELTA_SECONDS.observeSince(start);
+    event.finish();
   }
 
   /**
@@ -287,6 +392,9 @@ public class GraphCalculator {
    * @param numberOfNodes number of nodes in the graph.
    */
   public void removeNodesBelowThreshold(double step, int numberOfNodes) {
+    SearchPhaseEvent event =
+        SearchPhaseEvent.begin(SearchPhaseEvent.THRESHOLDING, "remove_top_delta_nodes",
+            graph1.size());
     HashSet<Node> graph1Nodes = new HashSet<Node>();
     // get graph1 nodes.
     graph1Nodes.addAll(graph1.keySet());
@@ -304,11 +412,14 @@ public class GraphCalculator {
         break;
       }
       // Get the mapping of node1 in graph2.
-      Node node2 = nodeMapping2.get(node1.getId());
+      Node node2 = getNodeInGraph2(node1);
       HashMap<Node, Integer> node1Nbrs = graph1.get(node1);
       // Remove node1 from graph1.
       graph1.remove(node1);
       nodeMapping1.remove(node1.getId());
+      if (nodesByNumber1 != null && node1.getNumber() >= 0) {
+        nodesByNumber1[node1.getNumber()] = null;
+      }
       // Remove node1 from nodes pointing to it in graph1.
       for (Node node1Nbr : node1Nbrs.keySet()) {
         HashMap<Node, Integer> node1NbrNbrs = graph1.get(node1Nbr);
@@ -322,6 +433,9 @@ public class GraphCalculator {
       // Remove node2 from graph2.
       graph2.remove(node2);
       nodeMapping2.remove(node2.getId());
+      if (nodesByNumber2 != null && node2.getNumber() >= 0) {
+        nodesByNumber2[node2.getNumber()] = null;
+      }
       // Remove node2 from nodes pointing to it in graph2.
       for (Node node2Nbr : node2Nbrs.keySet()) {
         HashMap<Node, Integer> node2NbrNbrs = graph2.get(node2Nbr);
@@ -332,6 +446,10 @@ public class GraphCalculator {
         graph2.put(node2Nbr, node2NbrNbrs);
       }
     }
+    sortedNeighbors2 = null;
+    regionScorer = null;
+    event.setBatch(0, (int) Math.min(nodes.length, step * numberOfNodes));
+    event.finish();
   }
 
   /**
@@ -343,6 +461,21 @@ public class GraphCalculator {
    * @return HashSet of nodes in the BFS graph.
    */
   public HashSet<Node> BFS(Node node, int nodesNumPerRegion) {
+    return BFS(node, nodesNumPerRegion, null);
+  }
+
+  /**
+   * Start traditional BFS from node until the number of nodes in the BFS graph is equal to the
+   * nodesNumPerRegion.
+   * 
+   * @param node to start the BFS from.
+   * @param nodesNumPerRegion number of nodes in the BFS graph.
+   * @param accumulator to add the nodes of the BFS graph to as they are added, or null.
+   * @return HashSet of nodes in the BFS graph.
+   */
+  public HashSet<Node> BFS(Node node, int nodesNumPerRegion,
+      RegionScorer.Accumulator accumulator) {
+    BFS_TRAVERSALS.increment();
     // found to keep track of nodes that are examined in the BFS so far.
     HashSet<Node> found = new HashSet<Node>();
     found.add(node);
@@ -352,6 +485,9 @@ public class GraphCalculator {
     while (!queue.isEmpty()) {
       Node currentNode = queue.poll();
       bfsNodes.add(currentNode);
+      if (accumulator != null) {
+        accumulator.add(currentNode.getIndex());
+      }
       if (bfsNodes.size() == nodesNumPerRegion) {
         // The number of nodes in the current BFS graph is equal to the
         // nodesNumPerRegion.
@@ -373,6 +509,27 @@ public class GraphCalculator {
     return bfsNodes;
   }
 
+  /**
+   * Start traditional BFS from each of the nodes until the number of nodes in its BFS graph is
+   * equal to the nodesNumPerRegion. The BFS run 64 at a time over the graph 2 rows, reading each
+   * row once per batch, and give the same BFS graphs as starting BFS from each node on its own.
+   * 
+   * @param nodes to start the BFS from.
+   * @param from index of the first node to start from.
+   * @param to index after the last node to start from.
+   * @param nodesNumPerRegion number of nodes in each BFS graph.
+   * @return graph 2 node indices of each BFS graph, in the order the BFS adds them.
+   */
+  public int[][] BFS(Node[] nodes, int from, int to, int nodesNumPerRegion) {
+    RegionScorer scorer = getRegionScorer();
+    BFS_TRAVERSALS.add(to - from);
+    int[] starts = new int[to - from];
+    for (int i = 0; i < starts.length; i++) {
+      starts[i] = nodes[from + i].getIndex();
+    }
+    return scorer.getTraversal().expand(starts, 0, starts.length, nodesNumPerRegion);
+  }
+
   /**
    * Start traditional BFS from node until the BFS graph radius is equal to the parameter radius.
    * 
@@ -381,6 +538,7 @@ public class GraphCalculator {
    * @return HashSet of nodes in the BFS graph.
    */
   public HashSet<Node> BFSRadius(Node node, int radius) {
+    BFS_RADIUS_TRAVERSALS.increment();
     // found to keep track of nodes that are examined in the BFS so far.
     HashSet<Node> found = new HashSet<Node>();
     found.add(node);
@@ -434,6 +592,24 @@ public class GraphCalculator {
    * @return HashSet of nodes in the BFS graph.
    */
   public HashSet<Node> BFSBiased(Node node, int nodesNumPerRegion, int biasedk) {
+    return BFSBiased(node, nodesNumPerRegion, biasedk, null);
+  }
+
+  /**
+   * Start biased BFS from node until the BFS graph number of nodes is equal to the parameter
+   * nodesNumPerRegion. The biased BFS expands from each node by only considering the expansion from
+   * its top distorted biasedk neighbor nodes and neglect the other neighbors.
+   * 
+   * @param node to start the BFS from.
+   * @param nodesNumPerRegion number of nodes in the BFS graph.
+   * @param biasedk top distorted biasedk neighbor nodes to continue the expansion from.
+   * @param accumulator to add the nodes of the BFS graph to as they are added, or null.
+   * @return HashSet of nodes in the BFS graph.
+   */
+  public HashSet<Node> BFSBiased(Node node, int nodesNumPerRegion, int biasedk,
+      RegionScorer.Accumulator accumulator) {
+    BFS_BIASED_TRAVERSALS.increment();
+    HashMap<Node, Node[]> sortedNeighbors = getSortedNeighbors2();
     // found to keep track of nodes that are examined in the BFS so far.
     HashSet<Node> found = new HashSet<Node>();
     found.add(node);
@@ -443,24 +619,19 @@ public class GraphCalculator {
     while (!queue.isEmpty()) {
       Node currentNode = queue.poll();
       bfsNodes.add(currentNode);
+      if (accumulator != null) {
+        accumulator.add(currentNode.getIndex());
+      }
       if (bfsNodes.size() == nodesNumPerRegion) {
         // The number of nodes in the current BFS graph is equal to the
         // nodesNumPerRegion.
         break;
       }
-      HashMap<Node, Integer> neighborsMap = graph2.get(currentNode);
-      if (neighborsMap == null) {
+      // Neighbors sorted based on the distortion values from the highest to the lowest.
+      Node[] neighborNodes = sortedNeighbors.get(currentNode);
+      if (neighborNodes == null) {
         continue;
       }
-      Set<Node> neighbors = neighborsMap.keySet();
-      // Add the neighbors of the current node to an array for sorting.
-      Node[] neighborNodes = new Node[neighbors.size()];
-      int index = 0;
-      for (Node neighbor : neighbors) {
-        neighborNodes[index++] = neighbor;
-      }
-      // Sort the neighborNodes based on the distortion values from the highest to the lowest.
-      Arrays.sort(neighborNodes);
       int addedCount = 0; // Keep track of the number of added neighbors until it reaches biasedk.
       for (int i = 0; i < neighborNodes.length; i++) {
         if (!found.contains(neighborNodes[i])) {
@@ -478,6 +649,41 @@ public class GraphCalculator {
     return bfsNodes;
   }
 
+  /**
+   * Get the graph 2 neighbors of each node sorted by distortion value from the highest to the
+   * lowest. The deltas are fixed once calculated, so the neighbors are sorted once, in parallel,
+   * instead of on every biased BFS expansion.
+   * 
+   * @return sorted neighbors of each graph 2 node.
+   */
+  public HashMap<Node, Node[]> getSortedNeighbors2() {
+    HashMap<Node, Node[]> sortedNeighbors = sortedNeighbors2;
+    if (sortedNeighbors != null) {
+      return sortedNeighbors;
+    }
+    synchronized (this) {
+      if (sortedNeighbors2 == null) {
+        final Node[] nodes = graph2.keySet().toArray(new Node[graph2.size()]);
+        final Node[][] neighbors = new Node[nodes.length][];
+        IntStream.range(0, nodes.length).parallel().forEach(new IntConsumer() {
+          @Override
+          public void accept(int i) {
+            Set<Node> nodeNeighbors = graph2.get(nodes[i]).keySet();
+            neighbors[i] = nodeNeighbors.toArray(new Node[nodeNeighbors.size()]);
+            // Stable sort, so that ties keep the adjacency list order.
+            Arrays.sort(neighbors[i]);
+          }
+        });
+        sortedNeighbors = new HashMap<Node, Node[]>(nodes.length * 2);
+        for (int i = 0; i < nodes.length; i++) {
+          sortedNeighbors.put(nodes[i], neighbors[i]);
+        }
+        sortedNeighbors2 = sortedNeighbors;
+      }
+      return sortedNeighbors2;
+    }
+  }
+
   /**
    * Start priority queue BFS from node until the BFS graph number of nodes is equal to the
    * parameter nodesNumPerRegion. The priority queue BFS uses a priority queue instead of
@@ -489,15 +695,42 @@ public class GraphCalculator {
    * @return HashSet of nodes in the BFS graph.
    */
   public HashSet<Node> BFSPriorityQueue(Node node, int nodesNumPerRegion) {
-    // found to keep track of nodes that are examined in the BFS so far.
-    HashSet<Node> found = new HashSet<Node>();
-    found.add(node);
-    PriorityQueue<Node> queue = new PriorityQueue<Node>();
-    queue.add(node);
+    return BFSPriorityQueue(node, nodesNumPerRegion, null);
+  }
+
+  /**
+   * Start priority queue BFS from node until the BFS graph number of nodes is equal to the
+   * parameter nodesNumPerRegion. The priority queue BFS uses a priority queue instead of
+   * traditional queue, where the priority is the distortion value of the node and the higher this
+   * value is, the higher its priority will be.
+   * 
+   * @param node to start the BFS from.
+   * @param nodesNumPerRegion number of nodes in the BFS graph.
+   * @param accumulator to add the nodes of the BFS graph to as they are added, or null.
+   * @return HashSet of nodes in the BFS graph.
+   */
+  public HashSet<Node> BFSPriorityQueue(Node node, int nodesNumPerRegion,
+      RegionScorer.Accumulator accumulator) {
+    BFS_PRIORITY_QUEUE_TRAVERSALS.increment();
+    Node[] nodesByIndex = getNodesByIndex2();
+    // found to keep track of nodes that are examined in the BFS so far, borrowed from the free
+    // marks unless they were sized for an older graph 2.
+    VisitedMarks found = freeVisitedMarks.poll();
+    if (found == null || found.size() != nodesByIndex.length) {
+      found = new VisitedMarks(nodesByIndex.length);
+    }
+    found.clear();
+    found.visit(node.getIndex());
+    // Priority queue of node indices keyed by their distortion values.
+    IntMaxHeap queue = IntMaxHeap.get();
+    queue.add(node.getIndex(), node.getDistortionValue());
     HashSet<Node> bfsNodes = new HashSet<Node>();
     while (!queue.isEmpty()) {
-      Node currentNode = queue.poll();
+      Node currentNode = nodesByIndex[queue.poll()];
       bfsNodes.add(currentNode);
+      if (accumulator != null) {
+        accumulator.add(currentNode.getIndex());
+      }
       if (bfsNodes.size() == nodesNumPerRegion) {
         // The number of nodes in the current BFS graph is equal to the
         // nodesNumPerRegion.
@@ -509,15 +742,170 @@ public class GraphCalculator {
       }
       for (Node neighbor : neighbors.keySet()) {
         // for each node connected to the current Node.
-        if (!found.contains(neighbor)) {
-          found.add(neighbor);
-          queue.add(neighbor);
+        if (found.visit(neighbor.getIndex())) {
+          queue.add(neighbor.getIndex(), neighbor.getDistortionValue());
         }
       }
     }
+    freeVisitedMarks.add(found);
     return bfsNodes;
   }
 
+  /**
+   * Get the graph 2 nodes by their dense index, indexing the nodes and their neighbors on first
+   * use.
+   * 
+   * @return graph 2 nodes, where each node is at its index.
+   */
+  private Node[] getNodesByIndex2() {
+    Node[] nodesByIndex = nodesByIndex2;
+    if (nodesByIndex != null) {
+      return nodesByIndex;
+    }
+    synchronized (this) {
+      if (nodesByIndex2 == null) {
+        ArrayList<Node> nodes = new ArrayList<Node>(graph2.size());
+        for (Node node : graph2.keySet()) {
+          node.setIndex(nodes.size());
+          nodes.add(node);
+        }
+        // Neighbors are keys too, unless the graph file omitted their line.
+        for (HashMap<Node, Integer> neighbors : graph2.values()) {
+          for (Node neighbor : neighbors.keySet()) {
+            int index = neighbor.getIndex();
+            if (index < 0 || index >= nodes.size() || nodes.get(index) != neighbor) {
+              neighbor.setIndex(nodes.size());
+              nodes.add(neighbor);
+            }
+          }
+        }
+        nodesByIndex2 = nodes.toArray(new Node[nodes.size()]);
+      }
+      return nodesByIndex2;
+    }
+  }
+
+  /**
+   * Get the region scorer of the two graphs, building the compressed rows of graph 1 and graph 2
+   * over the graph 2 node indices on first use.
+   * 
+   * @return region scorer.
+   */
+  public RegionScorer getRegionScorer() {
+    RegionScorer scorer = regionScorer;
+    if (scorer != null) {
+      return scorer;
+    }
+    synchronized (this) {
+      if (regionScorer == null) {
+        Node[] nodesByIndex = getNodesByIndex2();
+        int n = nodesByIndex.length;
+        int[] offsets1 = new int[n + 1];
+        int[] offsets2 = new int[n + 1];
+        double[] deltas = new double[n];
+        for (int i = 0; i < n; i++) {
+          Node node = nodesByIndex[i];
+          HashMap<Node, Integer> neighbors1 = graph1.get(getNodeInGraph1(node));
+          HashMap<Node, Integer> neighbors2 = graph2.get(node);
+          offsets1[i + 1] = offsets1[i] + (neighbors1 == null ? 0 : neighbors1.size());
+          offsets2[i + 1] = offsets2[i] + (neighbors2 == null ? 0 : neighbors2.size());
+          deltas[i] = node.getDistortionValue();
+        }
+        int[] targets1 = new int[offsets1[n]];
+        int[] targets2 = new int[offsets2[n]];
+        for (int i = 0; i < n; i++) {
+          Node node = nodesByIndex[i];
+          HashMap<Node, Integer> neighbors1 = graph1.get(getNodeInGraph1(node));
+          if (neighbors1 != null) {
+            int j = offsets1[i];
+            for (Node neighbor : neighbors1.keySet()) {
+              targets1[j++] = getIndex(getNodeInGraph2(neighbor), nodesByIndex);
+            }
+          }
+          HashMap<Node, Integer> neighbors2 = graph2.get(node);
+          if (neighbors2 != null) {
+            int j = offsets2[i];
+            for (Node neighbor : neighbors2.keySet()) {
+              targets2[j++] = neighbor.getIndex();
+            }
+          }
+        }
+        regionScorer = new RegionScorer(offsets1, targets1, offsets2, targets2, deltas);
+      }
+      return regionScorer;
+    }
+  }
+
+  /**
+   * Get the index of a graph 2 node.
+   * 
+   * @param node of graph 2, or null.
+   * @param nodesByIndex graph 2 nodes by their index.
+   * @return index of the node, or -1 if it isn't indexed.
+   */
+  private static int getIndex(Node node, Node[] nodesByIndex) {
+    if (node == null) {
+      return -1;
+    }
+    int index = node.getIndex();
+    return index >= 0 && index < nodesByIndex.length && nodesByIndex[index] == node ? index : -1;
+  }
+
+  /**
+   * Get the graph 2 nodes at the given indices.
+   * 
+   * @param indices graph 2 node indices.
+   * @return nodes at the indices.
+   */
+  public HashSet<Node> toNodes(int[] indices) {
+    Node[] nodesByIndex = getNodesByIndex2();
+    HashSet<Node> nodes = new HashSet<Node>();
+    for (int index : indices) {
+      nodes.add(nodesByIndex[index]);
+    }
+    return nodes;
+  }
+
+  /**
+   * Get the graph 2 node indices of a region.
+   * 
+   * @param region graph 2 nodes of the region.
+   * @return indices of the region nodes, nodes that aren't in graph 2 are left out.
+   */
+  public int[] toIndices(HashSet<Node> region) {
+    Node[] nodesByIndex = getNodesByIndex2();
+    int[] indices = new int[region.size()];
+    int size = 0;
+    for (Node node : region) {
+      int index = getIndex(node, nodesByIndex);
+      if (index < 0) {
+        index = getIndex(getNodeInGraph2(node), nodesByIndex);
+      }
+      if (index >= 0) {
+        indices[size++] = index;
+      }
+    }
+    return size == indices.length ? indices : Arrays.copyOf(indices, size);
+  }
+
+  /**
+   * Calculate the six evaluation measures of each region: its delta change over the number of
+   * edges within the region in graph1, in graph2 and the minimum of both, and over the sum of its
+   * node degrees in graph1, in graph2 and the minimum of both. The regions are scored in parallel.
+   * 
+   * @param regions graph 2 nodes of each region.
+   * @return the six evaluation measures of each region.
+   */
+  public double[][] score(ArrayList<HashSet<Node>> regions) {
+    int[][] indices = new int[regions.size()][];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = toIndices(regions.get(i));
+    }
+    return getRegionScorer().score(indices);
+  }
+
+
+
   /**
    * Calculates the distortion evaluation metric for the given regions.
    * 
@@ -556,45 +944,7 @@ public class GraphCalculator {
   public double[][] evaluatetThreshoding(ArrayList<HashSet<Node>> regions, int methodID,
       double threshold) {
     // Six evaluation measures for each region.
-    double[][] changeValues = new double[regions.size()][6];
-    int index = 0;
-    for (HashSet<Node> region : regions) { // Calculate evaluation measures for each region.
-      double changeValue = 0.0; // Sum of change values of the nodes in the region.
-      double edgesWithinRegionInGraph1 = 0.0; // Number of edges in the region in graph1.
-      double edgesWithinRegionInGraph2 = 0.0; // Number of edges in the region in graph2.
-      double nodesDegreeInGraph1 = 0.0; // Sum of node degrees of nodes in the region in graph1.
-      double nodesDegreeInGraph2 = 0.0; // Sum of node degrees of nodes in the region in graph2.
-      for (Node node : region) {
-        HashMap<Node, Integer> node1Neighbors = graph1.get(nodeMapping1.get(node.getId()));
-        HashMap<Node, Integer> node2Neighbors = graph2.get(nodeMapping2.get(node.getId()));
-        nodesDegreeInGraph1 += node1Neighbors.size();
-        nodesDegreeInGraph2 += node2Neighbors.size();
-        for (Node node1Neighbor : node1Neighbors.keySet()) {
-          if (region.contains(nodeMapping2.get(node1Neighbor.getId()))) {
-            edgesWithinRegionInGraph1++;
-          }
-        }
-        for (Node node2Neighbor : node2Neighbors.keySet()) {
-          if (region.contains(node2Neighbor)) {
-            edgesWithinRegionInGraph2++;
-          }
-        }
-        changeValue += node.getDistortionValue();
-      }
-      // Calculate the evaluation measures and store them.
-      changeValues[index][0] = changeValue / Math.max(1, edgesWithinRegionInGraph1);
-      changeValues[index][1] = changeValue / Math.max(1, edgesWithinRegionInGraph2);
-      changeValues[index][2] =
-          changeValue
-              / Math.min(Math.max(1, edgesWithinRegionInGraph1),
-                  Math.max(1, edgesWithinRegionInGraph2));
-      changeValues[index][3] = changeValue / Math.max(1, nodesDegreeInGraph1);
-      changeValues[index][4] = changeValue / Math.max(1, nodesDegreeInGraph2);
-      changeValues[index][5] =
-          changeValue
-              / Math.min(Math.max(1, nodesDegreeInGraph1), Math.max(1, nodesDegreeInGraph2));
-      index++;
-    }
+    double[][] changeValues = score(regions);
     double[][] bestChangeValues = bestMeasures.get(methodID);
     if (bestChangeValues == null) {
       bestChangeValues = new double[regions.size()][6];
@@ -605,7 +955,7 @@ public class GraphCalculator {
     }
     // Compare whether the current evaluation measures are better than the previous ones, using
     // different threshold.
-    for (index = 0; index < bestChangeValues[0].length; index++) {
+    for (int index = 0; index < bestChangeValues[0].length; index++) {
       double currentSum = sumArray(getColumn(changeValues, index));
       double bestSum = sumArray(getColumn(bestChangeValues, index));
       if (currentSum > bestSum) { // The current measures are better, store them.
@@ -678,8 +1028,7 @@ public class GraphCalculator {
    *         each region.
    */
   public double[][] evaluateEdges(ArrayList<HashSet<Node>> regions) {
-    double[][] changeValues = new double[regions.size()][6];
-    int index = 0;
+    double[][] changeValues = score(regions);
     // Strings to print.
     String changeOverEdgesWithinRegionInGraph1Result = "";
     String changeOverEdgesWithinRegionInGraph2Result = "";
@@ -687,41 +1036,7 @@ public class GraphCalculator {
     String changeOverNodesDegreeInGraph1Result = "";
     String changeOverNodesDegreeInGraph2Result = "";
     String changeOverNodesDegreeInMinGraphResult = "";
-    for (HashSet<Node> region : regions) {
-      double changeValue = 0.0; // Sum of change values of the nodes in the region.
-      double edgesWithinRegionInGraph1 = 0.0; // Number of edges in the region in graph1.
-      double edgesWithinRegionInGraph2 = 0.0; // Number of edges in the region in graph2.
-      double nodesDegreeInGraph1 = 0.0; // Sum of node degrees of nodes in the region in graph1.
-      double nodesDegreeInGraph2 = 0.0; // Sum of node degrees of nodes in the region in graph2.
-      for (Node node : region) { // for each node in the region.
-        HashMap<Node, Integer> node1Neighbors = graph1.get(nodeMapping1.get(node.getId()));
-        HashMap<Node, Integer> node2Neighbors = graph2.get(nodeMapping2.get(node.getId()));
-        nodesDegreeInGraph1 += node1Neighbors.size();
-        nodesDegreeInGraph2 += node2Neighbors.size();
-        for (Node node1Neighbor : node1Neighbors.keySet()) {
-          if (region.contains(nodeMapping2.get(node1Neighbor.getId()))) {
-            edgesWithinRegionInGraph1++;
-          }
-        }
-        for (Node node2Neighbor : node2Neighbors.keySet()) {
-          if (region.contains(node2Neighbor)) {
-            edgesWithinRegionInGraph2++;
-          }
-        }
-        changeValue += node.getDistortionValue();
-      }
-      // Store change values.
-      changeValues[index][0] = changeValue / Math.max(1, edgesWithinRegionInGraph1);
-      changeValues[index][1] = changeValue / Math.max(1, edgesWithinRegionInGraph2);
-      changeValues[index][2] =
-          changeValue
-              / Math.min(Math.max(1, edgesWithinRegionInGraph1),
-                  Math.max(1, edgesWithinRegionInGraph2));
-      changeValues[index][3] = changeValue / Math.max(1, nodesDegreeInGraph1);
-      changeValues[index][4] = changeValue / Math.max(1, nodesDegreeInGraph2);
-      changeValues[index][5] =
-          changeValue
-              / Math.min(Math.max(1, nodesDegreeInGraph1), Math.max(1, nodesDegreeInGraph2));
+    for (int index = 0; index < changeValues.length; index++) {
       // Add the result to the string formating that will be printed at the end.
       changeOverEdgesWithinRegionInGraph1Result =
           changeOverEdgesWithinRegionInGraph1Result + "\nR" + index + "="
@@ -741,7 +1056,6 @@ public class GraphCalculator {
       changeOverNodesDegreeInMinGraphResult =
           changeOverNodesDegreeInMinGraphResult + "\nR" + index + "="
               + getString(changeValues[index][5]);
-      index++;
     }
     // Print the evaluation results.
     System.out.print("Within graph 1");
@@ -765,6 +1079,93 @@ public class GraphCalculator {
     return changeValueString;
   }
 
+  /**
+   * Get the edges of a region in graph1 and in graph2, in the browser tool format source,target.
+   * 
+   * @param selectedNodes graph2 nodes of the region.
+   * @return graph1 region edges followed by graph2 region edges.
+   */
+  public ArrayList<ArrayList<String>> getRegionEdges(HashSet<Node> selectedNodes) {
+    // Get graph1 region.
+    ArrayList<String> graph1Region = new ArrayList<String>();
+    for (Node node : selectedNodes) {
+      HashMap<Node, Integer> neighborNodes = graph1.get(getNodeInGraph1(node));
+      if (neighborNodes == null) {
+        continue;
+      }
+      for (Node neighborNode : neighborNodes.keySet()) {
+        if (selectedNodes.contains(getNodeInGraph2(neighborNode))) {
+          graph1Region.add(getNumber(node) + "," + getNumber(neighborNode));
+        }
+      }
+    }
+    // Get graph2 region.
+    ArrayList<String> graph2Region = new ArrayList<String>();
+    for (Node node : selectedNodes) {
+      HashMap<Node, Integer> neighborNodes = graph2.get(node);
+      if (neighborNodes == null) {
+        continue;
+      }
+      for (Node neighborNode : neighborNodes.keySet()) {
+        if (selectedNodes.contains(neighborNode)) {
+          graph2Region.add(getNumber(node) + "," + getNumber(neighborNode));
+        }
+      }
+    }
+    ArrayList<ArrayList<String>> bothGraphRegions = new ArrayList<ArrayList<String>>();
+    bothGraphRegions.add(graph1Region);
+    bothGraphRegions.add(graph2Region);
+    return bothGraphRegions;
+  }
+
+  /**
+   * Get the jet palette color of each graph2 node from its distortion value, in one parallel pass
+   * over the node deltas for the distortion range and one for the palette indices.
+   * 
+   * @return JetPalette index of each node, indexed by the node integer id, -1 for the ids that
+   *         aren't graph2 nodes.
+   */
+  public byte[] getNodeColors() {
+    final Node[] nodesByIndex = getNodesByIndex2();
+    final double[] deltas = getRegionScorer().getDeltas();
+    // The graph2 nodes come first, followed by the neighbors without a line in the graph file.
+    final int nodesNumber = graph2.size();
+    DoubleSummaryStatistics statistics =
+        Arrays.stream(deltas, 0, nodesNumber).parallel().summaryStatistics();
+    final double max = Math.max(-1, statistics.getMax());
+    final double min = Math.min(100000, statistics.getMin());
+    final int[] numbers = new int[nodesNumber];
+    IntStream.range(0, nodesNumber).parallel().forEach(new IntConsumer() {
+      @Override
+      public void accept(int i) {
+        numbers[i] = getNumber(nodesByIndex[i]);
+      }
+    });
+    int maxNumber = Arrays.stream(numbers).parallel().max().orElse(-1);
+    final byte[] colors = new byte[maxNumber + 1];
+    Arrays.fill(colors, (byte) -1);
+    IntStream.range(0, nodesNumber).parallel().forEach(new IntConsumer() {
+      @Override
+      public void accept(int i) {
+        if (numbers[i] >= 0) {
+          colors[numbers[i]] = (byte) JetPalette.getIndex(deltas[i], min, max);
+        }
+      }
+    });
+    return colors;
+  }
+
+  /**
+   * Get the integer id of a node, parsing its id only if it wasn't loaded with an integer id.
+   * 
+   * @param node to get its id.
+   * @return integer id of the node.
+   */
+  private static int getNumber(Node node) {
+    int number = node.getNumber();
+    return number >= 0 ? number : (int) Double.parseDouble(node.getId());
+  }
+
   /**
    * Print the regions for testing purposes.
    * 
@@ -0,0 +1,292 @@
+package server;
+
+/**
+ * Java version of the GCMex segmentation of run_GCMex.m, so that the nodes can be segmented into
+ * changed and unchanged ones without MATLAB and the native GCMex binaries. The labels minimize
+ * the energy
+ *
+ * <pre>
+ * E(labels) = sum_i unary[labels(i)][i] + sum_(i,j) weight(i,j) * labelCost[labels(i)][labels(j)]
+ * </pre>
+ *
+ * <p>over the edges (i, j) of a graph, with alpha-expansion: starting from an initial labeling,
+ * each move lets every node either keep its label or switch to a label alpha, and the best move
+ * is a minimum cut of a graph with a node per graph node and an edge per graph edge, found by
+ * MaxFlowGraph. The moves are repeated over all the labels until none lowers the energy. With
+ * two labels a single move from all nodes labeled 0 to label 1 finds the minimum energy.
+ *
+ * <p>Alpha-expansion needs the label cost to be a metric. run_GCMex.m passes ones(r, r), under
+ * which every labeling pays the same pairwise cost, so forDistortion uses the Potts label cost
+ * scaled by a smoothness instead, which charges the edges between differently labeled nodes
+ * only.
+ */
+public class GraphCutSegmentation {
+
+  // Label of the nodes with low distortion values.
+  public static final int UNCHANGED = 0;
+  // Label of the nodes with high distortion values.
+  public static final int CHANGED = 1;
+  // Maximum number of cycles of moves over all the labels.
+  private static final int MAX_CYCLES = 100;
+
+  // Number of nodes.
+  private final int nodesNumber;
+  // Cost of each label for each node, as unary[label][node].
+  private final double[][] unary;
+  // Nodes and weight of each edge, each pair of nodes is listed once.
+  private final int[] sources;
+  private final int[] targets;
+  private final double[] weights;
+  private final int edgesNumber;
+  // Cost of each pair of labels on an edge, multiplied by the edge weight.
+  private final double[][] labelCost;
+
+  /**
+   * Constructor.
+   *
+   * @param unary cost of each label for each node, as unary[label][node].
+   * @param sources first node of each edge, numbered from 0.
+   * @param targets second node of each edge.
+   * @param weights weight of each edge.
+   * @param edgesNumber number of edges.
+   * @param labelCost cost of each pair of labels on an edge, a metric.
+   */
+  public GraphCutSegmentation(double[][] unary, int[] sources, int[] targets, double[] weights,
+      int edgesNumber, double[][] labelCost) {
+    int labelsNumber = unary.length;
+    for (int a = 0; a < labelsNumber; a++) {
+      if (labelCost[a][a] != 0) {
+        throw new IllegalArgumentException("Label cost of labels " + a + " and " + a
+            + " is not zero");
+      }
+      for (int b = 0; b < labelsNumber; b++) {
+        if (labelCost[a][b] < 0 || labelCost[a][b] != labelCost[b][a]) {
+          throw new IllegalArgumentException("Label cost of labels " + a + " and " + b
+              + " is negative or not symmetric");
+        }
+        for (int c = 0; c < labelsNumber; c++) {
+          if (labelCost[a][c] > labelCost[a][b] + labelCost[b][c]) {
+            throw new IllegalArgumentException("Label cost of labels " + a + " and " + c
+                + " breaks the triangle inequality");
+          }
+        }
+      }
+    }
+    this.nodesNumber = labelsNumber == 0 ? 0 : unary[0].length;
+    this.unary = unary;
+    this.sources = sources;
+    this.targets = targets;
+    this.weights = weights;
+    this.edgesNumber = edgesNumber;
+    this.labelCost = labelCost;
+  }
+
+  /**
+   * Build the two label segmentation of run_GCMex.m: the distortion values of an area scaled from
+   * 0 to 1 are the cost of the unchanged label and 1 minus them the cost of the changed label,
+   * and the edges of the graph, listed in either or both directions, cost their weight times the
+   * smoothness if their nodes get different labels. A pair of nodes listed more than once keeps
+   * its largest weight.
+   *
+   * @param distortionValues of the nodes x areas matrix, stacked column wise.
+   * @param area index of the area column, from 0.
+   * @param nodesNumber number of nodes, the maximum node id.
+   * @param graph edges as node1, node2, edge value, with the node ids from 1.
+   * @param smoothness weight of the edges relative to the distortion costs.
+   * @return segmentation of the nodes, numbered from node id - 1.
+   */
+  public static GraphCutSegmentation forDistortion(double[] distortionValues, int area,
+      int nodesNumber, double[][] graph, double smoothness) {
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < nodesNumber; i++) {
+      min = Math.min(min, distortionValues[area * nodesNumber + i]);
+      max = Math.max(max, distortionValues[area * nodesNumber + i]);
+    }
+    double[][] unary = new double[2][nodesNumber];
+    for (int i = 0; i < nodesNumber; i++) {
+      // Equal distortion values leave all the nodes unchanged.
+      double value = max > min ? (distortionValues[area * nodesNumber + i] - min) / (max - min)
+          : 0;
+      unary[UNCHANGED][i] = value;
+      unary[CHANGED][i] = 1 - value;
+    }
+    // Put each edge in the lower triangle, skipping the self loops and the unused rows of the
+    // loaded graphs.
+    int entries = 0;
+    int[] rows = new int[graph.length];
+    int[] columns = new int[graph.length];
+    double[] values = new double[graph.length];
+    for (double[] edge : graph) {
+      int node1 = (int) edge[0] - 1;
+      int node2 = (int) edge[1] - 1;
+      if (node1 < 0 || node2 < 0 || node1 == node2) {
+        continue;
+      }
+      rows[entries] = Math.max(node1, node2);
+      columns[entries] = Math.min(node1, node2);
+      values[entries++] = edge[2];
+    }
+    // Stable counting sorts by column and then by row put the duplicate edges next to each other.
+    int[] order = new int[entries];
+    for (int i = 0; i < entries; i++) {
+      order[i] = i;
+    }
+    order = sortByKey(order, columns, nodesNumber);
+    order = sortByKey(order, rows, nodesNumber);
+    int[] sources = new int[entries];
+    int[] targets = new int[entries];
+    double[] weights = new double[entries];
+    int edgesNumber = 0;
+    for (int i = 0; i < entries; i++) {
+      int entry = order[i];
+      if (edgesNumber > 0 && sources[edgesNumber - 1] == rows[entry]
+          && targets[edgesNumber - 1] == columns[entry]) {
+        weights[edgesNumber - 1] = Math.max(weights[edgesNumber - 1], values[entry]);
+        continue;
+      }
+      sources[edgesNumber] = rows[entry];
+      targets[edgesNumber] = columns[entry];
+      weights[edgesNumber++] = values[entry];
+    }
+    double[][] labelCost = {{0, smoothness}, {smoothness, 0}};
+    return new GraphCutSegmentation(unary, sources, targets, weights, edgesNumber, labelCost);
+  }
+
+  /**
+   * Stable counting sort of items by a key.
+   *
+   * @param items to sort.
+   * @param keys key of each item, from 0 to keysNumber - 1.
+   * @param keysNumber number of keys.
+   * @return sorted items.
+   */
+  private static int[] sortByKey(int[] items, int[] keys, int keysNumber) {
+    int[] offsets = new int[keysNumber + 1];
+    for (int item : items) {
+      offsets[keys[item] + 1]++;
+    }
+    for (int key = 0; key < keysNumber; key++) {
+      offsets[key + 1] += offsets[key];
+    }
+    int[] sorted = new int[items.length];
+    for (int item : items) {
+      sorted[offsets[keys[item]]++] = item;
+    }
+    return sorted;
+  }
+
+  /**
+   * @return number of nodes.
+   */
+  public int getNodesNumber() {
+    return nodesNumber;
+  }
+
+  /**
+   * @return number of edges, after merging the duplicate ones.
+   */
+  public int getEdgesNumber() {
+    return edgesNumber;
+  }
+
+  /**
+   * Calculate the energy of a labeling.
+   *
+   * @param labels label of each node.
+   * @return energy.
+   */
+  public double getEnergy(int[] labels) {
+    double energy = 0;
+    for (int i = 0; i < nodesNumber; i++) {
+      energy += unary[labels[i]][i];
+    }
+    for (int edge = 0; edge < edgesNumber; edge++) {
+      energy += weights[edge] * labelCost[labels[sources[edge]]][labels[targets[edge]]];
+    }
+    return energy;
+  }
+
+  /**
+   * Segment the nodes with alpha-expansion.
+   *
+   * @param initialLabels label of each node to start from, like the class argument of GCMex.
+   * @return label of each node.
+   */
+  public int[] segment(int[] initialLabels) {
+    long start = Metrics.startTimer();
+    SearchPhaseEvent event = SearchPhaseEvent.begin(SearchPhaseEvent.SEGMENTATION, "graph_cut",
+        nodesNumber);
+    int[] labels = initialLabels.clone();
+    double energy = getEnergy(labels);
+    // The graph of the moves has the same edges for every label, only their capacities change.
+    MaxFlowGraph graph = new MaxFlowGraph(nodesNumber, sources, targets, edgesNumber);
+    int cycle = 0;
+    boolean improved = true;
+    while (improved && cycle < MAX_CYCLES) {
+      improved = false;
+      for (int alpha = 0; alpha < unary.length; alpha++) {
+        int[] expandedLabels = expand(graph, labels, alpha);
+        double expandedEnergy = getEnergy(expandedLabels);
+        if (expandedEnergy < energy) {
+          labels = expandedLabels;
+          energy = expandedEnergy;
+          improved = true;
+        }
+      }
+      cycle++;
+    }
+    Metrics.observeSince("graph_cut_seconds", start);
+    event.setBatch(0, cycle).finish();
+    return labels;
+  }
+
+  /**
+   * Find the best move of the nodes to a label. Node i of the move graph is on the sink side if
+   * it switches to alpha, each term of the energy is added as in Kolmogorov and Zabih, "What
+   * Energy Functions Can Be Minimized via Graph Cuts?".
+   *
+   * @param graph of the moves.
+   * @param labels current label of each node.
+   * @param alpha label to move to.
+   * @return label of each node after the move.
+   */
+  private int[] expand(MaxFlowGraph graph, int[] labels, int alpha) {
+    graph.reset();
+    for (int i = 0; i < nodesNumber; i++) {
+      // The source capacity is cut if the node switches, the sink capacity if it keeps its label.
+      graph.addTerminalWeights(i, unary[alpha][i], unary[labels[i]][i]);
+    }
+    for (int edge = 0; edge < edgesNumber; edge++) {
+      int source = sources[edge];
+      int target = targets[edge];
+      double weight = weights[edge];
+      // Energy of the edge when its nodes keep or switch their labels.
+      double keepKeep = weight * labelCost[labels[source]][labels[target]];
+      double keepSwitch = weight * labelCost[labels[source]][alpha];
+      double switchKeep = weight * labelCost[alpha][labels[target]];
+      double switchSwitch = weight * labelCost[alpha][alpha];
+      graph.addTerminalWeights(source, switchSwitch, keepKeep);
+      keepSwitch -= keepKeep;
+      switchKeep -= switchSwitch;
+      // The metric makes keepSwitch + switchKeep not negative.
+      if (keepSwitch < 0) {
+        graph.addTerminalWeights(source, 0, keepSwitch);
+        graph.addTerminalWeights(target, 0, -keepSwitch);
+        graph.addEdgeCapacity(edge, 0, keepSwitch + switchKeep);
+      } else if (switchKeep < 0) {
+        graph.addTerminalWeights(source, 0, -switchKeep);
+        graph.addTerminalWeights(target, 0, switchKeep);
+        graph.addEdgeCapacity(edge, keepSwitch + switchKeep, 0);
+      } else {
+        graph.addEdgeCapacity(edge, keepSwitch, switchKeep);
+      }
+    }
+    graph.maxFlow();
+    int[] expandedLabels = new int[nodesNumber];
+    for (int i = 0; i < nodesNumber; i++) {
+      expandedLabels[i] = graph.isSinkSide(i) ? alpha : labels[i];
+    }
+    return expandedLabels;
+  }
+}
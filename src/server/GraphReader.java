@@ -2,14 +2,20 @@ package server;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 
 public class GraphReader {
 
+  // Integer ids from this value on are looked up by their string, to bound nodesByNumber.
+  private static final int MAX_INDEXED_NUMBER = 1 << 24;
+
   // The adjacency list of the graph.
   private HashMap<Node, HashMap<Node, Integer>> graph;
   // Mapping between the node id and the node object.
   private HashMap<String, Node> nodeMapping;
+  // Nodes with an integer id indexed by that id, or null if the graph wasn't loaded from an array.
+  private Node[] nodesByNumber;
 
   /**
    * Constructor initializes the graph and nodeMapping objects.
@@ -55,31 +61,64 @@ public class GraphReader {
     this.nodeMapping = nodeMapping;
   }
   
+  /**
+   * Get the nodes with an integer id indexed by that id.
+   * 
+   * @return nodes indexed by their integer id, or null if the graph wasn't loaded from an array.
+   */
+  public Node[] getNodesByNumber() {
+    return nodesByNumber;
+  }
+
   /**
    * Load graph given the graph array.
    * 
    * @param graphArray graph array representing the graph.
    */
   public void loadGraphArray(double[][] graphArray) {
+    nodesByNumber = new Node[16];
     for (int i = 0; i < graphArray.length; i++) {
-      Node node1 = nodeMapping.get(graphArray[i][0]+"");
-      if(node1 == null) {
-        node1 = new Node(0.0, graphArray[i][0]+"");
-        graph.put(node1, new HashMap<Node, Integer> ());
-        nodeMapping.put(graphArray[i][0]+"", node1);
-      }
-      Node node2 = nodeMapping.get(graphArray[i][1]+"");
-      if(node2 == null) {
-        node2 = new Node(0.0, graphArray[i][1]+"");
-        graph.put(node2, new HashMap<Node, Integer> ());
-        nodeMapping.put(graphArray[i][1]+"", node2);
-      }
+      Node node1 = getOrAddNode(graphArray[i][0]);
+      Node node2 = getOrAddNode(graphArray[i][1]);
       int edgeValue = (int) graphArray[i][2];
       graph.get(node1).put(node2, edgeValue);
       graph.get(node2).put(node1, edgeValue);
     }
   }
 
+  /**
+   * Get the node of an id read from a graph array, adding it to the graph if it is new. Integer
+   * ids, which are always used by the Spectral Method Format, are looked up by value so that the
+   * id string is only built once per node.
+   * 
+   * @param value node id.
+   * @return the node.
+   */
+  private Node getOrAddNode(double value) {
+    int number = (int) value;
+    if (number != value || number < 0 || number >= MAX_INDEXED_NUMBER) {
+      // Not a small integer id, look it up by its string.
+      Node node = nodeMapping.get(value + "");
+      if (node == null) {
+        node = new Node(0.0, value + "");
+        graph.put(node, new HashMap<Node, Integer>());
+        nodeMapping.put(node.getId(), node);
+      }
+      return node;
+    }
+    if (number >= nodesByNumber.length) {
+      nodesByNumber = Arrays.copyOf(nodesByNumber, Math.max(nodesByNumber.length * 2, number + 1));
+    }
+    Node node = nodesByNumber[number];
+    if (node == null) {
+      node = new Node(0.0, value + "", number);
+      graph.put(node, new HashMap<Node, Integer>());
+      nodeMapping.put(node.getId(), node);
+      nodesByNumber[number] = node;
+    }
+    return node;
+  }
+
   /**
    * Read the file to load the graph adjacency list and the node mapping.
    * 
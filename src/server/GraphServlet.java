@@ -21,8 +21,6 @@ import matlabcontrol.MatlabInvocationException;
 import matlabcontrol.MatlabProxy;
 import matlabcontrol.MatlabProxyFactory;
 import matlabcontrol.MatlabProxyFactoryOptions;
-import matlabcontrol.extensions.MatlabNumericArray;
-import matlabcontrol.extensions.MatlabTypeConverter;
 
 /**
  * Servlet implementation class GraphServlet to handle the user request to color
@@ -34,6 +32,16 @@ public class GraphServlet extends HttpServlet {
 	private static final String GRAPH1_PARAMATER_KEY = "graph1file";
 	// graph2 parameter key name.
 	private static final String GRAPH2_PARAMATER_KEY = "graph2file";
+	// Parameter key name opting in to the approximate region search, "true"
+	// to accept approximate regions.
+	private static final String APPROXIMATE_PARAMATER_KEY = "approximate";
+	// Response header telling whether the regions are "exact" or
+	// "approximate".
+	private static final String REGION_SEARCH_HEADER = "X-Region-Search";
+	// Response header with the confidence from 0 to 1 that the regions are
+	// exact.
+	private static final String REGION_CONFIDENCE_HEADER =
+			"X-Region-Search-Confidence";
 	// Number of regions to calculate.
 	private static int REGION_NUM = 10;
 	// Max number of nodes per region.
@@ -46,6 +54,12 @@ public class GraphServlet extends HttpServlet {
 	private static final double DEFAULT_THRESHOLD = 0.0;
 	// Biased k used in Biased BFS.
 	private static int BIASEDK = 5;
+	// Prefix of the graph cut method names, followed by the distortion
+	// measure.
+	private static final String GRAPH_CUT_PREFIX = "Graph-cut-";
+	// Weight of graph1 edges relative to the distortion costs in the graph
+	// cut.
+	private static final double GRAPH_CUT_SMOOTHNESS = 0.1;
 	// basepath for storing the two graphs.
 	private static String basePath = "";
 	// proxy used to run MATLAB code.
@@ -59,7 +73,7 @@ public class GraphServlet extends HttpServlet {
 	private static double[][] prevGraph2 = null;
 	private static int prevK = 0;
 	private static String prevMeasure = "";
-	private static String[] prevNodesColors = null;
+	private static byte[] prevNodesColors = null;
 	private double[] prevNodesDistortionValues = null;
 	// Number of nodes in the graph.
 	private static int nodesNumber = 0;
@@ -234,31 +248,120 @@ public class GraphServlet extends HttpServlet {
 	}
 
 	/**
-	 * Run the spectral method.
+	 * Run visualize_map on graph1 and graph2. The E1 to E4 measures are
+	 * computed in Java, the other measures in MATLAB.
+	 * 
+	 * @param k
+	 *            smooth parameter.
+	 * @param measure
+	 *            distortion measure.
+	 * @return nodes distortion values, stacking the nodes x regions matrix
+	 *         column wise.
+	 * @throws MatlabInvocationException
+	 */
+	private double[] runVisualizeMap(int k, String measure)
+			throws MatlabInvocationException {
+		long solveStart = Metrics.startTimer();
+		SearchPhaseEvent solveEvent = SearchPhaseEvent.begin(
+				SearchPhaseEvent.SPECTRAL_SOLVE, measure, nodesNumber);
+		if (SpectralMeasures.isSupported(measure)) {
+			double[] nodesDistortionValues = new SpectralMeasures(graph1,
+					graph2).getDistortionValues(k, REGION_NUM, measure);
+			solveEvent.setParameters(REGION_NUM, MAX_NODES, BIASEDK)
+					.setSpectralK(k).finish();
+			Metrics.observeSince("spectral_measures_seconds", solveStart);
+			return nodesDistortionValues;
+		}
+		// Add code path to the MATLAB environment.
+		proxy.eval("addpath('" + basePath + "')");
+		// Load the graphs through the shared snapshot files, unless MATLAB
+		// already holds them.
+		EdgeArrayStore.load(proxy, "G1", graph1);
+		EdgeArrayStore.load(proxy, "G2", graph2);
+		// Run the visualize_map code, the nodes are colored in Java.
+		proxy.eval("[~, nodes_values] = visualize_map(G1,G2," + k + ","
+				+ REGION_NUM + ",'" + measure + "',false);");
+		solveEvent.setParameters(REGION_NUM, MAX_NODES, BIASEDK)
+				.setSpectralK(k).finish();
+		Metrics.observeSince("matlab_eval_seconds", solveStart);
+		// MATLAB codes return nodesDistortionValues as 1D array by stacking
+		// the 2D matrix column wise.
+		return (double[]) proxy.getVariable("nodes_values");
+	}
+
+	/**
+	 * Segment the nodes into changed and unchanged ones with a graph cut over
+	 * the distortion values of a measure, like run_GCMex.m.
+	 * 
+	 * @param toolParameters
+	 *            used to run the spectral method, with the method name
+	 *            GRAPH_CUT_PREFIX followed by the measure.
+	 * @return label of each node, numbered from node id - 1.
+	 * @throws MatlabInvocationException
+	 */
+	public int[] runGraphCutMethod(String[] toolParameters)
+			throws MatlabInvocationException {
+		int k = Integer.parseInt(toolParameters[2]);
+		String measure = toolParameters[3].substring(GRAPH_CUT_PREFIX
+				.length());
+		int selectedRegionNumber = Integer.parseInt(toolParameters[4]);
+		double[] nodesDistortionValues;
+		if (prevNodesDistortionValues != null
+				&& compareGraphs(graph1, prevGraph1)
+				&& compareGraphs(graph2, prevGraph2) && prevK == k
+				&& prevMeasure.equalsIgnoreCase(measure)) {
+			// Same graphs and measure as the last spectral method.
+			nodesDistortionValues = prevNodesDistortionValues;
+		} else {
+			nodesDistortionValues = runVisualizeMap(k, measure);
+		}
+		GraphCutSegmentation segmentation = GraphCutSegmentation
+				.forDistortion(nodesDistortionValues,
+						selectedRegionNumber - 1, nodesNumber, graph1,
+						GRAPH_CUT_SMOOTHNESS);
+		return segmentation.segment(new int[nodesNumber]);
+	}
+
+	/**
+	 * Get the edges of a graph between changed nodes.
+	 * 
+	 * @param graph
+	 *            edges as node1, node2, edge value.
+	 * @param labels
+	 *            label of each node, numbered from node id - 1.
+	 * @return edges in the format source,target.
+	 */
+	private static ArrayList<String> getChangedEdges(double[][] graph,
+			int[] labels) {
+		ArrayList<String> edges = new ArrayList<String>();
+		for (double[] edge : graph) {
+			int node1 = (int) edge[0];
+			int node2 = (int) edge[1];
+			if (node1 >= 1
+					&& node2 >= 1 // Skip the unused rows.
+					&& labels[node1 - 1] == GraphCutSegmentation.CHANGED
+					&& labels[node2 - 1] == GraphCutSegmentation.CHANGED) {
+				edges.add(node1 + "," + node2);
+			}
+		}
+		return edges;
+	}
+
+	/**
+	 * Run the spectral method, keeping the distortion values in
+	 * prevNodesDistortionValues.
 	 * 
 	 * @param matlabParameters
 	 *            used to run the spectral method.
-	 * @return ArrayList of nodes colors, graph1 region and graph2 region.
+	 * @return ArrayList of graph1 region and graph2 region.
 	 * @throws MatlabInvocationException
 	 */
 	public ArrayList<String[]> runSpectralMethod(String[] matlabParameters,
 			double threshold) throws MatlabInvocationException {
-		// Add code path to the MATLAB environment.
-		proxy.eval("addpath('" + basePath + "')");
-		// Store the graphs in the MATLAB format.
-		MatlabTypeConverter processor = new MatlabTypeConverter(proxy);
-		processor.setNumericArray("G1", new MatlabNumericArray(graph1, null));
-		processor.setNumericArray("G2", new MatlabNumericArray(graph2, null));
 		int k = Integer.parseInt(matlabParameters[2]);
-		// Run the visualize_map code.
-		proxy.eval("[nodes_colors, nodes_values] = visualize_map(G1,G2," + k
-				+ "," + REGION_NUM + ",'" + matlabParameters[3] + "');");
+		double[] nodesDistortionValues = runVisualizeMap(k,
+				matlabParameters[3]);
 		int selectedRegionNumber = Integer.parseInt(matlabParameters[4]);
-		// MATLAB codes return nodes_colors and nodesDistortionValues
-		// as 1D array by stacking the 2D matrix column wise.
-		String[] nodesColors = (String[]) proxy.getVariable("nodes_colors");
-		double[] nodesDistortionValues = (double[]) proxy
-				.getVariable("nodes_values");
 		prevNodesDistortionValues = nodesDistortionValues;
 		ArrayList<SpectralMethodRegionSelector> regions = getRegionUI(
 				nodesDistortionValues, selectedRegionNumber, threshold);
@@ -276,41 +379,29 @@ public class GraphServlet extends HttpServlet {
 		// Select the region specified by the user.
 		String[] graph1ResultsRegion = graph1Results.get(REGION_SELECTOR);
 		String[] graph2ResultsRegion = graph2Results.get(REGION_SELECTOR);
-		// Store the result in the graphsColors array list.
-		ArrayList<String[]> graphsColors = new ArrayList<String[]>();
-		graphsColors.add(nodesColors);
-		graphsColors.add(graph1ResultsRegion);
-		graphsColors.add(graph2ResultsRegion);
-		return graphsColors;
+		// Store the result in the graphsRegions array list.
+		ArrayList<String[]> graphsRegions = new ArrayList<String[]>();
+		graphsRegions.add(graph1ResultsRegion);
+		graphsRegions.add(graph2ResultsRegion);
+		return graphsRegions;
 	}
 
 	/**
-	 * Run the spectral method.
+	 * Run the spectral method, keeping the distortion values in
+	 * prevNodesDistortionValues.
 	 * 
 	 * @param matlabParameters
 	 *            used to run the spectral method.
-	 * @return ArrayList of nodes colors, graph1 region and graph2 region.
+	 * @return ArrayList of graph1 region and graph2 region.
 	 * @throws MatlabInvocationException
 	 */
 	public ArrayList<String[]> runSpectralMethodEvalution(
 			String[] matlabParameters, double threshold)
 			throws MatlabInvocationException {
-		// Add code path to the MATLAB environment.
-		proxy.eval("addpath('" + basePath + "')");
-		// Store the graphs in the MATLAB format.
-		MatlabTypeConverter processor = new MatlabTypeConverter(proxy);
-		processor.setNumericArray("G1", new MatlabNumericArray(graph1, null));
-		processor.setNumericArray("G2", new MatlabNumericArray(graph2, null));
 		int k = Integer.parseInt(matlabParameters[2]);
-		// Run the visualize_map code.
-		proxy.eval("[nodes_colors, nodes_values] = visualize_map(G1,G2," + k
-				+ "," + REGION_NUM + ",'" + matlabParameters[3] + "');");
+		double[] nodesDistortionValues = runVisualizeMap(k,
+				matlabParameters[3]);
 		int selectedRegionNumber = Integer.parseInt(matlabParameters[4]);
-		// MATLAB codes return nodes_colors and nodesDistortionValues
-		// as 1D array by stacking the 2D matrix column wise.
-		String[] nodesColors = (String[]) proxy.getVariable("nodes_colors");
-		double[] nodesDistortionValues = (double[]) proxy
-				.getVariable("nodes_values");
 		prevNodesDistortionValues = nodesDistortionValues;
 		ArrayList<SpectralMethodRegionSelector> regions = getRegionNoThresholding(
 				nodesDistortionValues, selectedRegionNumber, threshold);
@@ -331,44 +422,31 @@ public class GraphServlet extends HttpServlet {
 		// Select the region specified by the user.
 		String[] graph1ResultsRegion = graph1Results.get(REGION_SELECTOR);
 		String[] graph2ResultsRegion = graph2Results.get(REGION_SELECTOR);
-		// Store the result in the graphsColors array list.
-		ArrayList<String[]> graphsColors = new ArrayList<String[]>();
-		graphsColors.add(nodesColors);
-		graphsColors.add(graph1ResultsRegion);
-		graphsColors.add(graph2ResultsRegion);
-		return graphsColors;
+		// Store the result in the graphsRegions array list.
+		ArrayList<String[]> graphsRegions = new ArrayList<String[]>();
+		graphsRegions.add(graph1ResultsRegion);
+		graphsRegions.add(graph2ResultsRegion);
+		return graphsRegions;
 	}
 
 	/**
-	 * Run the spectral method.
+	 * Run the spectral method, keeping the distortion values in
+	 * prevNodesDistortionValues.
 	 * 
 	 * @param matlabParameters
 	 *            used to run the spectral method.
-	 * @return ArrayList of nodes colors, graph1 region and graph2 region.
+	 * @return nodes distortion values, stacking the nodes x regions matrix
+	 *         column wise.
 	 * @throws MatlabInvocationException
 	 */
-	public ArrayList<String[]> runSpectralMethodForThresholding(
+	public double[] runSpectralMethodForThresholding(
 			String[] matlabParameters, double threshold)
 			throws MatlabInvocationException {
-		// Add code path to the MATLAB environment.
-		proxy.eval("addpath('" + basePath + "')");
-		// Store the graphs in the MATLAB format.
-		MatlabTypeConverter processor = new MatlabTypeConverter(proxy);
-		processor.setNumericArray("G1", new MatlabNumericArray(graph1, null));
-		processor.setNumericArray("G2", new MatlabNumericArray(graph2, null));
 		int k = Integer.parseInt(matlabParameters[2]);
-		// Run the visualize_map code.
-		proxy.eval("[nodes_colors, nodes_values] = visualize_map(G1,G2," + k
-				+ "," + REGION_NUM + ",'" + matlabParameters[3] + "');");
-		// MATLAB codes return nodes_colors and nodesDistortionValues
-		// as 1D array by stacking the 2D matrix column wise.
-		String[] nodesColors = (String[]) proxy.getVariable("nodes_colors");
-		double[] nodesDistortionValues = (double[]) proxy
-				.getVariable("nodes_values");
+		double[] nodesDistortionValues = runVisualizeMap(k,
+				matlabParameters[3]);
 		prevNodesDistortionValues = nodesDistortionValues;
-		ArrayList<String[]> graphsColors = new ArrayList<String[]>();
-		graphsColors.add(nodesColors);
-		return graphsColors;
+		return nodesDistortionValues;
 	}
 
 	public double[][] copyGraph(double[][] graph) {
@@ -502,12 +580,15 @@ public class GraphServlet extends HttpServlet {
 	 */
 	protected void doPost(HttpServletRequest request,
 			HttpServletResponse response) throws ServletException, IOException {
+		long requestStart = Metrics.startTimer();
 		nodesNumber = 0;
-		PrintWriter out = response.getWriter();
+		// Buffer the response and send it in one write at the end.
+		ResponseEncoder out = ResponseEncoder.get(request);
 		String parameters = "";
 		Enumeration<String> keys = request.getParameterNames();
 		int index = 0;
 		String[] toolParameters = new String[5];
+		boolean approximate = false;
 		// Loop over each send parameter and add them to MATLAB parameter array.
 		while (keys.hasMoreElements()) {
 			String key = (String) keys.nextElement();
@@ -518,11 +599,17 @@ public class GraphServlet extends HttpServlet {
 			} else if (key.equalsIgnoreCase(GRAPH2_PARAMATER_KEY)) { // Second
 																		// graph.
 				graph2 = loadGraph(parameters); // Load data to graph2.
+			} else if (key.equalsIgnoreCase(APPROXIMATE_PARAMATER_KEY)) {
+				approximate = Boolean.parseBoolean(parameters);
 			} else { // Other parameters.
 				toolParameters[index] = parameters;
 			}
 			index++;
 		}
+		Metrics.observeSince("servlet_upload_parse_seconds", requestStart);
+		Metrics.setGauge("servlet_nodes", nodesNumber);
+		Metrics.setGauge("servlet_graph1_edges", graph1.length);
+		Metrics.setGauge("servlet_graph2_edges", graph2.length);
 		String methodName = toolParameters[3];
 		if (methodName.compareToIgnoreCase("Top-changing-vertices-BFS") == 0
 				|| methodName
@@ -530,7 +617,8 @@ public class GraphServlet extends HttpServlet {
 				|| methodName
 						.compareToIgnoreCase("Top-changing-vertices-BFSPQ") == 0) {
 			TopChangingVerticesCalculator calculator = new TopChangingVerticesCalculator();
-			ArrayList<ArrayList<String>> regions = null;
+			RegionCache.Result regions = null;
+			long calculatorStart = Metrics.startTimer();
 			if (methodName.compareToIgnoreCase("Top-changing-vertices-BFS") == 0) {
 				regions = calculator.runWithUI(REGION_NUM, MAX_NODES, graph1,
 						graph2, Integer.parseInt(toolParameters[4]) - 1, 0, 0);
@@ -544,74 +632,87 @@ public class GraphServlet extends HttpServlet {
 				regions = calculator.runWithUI(REGION_NUM, MAX_NODES, graph1,
 						graph2, Integer.parseInt(toolParameters[4]) - 1, 2, 0);
 			}
-			ArrayList<String> graph1ResultsRegion = regions.get(0);
-			ArrayList<String> graph2ResultsRegion = regions.get(1);
-			ArrayList<String> colors = regions.get(2);
-			HashMap<Integer, String> colorMap = new HashMap<Integer, String>();
-			for (String color : colors) {
-				String[] splits = color.split(",");
-				colorMap.put((int) Double.parseDouble(splits[0]), splits[1]);
-			}
+			Metrics.observeSince("servlet_calculator_seconds", "method=\""
+					+ methodName.toLowerCase() + "\"", calculatorStart);
+			long writeStart = Metrics.startTimer();
+			SearchPhaseEvent serializationEvent = SearchPhaseEvent.begin(
+					SearchPhaseEvent.RESPONSE_SERIALIZATION, methodName,
+					nodesNumber);
+			ArrayList<String> graph1ResultsRegion = regions.getGraph1Edges();
+			ArrayList<String> graph2ResultsRegion = regions.getGraph2Edges();
 			for (int i = 1; i <= nodesNumber; i++) {
 				// Get the nodes colors.
-				out.print(colorMap.get(i) + ",");
+				out.printColor(regions.getNodeColor(i));
 			}
 			// Write selected regions to the response.
-			out.print("_");
+			out.nextSection();
 			for (String graph1Edge : graph1ResultsRegion) {
-				System.out.println(graph1Edge);
-				out.print(graph1Edge + "-");
+				out.printEdge(graph1Edge);
 			}
-			out.print("_");
+			out.nextSection();
 			for (String graph2Edge : graph2ResultsRegion) {
-				System.out.println(graph2Edge);
-				out.print(graph2Edge + "-");
+				out.printEdge(graph2Edge);
 			}
+			serializationEvent.setParameters(REGION_NUM, MAX_NODES, BIASEDK)
+					.finish();
+			Metrics.observeSince("servlet_response_write_seconds", writeStart);
 		} else if (methodName.compareToIgnoreCase("Top-changing-regions-BFS") == 0
 				|| methodName
 						.compareToIgnoreCase("Top-changing-regions-BFSBiased") == 0
 				|| methodName.compareToIgnoreCase("Top-changing-regions-BFSPQ") == 0) {
 			TopChangingVerticesExhaustiveCalculator calculator = new TopChangingVerticesExhaustiveCalculator();
-			ArrayList<ArrayList<String>> regions = null;
+			RegionCache.Result regions = null;
+			long calculatorStart = Metrics.startTimer();
 			if (methodName.compareToIgnoreCase("Top-changing-regions-BFS") == 0) {
 				regions = calculator.runWithUI(REGION_NUM, MAX_NODES, graph1,
-						graph2, Integer.parseInt(toolParameters[4]) - 1, 0, 0);
+						graph2, Integer.parseInt(toolParameters[4]) - 1, 0, 0,
+						approximate);
 			} else if (methodName
 					.compareToIgnoreCase("Top-changing-regions-BFSBiased") == 0) {
 				regions = calculator.runWithUI(REGION_NUM, MAX_NODES, graph1,
 						graph2, Integer.parseInt(toolParameters[4]) - 1, 1,
-						BIASEDK);
+						BIASEDK, approximate);
 			} else if (methodName
 					.compareToIgnoreCase("Top-changing-regions-BFSPQ") == 0) {
 				regions = calculator.runWithUI(REGION_NUM, MAX_NODES, graph1,
-						graph2, Integer.parseInt(toolParameters[4]) - 1, 2, 0);
-			}
-			ArrayList<String> graph1ResultsRegion = regions.get(0);
-			ArrayList<String> graph2ResultsRegion = regions.get(1);
-			ArrayList<String> colors = regions.get(2);
-			HashMap<Integer, String> colorMap = new HashMap<Integer, String>();
-			for (String color : colors) {
-				String[] splits = color.split(",");
-				colorMap.put((int) Double.parseDouble(splits[0]), splits[1]);
+						graph2, Integer.parseInt(toolParameters[4]) - 1, 2, 0,
+						approximate);
 			}
+			Metrics.observeSince("servlet_calculator_seconds", "method=\""
+					+ methodName.toLowerCase() + "\"", calculatorStart);
+			// Tell the client whether the regions are exact.
+			response.setHeader(REGION_SEARCH_HEADER,
+					regions.isExact() ? "exact" : "approximate");
+			response.setHeader(REGION_CONFIDENCE_HEADER,
+					Double.toString(regions.getConfidence()));
+			long writeStart = Metrics.startTimer();
+			SearchPhaseEvent serializationEvent = SearchPhaseEvent.begin(
+					SearchPhaseEvent.RESPONSE_SERIALIZATION, methodName,
+					nodesNumber);
+			ArrayList<String> graph1ResultsRegion = regions.getGraph1Edges();
+			ArrayList<String> graph2ResultsRegion = regions.getGraph2Edges();
 			for (int i = 1; i <= nodesNumber; i++) {
 				// Get the nodes colors.
-				out.print(colorMap.get(i) + ",");
+				out.printColor(regions.getNodeColor(i));
 			}
 			// Write selected regions to the response.
-			out.print("_");
+			out.nextSection();
 			for (String graph1Edge : graph1ResultsRegion) {
-				out.print(graph1Edge + "-");
+				out.printEdge(graph1Edge);
 			}
-			out.print("_");
+			out.nextSection();
 			for (String graph2Edge : graph2ResultsRegion) {
-				out.print(graph2Edge + "-");
+				out.printEdge(graph2Edge);
 			}
+			serializationEvent.setParameters(REGION_NUM, MAX_NODES, BIASEDK)
+					.finish();
+			Metrics.observeSince("servlet_response_write_seconds", writeStart);
 		} else if (methodName.compareToIgnoreCase("Max-changin-radius") == 0
 				|| methodName
 						.compareToIgnoreCase("Max-changin-radius-regionSize") == 0) {
 			MaxChangingRadiusCalculator calculator = new MaxChangingRadiusCalculator();
-			ArrayList<ArrayList<String>> regions = null;
+			RegionCache.Result regions = null;
+			long calculatorStart = Metrics.startTimer();
 			if (methodName.compareToIgnoreCase("Max-changin-radius") == 0) {
 				regions = calculator.runWithUI(REGION_NUM, MAX_NODES, graph1,
 						graph2, Integer.parseInt(toolParameters[4]) - 1, 0);
@@ -620,29 +721,71 @@ public class GraphServlet extends HttpServlet {
 				regions = calculator.runWithUI(REGION_NUM, MAX_NODES, graph1,
 						graph2, Integer.parseInt(toolParameters[4]) - 1, 1);
 			}
-			ArrayList<String> graph1ResultsRegion = regions.get(0);
-			ArrayList<String> graph2ResultsRegion = regions.get(1);
-			ArrayList<String> colors = regions.get(2);
-			HashMap<Integer, String> colorMap = new HashMap<Integer, String>();
-			for (String color : colors) {
-				String[] splits = color.split(",");
-				colorMap.put((int) Double.parseDouble(splits[0]), splits[1]);
-			}
+			Metrics.observeSince("servlet_calculator_seconds", "method=\""
+					+ methodName.toLowerCase() + "\"", calculatorStart);
+			long writeStart = Metrics.startTimer();
+			SearchPhaseEvent serializationEvent = SearchPhaseEvent.begin(
+					SearchPhaseEvent.RESPONSE_SERIALIZATION, methodName,
+					nodesNumber);
+			ArrayList<String> graph1ResultsRegion = regions.getGraph1Edges();
+			ArrayList<String> graph2ResultsRegion = regions.getGraph2Edges();
 			for (int i = 1; i <= nodesNumber; i++) {
 				// Get the nodes colors.
-				out.print(colorMap.get(i) + ",");
+				out.printColor(regions.getNodeColor(i));
 			}
 			// Write selected regions to the response.
-			out.print("_");
+			out.nextSection();
 			for (String graph1Edge : graph1ResultsRegion) {
-				out.print(graph1Edge + "-");
+				out.printEdge(graph1Edge);
 			}
-			out.print("_");
+			out.nextSection();
 			for (String graph2Edge : graph2ResultsRegion) {
-				out.print(graph2Edge + "-");
+				out.printEdge(graph2Edge);
+			}
+			serializationEvent.setParameters(REGION_NUM, MAX_NODES, BIASEDK)
+					.finish();
+			Metrics.observeSince("servlet_response_write_seconds", writeStart);
+		} else if (methodName.regionMatches(true, 0, GRAPH_CUT_PREFIX, 0,
+				GRAPH_CUT_PREFIX.length())) {
+			try {
+				long calculatorStart = Metrics.startTimer();
+				int[] labels = runGraphCutMethod(toolParameters);
+				Metrics.observeSince("servlet_calculator_seconds", "method=\""
+						+ methodName.toLowerCase() + "\"", calculatorStart);
+				long writeStart = Metrics.startTimer();
+				SearchPhaseEvent serializationEvent = SearchPhaseEvent.begin(
+						SearchPhaseEvent.RESPONSE_SERIALIZATION, methodName,
+						nodesNumber);
+				// Color the labels with the ends of the jet palette.
+				int changedColor = JetPalette
+						.getRgb(JetPalette.COLORS_NUMBER - 1);
+				int unchangedColor = JetPalette.getRgb(0);
+				for (int i = 0; i < nodesNumber; i++) {
+					out.printColor(labels[i] == GraphCutSegmentation.CHANGED ? changedColor
+							: unchangedColor);
+				}
+				// Write the edges between changed nodes as the selected
+				// region.
+				out.nextSection();
+				for (String graph1Edge : getChangedEdges(graph1, labels)) {
+					out.printEdge(graph1Edge);
+				}
+				out.nextSection();
+				for (String graph2Edge : getChangedEdges(graph2, labels)) {
+					out.printEdge(graph2Edge);
+				}
+				serializationEvent.setParameters(REGION_NUM, MAX_NODES,
+						BIASEDK).finish();
+				Metrics.observeSince("servlet_response_write_seconds",
+						writeStart);
+			} catch (MatlabInvocationException ex) {
+				out.printError(ex.getMessage());
+			} catch (ArithmeticException ex) { // Java spectral measures.
+				out.printError(ex.getMessage());
 			}
 		} else if ((methodName.compareToIgnoreCase("area-based") == 0)
-				|| (methodName.compareToIgnoreCase("conformal-based") == 0) || (methodName.compareToIgnoreCase("E1") == 0)) {
+				|| (methodName.compareToIgnoreCase("conformal-based") == 0)
+				|| SpectralMeasures.isSupported(methodName)) {
 			try {
 
 				if (compareGraphs(graph1, prevGraph1)
@@ -651,6 +794,7 @@ public class GraphServlet extends HttpServlet {
 						&& prevMeasure.equalsIgnoreCase(toolParameters[3])) {
 					// If same graph with same parameters but different regions,
 					// re-use previous results.
+					Metrics.increment("spectral_cache_hits_total");
 					int selectedRegionNumber = Integer
 							.parseInt(toolParameters[4]);
 					ArrayList<SpectralMethodRegionSelector> regions = getRegion(
@@ -677,27 +821,30 @@ public class GraphServlet extends HttpServlet {
 							.get(REGION_SELECTOR);
 					for (int i = 0; i < nodesNumber; i++) {
 						// Get the nodes colors.
-						out.print(prevNodesColors[(selectedRegionNumber - 1)
-								* nodesNumber + i]
-								+ ",");
+						out.printColor(JetPalette
+								.getRgb(prevNodesColors[(selectedRegionNumber - 1)
+										* nodesNumber + i]));
 					}
 					// Write selected regions to the response.
-					out.print("_");
+					out.nextSection();
 					for (int i = 0; i < graph1ResultsRegion.length; i++) {
 						// Get the nodes colors.
-						out.print(graph1ResultsRegion[i] + "-");
+						out.printEdge(graph1ResultsRegion[i]);
 					}
-					out.print("_");
+					out.nextSection();
 					for (int i = 0; i < graph2ResultsRegion.length; i++) {
-						out.print(graph2ResultsRegion[i] + "-"); // Get the
-																	// nodes
-						// colors.
+						out.printEdge(graph2ResultsRegion[i]);
 					}
+					out.writeTo(request, response);
+					Metrics.observeSince("servlet_request_seconds", requestStart);
 					return;
 				}
-				ArrayList<String[]> graphColors = runSpectralMethod(
+				Metrics.increment("spectral_cache_misses_total");
+				ArrayList<String[]> graphRegions = runSpectralMethod(
 						toolParameters, DEFAULT_THRESHOLD);
-				String[] nodesColors = graphColors.get(0);
+				// Palette index of each node of each region.
+				byte[] nodesColors = JetPalette.quantize(
+						prevNodesDistortionValues, nodesNumber);
 				if (nodesColors.length == 0) {
 					System.out.println("Emptry color array!");
 					System.exit(0);
@@ -706,24 +853,20 @@ public class GraphServlet extends HttpServlet {
 							.parseInt(toolParameters[4]);
 					for (int i = 0; i < nodesNumber; i++) {
 						// Get the nodes colors.
-						out.print(nodesColors[(selectedRegionNumber - 1)
-								* nodesNumber + i]
-								+ ",");
+						out.printColor(JetPalette
+								.getRgb(nodesColors[(selectedRegionNumber - 1)
+										* nodesNumber + i]));
 					}
 					// Write selected regions to the response.
-					out.print("_");
-					String[] graph1ResultsRegion = graphColors.get(1);
+					out.nextSection();
+					String[] graph1ResultsRegion = graphRegions.get(0);
 					for (int i = 0; i < graph1ResultsRegion.length; i++) {
-						out.print(graph1ResultsRegion[i] + "-"); // Get the
-																	// nodes
-						// colors.
+						out.printEdge(graph1ResultsRegion[i]);
 					}
-					out.print("_");
-					String[] graph2ResultsRegion = graphColors.get(2);
+					out.nextSection();
+					String[] graph2ResultsRegion = graphRegions.get(1);
 					for (int i = 0; i < graph2ResultsRegion.length; i++) {
-						out.print(graph2ResultsRegion[i] + "-"); // Get the
-																	// nodes
-																	// colors.
+						out.printEdge(graph2ResultsRegion[i]);
 					}
 					// Store the current results for checking next time.
 					prevGraph1 = graph1;
@@ -734,10 +877,13 @@ public class GraphServlet extends HttpServlet {
 				}
 				// proxy.disconnect();
 			} catch (MatlabInvocationException ex) {
-				out.println(ex.getMessage());
+				out.printError(ex.getMessage());
+			} catch (ArithmeticException ex) { // Java spectral measures.
+				out.printError(ex.getMessage());
 			}
 		}
-		out.close();
+		out.writeTo(request, response);
+		Metrics.observeSince("servlet_request_seconds", requestStart);
 	}
 
 	/**
@@ -776,8 +922,9 @@ public class GraphServlet extends HttpServlet {
 				runSpectralMethod(matlabParameters, DEFAULT_THRESHOLD);
 				double distortionSum = 0;
 				String result = "";
-				double[] nodesDistortionValues = (double[]) proxy
-						.getVariable("nodes_values");
+				// Values returned by runVisualizeMap, the E measures don't
+				// set the MATLAB nodes_values variable.
+				double[] nodesDistortionValues = prevNodesDistortionValues;
 				for (int selectedRegionNumber = 1; selectedRegionNumber <= 10; selectedRegionNumber++) { // Get
 																											// top
 																											// 10
@@ -885,8 +1032,9 @@ public class GraphServlet extends HttpServlet {
 				matlabParameters[3] = method;
 				matlabParameters[4] = 1 + "";
 				runSpectralMethodForThresholding(matlabParameters, 0.0);
-				double[] nodesDistortionValues = (double[]) proxy
-						.getVariable("nodes_values");
+				// Values returned by runVisualizeMap, the E measures don't
+				// set the MATLAB nodes_values variable.
+				double[] nodesDistortionValues = prevNodesDistortionValues;
 				if (nodesDistortionValues.length == 0) {
 					System.out.println("Returned distortions are empty! " + k);
 					continue;
@@ -944,6 +1092,10 @@ public class GraphServlet extends HttpServlet {
 				// code throws an exception.
 				System.out.println("Error in Matlab " + ex.getMessage());
 				continue;
+			} catch (ArithmeticException ex) { // Java spectral measures.
+				System.out.println("Error in the spectral measures "
+						+ ex.getMessage());
+				continue;
 			}
 		}
 		// Print the best results.
@@ -1036,8 +1188,9 @@ public class GraphServlet extends HttpServlet {
 					matlabParameters[4] = 1 + "";
 					runSpectralMethodForThresholding(matlabParameters,
 							threshold);
-					double[] nodesDistortionValues = (double[]) proxy
-							.getVariable("nodes_values");
+					// Values returned by runVisualizeMap, the E measures don't
+					// set the MATLAB nodes_values variable.
+					double[] nodesDistortionValues = prevNodesDistortionValues;
 					if (nodesDistortionValues.length == 0) {
 						System.out.println("Returned distortions are empty! "
 								+ k);
@@ -1101,6 +1254,10 @@ public class GraphServlet extends HttpServlet {
 					// code throws an exception.
 					System.out.println("Error in Matlab " + ex.getMessage());
 					continue;
+				} catch (ArithmeticException ex) { // Java spectral measures.
+					System.out.println("Error in the spectral measures "
+							+ ex.getMessage());
+					continue;
 				}
 			}
 			threshold += step;
@@ -1182,8 +1339,9 @@ public class GraphServlet extends HttpServlet {
 					matlabParameters[4] = 1 + "";
 					runSpectralMethodForThresholding(matlabParameters,
 							threshold);
-					double[] nodesDistortionValues = (double[]) proxy
-							.getVariable("nodes_values");
+					// Values returned by runVisualizeMap, the E measures don't
+					// set the MATLAB nodes_values variable.
+					double[] nodesDistortionValues = prevNodesDistortionValues;
 					if (nodesDistortionValues.length == 0) {
 						System.out.println("Returned distortions are empty! "
 								+ k);
@@ -1268,6 +1426,10 @@ public class GraphServlet extends HttpServlet {
 					// code throws an exception.
 					System.out.println("Error in Matlab " + ex.getMessage());
 					continue;
+				} catch (ArithmeticException ex) { // Java spectral measures.
+					System.out.println("Error in the spectral measures "
+							+ ex.getMessage());
+					continue;
 				}
 			}
 			threshold += step;
@@ -1307,6 +1469,21 @@ public class GraphServlet extends HttpServlet {
 			HttpServletResponse response) throws ServletException, IOException {
 	}
 
+	/**
+	 * Start the local metrics HTTP server if the metrics.port system property
+	 * is set. The metrics are only served on the loopback address, not from
+	 * the public servlet URL.
+	 * 
+	 * @see HttpServlet#init().
+	 */
+	public void init() throws ServletException {
+		try {
+			Metrics.startServerIfConfigured();
+		} catch (IOException ex) {
+			throw new ServletException(ex);
+		}
+	}
+
 	/**
 	 * 
 	 * @param args
@@ -1334,6 +1511,7 @@ public class GraphServlet extends HttpServlet {
 		GraphServlet.REGION_NUM = Integer.parseInt(args[3]);
 		GraphServlet.MAX_NODES = Integer.parseInt(args[4]);
 		// GraphServlet.BIASEDK = Integer.parseInt(args[5]);
+		Metrics.startServerIfConfigured();
 		GraphServlet servlet = new GraphServlet(args[5]);
 		System.out.println("Spectral Method with Priority Queue");
 		servlet.runEvaluationsWithRespectToRegionSize(inputFile1, inputFile2,
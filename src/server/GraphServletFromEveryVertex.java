@@ -21,8 +21,6 @@ import matlabcontrol.MatlabInvocationException;
 import matlabcontrol.MatlabProxy;
 import matlabcontrol.MatlabProxyFactory;
 import matlabcontrol.MatlabProxyFactoryOptions;
-import matlabcontrol.extensions.MatlabNumericArray;
-import matlabcontrol.extensions.MatlabTypeConverter;
 
 /**
  * Servlet implementation class GraphServlet to handle the user request to color the graph with
@@ -59,7 +57,7 @@ public class GraphServletFromEveryVertex extends HttpServlet {
   private static double[][] prevGraph2 = null;
   private static int prevK = 0;
   private static String prevMeasure = "";
-  private static String[] prevNodesColors = null;
+  private static byte[] prevNodesColors = null;
   private double[] prevNodesDistortionValues = null;
   // Number of nodes in the graph.
   private static int nodesNumber = 0;
@@ -226,29 +224,43 @@ public class GraphServletFromEveryVertex extends HttpServlet {
   }
 
   /**
-   * Run the spectral method.
+   * Run visualize_map on graph1 and graph2. The E1 to E4 measures are computed in Java, the other
+   * measures in MATLAB.
+   * 
+   * @param k smooth parameter.
+   * @param measure distortion measure.
+   * @return nodes distortion values, stacking the nodes x regions matrix column wise.
+   * @throws MatlabInvocationException
+   */
+  private double[] runVisualizeMap(int k, String measure) throws MatlabInvocationException {
+    if (SpectralMeasures.isSupported(measure)) {
+      return new SpectralMeasures(graph1, graph2).getDistortionValues(k, REGION_NUM, measure);
+    }
+    // Add code path to the MATLAB environment.
+    proxy.eval("addpath('" + basePath + "')");
+    // Load the graphs through the shared snapshot files, unless MATLAB already holds them.
+    EdgeArrayStore.load(proxy, "G1", graph1);
+    EdgeArrayStore.load(proxy, "G2", graph2);
+    // Run the visualize_map code.
+    proxy.eval("[~, nodes_values] = visualize_map(G1,G2," + k + "," + REGION_NUM + ",'" + measure
+        + "',false);");
+    // MATLAB codes return nodesDistortionValues as 1D array by stacking the 2D matrix column
+    // wise.
+    return (double[]) proxy.getVariable("nodes_values");
+  }
+
+  /**
+   * Run the spectral method, keeping the distortion values in prevNodesDistortionValues.
    * 
    * @param matlabParameters used to run the spectral method.
-   * @return ArrayList of nodes colors, graph1 region and graph2 region.
+   * @return ArrayList of graph1 region and graph2 region.
    * @throws MatlabInvocationException
    */
   public ArrayList<String[]> runSpectralMethod(String[] matlabParameters, double threshold)
       throws MatlabInvocationException {
-    // Add code path to the MATLAB environment.
-    proxy.eval("addpath('" + basePath + "')");
-    // Store the graphs in the MATLAB format.
-    MatlabTypeConverter processor = new MatlabTypeConverter(proxy);
-    processor.setNumericArray("G1", new MatlabNumericArray(graph1, null));
-    processor.setNumericArray("G2", new MatlabNumericArray(graph2, null));
     int k = Integer.parseInt(matlabParameters[2]);
-    // Run the visualize_map code.
-    proxy.eval("[nodes_colors, nodes_values] = visualize_map(G1,G2," + k + "," + REGION_NUM + ",'"
-        + matlabParameters[3] + "');");
+    double[] nodesDistortionValues = runVisualizeMap(k, matlabParameters[3]);
     int selectedRegionNumber = Integer.parseInt(matlabParameters[4]);
-    // MATLAB codes return nodes_colors and nodesDistortionValues
-    // as 1D array by stacking the 2D matrix column wise.
-    String[] nodesColors = (String[]) proxy.getVariable("nodes_colors");
-    double[] nodesDistortionValues = (double[]) proxy.getVariable("nodes_values");
     prevNodesDistortionValues = nodesDistortionValues;
     ArrayList<SpectralMethodRegionSelector> regions =
         getRegion(nodesDistortionValues, selectedRegionNumber, threshold);
@@ -265,41 +277,26 @@ public class GraphServletFromEveryVertex extends HttpServlet {
     // Select the region specified by the user.
     String[] graph1ResultsRegion = graph1Results.get(REGION_SELECTOR);
     String[] graph2ResultsRegion = graph2Results.get(REGION_SELECTOR);
-    // Store the result in the graphsColors array list.
-    ArrayList<String[]> graphsColors = new ArrayList<String[]>();
-    graphsColors.add(nodesColors);
-    graphsColors.add(graph1ResultsRegion);
-    graphsColors.add(graph2ResultsRegion);
-    return graphsColors;
+    // Store the result in the graphsRegions array list.
+    ArrayList<String[]> graphsRegions = new ArrayList<String[]>();
+    graphsRegions.add(graph1ResultsRegion);
+    graphsRegions.add(graph2ResultsRegion);
+    return graphsRegions;
   }
 
   /**
-   * Run the spectral method.
+   * Run the spectral method, keeping the distortion values in prevNodesDistortionValues.
    * 
    * @param matlabParameters used to run the spectral method.
-   * @return ArrayList of nodes colors, graph1 region and graph2 region.
+   * @return nodes distortion values, stacking the nodes x regions matrix column wise.
    * @throws MatlabInvocationException
    */
-  public ArrayList<String[]> runSpectralMethodForThresholding(String[] matlabParameters,
-      double threshold) throws MatlabInvocationException {
-    // Add code path to the MATLAB environment.
-    proxy.eval("addpath('" + basePath + "')");
-    // Store the graphs in the MATLAB format.
-    MatlabTypeConverter processor = new MatlabTypeConverter(proxy);
-    processor.setNumericArray("G1", new MatlabNumericArray(graph1, null));
-    processor.setNumericArray("G2", new MatlabNumericArray(graph2, null));
+  public double[] runSpectralMethodForThresholding(String[] matlabParameters, double threshold)
+      throws MatlabInvocationException {
     int k = Integer.parseInt(matlabParameters[2]);
-    // Run the visualize_map code.
-    proxy.eval("[nodes_colors, nodes_values] = visualize_map(G1,G2," + k + "," + REGION_NUM + ",'"
-        + matlabParameters[3] + "');");
-    // MATLAB codes return nodes_colors and nodesDistortionValues
-    // as 1D array by stacking the 2D matrix column wise.
-    String[] nodesColors = (String[]) proxy.getVariable("nodes_colors");
-    double[] nodesDistortionValues = (double[]) proxy.getVariable("nodes_values");
+    double[] nodesDistortionValues = runVisualizeMap(k, matlabParameters[3]);
     prevNodesDistortionValues = nodesDistortionValues;
-    ArrayList<String[]> graphsColors = new ArrayList<String[]>();
-    graphsColors.add(nodesColors);
-    return graphsColors;
+    return nodesDistortionValues;
   }
 
   public double[][] copyGraph(double[][] graph) {
@@ -378,7 +375,7 @@ public class GraphServletFromEveryVertex extends HttpServlet {
         || methodName.compareToIgnoreCase("Top-changing-vertices-BFSBiased") == 0
         || methodName.compareToIgnoreCase("Top-changing-vertices-BFSPQ") == 0) {
       TopChangingVerticesCalculator calculator = new TopChangingVerticesCalculator();
-      ArrayList<ArrayList<String>> regions = null;
+      RegionCache.Result regions = null;
       if (methodName.compareToIgnoreCase("Top-changing-vertices-BFS") == 0) {
         regions =
             calculator.runWithUI(REGION_NUM, MAX_NODES, graph1, graph2,
@@ -392,17 +389,11 @@ public class GraphServletFromEveryVertex extends HttpServlet {
             calculator.runWithUI(REGION_NUM, MAX_NODES, graph1, graph2,
                 Integer.parseInt(toolParameters[4]), 2, 0);
       }
-      ArrayList<String> graph1ResultsRegion = regions.get(0);
-      ArrayList<String> graph2ResultsRegion = regions.get(1);
-      ArrayList<String> colors = regions.get(2);
-      HashMap<Integer, String> colorMap = new HashMap<Integer, String>();
-      for (String color : colors) {
-        String[] splits = color.split(",");
-        colorMap.put(Integer.parseInt(splits[0]), splits[1]);
-      }
+      ArrayList<String> graph1ResultsRegion = regions.getGraph1Edges();
+      ArrayList<String> graph2ResultsRegion = regions.getGraph2Edges();
       for (int i = 1; i <= nodesNumber; i++) {
         // Get the nodes colors.
-        out.print(colorMap.get(i) + ",");
+        out.print(ResponseEncoder.toHexColor(regions.getNodeColor(i)) + ",");
       }
       // Write selected regions to the response.
       out.print("_");
@@ -418,7 +409,7 @@ public class GraphServletFromEveryVertex extends HttpServlet {
         || methodName.compareToIgnoreCase("Top-changing-regions-BFSPQ") == 0) {
       TopChangingVerticesExhaustiveCalculator calculator =
           new TopChangingVerticesExhaustiveCalculator();
-      ArrayList<ArrayList<String>> regions = null;
+      RegionCache.Result regions = null;
       if (methodName.compareToIgnoreCase("Top-changing-regions-BFS") == 0) {
         regions =
             calculator.runWithUI(REGION_NUM, MAX_NODES, graph1, graph2,
@@ -432,17 +423,11 @@ public class GraphServletFromEveryVertex extends HttpServlet {
             calculator.runWithUI(REGION_NUM, MAX_NODES, graph1, graph2,
                 Integer.parseInt(toolParameters[4]), 2, 0);
       }
-      ArrayList<String> graph1ResultsRegion = regions.get(0);
-      ArrayList<String> graph2ResultsRegion = regions.get(1);
-      ArrayList<String> colors = regions.get(2);
-      HashMap<Integer, String> colorMap = new HashMap<Integer, String>();
-      for (String color : colors) {
-        String[] splits = color.split(",");
-        colorMap.put(Integer.parseInt(splits[0]), splits[1]);
-      }
+      ArrayList<String> graph1ResultsRegion = regions.getGraph1Edges();
+      ArrayList<String> graph2ResultsRegion = regions.getGraph2Edges();
       for (int i = 1; i <= nodesNumber; i++) {
         // Get the nodes colors.
-        out.print(colorMap.get(i) + ",");
+        out.print(ResponseEncoder.toHexColor(regions.getNodeColor(i)) + ",");
       }
       // Write selected regions to the response.
       out.print("_");
@@ -456,7 +441,7 @@ public class GraphServletFromEveryVertex extends HttpServlet {
     } else if (methodName.compareToIgnoreCase("Max-changin-radius") == 0
         || methodName.compareToIgnoreCase("Max-changin-radius-regionSize") == 0) {
       MaxChangingRadiusCalculator calculator = new MaxChangingRadiusCalculator();
-      ArrayList<ArrayList<String>> regions = null;
+      RegionCache.Result regions = null;
       if (methodName.compareToIgnoreCase("Max-changin-radius") == 0) {
         regions =
             calculator.runWithUI(REGION_NUM, MAX_NODES, graph1, graph2,
@@ -466,17 +451,11 @@ public class GraphServletFromEveryVertex extends HttpServlet {
             calculator.runWithUI(REGION_NUM, MAX_NODES, graph1, graph2,
                 Integer.parseInt(toolParameters[4]), 1);
       }
-      ArrayList<String> graph1ResultsRegion = regions.get(0);
-      ArrayList<String> graph2ResultsRegion = regions.get(1);
-      ArrayList<String> colors = regions.get(2);
-      HashMap<Integer, String> colorMap = new HashMap<Integer, String>();
-      for (String color : colors) {
-        String[] splits = color.split(",");
-        colorMap.put(Integer.parseInt(splits[0]), splits[1]);
-      }
+      ArrayList<String> graph1ResultsRegion = regions.getGraph1Edges();
+      ArrayList<String> graph2ResultsRegion = regions.getGraph2Edges();
       for (int i = 1; i <= nodesNumber; i++) {
         // Get the nodes colors.
-        out.print(colorMap.get(i) + ",");
+        out.print(ResponseEncoder.toHexColor(regions.getNodeColor(i)) + ",");
       }
       // Write selected regions to the response.
       out.print("_");
@@ -488,7 +467,8 @@ public class GraphServletFromEveryVertex extends HttpServlet {
         out.print(graph2Edge + "-");
       }
     } else if ((methodName.compareToIgnoreCase("area-based") == 0)
-        || (methodName.compareToIgnoreCase("conformal-based") == 0)) {
+        || (methodName.compareToIgnoreCase("conformal-based") == 0)
+        || SpectralMeasures.isSupported(methodName)) {
       try {
 
         if (compareGraphs(graph1, prevGraph1) && compareGraphs(graph2, prevGraph2)
@@ -514,7 +494,9 @@ public class GraphServletFromEveryVertex extends HttpServlet {
           String[] graph2ResultsRegion = graph2Results.get(REGION_SELECTOR);
           for (int i = 0; i < nodesNumber; i++) {
             // Get the nodes colors.
-            out.print(prevNodesColors[(selectedRegionNumber - 1) * nodesNumber + i] + ",");
+            out.print(
+                JetPalette.getColor(prevNodesColors[(selectedRegionNumber - 1) * nodesNumber + i])
+                    + ",");
           }
           // Write selected regions to the response.
           out.print("_");
@@ -529,8 +511,9 @@ public class GraphServletFromEveryVertex extends HttpServlet {
           }
           return;
         }
-        ArrayList<String[]> graphColors = runSpectralMethod(toolParameters, DEFAULT_THRESHOLD);
-        String[] nodesColors = graphColors.get(0);
+        ArrayList<String[]> graphRegions = runSpectralMethod(toolParameters, DEFAULT_THRESHOLD);
+        // Palette index of each node of each region.
+        byte[] nodesColors = JetPalette.quantize(prevNodesDistortionValues, nodesNumber);
         if (nodesColors.length == 0) {
           System.out.println("Emptry color array!");
           System.exit(0);
@@ -540,20 +523,22 @@ public class GraphServletFromEveryVertex extends HttpServlet {
             // Get the nodes colors.
             if (i <= 2000) {
               System.out.println(i + " "
-                  + nodesColors[(selectedRegionNumber - 1) * nodesNumber + i] + " "
-                  + prevNodesDistortionValues[(selectedRegionNumber - 1) * nodesNumber + i]);
+                  + JetPalette.getColor(nodesColors[(selectedRegionNumber - 1) * nodesNumber + i])
+                  + " " + prevNodesDistortionValues[(selectedRegionNumber - 1) * nodesNumber + i]);
             }
-            out.print(nodesColors[(selectedRegionNumber - 1) * nodesNumber + i] + ",");
+            out.print(
+                JetPalette.getColor(nodesColors[(selectedRegionNumber - 1) * nodesNumber + i])
+                    + ",");
           }
           // Write selected regions to the response.
           out.print("_");
-          String[] graph1ResultsRegion = graphColors.get(1);
+          String[] graph1ResultsRegion = graphRegions.get(0);
           for (int i = 0; i < graph1ResultsRegion.length; i++) {
             out.print(graph1ResultsRegion[i] + "-"); // Get the nodes
             // colors.
           }
           out.print("_");
-          String[] graph2ResultsRegion = graphColors.get(2);
+          String[] graph2ResultsRegion = graphRegions.get(1);
           for (int i = 0; i < graph2ResultsRegion.length; i++) {
             out.print(graph2ResultsRegion[i] + "-"); // Get the nodes colors.
           }
@@ -567,6 +552,8 @@ public class GraphServletFromEveryVertex extends HttpServlet {
         // proxy.disconnect();
       } catch (MatlabInvocationException ex) {
         out.println(ex.getMessage());
+      } catch (ArithmeticException ex) { // Java spectral measures.
+        out.println(ex.getMessage());
       }
     }
     out.close();
@@ -604,7 +591,9 @@ public class GraphServletFromEveryVertex extends HttpServlet {
         runSpectralMethod(matlabParameters, DEFAULT_THRESHOLD);
         double distortionSum = 0;
         String result = "";
-        double[] nodesDistortionValues = (double[]) proxy.getVariable("nodes_values");
+        // Values returned by runVisualizeMap, the E measures don't set the MATLAB nodes_values
+        // variable.
+        double[] nodesDistortionValues = prevNodesDistortionValues;
         for (int selectedRegionNumber = 1; selectedRegionNumber <= 10; selectedRegionNumber++) { // Get
                                                                                                  // top
                                                                                                  // 10
@@ -681,7 +670,9 @@ public class GraphServletFromEveryVertex extends HttpServlet {
         matlabParameters[3] = "conformal-based";
         matlabParameters[4] = 1 + "";
         runSpectralMethod(matlabParameters, DEFAULT_THRESHOLD);
-        double[] nodesDistortionValues = (double[]) proxy.getVariable("nodes_values");
+        // Values returned by runVisualizeMap, the E measures don't set the MATLAB nodes_values
+        // variable.
+        double[] nodesDistortionValues = prevNodesDistortionValues;
         for (int selectedRegionNumber = 1; selectedRegionNumber <= 10; selectedRegionNumber++) {
           double[] nodesDistortionSelected = new double[nodesNumber];
           for (int i = 0; i < nodesNumber; i++) {
@@ -782,7 +773,9 @@ public class GraphServletFromEveryVertex extends HttpServlet {
           matlabParameters[3] = method;
           matlabParameters[4] = 1 + "";
           runSpectralMethodForThresholding(matlabParameters, threshold);
-          double[] nodesDistortionValues = (double[]) proxy.getVariable("nodes_values");
+          // Values returned by runVisualizeMap, the E measures don't set the MATLAB nodes_values
+        // variable.
+        double[] nodesDistortionValues = prevNodesDistortionValues;
           if (nodesDistortionValues.length == 0) {
             System.out.println("Returned distortions are empty! " + k);
             continue;
@@ -831,6 +824,9 @@ public class GraphServletFromEveryVertex extends HttpServlet {
           // If K exceeds the number of nodes in the graph, Matlab code throws an exception.
           System.out.println("Error in Matlab " + ex.getMessage());
           continue;
+        } catch (ArithmeticException ex) { // Java spectral measures.
+          System.out.println("Error in the spectral measures " + ex.getMessage());
+          continue;
         }
       }
       threshold += step;
@@ -892,7 +888,9 @@ public class GraphServletFromEveryVertex extends HttpServlet {
           matlabParameters[3] = method;
           matlabParameters[4] = 1 + "";
           runSpectralMethodForThresholding(matlabParameters, threshold);
-          double[] nodesDistortionValues = (double[]) proxy.getVariable("nodes_values");
+          // Values returned by runVisualizeMap, the E measures don't set the MATLAB nodes_values
+        // variable.
+        double[] nodesDistortionValues = prevNodesDistortionValues;
           if (nodesDistortionValues.length == 0) {
             System.out.println("Returned distortions are empty! " + k);
             continue;
@@ -961,6 +959,9 @@ public class GraphServletFromEveryVertex extends HttpServlet {
           // If K exceeds the number of nodes in the graph, Matlab code throws an exception.
           System.out.println("Error in Matlab " + ex.getMessage());
           continue;
+        } catch (ArithmeticException ex) { // Java spectral measures.
+          System.out.println("Error in the spectral measures " + ex.getMessage());
+          continue;
         }
       }
       threshold += step;
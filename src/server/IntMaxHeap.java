@@ -0,0 +1,124 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Binary max-heap of int vertex indices keyed by double values, stored in two parallel primitive
+ * arrays so that the priority queue BFS runs without boxing or comparator calls. The sift order is
+ * the same as java.util.PriorityQueue with Node.compareTo, so vertices with equal keys are polled
+ * in the same order.
+ */
+public class IntMaxHeap {
+
+  // Initial number of slots of the heap.
+  private static final int INITIAL_CAPACITY = 64;
+  // One heap per thread, so that the arrays are reused across BFS calls.
+  private static final ThreadLocal<IntMaxHeap> heaps = new ThreadLocal<IntMaxHeap>() {
+    @Override
+    protected IntMaxHeap initialValue() {
+      return new IntMaxHeap();
+    }
+  };
+
+  // Vertex index of each heap slot.
+  private int[] vertices = new int[INITIAL_CAPACITY];
+  // Key of each heap slot.
+  private double[] keys = new double[INITIAL_CAPACITY];
+  // Number of vertices in the heap.
+  private int size = 0;
+
+  /**
+   * Get the heap of the current thread, emptied of any previous vertices.
+   *
+   * @return the heap of the current thread.
+   */
+  public static IntMaxHeap get() {
+    IntMaxHeap heap = heaps.get();
+    heap.clear();
+    return heap;
+  }
+
+  /**
+   * Remove all the vertices.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Check whether the heap is empty.
+   *
+   * @return true if the heap has no vertices.
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Get the number of vertices in the heap.
+   *
+   * @return number of vertices.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Add a vertex.
+   *
+   * @param vertex index of the vertex.
+   * @param key priority of the vertex, the highest key is polled first.
+   */
+  public void add(int vertex, double key) {
+    if (size == vertices.length) {
+      vertices = Arrays.copyOf(vertices, size * 2);
+      keys = Arrays.copyOf(keys, size * 2);
+    }
+    // Sift up.
+    int k = size++;
+    while (k > 0) {
+      int parent = (k - 1) >>> 1;
+      if (!(key > keys[parent])) {
+        break;
+      }
+      vertices[k] = vertices[parent];
+      keys[k] = keys[parent];
+      k = parent;
+    }
+    vertices[k] = vertex;
+    keys[k] = key;
+  }
+
+  /**
+   * Remove the vertex with the highest key.
+   *
+   * @return index of the removed vertex.
+   */
+  public int poll() {
+    int result = vertices[0];
+    int n = --size;
+    if (n > 0) {
+      // Sift down the last vertex from the root.
+      int vertex = vertices[n];
+      double key = keys[n];
+      int half = n >>> 1;
+      int k = 0;
+      while (k < half) {
+        int child = (k << 1) + 1;
+        int right = child + 1;
+        if (right < n && !(keys[child] >= keys[right])) {
+          child = right;
+        }
+        if (key >= keys[child]) {
+          break;
+        }
+        vertices[k] = vertices[child];
+        keys[k] = keys[child];
+        k = child;
+      }
+      vertices[k] = vertex;
+      keys[k] = key;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,130 @@
+package server;
+
+/**
+ * The 100 colors of MATLAB jet(100), from blue to red, and the quantization visualize_map.m used
+ * to color the nodes by their distortion values. Each distortion area is scaled from its minimum
+ * to its maximum value and mapped to a palette index in one primitive pass, and the colors are
+ * the shared palette strings, so no color is formatted per node.
+ */
+public class JetPalette {
+
+  // Number of palette colors.
+  public static final int COLORS_NUMBER = 100;
+  // Color of each palette index as 0xRRGGBB.
+  private static final int[] RGB = getJetColors(COLORS_NUMBER);
+  // Hex color of each palette index, as rgb2hex.m formats it.
+  private static final String[] HEX = new String[COLORS_NUMBER];
+
+  static {
+    for (int i = 0; i < COLORS_NUMBER; i++) {
+      HEX[i] = String.format("#%06X", RGB[i]);
+    }
+  }
+
+  /**
+   * Build the colors of MATLAB jet(m).
+   *
+   * @param m number of colors.
+   * @return colors as 0xRRGGBB from blue to red.
+   */
+  private static int[] getJetColors(int m) {
+    int n = (m + 3) / 4;
+    // u ramps up over n steps, stays 1 for n - 1 steps and ramps down over n steps.
+    double[] u = new double[3 * n - 1];
+    for (int i = 0; i < u.length; i++) {
+      if (i < n) {
+        u[i] = (i + 1.0) / n;
+      } else if (i < 2 * n - 1) {
+        u[i] = 1;
+      } else {
+        u[i] = (3.0 * n - 1 - i) / n;
+      }
+    }
+    double[][] rgb = new double[m][3];
+    // Green peaks in the middle, red n colors later and blue n colors earlier, each clipped to
+    // the palette.
+    int firstGreen = (n + 1) / 2 - (m % 4 == 1 ? 1 : 0);
+    for (int i = 0; i < u.length; i++) {
+      int green = firstGreen + i;
+      if (green < m) {
+        rgb[green][1] = u[i];
+      }
+      if (green + n < m) {
+        rgb[green + n][0] = u[i];
+      }
+      if (green - n >= 0) {
+        rgb[green - n][2] = u[i];
+      }
+    }
+    int[] colors = new int[m];
+    for (int i = 0; i < m; i++) {
+      colors[i] = (int) (Math.round(rgb[i][0] * 255) << 16 | Math.round(rgb[i][1] * 255) << 8
+          | Math.round(rgb[i][2] * 255));
+    }
+    return colors;
+  }
+
+  /**
+   * Get the palette index of a value, scaled from min to max as visualize_map does: values at the
+   * minimum take the first color and undefined positions, when all the values are equal, the last.
+   *
+   * @param value to map.
+   * @param min minimum value.
+   * @param max maximum value.
+   * @return palette index from 0 to COLORS_NUMBER - 1.
+   */
+  public static int getIndex(double value, double min, double max) {
+    double position = Math.ceil((value - min) / (max - min) * COLORS_NUMBER);
+    if (position > COLORS_NUMBER || Double.isNaN(position)) {
+      return COLORS_NUMBER - 1;
+    } else if (position <= 0) {
+      return 0;
+    }
+    return (int) position - 1;
+  }
+
+  /**
+   * Quantize distortion values to palette indices, scaling each column from its minimum to its
+   * maximum.
+   *
+   * @param values distortion values of a nodes x areas matrix, stacked column wise.
+   * @param columnLength number of nodes.
+   * @return palette index of each value.
+   */
+  public static byte[] quantize(double[] values, int columnLength) {
+    byte[] indices = new byte[values.length];
+    for (int start = 0; start < values.length; start += columnLength) {
+      int end = Math.min(values.length, start + columnLength);
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int i = start; i < end; i++) {
+        min = Math.min(min, values[i]);
+        max = Math.max(max, values[i]);
+      }
+      for (int i = start; i < end; i++) {
+        indices[i] = (byte) getIndex(values[i], min, max);
+      }
+    }
+    return indices;
+  }
+
+  /**
+   * Get the hex color of a palette index.
+   *
+   * @param index from 0 to COLORS_NUMBER - 1.
+   * @return hex color as #RRGGBB.
+   */
+  public static String getColor(int index) {
+    return HEX[index];
+  }
+
+  /**
+   * Get the color of a palette index.
+   *
+   * @param index from 0 to COLORS_NUMBER - 1.
+   * @return color as 0xRRGGBB.
+   */
+  public static int getRgb(int index) {
+    return RGB[index];
+  }
+}
@@ -10,6 +10,13 @@ public class MaxChangingRadiusCalculator {
 
   // GraphCalculator contains the graphs and common operation to do on them.
   private GraphCalculator graphCalculator;
+  // Metrics recorded by every search.
+  private static final Metrics.Histogram RADIUS_SEARCH_SECONDS =
+      Metrics.histogram("calculator_region_search_seconds",
+          "calculator=\"max_changing_radius\"");
+  private static final Metrics.Histogram REGION_SIZE_SEARCH_SECONDS =
+      Metrics.histogram("calculator_region_search_seconds",
+          "calculator=\"max_changing_radius_region_size\"");
   // Input file for graph1.
   private String inputFile1;
   // Input file for graph2.
@@ -35,12 +42,16 @@ public class MaxChangingRadiusCalculator {
    * @return ArrayList of regions, where each region is represented by HashSet of nodes it contains.
    */
   public ArrayList<HashSet<Node>> getTopChangingRadius(int regionNumber, int nodesPerRegion) {
+    long start = Metrics.startTimer();
+    String methodName = "max_changing_radius";
     HashMap<Node, HashMap<Node, Integer>> graph2 = graphCalculator.getGraph2();
     // If the region number is greater than the number of nodes, then
     // set the region number to the number of nodes in the graph.
     regionNumber = Math.min(regionNumber, graph2.size());
     // Add nodes of graph 2 to an array for sorting.
     Region[] regions = new Region[graph2.size()];
+    SearchPhaseEvent expansionEvent =
+        SearchPhaseEvent.begin(SearchPhaseEvent.REGION_EXPANSION, methodName, graph2.size());
     int index = 0;
     for (Node node : graph2.keySet()) {
       // Start BFS from each node in graph 2 until reaching the desired radius.
@@ -67,8 +78,13 @@ public class MaxChangingRadiusCalculator {
       // Add this region to the regions array to sort latter on.
       regions[index++] = new Region(bfsNodes, distortionValues, radius, regionSize);
     }
+    expansionEvent.setParameters(regionNumber, nodesPerRegion, 0).setBatch(0, index).finish();
     // Sort the regions based on their distortion values from the highest to the smallest.
+    SearchPhaseEvent sortingEvent =
+        SearchPhaseEvent.begin(SearchPhaseEvent.SORTING, methodName, graph2.size());
     Arrays.sort(regions);
+    sortingEvent.setParameters(regionNumber, nodesPerRegion, 0).setBatch(0, regions.length)
+        .finish();
     ArrayList<HashSet<Node>> highestDistortionRegions = new ArrayList<HashSet<Node>>();
     for (int i = 0; i < regionNumber; i++) {
       if (regions[i].getNodes().size() < nodesPerRegion) {
@@ -76,6 +92,7 @@ public class MaxChangingRadiusCalculator {
       }
       highestDistortionRegions.add(regions[i].getNodes());
     }
+    RADIUS_SEARCH_SECONDS.observeSince(start);
     return highestDistortionRegions;
   }
 
@@ -91,19 +108,20 @@ public class MaxChangingRadiusCalculator {
    */
   public ArrayList<HashSet<Node>> getTopChangingRadiusWithRegionSize(int regionNumber,
       int nodesPerRegion) {
+    long start = Metrics.startTimer();
+    String methodName = "max_changing_radius_region_size";
     // Get graph2 adjacency list.
     HashMap<Node, HashMap<Node, Integer>> graph2 = graphCalculator.getGraph2();
-    // Get graph1 adjacency list.
-    HashMap<Node, HashMap<Node, Integer>> graph1 = graphCalculator.getGraph1();
-    // Get graph2 node mapping.
-    HashMap<String, Node> nodeMapping2 = graphCalculator.getNodeMapping2();
-    // Get graph1 node mapping.
-    HashMap<String, Node> nodeMapping1 = graphCalculator.getNodeMapping1();
     // If the region number is greater than the number of nodes, then
     // set the region number to the number of nodes in the graph.
     regionNumber = Math.min(regionNumber, graph2.size());
     // Add nodes of graph 2 to an array for sorting.
     Region[] regions = new Region[graph2.size()];
+    SearchPhaseEvent expansionEvent =
+        SearchPhaseEvent.begin(SearchPhaseEvent.REGION_EXPANSION, methodName, graph2.size());
+    // Regions reaching the desired size, scored together after the expansion.
+    ArrayList<HashSet<Node>> regionsToScore = new ArrayList<HashSet<Node>>();
+    ArrayList<Region> scoredRegions = new ArrayList<Region>();
     int index = 0;
     for (Node node : graph2.keySet()) {
       // Start BFS from each node in graph 2 until reaching the desired radius.
@@ -117,38 +135,30 @@ public class MaxChangingRadiusCalculator {
           break;
         }
       }
-      if (regionSize < nodesPerRegion) {
-        regions[index++] = new Region(bfsNodes, 0, radius, regionSize);
-        continue;
-      }
-      // Calculate the distortion value of the returned region.
-      double distortionValues = 0;
-      double regionSizeGraph1 = 0;
-      double regionSizeGraph2 = 0;
-      for (Node bfsNode : bfsNodes) {
-        distortionValues += bfsNode.getDistortionValue();
-        HashMap<Node, Integer> bfsNodeNeighborsG1 = graph1.get(nodeMapping1.get(bfsNode.getId()));
-        if (bfsNodeNeighborsG1 != null) {
-          for (Node bfsNodeNeighborG1 : bfsNodeNeighborsG1.keySet()) {
-            if (bfsNodes.contains(nodeMapping2.get(bfsNodeNeighborG1.getId()))) {
-              regionSizeGraph1++;
-            }
-          }
-        }
-        HashMap<Node, Integer> bfsNodeNeighborsG2 = graph2.get(nodeMapping2.get(bfsNode.getId()));
-        for (Node bfsNodeNeighborG2 : bfsNodeNeighborsG2.keySet()) {
-          if (bfsNodes.contains(bfsNodeNeighborG2)) {
-            regionSizeGraph2++;
-          }
-        }
-      }
-      distortionValues =
-          distortionValues / Math.min(Math.max(1, regionSizeGraph1), Math.max(1, regionSizeGraph2));
       // Add this region to the regions array to sort latter on.
-      regions[index++] = new Region(bfsNodes, distortionValues, radius, regionSize);
+      regions[index++] = new Region(bfsNodes, 0, radius, regionSize);
+      if (regionSize >= nodesPerRegion) {
+        regionsToScore.add(bfsNodes);
+        scoredRegions.add(regions[index - 1]);
+      }
     }
+    expansionEvent.setParameters(regionNumber, nodesPerRegion, 0).setBatch(0, index).finish();
+    // Calculate the distortion value of the regions, the delta change over the minimum number of
+    // edges within the region in graph1 and graph2.
+    SearchPhaseEvent scoringEvent =
+        SearchPhaseEvent.begin(SearchPhaseEvent.REGION_SCORING, methodName, graph2.size());
+    double[][] measures = graphCalculator.score(regionsToScore);
+    for (int i = 0; i < measures.length; i++) {
+      scoredRegions.get(i).setDistortionValues(measures[i][RegionScorer.MIN_EDGES_MEASURE]);
+    }
+    scoringEvent.setParameters(regionNumber, nodesPerRegion, 0).setBatch(0, measures.length)
+        .finish();
     // Sort the regions based on their distortion values from the highest to the smallest.
+    SearchPhaseEvent sortingEvent =
+        SearchPhaseEvent.begin(SearchPhaseEvent.SORTING, methodName, graph2.size());
     Arrays.sort(regions);
+    sortingEvent.setParameters(regionNumber, nodesPerRegion, 0).setBatch(0, regions.length)
+        .finish();
     ArrayList<HashSet<Node>> highestDistortionRegions = new ArrayList<HashSet<Node>>();
     for (int i = 0; i < graph2.size(); i++) {
       if (regions[i].getNodes().size() < nodesPerRegion) {
@@ -159,6 +169,7 @@ public class MaxChangingRadiusCalculator {
         break;
       }
     }
+    REGION_SIZE_SEARCH_SECONDS.observeSince(start);
     return highestDistortionRegions;
   }
 
@@ -237,70 +248,27 @@ public class MaxChangingRadiusCalculator {
    * @return regions.
    * @throws IOException
    */
-  public ArrayList<ArrayList<String>> runWithUI(int regionNumber, int nodesNumPerRegion,
+  public RegionCache.Result runWithUI(int regionNumber, int nodesNumPerRegion,
       double[][] graph1, double[][] graph2, int selectedRegion, int selectedTraversalMethod)
       throws IOException {
-    // Load the graphs.
-    graphCalculator.readGraphs(graph1, graph2);
-    // Calculate delta change for each node.
-    graphCalculator.calculateDeltaGraph();
-    ArrayList<HashSet<Node>> topChangingVertciesBFSRegions = null;
-    if (selectedTraversalMethod == 0) {
-      topChangingVertciesBFSRegions = getTopChangingRadius(regionNumber, nodesNumPerRegion);
-    } else if (selectedTraversalMethod == 1) {
-      topChangingVertciesBFSRegions =
-          getTopChangingRadiusWithRegionSize(regionNumber, nodesNumPerRegion);
-    }
-    // Get graph1 region.
-    HashSet<Node> selectedNodes = topChangingVertciesBFSRegions.get(selectedRegion);
-    HashMap<Node, HashMap<Node, Integer>> graph1Map = graphCalculator.getGraph1();
-    HashMap<String, Node> nodeMapping1 = graphCalculator.getNodeMapping1();
-    HashMap<String, Node> nodeMapping2 = graphCalculator.getNodeMapping2();
-    ArrayList<String> graph1Region = new ArrayList<String>();
-    for (Node node : selectedNodes) {
-      HashMap<Node, Integer> neighborNodes = graph1Map.get(nodeMapping1.get(node.getId()));
-      if (neighborNodes == null) {
-        neighborNodes = new HashMap<Node, Integer>();
-      }
-      for (Node neighborNode : neighborNodes.keySet()) {
-        if (selectedNodes.contains(nodeMapping2.get(neighborNode.getId()))) {
-          graph1Region.add((int) Double.parseDouble(node.getId()) + "," + (int) Double.parseDouble(neighborNode.getId()));
-        }
+    String key = RegionCache.key(graph1, graph2, "max_changing_radius_" + selectedTraversalMethod,
+        regionNumber, nodesNumPerRegion, 0);
+    RegionCache.Entry entry = RegionCache.get(key);
+    if (entry == null) {
+      // Load the graphs.
+      graphCalculator.readGraphs(graph1, graph2);
+      // Calculate delta change for each node.
+      graphCalculator.calculateDeltaGraph();
+      ArrayList<HashSet<Node>> topChangingVertciesBFSRegions = null;
+      if (selectedTraversalMethod == 0) {
+        topChangingVertciesBFSRegions = getTopChangingRadius(regionNumber, nodesNumPerRegion);
+      } else if (selectedTraversalMethod == 1) {
+        topChangingVertciesBFSRegions =
+            getTopChangingRadiusWithRegionSize(regionNumber, nodesNumPerRegion);
       }
+      entry = RegionCache.put(key, graphCalculator, topChangingVertciesBFSRegions);
     }
-    // Get graph2 region.
-    HashMap<Node, HashMap<Node, Integer>> graph2Map = graphCalculator.getGraph2();
-    ArrayList<String> graph2Region = new ArrayList<String>();
-    for (Node node : selectedNodes) {
-      HashMap<Node, Integer> neighborNodes = graph2Map.get(node);
-      if (neighborNodes == null) {
-    	 neighborNodes = new HashMap<Node, Integer>();
-      }
-      for (Node neighborNode : neighborNodes.keySet()) {
-        if (selectedNodes.contains(neighborNode)) {
-          graph2Region.add((int) Double.parseDouble(node.getId()) + "," + (int) Double.parseDouble(neighborNode.getId()));
-        }
-      }
-    }
-    // Get node colors.
-    double max = -1;
-    double min = 100000;
-    for (Node node : graph2Map.keySet()) {
-      max = Math.max(max, node.getDistortionValue());
-      min = Math.min(min, node.getDistortionValue());
-    }
-    ArrayList<String> nodeColors = new ArrayList<String>();
-    for (Node node : graph2Map.keySet()) {
-      int normalizedDistortionValue =
-          (int) ((((node.getDistortionValue() - min) / (max - min))) * (Integer.MAX_VALUE - 100000));
-      String hexColor = String.format("#%06X", (0xFFFFFF & normalizedDistortionValue));
-      nodeColors.add(node.getId() + "," + hexColor);
-    }
-    ArrayList<ArrayList<String>> bothGraphRegions = new ArrayList<ArrayList<String>>();
-    bothGraphRegions.add(graph1Region);
-    bothGraphRegions.add(graph2Region);
-    bothGraphRegions.add(nodeColors);
-    return bothGraphRegions;
+    return entry.getRegion(selectedRegion);
   }
 
 
@@ -318,6 +286,7 @@ public class MaxChangingRadiusCalculator {
     String inputFile2 = args[1];
     int regionNumber = Integer.parseInt(args[2]);
     int nodesNumPerRegion = Integer.parseInt(args[2]);
+    Metrics.startServerIfConfigured();
     MaxChangingRadiusCalculator calculator =
         new MaxChangingRadiusCalculator(inputFile1, inputFile2);
     calculator.run(regionNumber, nodesNumPerRegion);
@@ -0,0 +1,447 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Maximum flow and minimum s-t cut of a graph with terminal capacities, with the augmenting
+ * paths algorithm of Boykov and Kolmogorov, "An Experimental Comparison of Min-Cut/Max-Flow
+ * Algorithms for Energy Minimization in Vision", which GCMex is built on. A search tree is grown
+ * from the source and one from the sink, a path is augmented when the trees touch, and the nodes
+ * the augmentation cuts from their tree are adopted by another node of the same tree. The trees
+ * are kept from one augmentation to the next instead of being searched again from scratch.
+ *
+ * <p>The arcs are fixed when the graph is built and stored as compressed sparse rows of
+ * primitive arrays, so a graph of millions of nodes is a few arrays. The capacities can be reset
+ * and set again, so alpha-expansion reuses one graph for all of its moves.
+ */
+public class MaxFlowGraph {
+
+  // Parent of a node in no search tree.
+  private static final int FREE = -1;
+  // Parent of a node linked to its terminal.
+  private static final int TERMINAL = -2;
+  // Parent of a node cut from its search tree by an augmentation.
+  private static final int ORPHAN = -3;
+  // Marks a node not in the active queue.
+  private static final int NOT_ACTIVE = -1;
+
+  // Number of nodes.
+  private final int nodesNumber;
+  // Start of the arcs of each node, followed by the number of arcs.
+  private final int[] offsets;
+  // Head node of each arc.
+  private final int[] heads;
+  // Reverse arc of each arc.
+  private final int[] sisters;
+  // Arc of each edge from its source to its target, the reverse arc goes back.
+  private final int[] edgeArcs;
+  // Residual capacity of each arc.
+  private final double[] capacities;
+  // Residual capacity from the source if positive, or to the sink if negative, of each node.
+  private final double[] terminalCapacities;
+  // Arc from each node to its parent, or FREE, TERMINAL or ORPHAN.
+  private final int[] parents;
+  // Whether each node is in the sink tree, otherwise it is in the source tree if not FREE.
+  private final boolean[] inSinkTree;
+  // Time its distance to the terminal was last checked, for each node.
+  private final int[] timestamps;
+  // Distance of each node to its terminal, valid if checked at the current time.
+  private final int[] distances;
+  // Next node of the active queue, the last node links to itself, NOT_ACTIVE if not queued.
+  private final int[] nextActive;
+  private int firstActive = NOT_ACTIVE;
+  private int lastActive = NOT_ACTIVE;
+  // Orphans waiting for a new parent, as a circular queue.
+  private final int[] orphans;
+  private int firstOrphan = 0;
+  private int orphansNumber = 0;
+  private int time = 0;
+  // Flow sent from the source to the sink, including the flow added with the terminal weights.
+  private double flow = 0;
+
+  /**
+   * Constructor, the capacities start at zero.
+   *
+   * @param nodesNumber number of nodes, numbered from 0.
+   * @param sources source node of each edge.
+   * @param targets target node of each edge.
+   * @param edgesNumber number of edges.
+   */
+  public MaxFlowGraph(int nodesNumber, int[] sources, int[] targets, int edgesNumber) {
+    this.nodesNumber = nodesNumber;
+    offsets = new int[nodesNumber + 1];
+    for (int edge = 0; edge < edgesNumber; edge++) {
+      offsets[sources[edge] + 1]++;
+      offsets[targets[edge] + 1]++;
+    }
+    for (int node = 0; node < nodesNumber; node++) {
+      offsets[node + 1] += offsets[node];
+    }
+    int arcsNumber = 2 * edgesNumber;
+    heads = new int[arcsNumber];
+    sisters = new int[arcsNumber];
+    edgeArcs = new int[edgesNumber];
+    int[] next = Arrays.copyOf(offsets, nodesNumber);
+    for (int edge = 0; edge < edgesNumber; edge++) {
+      int arc = next[sources[edge]]++;
+      int reverseArc = next[targets[edge]]++;
+      heads[arc] = targets[edge];
+      heads[reverseArc] = sources[edge];
+      sisters[arc] = reverseArc;
+      sisters[reverseArc] = arc;
+      edgeArcs[edge] = arc;
+    }
+    capacities = new double[arcsNumber];
+    terminalCapacities = new double[nodesNumber];
+    parents = new int[nodesNumber];
+    inSinkTree = new boolean[nodesNumber];
+    timestamps = new int[nodesNumber];
+    distances = new int[nodesNumber];
+    nextActive = new int[nodesNumber];
+    orphans = new int[nodesNumber];
+  }
+
+  /**
+   * Set all the capacities and the flow back to zero.
+   */
+  public void reset() {
+    Arrays.fill(capacities, 0);
+    Arrays.fill(terminalCapacities, 0);
+    flow = 0;
+  }
+
+  /**
+   * Add capacities to an edge.
+   *
+   * @param edge index of the edge.
+   * @param capacity from the edge source to its target.
+   * @param reverseCapacity from the edge target to its source.
+   */
+  public void addEdgeCapacity(int edge, double capacity, double reverseCapacity) {
+    capacities[edgeArcs[edge]] += capacity;
+    capacities[sisters[edgeArcs[edge]]] += reverseCapacity;
+  }
+
+  /**
+   * Add capacities from the source to a node and from the node to the sink. Only their
+   * difference is kept, the smaller one is sent as flow straight away, so the capacities may be
+   * negative as long as the energy they represent is.
+   *
+   * @param node index of the node.
+   * @param sourceCapacity from the source to the node.
+   * @param sinkCapacity from the node to the sink.
+   */
+  public void addTerminalWeights(int node, double sourceCapacity, double sinkCapacity) {
+    double residual = terminalCapacities[node];
+    if (residual > 0) {
+      sourceCapacity += residual;
+    } else {
+      sinkCapacity -= residual;
+    }
+    flow += Math.min(sourceCapacity, sinkCapacity);
+    terminalCapacities[node] = sourceCapacity - sinkCapacity;
+  }
+
+  /**
+   * Calculate the maximum flow, which leaves the minimum cut in the search trees.
+   *
+   * @return maximum flow from the source to the sink.
+   */
+  public double maxFlow() {
+    initialize();
+    int current = FREE;
+    while (true) {
+      int node = current;
+      if (node != FREE) {
+        nextActive[node] = NOT_ACTIVE;
+        if (parents[node] == FREE) {
+          node = FREE;
+        }
+      }
+      if (node == FREE) {
+        node = nextActiveNode();
+        if (node == FREE) {
+          break;
+        }
+      }
+      int meetingArc = grow(node);
+      time++;
+      if (meetingArc != FREE) {
+        // Keep growing from the node after the augmentation, it is marked active so that it is
+        // not queued again meanwhile.
+        nextActive[node] = node;
+        current = node;
+        augment(meetingArc);
+        adoptOrphans();
+      } else {
+        current = FREE;
+      }
+    }
+    return flow;
+  }
+
+  /**
+   * Get the side of the minimum cut of a node, after maxFlow. Nodes in no search tree can be on
+   * either side and are put on the source side.
+   *
+   * @param node index of the node.
+   * @return whether the node is on the sink side.
+   */
+  public boolean isSinkSide(int node) {
+    return parents[node] != FREE && inSinkTree[node];
+  }
+
+  /**
+   * Put the nodes with terminal capacity in the search trees of their terminals.
+   */
+  private void initialize() {
+    firstActive = NOT_ACTIVE;
+    lastActive = NOT_ACTIVE;
+    firstOrphan = 0;
+    orphansNumber = 0;
+    time = 0;
+    Arrays.fill(nextActive, NOT_ACTIVE);
+    for (int node = 0; node < nodesNumber; node++) {
+      timestamps[node] = 0;
+      if (terminalCapacities[node] != 0) {
+        inSinkTree[node] = terminalCapacities[node] < 0;
+        parents[node] = TERMINAL;
+        distances[node] = 1;
+        setActive(node);
+      } else {
+        parents[node] = FREE;
+      }
+    }
+  }
+
+  /**
+   * Add a node to the end of the active queue, unless it is active already.
+   *
+   * @param node index of the node.
+   */
+  private void setActive(int node) {
+    if (nextActive[node] != NOT_ACTIVE) {
+      return;
+    }
+    if (lastActive != NOT_ACTIVE) {
+      nextActive[lastActive] = node;
+    } else {
+      firstActive = node;
+    }
+    lastActive = node;
+    nextActive[node] = node;
+  }
+
+  /**
+   * Remove nodes from the active queue until one still in a search tree.
+   *
+   * @return active node, FREE if the queue is empty.
+   */
+  private int nextActiveNode() {
+    while (firstActive != NOT_ACTIVE) {
+      int node = firstActive;
+      if (nextActive[node] == node) {
+        firstActive = NOT_ACTIVE;
+        lastActive = NOT_ACTIVE;
+      } else {
+        firstActive = nextActive[node];
+      }
+      nextActive[node] = NOT_ACTIVE;
+      if (parents[node] != FREE) {
+        return node;
+      }
+    }
+    return FREE;
+  }
+
+  /**
+   * Grow the search tree of an active node over its arcs with residual capacity, preferring
+   * parents closer to the terminal.
+   *
+   * @param node active node.
+   * @return arc from the source tree to the sink tree where the trees touch, FREE if they don't.
+   */
+  private int grow(int node) {
+    boolean sinkTree = inSinkTree[node];
+    for (int arc = offsets[node]; arc < offsets[node + 1]; arc++) {
+      // The tree grows along arcs with residual capacity towards the sink.
+      if ((sinkTree ? capacities[sisters[arc]] : capacities[arc]) <= 0) {
+        continue;
+      }
+      int neighbor = heads[arc];
+      if (parents[neighbor] == FREE) {
+        inSinkTree[neighbor] = sinkTree;
+        parents[neighbor] = sisters[arc];
+        timestamps[neighbor] = timestamps[node];
+        distances[neighbor] = distances[node] + 1;
+        setActive(neighbor);
+      } else if (inSinkTree[neighbor] != sinkTree) {
+        return sinkTree ? sisters[arc] : arc;
+      } else if (timestamps[neighbor] <= timestamps[node]
+          && distances[neighbor] > distances[node]) {
+        parents[neighbor] = sisters[arc];
+        timestamps[neighbor] = timestamps[node];
+        distances[neighbor] = distances[node] + 1;
+      }
+    }
+    return FREE;
+  }
+
+  /**
+   * Push the bottleneck capacity along the path through an arc between the trees, and make
+   * orphans of the nodes whose arc to their parent gets saturated.
+   *
+   * @param meetingArc from the source tree to the sink tree.
+   */
+  private void augment(int meetingArc) {
+    double bottleneck = capacities[meetingArc];
+    int node = heads[sisters[meetingArc]];
+    while (parents[node] != TERMINAL) {
+      bottleneck = Math.min(bottleneck, capacities[sisters[parents[node]]]);
+      node = heads[parents[node]];
+    }
+    bottleneck = Math.min(bottleneck, terminalCapacities[node]);
+    node = heads[meetingArc];
+    while (parents[node] != TERMINAL) {
+      bottleneck = Math.min(bottleneck, capacities[parents[node]]);
+      node = heads[parents[node]];
+    }
+    bottleneck = Math.min(bottleneck, -terminalCapacities[node]);
+
+    capacities[sisters[meetingArc]] += bottleneck;
+    capacities[meetingArc] -= bottleneck;
+    // Source tree.
+    node = heads[sisters[meetingArc]];
+    while (true) {
+      int arc = parents[node];
+      if (arc == TERMINAL) {
+        terminalCapacities[node] -= bottleneck;
+        if (terminalCapacities[node] <= 0) {
+          setOrphan(node);
+        }
+        break;
+      }
+      capacities[arc] += bottleneck;
+      capacities[sisters[arc]] -= bottleneck;
+      if (capacities[sisters[arc]] <= 0) {
+        setOrphan(node);
+      }
+      node = heads[arc];
+    }
+    // Sink tree.
+    node = heads[meetingArc];
+    while (true) {
+      int arc = parents[node];
+      if (arc == TERMINAL) {
+        terminalCapacities[node] += bottleneck;
+        if (terminalCapacities[node] >= 0) {
+          setOrphan(node);
+        }
+        break;
+      }
+      capacities[sisters[arc]] += bottleneck;
+      capacities[arc] -= bottleneck;
+      if (capacities[arc] <= 0) {
+        setOrphan(node);
+      }
+      node = heads[arc];
+    }
+    flow += bottleneck;
+  }
+
+  private void setOrphan(int node) {
+    parents[node] = ORPHAN;
+    orphans[(firstOrphan + orphansNumber++) % nodesNumber] = node;
+  }
+
+  /**
+   * Find a new parent for each orphan in its own tree, among the neighbors whose path to the
+   * terminal doesn't go through an orphan. Orphans without a new parent become free, and so do
+   * their children in turn.
+   */
+  private void adoptOrphans() {
+    while (orphansNumber > 0) {
+      int node = orphans[firstOrphan];
+      firstOrphan = (firstOrphan + 1) % nodesNumber;
+      orphansNumber--;
+      adopt(node);
+    }
+  }
+
+  /**
+   * Find a new parent for an orphan.
+   *
+   * @param node orphan.
+   */
+  private void adopt(int node) {
+    boolean sinkTree = inSinkTree[node];
+    int bestArc = FREE;
+    int bestDistance = Integer.MAX_VALUE;
+    for (int arc = offsets[node]; arc < offsets[node + 1]; arc++) {
+      // The new parent needs residual capacity towards the node in the source tree, from it in
+      // the sink tree.
+      if ((sinkTree ? capacities[arc] : capacities[sisters[arc]]) <= 0) {
+        continue;
+      }
+      int neighbor = heads[arc];
+      if (inSinkTree[neighbor] != sinkTree || parents[neighbor] == FREE) {
+        continue;
+      }
+      // Follow the path of the neighbor up to its terminal, or to a node checked at this time.
+      int distance = 0;
+      int ancestor = neighbor;
+      while (true) {
+        if (timestamps[ancestor] == time) {
+          distance += distances[ancestor];
+          break;
+        }
+        int parentArc = parents[ancestor];
+        distance++;
+        if (parentArc == TERMINAL) {
+          timestamps[ancestor] = time;
+          distances[ancestor] = 1;
+          break;
+        }
+        if (parentArc == ORPHAN) {
+          distance = Integer.MAX_VALUE;
+          break;
+        }
+        ancestor = heads[parentArc];
+      }
+      if (distance == Integer.MAX_VALUE) {
+        continue;
+      }
+      if (distance < bestDistance) {
+        bestArc = arc;
+        bestDistance = distance;
+      }
+      // Mark the distances along the path so the next checks stop there.
+      for (ancestor = neighbor; timestamps[ancestor] != time;
+          ancestor = heads[parents[ancestor]]) {
+        timestamps[ancestor] = time;
+        distances[ancestor] = distance--;
+      }
+    }
+    parents[node] = bestArc;
+    if (bestArc != FREE) {
+      timestamps[node] = time;
+      distances[node] = bestDistance + 1;
+      return;
+    }
+    // No parent found, the node becomes free. Its neighbors in the tree that can reach it become
+    // active to grow over it again, and its children become orphans.
+    for (int arc = offsets[node]; arc < offsets[node + 1]; arc++) {
+      int neighbor = heads[arc];
+      int parentArc = parents[neighbor];
+      if (inSinkTree[neighbor] != sinkTree || parentArc == FREE) {
+        continue;
+      }
+      if ((sinkTree ? capacities[arc] : capacities[sisters[arc]]) > 0) {
+        setActive(neighbor);
+      }
+      if (parentArc != TERMINAL && parentArc != ORPHAN && heads[parentArc] == node) {
+        setOrphan(neighbor);
+      }
+    }
+  }
+}
@@ -0,0 +1,348 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Lightweight metrics registry of counters, latency histograms and gauges. The metrics are
+ * written in the Prometheus text format by a local HTTP server started with startServer, which
+ * only listens on the loopback address.
+ *
+ * <p>Code that records a metric for every traversal or lookup resolves its Counter or Histogram
+ * once, as a static final field, so recording is a single LongAdder update. The methods taking a
+ * metric name look the metric up on every call and are meant for metrics recorded once per
+ * request or with labels only known at run time.
+ */
+public class Metrics {
+
+  // System property holding the port of the local metrics HTTP server.
+  public static final String PORT_PROPERTY = "metrics.port";
+  // Upper bounds in seconds of the latency histogram buckets.
+  private static final double[] BUCKETS = {0.0005, 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25,
+      0.5, 1, 2.5, 5, 10, 30, 60};
+  // Counters, the key is the metric name followed by its labels.
+  private static final ConcurrentHashMap<String, Counter> counters =
+      new ConcurrentHashMap<String, Counter>();
+  // Latency histograms, the key is the metric name followed by its labels.
+  private static final ConcurrentHashMap<String, Histogram> histograms =
+      new ConcurrentHashMap<String, Histogram>();
+  // Gauges stored as the bits of their double value, the key is the metric name.
+  private static final ConcurrentHashMap<String, AtomicLong> gauges =
+      new ConcurrentHashMap<String, AtomicLong>();
+  // Local metrics HTTP server, if started.
+  private static HttpServer server = null;
+
+  /**
+   * Counter registered under a name and labels.
+   */
+  public static class Counter {
+    // Metric name.
+    private final String name;
+    // Labels in the Prometheus format, empty if none.
+    private final String labels;
+    private final LongAdder count = new LongAdder();
+
+    private Counter(String name, String labels) {
+      this.name = name;
+      this.labels = labels;
+    }
+
+    /**
+     * Increment the counter by one.
+     */
+    public void increment() {
+      count.increment();
+    }
+
+    /**
+     * Increment the counter.
+     *
+     * @param value to add to the counter.
+     */
+    public void add(long value) {
+      count.add(value);
+    }
+  }
+
+  /**
+   * Latency histogram with fixed buckets, registered under a name and labels.
+   */
+  public static class Histogram {
+    // Metric name.
+    private final String name;
+    // Labels in the Prometheus format, empty if none.
+    private final String labels;
+    // Number of observations in each bucket, the last bucket is +Inf.
+    private final LongAdder[] bucketCounts = new LongAdder[BUCKETS.length + 1];
+    // Sum of the observed values in seconds.
+    private final DoubleAdder sum = new DoubleAdder();
+
+    private Histogram(String name, String labels) {
+      this.name = name;
+      this.labels = labels;
+      for (int i = 0; i < bucketCounts.length; i++) {
+        bucketCounts[i] = new LongAdder();
+      }
+    }
+
+    /**
+     * Record the time elapsed since start.
+     *
+     * @param start time returned by startTimer.
+     */
+    public void observeSince(long start) {
+      observe((System.nanoTime() - start) / 1e9);
+    }
+
+    private void observe(double seconds) {
+      int bucket = 0;
+      while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+        bucket++;
+      }
+      bucketCounts[bucket].increment();
+      sum.add(seconds);
+    }
+  }
+
+  private Metrics() {}
+
+  /**
+   * Build the metric key from its name and labels.
+   *
+   * @param name metric name.
+   * @param labels in the Prometheus format, for example method="BFS", or empty.
+   * @return metric key.
+   */
+  private static String key(String name, String labels) {
+    if (labels.length() == 0) {
+      return name;
+    }
+    return name + "{" + labels + "}";
+  }
+
+  /**
+   * Get the counter of a name and labels, registering it on first use.
+   *
+   * @param name counter name.
+   * @param labels counter labels, or null.
+   * @return counter.
+   */
+  public static Counter counter(String name, String labels) {
+    labels = labels == null ? "" : labels;
+    String key = key(name, labels);
+    Counter counter = counters.get(key);
+    if (counter == null) {
+      counters.putIfAbsent(key, new Counter(name, labels));
+      counter = counters.get(key);
+    }
+    return counter;
+  }
+
+  /**
+   * Get the latency histogram of a name and labels, registering it on first use.
+   *
+   * @param name histogram name.
+   * @param labels histogram labels, or null.
+   * @return histogram.
+   */
+  public static Histogram histogram(String name, String labels) {
+    labels = labels == null ? "" : labels;
+    String key = key(name, labels);
+    Histogram histogram = histograms.get(key);
+    if (histogram == null) {
+      histograms.putIfAbsent(key, new Histogram(name, labels));
+      histogram = histograms.get(key);
+    }
+    return histogram;
+  }
+
+  /**
+   * Increment a counter by one.
+   *
+   * @param name counter name.
+   */
+  public static void increment(String name) {
+    counter(name, null).increment();
+  }
+
+  /**
+   * Increment a counter.
+   *
+   * @param name counter name.
+   * @param labels counter labels, or null.
+   * @param value to add to the counter.
+   */
+  public static void increment(String name, String labels, long value) {
+    counter(name, labels).add(value);
+  }
+
+  /**
+   * Set a gauge value.
+   *
+   * @param name gauge name.
+   * @param value of the gauge.
+   */
+  public static void setGauge(String name, double value) {
+    AtomicLong gauge = gauges.get(name);
+    if (gauge == null) {
+      gauges.putIfAbsent(name, new AtomicLong());
+      gauge = gauges.get(name);
+    }
+    gauge.set(Double.doubleToLongBits(value));
+  }
+
+  /**
+   * Start timing an operation.
+   *
+   * @return start time to pass to observeSince.
+   */
+  public static long startTimer() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Record the time elapsed since start in a latency histogram.
+   *
+   * @param name histogram name.
+   * @param start time returned by startTimer.
+   */
+  public static void observeSince(String name, long start) {
+    histogram(name, null).observeSince(start);
+  }
+
+  /**
+   * Record the time elapsed since start in a latency histogram.
+   *
+   * @param name histogram name.
+   * @param labels histogram labels, or null.
+   * @param start time returned by startTimer.
+   */
+  public static void observeSince(String name, String labels, long start) {
+    histogram(name, labels).observeSince(start);
+  }
+
+  /**
+   * Write all the metrics in the Prometheus text format, each metric family after its # TYPE
+   * line.
+   *
+   * @return metrics text.
+   */
+  public static String toPrometheusText() {
+    StringBuilder text = new StringBuilder();
+    // Group the counters and the histograms by name, as a family must not be split.
+    TreeMap<String, TreeMap<String, Counter>> counterFamilies =
+        new TreeMap<String, TreeMap<String, Counter>>();
+    for (Counter counter : counters.values()) {
+      TreeMap<String, Counter> family = counterFamilies.get(counter.name);
+      if (family == null) {
+        family = new TreeMap<String, Counter>();
+        counterFamilies.put(counter.name, family);
+      }
+      family.put(counter.labels, counter);
+    }
+    for (Map.Entry<String, TreeMap<String, Counter>> family : counterFamilies.entrySet()) {
+      text.append("# TYPE ").append(family.getKey()).append(" counter\n");
+      for (Counter counter : family.getValue().values()) {
+        text.append(key(counter.name, counter.labels)).append(' ').append(counter.count.sum())
+            .append('\n');
+      }
+    }
+    for (Map.Entry<String, AtomicLong> gauge : new TreeMap<String, AtomicLong>(gauges).entrySet()) {
+      text.append("# TYPE ").append(gauge.getKey()).append(" gauge\n");
+      text.append(gauge.getKey()).append(' ')
+          .append(Double.longBitsToDouble(gauge.getValue().get())).append('\n');
+    }
+    TreeMap<String, TreeMap<String, Histogram>> histogramFamilies =
+        new TreeMap<String, TreeMap<String, Histogram>>();
+    for (Histogram histogram : histograms.values()) {
+      TreeMap<String, Histogram> family = histogramFamilies.get(histogram.name);
+      if (family == null) {
+        family = new TreeMap<String, Histogram>();
+        histogramFamilies.put(histogram.name, family);
+      }
+      family.put(histogram.labels, histogram);
+    }
+    for (Map.Entry<String, TreeMap<String, Histogram>> family : histogramFamilies.entrySet()) {
+      String name = family.getKey();
+      text.append("# TYPE ").append(name).append(" histogram\n");
+      for (Histogram histogram : family.getValue().values()) {
+        String labels = histogram.labels.length() == 0 ? "" : histogram.labels + ",";
+        long count = 0;
+        for (int i = 0; i < histogram.bucketCounts.length; i++) {
+          count += histogram.bucketCounts[i].sum();
+          String bound = i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf";
+          text.append(name).append("_bucket{").append(labels).append("le=\"").append(bound)
+              .append("\"} ").append(count).append('\n');
+        }
+        String suffixLabels =
+            histogram.labels.length() == 0 ? "" : "{" + histogram.labels + "}";
+        text.append(name).append("_sum").append(suffixLabels).append(' ')
+            .append(histogram.sum.sum()).append('\n');
+        text.append(name).append("_count").append(suffixLabels).append(' ').append(count)
+            .append('\n');
+      }
+    }
+    return text.toString();
+  }
+
+  /**
+   * Start a local HTTP server that serves the metrics on /metrics.
+   *
+   * @param port to listen on.
+   * @throws IOException
+   */
+  public static synchronized void startServer(int port) throws IOException {
+    if (server != null) {
+      return;
+    }
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    // Serve from a daemon thread, so that the server doesn't keep the program running.
+    server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "metrics-server");
+        thread.setDaemon(true);
+        return thread;
+      }
+    }));
+    server.start();
+  }
+
+  /**
+   * Start the local metrics HTTP server if the metrics.port system property is set.
+   *
+   * @throws IOException
+   */
+  public static void startServerIfConfigured() throws IOException {
+    String port = System.getProperty(PORT_PROPERTY);
+    if (port != null) {
+      startServer(Integer.parseInt(port));
+    }
+  }
+}
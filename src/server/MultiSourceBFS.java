@@ -0,0 +1,269 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Traditional BFS from up to 64 start vertices at once over compressed sparse rows. Each vertex
+ * has a 64-bit visited word, bit s is set once the BFS of start vertex s reached it, and the
+ * searches run level by level together, so the row of a frontier vertex is read once for all the
+ * searches whose frontier it is in instead of once per search.
+ *
+ * <p>Each search keeps the queue order of the traditional BFS. A vertex of the next level is
+ * ordered by the rank of the first vertex of the current level that reaches it and then by its
+ * position in that vertex row, which is the order the queue finds it in. A search stops at the
+ * level where it reaches the maximum number of vertices and keeps the first ones, so it returns
+ * exactly the vertices the traditional BFS returns, in the order the BFS adds them.
+ */
+public class MultiSourceBFS {
+
+  // Maximum number of searches run together, one bit of the visited words each.
+  public static final int BATCH_SIZE = 64;
+
+  // Start of the row of each vertex in targets, the row ends at the next vertex start.
+  private final int[] offsets;
+  // Neighbors as vertex indices, -1 for neighbors that aren't vertices.
+  private final int[] targets;
+  // Working arrays of each thread.
+  private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+    @Override
+    protected Workspace initialValue() {
+      return new Workspace();
+    }
+  };
+
+  // Working arrays of a batch, cleared of the vertices it reached when it finishes.
+  private class Workspace {
+    // Bit s is set if search s reached the vertex at an earlier level.
+    private final long[] visited;
+    // Bit s is set if the vertex is in the current level of search s.
+    private final long[] level;
+    // Slot of each current level vertex in ranks, -1 for other vertices.
+    private final int[] slots;
+    // Rank of each current level vertex in the level of each search, at slot * BATCH_SIZE + s.
+    private int[] ranks = new int[BATCH_SIZE * 64];
+    // Vertices of the current level of any search, by slot.
+    private int[] levelVertices = new int[64];
+    private int levelSize = 0;
+    // Vertices of the next level of any search, by slot.
+    private int[] nextVertices = new int[64];
+    private int nextSize = 0;
+    // Vertices with a nonzero visited word.
+    private int[] touched = new int[64];
+    private int touchedSize = 0;
+    // Next level candidates of each search, as the rank of the vertex reaching the candidate in
+    // the high half and the candidate position in its row in the low half.
+    private final long[][] keys = new long[BATCH_SIZE][16];
+    private final int[] keysSize = new int[BATCH_SIZE];
+
+    private Workspace() {
+      int n = offsets.length - 1;
+      visited = new long[n];
+      level = new long[n];
+      slots = new int[n];
+      Arrays.fill(slots, -1);
+    }
+
+    /**
+     * Add a vertex to the next level of a search.
+     *
+     * @param vertex to add.
+     * @param search bit index of the search.
+     * @param rank of the vertex in the next level of the search.
+     */
+    private void addToNextLevel(int vertex, int search, int rank) {
+      int slot = slots[vertex];
+      if (slot == -1) {
+        if (nextSize == nextVertices.length) {
+          nextVertices = Arrays.copyOf(nextVertices, nextSize * 2);
+        }
+        slot = nextSize;
+        nextVertices[nextSize++] = vertex;
+        slots[vertex] = slot;
+        if ((slot + 1) * BATCH_SIZE > ranks.length) {
+          ranks = Arrays.copyOf(ranks, Math.max(ranks.length * 2, (slot + 1) * BATCH_SIZE));
+        }
+      }
+      level[vertex] |= 1L << search;
+      ranks[slot * BATCH_SIZE + search] = rank;
+    }
+
+    /**
+     * Make the next level the current one and mark its vertices visited.
+     */
+    private void advance() {
+      for (int i = 0; i < nextSize; i++) {
+        int vertex = nextVertices[i];
+        if (visited[vertex] == 0) {
+          if (touchedSize == touched.length) {
+            touched = Arrays.copyOf(touched, touchedSize * 2);
+          }
+          touched[touchedSize++] = vertex;
+        }
+        visited[vertex] |= level[vertex];
+      }
+      int[] vertices = levelVertices;
+      levelVertices = nextVertices;
+      levelSize = nextSize;
+      nextVertices = vertices;
+      nextSize = 0;
+    }
+
+    /**
+     * Clear the current level, keeping the visited words.
+     */
+    private void clearLevel() {
+      for (int i = 0; i < levelSize; i++) {
+        int vertex = levelVertices[i];
+        level[vertex] = 0;
+        slots[vertex] = -1;
+      }
+      levelSize = 0;
+    }
+
+    /**
+     * Clear all the vertices the batch reached.
+     */
+    private void clear() {
+      clearLevel();
+      for (int i = 0; i < touchedSize; i++) {
+        visited[touched[i]] = 0;
+      }
+      touchedSize = 0;
+    }
+
+    /**
+     * Add a next level candidate of a search.
+     *
+     * @param search bit index of the search.
+     * @param key of the candidate.
+     */
+    private void addKey(int search, long key) {
+      if (keysSize[search] == keys[search].length) {
+        keys[search] = Arrays.copyOf(keys[search], keysSize[search] * 2);
+      }
+      keys[search][keysSize[search]++] = key;
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param offsets start of the row of each vertex in targets, followed by the number of targets.
+   * @param targets neighbors as vertex indices, -1 for neighbors that aren't vertices.
+   */
+  public MultiSourceBFS(int[] offsets, int[] targets) {
+    this.offsets = offsets;
+    this.targets = targets;
+  }
+
+  /**
+   * Start traditional BFS from each start vertex until the number of vertices in its BFS graph is
+   * equal to maxNodes.
+   *
+   * @param starts vertices to start from.
+   * @param from index of the first start vertex.
+   * @param to index after the last start vertex.
+   * @param maxNodes number of vertices in each BFS graph, the whole component if not positive.
+   * @return vertices of the BFS graph of each start vertex, in the order the BFS adds them.
+   */
+  public int[][] expand(int[] starts, int from, int to, int maxNodes) {
+    int[][] orders = new int[to - from][];
+    for (int batchStart = from; batchStart < to; batchStart += BATCH_SIZE) {
+      int batchEnd = Math.min(to, batchStart + BATCH_SIZE);
+      expandBatch(starts, batchStart, batchEnd, maxNodes, orders, batchStart - from);
+    }
+    return orders;
+  }
+
+  /**
+   * Run the BFS of at most BATCH_SIZE start vertices together.
+   *
+   * @param starts vertices to start from.
+   * @param from index of the first start vertex.
+   * @param to index after the last start vertex.
+   * @param maxNodes number of vertices in each BFS graph, the whole component if not positive.
+   * @param orders to fill with the vertices of each BFS graph.
+   * @param ordersFrom index in orders of the first start vertex.
+   */
+  private void expandBatch(int[] starts, int from, int to, int maxNodes, int[][] orders,
+      int ordersFrom) {
+    int limit = maxNodes > 0 ? maxNodes : Integer.MAX_VALUE;
+    Workspace workspace = workspaces.get();
+    int searches = to - from;
+    int[][] vertices = new int[searches][];
+    int[] sizes = new int[searches];
+    // Start of the current level of each search in its vertices.
+    int[] levelStarts = new int[searches];
+    long active = 0;
+    for (int s = 0; s < searches; s++) {
+      vertices[s] = new int[Math.min(limit, 16)];
+      vertices[s][0] = starts[from + s];
+      sizes[s] = 1;
+      workspace.addToNextLevel(starts[from + s], s, 0);
+      if (sizes[s] < limit) {
+        active |= 1L << s;
+      }
+    }
+    workspace.advance();
+    while (active != 0) {
+      // Read the row of each current level vertex once, for all the active searches it is in.
+      for (int i = 0; i < workspace.levelSize; i++) {
+        int vertex = workspace.levelVertices[i];
+        long searchesIn = workspace.level[vertex] & active;
+        if (searchesIn == 0) {
+          continue;
+        }
+        int slot = workspace.slots[vertex];
+        int rowStart = offsets[vertex];
+        for (int p = rowStart; p < offsets[vertex + 1]; p++) {
+          int target = targets[p];
+          if (target < 0) {
+            continue;
+          }
+          long found = searchesIn & ~workspace.visited[target];
+          while (found != 0) {
+            int s = Long.numberOfTrailingZeros(found);
+            found &= found - 1;
+            workspace.addKey(s, ((long) workspace.ranks[slot * BATCH_SIZE + s] << 32)
+                | (p - rowStart));
+          }
+        }
+      }
+      workspace.clearLevel();
+      // Order the candidates of each search as its queue would and keep the first new ones.
+      long searchesLeft = active;
+      while (searchesLeft != 0) {
+        int s = Long.numberOfTrailingZeros(searchesLeft);
+        searchesLeft &= searchesLeft - 1;
+        long[] keys = workspace.keys[s];
+        int keysSize = workspace.keysSize[s];
+        workspace.keysSize[s] = 0;
+        Arrays.sort(keys, 0, keysSize);
+        int levelStart = levelStarts[s];
+        int nextLevelStart = sizes[s];
+        for (int k = 0; k < keysSize && sizes[s] < limit; k++) {
+          int vertex = vertices[s][levelStart + (int) (keys[k] >>> 32)];
+          int target = targets[offsets[vertex] + (int) keys[k]];
+          if ((workspace.level[target] & (1L << s)) != 0) {
+            continue; // Found earlier in this level.
+          }
+          if (sizes[s] == vertices[s].length) {
+            vertices[s] = Arrays.copyOf(vertices[s], (int) Math.min(limit, 2L * sizes[s]));
+          }
+          workspace.addToNextLevel(target, s, sizes[s] - nextLevelStart);
+          vertices[s][sizes[s]++] = target;
+        }
+        levelStarts[s] = nextLevelStart;
+        if (sizes[s] == limit || sizes[s] == nextLevelStart) {
+          active &= ~(1L << s); // Full or the whole component is reached.
+        }
+      }
+      workspace.advance();
+    }
+    workspace.clear();
+    for (int s = 0; s < searches; s++) {
+      orders[ordersFrom + s] =
+          sizes[s] == vertices[s].length ? vertices[s] : Arrays.copyOf(vertices[s], sizes[s]);
+    }
+  }
+}
@@ -6,6 +6,10 @@ public class Node implements Comparable<Node> {
   private double distortionValue = 0.0;
   // Node id.
   private String id = "";
+  // Integer id of the node, or -1 if its id isn't a non-negative integer.
+  private int number = -1;
+  // Dense index of the node in its graph, used by the priority queue BFS.
+  private int index = -1;
   // Delta change of the node based on the absolute difference between its edges in graph1 and
   // graph2.
   private double delta = 0.0;
@@ -21,6 +25,19 @@ public class Node implements Comparable<Node> {
     this.id = id;
   }
 
+  /**
+   * Node constructor for nodes with an integer id.
+   * 
+   * @param distortionValue value of distortion for this node.
+   * @param id node id.
+   * @param number integer value of the node id.
+   */
+  public Node(double distortionValue, String id, int number) {
+    this.distortionValue = distortionValue;
+    this.id = id;
+    this.number = number;
+  }
+
   /**
    * compareTo compares to nodes, which is used in sort functionality.
    */
@@ -70,6 +87,33 @@ public class Node implements Comparable<Node> {
     this.id = id;
   }
 
+  /**
+   * Get the integer id of the node.
+   * 
+   * @return integer id, or -1 if the node id isn't a non-negative integer.
+   */
+  public int getNumber() {
+    return number;
+  }
+
+  /**
+   * Get the dense index of the node in its graph.
+   * 
+   * @return index of the node, or -1 if the graph nodes weren't indexed.
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * Set the dense index of the node in its graph.
+   * 
+   * @param index of the node.
+   */
+  public void setIndex(int index) {
+    this.index = index;
+  }
+
   /**
    * Get delta change of the node.
    * @return delta change of the node.
@@ -0,0 +1,279 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Cache of the region search results of the browser tool. Selecting another area of the same
+ * snapshot pair with the same parameters only changes the selected region, so the graph1 and
+ * graph2 edges of all the regions and the node colors are kept per (snapshot pair, method, region
+ * number, nodes per region, biased k) and the selected region is looked up instead of searched
+ * again. Only these browser results are kept, not the graphs they were found in, and the cache is
+ * bounded by its estimated size as well as by its number of searches. A cached search is never
+ * replaced by a differently ranked one under the same key, so a client paging through its regions
+ * always sees the same ranking.
+ */
+public class RegionCache {
+
+  // Metrics recorded by every lookup.
+  private static final Metrics.Counter HITS = Metrics.counter("region_cache_hits_total", null);
+  private static final Metrics.Counter MISSES = Metrics.counter("region_cache_misses_total", null);
+  // Maximum number of cached searches, the least recently used search is evicted first.
+  private static final int MAX_ENTRIES = 8;
+  // Maximum estimated size in bytes of the cached searches.
+  private static final long MAX_BYTES = 64L << 20;
+  // Cached searches, in access order.
+  private static final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  // Estimated size in bytes of the cached searches.
+  private static long bytes = 0;
+  // Hash of each parsed graph by reference, arrays are compared by identity.
+  private static final Map<double[][], Long> fingerprints =
+      Collections.synchronizedMap(new WeakHashMap<double[][], Long>());
+
+  /**
+   * Browser tool result of a selected region.
+   */
+  public static class Result {
+    // Edges of the region in graph1, in the format source,target.
+    private final ArrayList<String> graph1Edges;
+    // Edges of the region in graph2, in the format source,target.
+    private final ArrayList<String> graph2Edges;
+    // JetPalette index of each node by its integer id, -1 for the ids that aren't graph2 nodes.
+    private final byte[] nodeColors;
+    // Whether the regions are the exact search regions rather than approximate ones.
+    private final boolean exact;
+    // Confidence from 0 to 1 that the regions are the exact search regions.
+    private final double confidence;
+
+    private Result(ArrayList<String> graph1Edges, ArrayList<String> graph2Edges,
+        byte[] nodeColors, boolean exact, double confidence) {
+      this.graph1Edges = graph1Edges;
+      this.graph2Edges = graph2Edges;
+      this.nodeColors = nodeColors;
+      this.exact = exact;
+      this.confidence = confidence;
+    }
+
+    /**
+     * @return edges of the region in graph1.
+     */
+    public ArrayList<String> getGraph1Edges() {
+      return graph1Edges;
+    }
+
+    /**
+     * @return edges of the region in graph2.
+     */
+    public ArrayList<String> getGraph2Edges() {
+      return graph2Edges;
+    }
+
+    /**
+     * @return JetPalette index of each node by its integer id, -1 for the ids that aren't graph2
+     *         nodes.
+     */
+    public byte[] getNodeColors() {
+      return nodeColors;
+    }
+
+    /**
+     * Get the color of a node.
+     *
+     * @param id integer id of the node.
+     * @return 24-bit color of the node, -1 if it isn't a graph2 node.
+     */
+    public int getNodeColor(int id) {
+      return id >= 0 && id < nodeColors.length && nodeColors[id] >= 0
+          ? JetPalette.getRgb(nodeColors[id]) : -1;
+    }
+
+    /**
+     * @return true if the regions are the exact search regions, false if they were found by an
+     *         approximate search.
+     */
+    public boolean isExact() {
+      return exact;
+    }
+
+    /**
+     * @return confidence from 0 to 1 that the regions are the exact search regions, 1 for exact
+     *         regions.
+     */
+    public double getConfidence() {
+      return confidence;
+    }
+  }
+
+  /**
+   * Results of one region search.
+   */
+  public static class Entry {
+    // Browser tool results of all the regions found, from the most to the least distorted.
+    private final ArrayList<Result> results;
+    // Estimated size in bytes of the results.
+    private final long bytes;
+
+    private Entry(GraphCalculator graphCalculator, ArrayList<HashSet<Node>> regions,
+        boolean exact, double confidence) {
+      // Node colors, shared by all the regions.
+      byte[] nodeColors = graphCalculator.getNodeColors();
+      long bytes = 16 + nodeColors.length;
+      results = new ArrayList<Result>(regions.size());
+      for (HashSet<Node> region : regions) {
+        ArrayList<ArrayList<String>> edges = graphCalculator.getRegionEdges(region);
+        results.add(new Result(edges.get(0), edges.get(1), nodeColors, exact, confidence));
+        bytes += getBytes(edges.get(0)) + getBytes(edges.get(1));
+      }
+      this.bytes = bytes;
+    }
+
+    /**
+     * Estimate the size of an edge list, with 8 bytes per list slot and about 48 bytes of string
+     * overhead per edge.
+     *
+     * @param edges in the format source,target.
+     * @return estimated size in bytes.
+     */
+    private static long getBytes(ArrayList<String> edges) {
+      long bytes = 24;
+      for (String edge : edges) {
+        bytes += 56 + edge.length();
+      }
+      return bytes;
+    }
+
+    /**
+     * Get the browser tool results of a region. The returned result is shared by all the requests
+     * of the region and must not be modified.
+     *
+     * @param selectedRegion index of the region.
+     * @return graph1 region edges, graph2 region edges and node colors.
+     */
+    public Result getRegion(int selectedRegion) {
+      return results.get(selectedRegion);
+    }
+  }
+
+  private RegionCache() {}
+
+  /**
+   * Build the cache key of a region search.
+   *
+   * @param graph1 data.
+   * @param graph2 data.
+   * @param method region search and traversal method.
+   * @param regionNumber number of regions to return.
+   * @param nodesNumPerRegion number of nodes per region.
+   * @param biasedk used in biased BFS, 0 for the other methods.
+   * @return cache key.
+   */
+  public static String key(double[][] graph1, double[][] graph2, String method, int regionNumber,
+      int nodesNumPerRegion, int biasedk) {
+    return Long.toHexString(fingerprint(graph1)) + ":" + Long.toHexString(fingerprint(graph2))
+        + ":" + method + ":" + regionNumber + ":" + nodesNumPerRegion + ":" + biasedk;
+  }
+
+  /**
+   * Hash the content of a graph, the servlet parses the uploaded graphs on each request so the
+   * snapshots are identified by content rather than by reference. The hash is computed once per
+   * parsed graph, which isn't modified afterwards.
+   *
+   * @param graph data.
+   * @return 64-bit hash of the graph.
+   */
+  public static long fingerprint(double[][] graph) {
+    Long cached = fingerprints.get(graph);
+    if (cached != null) {
+      return cached;
+    }
+    long hash = graph.length;
+    for (double[] row : graph) {
+      for (double value : row) {
+        hash = (hash ^ Double.doubleToLongBits(value)) * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 31;
+      }
+    }
+    fingerprints.put(graph, hash);
+    return hash;
+  }
+
+  /**
+   * Check whether a region search is cached, without counting it as a lookup.
+   *
+   * @param key of the search.
+   * @return true if the search is cached.
+   */
+  public static synchronized boolean contains(String key) {
+    return entries.containsKey(key);
+  }
+
+  /**
+   * Get a cached region search.
+   *
+   * @param key of the search.
+   * @return cached search, or null if it isn't cached.
+   */
+  public static synchronized Entry get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      MISSES.increment();
+    } else {
+      HITS.increment();
+    }
+    return entry;
+  }
+
+  /**
+   * Cache an exact region search.
+   *
+   * @param key of the search.
+   * @param graphCalculator containing the graphs the regions were searched in.
+   * @param regions found.
+   * @return cached search, the one already cached under the key if any.
+   */
+  public static Entry put(String key, GraphCalculator graphCalculator,
+      ArrayList<HashSet<Node>> regions) {
+    return put(key, graphCalculator, regions, true, 1);
+  }
+
+  /**
+   * Cache a region search. The browser results of all the regions are built from the graphs, which
+   * are not kept. The least recently used searches are evicted while the cache holds too many
+   * searches or too many bytes, so a search larger than the whole cache is returned but not kept.
+   * A search already cached under the key is kept and returned instead of the new one. Approximate
+   * searches must be cached under their own key, so that refining them doesn't change the ranking
+   * of a cached search.
+   *
+   * @param key of the search.
+   * @param graphCalculator containing the graphs the regions were searched in.
+   * @param regions found.
+   * @param exact whether the regions are the exact search regions.
+   * @param confidence from 0 to 1 that the regions are the exact search regions.
+   * @return cached search, the one already cached under the key if any.
+   */
+  public static Entry put(String key, GraphCalculator graphCalculator,
+      ArrayList<HashSet<Node>> regions, boolean exact, double confidence) {
+    // Build the results outside the lock, the other requests only wait for the map update.
+    Entry entry = new Entry(graphCalculator, regions, exact, confidence);
+    synchronized (RegionCache.class) {
+      Entry cached = entries.get(key);
+      if (cached != null) {
+        return cached;
+      }
+      entries.put(key, entry);
+      bytes += entry.bytes;
+      Iterator<Entry> eldest = entries.values().iterator();
+      while (eldest.hasNext() && (entries.size() > MAX_ENTRIES || bytes > MAX_BYTES)) {
+        bytes -= eldest.next().bytes;
+        eldest.remove();
+      }
+    }
+    return entry;
+  }
+}
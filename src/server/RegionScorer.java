@@ -0,0 +1,437 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Scoring kernel of the six region evaluation measures: the region delta change over the number
+ * of edges within the region in graph1, in graph2 and the minimum of both, and over the sum of the
+ * region node degrees in graph1, in graph2 and the minimum of both.
+ *
+ * <p>Both graphs are stored as compressed sparse rows over the same dense vertex indices, and the
+ * region membership is an epoch-stamped int array, so a region is scored in one pass over its
+ * rows without any hashing. Traversals can also grow a region through an accumulator and read its
+ * measures at any size. A batch of regions is scored into a regions x 6 matrix, in parallel once
+ * it is large enough, which is what all the evaluation paths use.
+ */
+public class RegionScorer {
+
+  // Number of evaluation measures.
+  public static final int MEASURES_NUMBER = 6;
+  // Index of the delta change over the minimum number of edges within the region in both graphs,
+  // the measure the region searches rank by.
+  public static final int MIN_EDGES_MEASURE = 2;
+  // Indices of the region sums filled by accumulate.
+  public static final int DELTA = 0;
+  public static final int EDGES_WITHIN_REGION_IN_GRAPH1 = 1;
+  public static final int EDGES_WITHIN_REGION_IN_GRAPH2 = 2;
+  public static final int NODES_DEGREE_IN_GRAPH1 = 3;
+  public static final int NODES_DEGREE_IN_GRAPH2 = 4;
+  // Number of region sums.
+  public static final int SUMS_NUMBER = 5;
+  // Minimum number of regions scored in parallel, smaller batches are scored on the calling thread
+  // with a single accumulator.
+  private static final int PARALLEL_MIN_REGIONS = 64;
+
+  // Start of the graph1 row of each vertex in targets1, the row ends at the next vertex start.
+  private final int[] offsets1;
+  // Graph1 neighbors as vertex indices, -1 for neighbors that aren't graph2 vertices.
+  private final int[] targets1;
+  // Start of the graph2 row of each vertex in targets2.
+  private final int[] offsets2;
+  // Graph2 neighbors as vertex indices, -1 for neighbors that aren't vertices.
+  private final int[] targets2;
+  // Delta change of each vertex.
+  private final double[] deltas;
+  // Traditional BFS over the graph2 rows, 64 start vertices at a time.
+  private final MultiSourceBFS traversal;
+  // Accumulators not in use, a new one is only made when all of them are borrowed, so there are
+  // never more than the threads scoring at the same time.
+  private final ConcurrentLinkedQueue<Accumulator> freeAccumulators =
+      new ConcurrentLinkedQueue<Accumulator>();
+
+  /**
+   * Sums of a region that grows one vertex at a time, so that a traversal gets the measures of
+   * its region, and of every intermediate size, while visiting each row once. Membership is an
+   * epoch-stamped int array, a vertex is in the region if its stamp equals the current epoch, so
+   * starting a new region doesn't clear the arrays.
+   */
+  public class Accumulator {
+    // Epoch in which each vertex was added to the region.
+    private final int[] stamps;
+    // Epoch in which the in-region counts of each vertex were last reset.
+    private final int[] countStamps;
+    // Number of region vertices having each vertex in their graph1 row.
+    private final int[] inRegion1;
+    // Number of region vertices having each vertex in their graph2 row.
+    private final int[] inRegion2;
+    // Epoch of the current region.
+    private int epoch = 0;
+    // Number of vertices in the region.
+    private int size;
+    // Region vertices in the order they were added.
+    private int[] vertices = new int[64];
+    // Ascending region sizes at which the sums are recorded, or null.
+    private int[] checkpoints;
+    // Sums recorded at each checkpoint size.
+    private double[][] checkpointSums;
+    // Number of checkpoint sizes reached so far.
+    private int checkpointsReached;
+    // Region sums, see the indices of accumulate.
+    private double delta;
+    private int edges1;
+    private int edges2;
+    private int degree1;
+    private int degree2;
+
+    private Accumulator() {
+      int verticesNumber = deltas.length;
+      stamps = new int[verticesNumber];
+      countStamps = new int[verticesNumber];
+      inRegion1 = new int[verticesNumber];
+      inRegion2 = new int[verticesNumber];
+    }
+
+    /**
+     * Start a new empty region.
+     */
+    public void clear() {
+      epoch++;
+      if (epoch == Integer.MAX_VALUE) {
+        // Clear the stamps once in a while, instead of on every region.
+        Arrays.fill(stamps, 0);
+        Arrays.fill(countStamps, 0);
+        epoch = 1;
+      }
+      size = 0;
+      checkpointsReached = 0;
+      delta = 0;
+      edges1 = 0;
+      edges2 = 0;
+      degree1 = 0;
+      degree2 = 0;
+    }
+
+    /**
+     * Add a vertex to the region, counting the edges between the vertex and the region in both
+     * directions. Adding a vertex already in the region does nothing.
+     *
+     * @param vertex index of the vertex.
+     */
+    public void add(int vertex) {
+      if (stamps[vertex] == epoch) {
+        return;
+      }
+      stamps[vertex] = epoch;
+      if (size == vertices.length) {
+        vertices = Arrays.copyOf(vertices, size * 2);
+      }
+      vertices[size++] = vertex;
+      delta += deltas[vertex];
+      // Edges from the region to the vertex.
+      if (countStamps[vertex] == epoch) {
+        edges1 += inRegion1[vertex];
+        edges2 += inRegion2[vertex];
+      }
+      // Edges from the vertex to the region, including itself.
+      int end1 = offsets1[vertex + 1];
+      degree1 += end1 - offsets1[vertex];
+      for (int j = offsets1[vertex]; j < end1; j++) {
+        int neighbor = targets1[j];
+        if (neighbor >= 0) {
+          resetCounts(neighbor);
+          inRegion1[neighbor]++;
+          if (stamps[neighbor] == epoch) {
+            edges1++;
+          }
+        }
+      }
+      int end2 = offsets2[vertex + 1];
+      degree2 += end2 - offsets2[vertex];
+      for (int j = offsets2[vertex]; j < end2; j++) {
+        int neighbor = targets2[j];
+        if (neighbor >= 0) {
+          resetCounts(neighbor);
+          inRegion2[neighbor]++;
+          if (stamps[neighbor] == epoch) {
+            edges2++;
+          }
+        }
+      }
+      if (checkpoints != null && checkpointsReached < checkpoints.length
+          && size == checkpoints[checkpointsReached]) {
+        getSums(checkpointSums[checkpointsReached++]);
+      }
+    }
+
+    private void resetCounts(int vertex) {
+      if (countStamps[vertex] != epoch) {
+        countStamps[vertex] = epoch;
+        inRegion1[vertex] = 0;
+        inRegion2[vertex] = 0;
+      }
+    }
+
+    /**
+     * Record the region sums whenever the region reaches one of the given sizes, so that one
+     * traversal to the largest size scores all the smaller sizes too.
+     *
+     * @param sizes ascending region sizes, or null to record none.
+     */
+    public void setCheckpoints(int[] sizes) {
+      checkpoints = sizes;
+      if (sizes != null && (checkpointSums == null || checkpointSums.length < sizes.length)) {
+        checkpointSums = new double[sizes.length][SUMS_NUMBER];
+      }
+    }
+
+    /**
+     * Get the number of checkpoint sizes the region has reached.
+     *
+     * @return number of checkpoints reached.
+     */
+    public int getCheckpointsReached() {
+      return checkpointsReached;
+    }
+
+    /**
+     * Get the region sums recorded at a checkpoint size.
+     *
+     * @param checkpoint index of the checkpoint size.
+     * @param sums to fill, indexed by DELTA, EDGES_WITHIN_REGION_IN_GRAPH1 and so on.
+     */
+    public void getCheckpointSums(int checkpoint, double[] sums) {
+      System.arraycopy(checkpointSums[checkpoint], 0, sums, 0, SUMS_NUMBER);
+    }
+
+    /**
+     * Get the first vertices added to the region.
+     *
+     * @param number of vertices to get.
+     * @return indices of the first number vertices, in the order they were added.
+     */
+    public int[] getVertices(int number) {
+      return Arrays.copyOf(vertices, number);
+    }
+
+    /**
+     * Check whether a vertex is in the region.
+     *
+     * @param vertex index of the vertex.
+     * @return true if the vertex was added to the region.
+     */
+    public boolean contains(int vertex) {
+      return stamps[vertex] == epoch;
+    }
+
+    /**
+     * Get the number of vertices in the region.
+     *
+     * @return number of vertices.
+     */
+    public int size() {
+      return size;
+    }
+
+    /**
+     * Get the region sums.
+     *
+     * @param sums to fill, indexed by DELTA, EDGES_WITHIN_REGION_IN_GRAPH1 and so on.
+     */
+    public void getSums(double[] sums) {
+      sums[DELTA] = delta;
+      sums[EDGES_WITHIN_REGION_IN_GRAPH1] = edges1;
+      sums[EDGES_WITHIN_REGION_IN_GRAPH2] = edges2;
+      sums[NODES_DEGREE_IN_GRAPH1] = degree1;
+      sums[NODES_DEGREE_IN_GRAPH2] = degree2;
+    }
+
+    /**
+     * Get the six evaluation measures of the region.
+     *
+     * @return the six evaluation measures.
+     */
+    public double[] getMeasures() {
+      double[] sums = new double[SUMS_NUMBER];
+      getSums(sums);
+      double[] measures = new double[MEASURES_NUMBER];
+      RegionScorer.getMeasures(sums, measures);
+      return measures;
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param offsets1 start of the graph1 row of each vertex, with one extra end offset.
+   * @param targets1 graph1 neighbors as vertex indices, -1 for neighbors that aren't vertices.
+   * @param offsets2 start of the graph2 row of each vertex, with one extra end offset.
+   * @param targets2 graph2 neighbors as vertex indices, -1 for neighbors that aren't vertices.
+   * @param deltas delta change of each vertex.
+   */
+  public RegionScorer(int[] offsets1, int[] targets1, int[] offsets2, int[] targets2,
+      double[] deltas) {
+    this.offsets1 = offsets1;
+    this.targets1 = targets1;
+    this.offsets2 = offsets2;
+    this.targets2 = targets2;
+    this.deltas = deltas;
+    this.traversal = new MultiSourceBFS(offsets2, targets2);
+  }
+
+  /**
+   * Get the number of vertices.
+   *
+   * @return number of vertices.
+   */
+  public int getVerticesNumber() {
+    return deltas.length;
+  }
+
+  /**
+   * Get the batched traditional BFS over the graph2 rows.
+   *
+   * @return BFS over the graph2 rows.
+   */
+  public MultiSourceBFS getTraversal() {
+    return traversal;
+  }
+
+  /**
+   * Get the delta change of each vertex. The array is shared and must not be modified.
+   *
+   * @return delta change of each vertex.
+   */
+  public double[] getDeltas() {
+    return deltas;
+  }
+
+  /**
+   * Get the delta mass of each vertex, its delta change plus the delta changes of its graph2
+   * neighbors.
+   *
+   * @return delta mass of each vertex.
+   */
+  public double[] getDeltaMass() {
+    double[] mass = new double[deltas.length];
+    for (int vertex = 0; vertex < deltas.length; vertex++) {
+      double sum = deltas[vertex];
+      for (int j = offsets2[vertex]; j < offsets2[vertex + 1]; j++) {
+        if (targets2[j] >= 0) {
+          sum += deltas[targets2[j]];
+        }
+      }
+      mass[vertex] = sum;
+    }
+    return mass;
+  }
+
+  /**
+   * Sum the delta changes, the edges within the region and the node degrees of a region in both
+   * graphs.
+   *
+   * @param region vertex indices of the region.
+   * @param size number of vertices in the region.
+   * @param sums to fill, indexed by DELTA, EDGES_WITHIN_REGION_IN_GRAPH1 and so on.
+   */
+  public void accumulate(int[] region, int size, double[] sums) {
+    Accumulator accumulator = getAccumulator();
+    accumulate(accumulator, region, size, sums);
+    releaseAccumulator(accumulator);
+  }
+
+  /**
+   * Sum a region with a borrowed accumulator, emptying it first.
+   *
+   * @param accumulator to sum the region with.
+   * @param region vertex indices of the region.
+   * @param size number of vertices in the region.
+   * @param sums to fill, indexed by DELTA, EDGES_WITHIN_REGION_IN_GRAPH1 and so on.
+   */
+  private static void accumulate(Accumulator accumulator, int[] region, int size,
+      double[] sums) {
+    accumulator.clear();
+    for (int i = 0; i < size; i++) {
+      accumulator.add(region[i]);
+    }
+    accumulator.getSums(sums);
+  }
+
+  /**
+   * Borrow an accumulator, emptied of any previous region and without checkpoints. Call clear to
+   * start each further region with it, and give it back with releaseAccumulator once done. An
+   * accumulator that isn't given back is simply not reused.
+   *
+   * @return empty region accumulator.
+   */
+  public Accumulator getAccumulator() {
+    Accumulator accumulator = freeAccumulators.poll();
+    if (accumulator == null) {
+      accumulator = new Accumulator();
+    }
+    accumulator.setCheckpoints(null);
+    accumulator.clear();
+    return accumulator;
+  }
+
+  /**
+   * Give back an accumulator borrowed with getAccumulator, so that the next caller reuses it.
+   *
+   * @param accumulator not used anymore by the caller.
+   */
+  public void releaseAccumulator(Accumulator accumulator) {
+    freeAccumulators.offer(accumulator);
+  }
+
+  /**
+   * Compute the six evaluation measures from the region sums.
+   *
+   * @param sums filled by accumulate.
+   * @param measures to fill with the six evaluation measures.
+   */
+  public static void getMeasures(double[] sums, double[] measures) {
+    double changeValue = sums[DELTA];
+    double edgesWithinRegionInGraph1 = Math.max(1, sums[EDGES_WITHIN_REGION_IN_GRAPH1]);
+    double edgesWithinRegionInGraph2 = Math.max(1, sums[EDGES_WITHIN_REGION_IN_GRAPH2]);
+    double nodesDegreeInGraph1 = Math.max(1, sums[NODES_DEGREE_IN_GRAPH1]);
+    double nodesDegreeInGraph2 = Math.max(1, sums[NODES_DEGREE_IN_GRAPH2]);
+    measures[0] = changeValue / edgesWithinRegionInGraph1;
+    measures[1] = changeValue / edgesWithinRegionInGraph2;
+    measures[2] = changeValue / Math.min(edgesWithinRegionInGraph1, edgesWithinRegionInGraph2);
+    measures[3] = changeValue / nodesDegreeInGraph1;
+    measures[4] = changeValue / nodesDegreeInGraph2;
+    measures[5] = changeValue / Math.min(nodesDegreeInGraph1, nodesDegreeInGraph2);
+  }
+
+  /**
+   * Compute the six evaluation measures of a batch of regions. Batches of fewer than
+   * PARALLEL_MIN_REGIONS regions are scored on the calling thread, larger ones in parallel.
+   *
+   * @param regions vertex indices of each region.
+   * @return the six evaluation measures of each region.
+   */
+  public double[][] score(final int[][] regions) {
+    final double[][] measures = new double[regions.length][MEASURES_NUMBER];
+    if (regions.length < PARALLEL_MIN_REGIONS) {
+      double[] sums = new double[SUMS_NUMBER];
+      Accumulator accumulator = getAccumulator();
+      for (int i = 0; i < regions.length; i++) {
+        accumulate(accumulator, regions[i], regions[i].length, sums);
+        getMeasures(sums, measures[i]);
+      }
+      releaseAccumulator(accumulator);
+      return measures;
+    }
+    IntStream.range(0, regions.length).parallel().forEach(new IntConsumer() {
+      @Override
+      public void accept(int i) {
+        double[] sums = new double[SUMS_NUMBER];
+        accumulate(regions[i], regions[i].length, sums);
+        getMeasures(sums, measures[i]);
+      }
+    });
+    return measures;
+  }
+}
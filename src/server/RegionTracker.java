@@ -0,0 +1,554 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Tracking of the top changing regions of a snapshot series across time steps. The exhaustive
+ * search finds the top changing regions of each pair of consecutive snapshots, and the regions of
+ * pair (t, t + 1) are linked to the regions of pair (t + 1, t + 2) they overlap, by the Jaccard
+ * similarity of their vertices. Each region gets a MinHash signature, and only the regions whose
+ * signatures agree on a whole band are compared, so linking the regions of two pairs costs about
+ * the number of regions rather than its square. The bands are chosen so that regions of the
+ * minimum similarity are compared with a probability of 0.99.
+ *
+ * <p>Linked regions form lifelines: a lifeline is born with a region that overlaps no earlier
+ * region, grows or declines as its change mass goes up or down, merges when regions of the
+ * earlier pair link to the same region, splits when a region links to several later regions, and
+ * dies when its last region links to no later region.
+ */
+public class RegionTracker {
+
+  // Number of MinHash values of each region signature.
+  private static final int SIGNATURE_LENGTH = 64;
+  // Probability with which two regions of the minimum Jaccard similarity are compared, the
+  // signature bands are as long as this probability allows to compare as few regions as possible.
+  private static final double MIN_DETECTION_PROBABILITY = 0.99;
+
+  // Events of a tracked region.
+  public static final String BIRTH = "birth";
+  public static final String GROWTH = "growth";
+  public static final String DECLINE = "decline";
+  public static final String MERGE = "merge";
+  public static final String SPLIT = "split";
+  public static final String DEATH = "death";
+
+  // Series the regions were found in.
+  private final SnapshotSeries series;
+  // Regions of each pair of consecutive snapshots, from the most to the least changing.
+  private final ArrayList<ArrayList<TrackedRegion>> regions;
+  // Lifelines, in the order they were born.
+  private final ArrayList<Lifeline> lifelines;
+
+  /**
+   * Top changing region of a pair of consecutive snapshots.
+   */
+  public static class TrackedRegion {
+    // Index t of the first snapshot of the pair.
+    private final int time;
+    // Rank of the region in its pair.
+    private final int rank;
+    // Vertex indices of the region, sorted.
+    private final int[] vertices;
+    // Sum of the delta changes of the region vertices.
+    private final double changeMass;
+    // MinHash signature of the vertices.
+    private final int[] signature;
+    // Linked regions of the previous pair, by decreasing Jaccard similarity.
+    private final ArrayList<TrackedRegion> predecessors = new ArrayList<TrackedRegion>();
+    // Linked regions of the next pair, by decreasing Jaccard similarity.
+    private final ArrayList<TrackedRegion> successors = new ArrayList<TrackedRegion>();
+    // Jaccard similarity of each predecessor.
+    private final ArrayList<Double> similarities = new ArrayList<Double>();
+    // Most similar successor whose most similar predecessor is this region, which continues the
+    // lifeline of this region.
+    private TrackedRegion heir;
+    // Lifeline the region belongs to.
+    private Lifeline lifeline;
+    // Event of the lifeline at the region.
+    private String event;
+
+    private TrackedRegion(int time, int rank, int[] vertices, double changeMass) {
+      this.time = time;
+      this.rank = rank;
+      this.vertices = vertices;
+      this.changeMass = changeMass;
+      this.signature = getSignature(vertices);
+    }
+
+    /**
+     * @return index t of the first snapshot of the pair.
+     */
+    public int getTime() {
+      return time;
+    }
+
+    /**
+     * @return rank of the region in its pair.
+     */
+    public int getRank() {
+      return rank;
+    }
+
+    /**
+     * @return vertex indices of the region, sorted.
+     */
+    public int[] getVertices() {
+      return vertices;
+    }
+
+    /**
+     * @return sum of the delta changes of the region vertices.
+     */
+    public double getChangeMass() {
+      return changeMass;
+    }
+
+    /**
+     * @return linked regions of the previous pair, by decreasing Jaccard similarity.
+     */
+    public ArrayList<TrackedRegion> getPredecessors() {
+      return predecessors;
+    }
+
+    /**
+     * @return linked regions of the next pair, by decreasing Jaccard similarity.
+     */
+    public ArrayList<TrackedRegion> getSuccessors() {
+      return successors;
+    }
+
+    /**
+     * @return lifeline the region belongs to.
+     */
+    public Lifeline getLifeline() {
+      return lifeline;
+    }
+
+    /**
+     * @return event of the lifeline at the region: birth, growth, decline, merge or split.
+     */
+    public String getEvent() {
+      return event;
+    }
+  }
+
+  /**
+   * Regions of consecutive pairs linked into the evolution of one changing area.
+   */
+  public static class Lifeline {
+    // Identifier of the lifeline, in birth order.
+    private final int id;
+    // Regions of the lifeline, one per pair.
+    private final ArrayList<TrackedRegion> regions = new ArrayList<TrackedRegion>();
+    // How the lifeline ended: death, merge, or null if it lasts until the last pair.
+    private String end;
+
+    private Lifeline(int id) {
+      this.id = id;
+    }
+
+    /**
+     * @return identifier of the lifeline, in birth order.
+     */
+    public int getId() {
+      return id;
+    }
+
+    /**
+     * @return regions of the lifeline, one per pair.
+     */
+    public ArrayList<TrackedRegion> getRegions() {
+      return regions;
+    }
+
+    /**
+     * @return index t of the pair the lifeline was born in.
+     */
+    public int getBirth() {
+      return regions.get(0).getTime();
+    }
+
+    /**
+     * @return index t of the last pair of the lifeline.
+     */
+    public int getLast() {
+      return regions.get(regions.size() - 1).getTime();
+    }
+
+    /**
+     * @return how the lifeline ended: death when its last region links to no later region, merge
+     *         when it continues as another lifeline, or null if it lasts until the last pair.
+     */
+    public String getEnd() {
+      return end;
+    }
+  }
+
+  private RegionTracker(SnapshotSeries series, ArrayList<ArrayList<TrackedRegion>> regions,
+      ArrayList<Lifeline> lifelines) {
+    this.series = series;
+    this.regions = regions;
+    this.lifelines = lifelines;
+  }
+
+  /**
+   * Find the top changing regions of every pair of consecutive snapshots and track them.
+   *
+   * @param series of snapshots.
+   * @param regionNumber number of regions of each pair.
+   * @param nodesNumPerRegion number of nodes per region.
+   * @param selectedTraversalMethod whether use BFS, Biased BFS or BFS with priority queue.
+   * @param biasedk used in Biased BFS.
+   * @param minSimilarity Jaccard similarity from which two regions are linked.
+   * @return tracked regions and their lifelines.
+   * @throws IOException
+   */
+  public static RegionTracker track(SnapshotSeries series, int regionNumber,
+      int nodesNumPerRegion, int selectedTraversalMethod, int biasedk, double minSimilarity)
+      throws IOException {
+    long start = Metrics.startTimer();
+    ArrayList<ArrayList<TrackedRegion>> regions = new ArrayList<ArrayList<TrackedRegion>>();
+    double[][] graph2 = series.getSnapshotsNumber() > 0 ? series.getSnapshot(0).toGraphArray()
+        : null;
+    for (int t = 0; t + 1 < series.getSnapshotsNumber(); t++) {
+      double[][] graph1 = graph2;
+      graph2 = series.getSnapshot(t + 1).toGraphArray();
+      ArrayList<HashSet<Node>> pairRegions = new TopChangingVerticesExhaustiveCalculator()
+          .runWithArrays(regionNumber, nodesNumPerRegion, graph1, graph2,
+              selectedTraversalMethod, biasedk);
+      double[] deltas = series.getDeltas(t, t + 1);
+      ArrayList<TrackedRegion> tracked = new ArrayList<TrackedRegion>(pairRegions.size());
+      for (HashSet<Node> region : pairRegions) {
+        int[] vertices = new int[region.size()];
+        int size = 0;
+        double changeMass = 0;
+        for (Node node : region) {
+          // The graph arrays use the vertex indices plus 1 as node ids.
+          int vertex = (node.getNumber() >= 0 ? node.getNumber()
+              : (int) Double.parseDouble(node.getId())) - 1;
+          vertices[size++] = vertex;
+          changeMass += deltas[vertex];
+        }
+        Arrays.sort(vertices);
+        tracked.add(new TrackedRegion(t, tracked.size(), vertices, changeMass));
+      }
+      regions.add(tracked);
+    }
+    long linkStart = Metrics.startTimer();
+    for (int t = 0; t + 1 < regions.size(); t++) {
+      link(regions.get(t), regions.get(t + 1), minSimilarity);
+    }
+    ArrayList<Lifeline> lifelines = buildLifelines(regions);
+    Metrics.observeSince("region_tracking_link_seconds", linkStart);
+    Metrics.observeSince("region_tracking_seconds", start);
+    return new RegionTracker(series, regions, lifelines);
+  }
+
+  /**
+   * Hash a vertex with one of the MinHash functions.
+   *
+   * @param vertex index.
+   * @param function index of the hash function.
+   * @return hash of the vertex.
+   */
+  private static int hash(int vertex, int function) {
+    long hash = vertex + (function + 1) * 0x9E3779B97F4A7C15L;
+    hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+    hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+    return (int) (hash ^ (hash >>> 31));
+  }
+
+  /**
+   * Calculate the MinHash signature of a region, the minimum hash of its vertices for each hash
+   * function. Two signatures agree on a value with a probability equal to the Jaccard similarity
+   * of the regions.
+   *
+   * @param vertices of the region.
+   * @return signature.
+   */
+  private static int[] getSignature(int[] vertices) {
+    int[] signature = new int[SIGNATURE_LENGTH];
+    Arrays.fill(signature, Integer.MAX_VALUE);
+    for (int vertex : vertices) {
+      for (int function = 0; function < SIGNATURE_LENGTH; function++) {
+        signature[function] = Math.min(signature[function], hash(vertex, function));
+      }
+    }
+    return signature;
+  }
+
+  /**
+   * Hash a band of a signature.
+   *
+   * @param signature of a region.
+   * @param band index.
+   * @param bandLength number of signature values of each band.
+   * @return band key, including the band index.
+   */
+  private static long getBandKey(int[] signature, int band, int bandLength) {
+    long key = band;
+    for (int i = band * bandLength; i < (band + 1) * bandLength; i++) {
+      key = (key ^ signature[i]) * 0x9E3779B97F4A7C15L;
+    }
+    return key;
+  }
+
+  /**
+   * Get the longest signature band with which two regions of the minimum Jaccard similarity agree
+   * on some band with at least the minimum detection probability. Two regions of similarity s
+   * agree on a band of length b with probability s^b, so on one of the SIGNATURE_LENGTH / b bands
+   * with probability 1 - (1 - s^b)^(SIGNATURE_LENGTH / b).
+   *
+   * @param minSimilarity Jaccard similarity from which two regions are linked.
+   * @return number of signature values of each band.
+   */
+  private static int getBandLength(double minSimilarity) {
+    for (int bandLength = SIGNATURE_LENGTH; bandLength > 1; bandLength /= 2) {
+      double bandProbability = Math.pow(minSimilarity, bandLength);
+      double probability = 1 - Math.pow(1 - bandProbability, SIGNATURE_LENGTH / bandLength);
+      if (probability >= MIN_DETECTION_PROBABILITY) {
+        return bandLength;
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Calculate the Jaccard similarity of two regions.
+   *
+   * @param vertices1 sorted vertices of the first region.
+   * @param vertices2 sorted vertices of the second region.
+   * @return size of the intersection divided by the size of the union.
+   */
+  private static double getJaccardSimilarity(int[] vertices1, int[] vertices2) {
+    int intersection = 0;
+    int i = 0;
+    int j = 0;
+    while (i < vertices1.length && j < vertices2.length) {
+      if (vertices1[i] == vertices2[j]) {
+        intersection++;
+        i++;
+        j++;
+      } else if (vertices1[i] < vertices2[j]) {
+        i++;
+      } else {
+        j++;
+      }
+    }
+    int union = vertices1.length + vertices2.length - intersection;
+    return union == 0 ? 0 : (double) intersection / union;
+  }
+
+  /**
+   * Link the regions of two consecutive pairs whose Jaccard similarity is at least the minimum.
+   * The candidate pairs are the regions sharing a signature band.
+   *
+   * @param regions1 regions of pair (t, t + 1).
+   * @param regions2 regions of pair (t + 1, t + 2).
+   * @param minSimilarity Jaccard similarity from which two regions are linked.
+   */
+  private static void link(ArrayList<TrackedRegion> regions1, ArrayList<TrackedRegion> regions2,
+      double minSimilarity) {
+    int bandLength = getBandLength(minSimilarity);
+    int bands = SIGNATURE_LENGTH / bandLength;
+    HashMap<Long, ArrayList<TrackedRegion>> buckets = new HashMap<Long, ArrayList<TrackedRegion>>();
+    for (TrackedRegion region : regions1) {
+      for (int band = 0; band < bands; band++) {
+        long key = getBandKey(region.signature, band, bandLength);
+        ArrayList<TrackedRegion> bucket = buckets.get(key);
+        if (bucket == null) {
+          bucket = new ArrayList<TrackedRegion>();
+          buckets.put(key, bucket);
+        }
+        bucket.add(region);
+      }
+    }
+    for (TrackedRegion region2 : regions2) {
+      HashSet<TrackedRegion> candidates = new HashSet<TrackedRegion>();
+      for (int band = 0; band < bands; band++) {
+        ArrayList<TrackedRegion> bucket =
+            buckets.get(getBandKey(region2.signature, band, bandLength));
+        if (bucket != null) {
+          candidates.addAll(bucket);
+        }
+      }
+      for (TrackedRegion region1 : candidates) {
+        double similarity = getJaccardSimilarity(region1.vertices, region2.vertices);
+        if (similarity >= minSimilarity) {
+          addLink(region1, region2, similarity);
+        }
+      }
+    }
+  }
+
+  /**
+   * Link two regions, keeping the links of each region by decreasing Jaccard similarity and then
+   * by rank.
+   *
+   * @param region1 region of the earlier pair.
+   * @param region2 region of the later pair.
+   * @param similarity Jaccard similarity of the regions.
+   */
+  private static void addLink(TrackedRegion region1, TrackedRegion region2, double similarity) {
+    int i = 0;
+    while (i < region2.predecessors.size() && (region2.similarities.get(i) > similarity
+        || (region2.similarities.get(i) == similarity
+            && region2.predecessors.get(i).rank < region1.rank))) {
+      i++;
+    }
+    region2.predecessors.add(i, region1);
+    region2.similarities.add(i, similarity);
+    int j = 0;
+    while (j < region1.successors.size()) {
+      TrackedRegion successor = region1.successors.get(j);
+      double successorSimilarity =
+          successor.similarities.get(successor.predecessors.indexOf(region1));
+      if (successorSimilarity < similarity
+          || (successorSimilarity == similarity && successor.rank > region2.rank)) {
+        break;
+      }
+      j++;
+    }
+    region1.successors.add(j, region2);
+  }
+
+  /**
+   * Build the lifelines of the linked regions. A region continues the lifeline of its most
+   * similar predecessor if it is the most similar of the successors choosing that predecessor,
+   * otherwise it starts a new lifeline split from it.
+   *
+   * @param regions of each pair of consecutive snapshots.
+   * @return lifelines in the order they were born.
+   */
+  private static ArrayList<Lifeline> buildLifelines(ArrayList<ArrayList<TrackedRegion>> regions) {
+    ArrayList<Lifeline> lifelines = new ArrayList<Lifeline>();
+    for (ArrayList<TrackedRegion> pairRegions : regions) {
+      for (TrackedRegion region : pairRegions) {
+        for (TrackedRegion successor : region.successors) {
+          if (successor.predecessors.get(0) == region) {
+            region.heir = successor;
+            break;
+          }
+        }
+      }
+    }
+    for (int t = 0; t < regions.size(); t++) {
+      for (TrackedRegion region : regions.get(t)) {
+        if (region.predecessors.isEmpty()) {
+          region.lifeline = newLifeline(lifelines);
+          region.event = BIRTH;
+        } else {
+          TrackedRegion predecessor = region.predecessors.get(0);
+          if (predecessor.heir == region) {
+            region.lifeline = predecessor.lifeline;
+            if (region.predecessors.size() > 1) {
+              region.event = MERGE;
+            } else if (predecessor.successors.size() > 1) {
+              region.event = SPLIT;
+            } else {
+              region.event = region.changeMass >= predecessor.changeMass ? GROWTH : DECLINE;
+            }
+          } else {
+            region.lifeline = newLifeline(lifelines);
+            region.event = SPLIT;
+          }
+        }
+        region.lifeline.regions.add(region);
+      }
+    }
+    // End the lifelines that don't reach the last pair.
+    for (Lifeline lifeline : lifelines) {
+      TrackedRegion last = lifeline.regions.get(lifeline.regions.size() - 1);
+      if (last.time + 1 < regions.size()) {
+        // A region with successors but no heir is continued by the lifelines of its successors.
+        lifeline.end = last.successors.isEmpty() ? DEATH : MERGE;
+      }
+    }
+    return lifelines;
+  }
+
+  /**
+   * Start a new lifeline.
+   *
+   * @param lifelines started so far.
+   * @return new lifeline.
+   */
+  private static Lifeline newLifeline(ArrayList<Lifeline> lifelines) {
+    Lifeline lifeline = new Lifeline(lifelines.size());
+    lifelines.add(lifeline);
+    return lifeline;
+  }
+
+  /**
+   * @return regions of each pair of consecutive snapshots, from the most to the least changing.
+   */
+  public ArrayList<ArrayList<TrackedRegion>> getRegions() {
+    return regions;
+  }
+
+  /**
+   * @return lifelines, in the order they were born.
+   */
+  public ArrayList<Lifeline> getLifelines() {
+    return lifelines;
+  }
+
+  /**
+   * Get the lifelines as a table of comma separated rows, one row per region of each lifeline
+   * with its pair, rank, event, change mass and vertex ids separated by ';', followed by a row
+   * with the end of the lifeline if it ended before the last pair.
+   *
+   * @return table rows, starting with the header.
+   */
+  public ArrayList<String> getTable() {
+    ArrayList<String> rows = new ArrayList<String>();
+    rows.add("lifeline,from,to,rank,event,change_mass,vertices");
+    for (Lifeline lifeline : lifelines) {
+      for (TrackedRegion region : lifeline.regions) {
+        StringBuilder vertices = new StringBuilder();
+        for (int vertex : region.vertices) {
+          if (vertices.length() > 0) {
+            vertices.append(';');
+          }
+          vertices.append(series.getVertexId(vertex));
+        }
+        rows.add(lifeline.id + "," + series.getSnapshot(region.time).getLabel() + ","
+            + series.getSnapshot(region.time + 1).getLabel() + "," + region.rank + ","
+            + region.event + "," + region.changeMass + "," + vertices);
+      }
+      if (lifeline.end != null) {
+        int time = lifeline.getLast() + 1;
+        rows.add(lifeline.id + "," + series.getSnapshot(time).getLabel() + ","
+            + series.getSnapshot(time + 1).getLabel() + ",," + lifeline.end + ",,");
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * @param args argument sent for the program.
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 4) {
+      System.out.println("Java -jar RegionTracker.jar seriesDirectory regionsNumber "
+          + "nodesNumPerRegion minSimilarity");
+      return;
+    }
+    String directory = args[0];
+    int regionNumber = Integer.parseInt(args[1]); // 10
+    int nodesNumPerRegion = Integer.parseInt(args[2]); // 16
+    double minSimilarity = Double.parseDouble(args[3]); // 0.5
+    Metrics.startServerIfConfigured();
+    SnapshotSeries series = SnapshotSeries.readDirectory(directory);
+    RegionTracker tracker =
+        track(series, regionNumber, nodesNumPerRegion, 0, 0, minSimilarity);
+    for (String row : tracker.getTable()) {
+      System.out.println(row);
+    }
+  }
+}
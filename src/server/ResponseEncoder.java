@@ -0,0 +1,476 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Buffered encoder of the servlet response. The node colors and region edges are written straight
+ * into a reusable byte buffer, which is then sent in one write, compressed with gzip or deflate if
+ * the client accepts it.
+ *
+ * <p>By default the response is the text format: the node colors separated by ',', then '_', the
+ * graph1 region edges separated by '-', then '_' and the graph2 region edges. If the request has
+ * the header "X-Response-Format: binary" the response is instead the binary format, all integers
+ * being unsigned LEB128 varints:
+ *
+ * <pre>
+ * version (one byte, 1)
+ * nodes number
+ * palette size, then for each palette color its length and its ASCII characters
+ * index width (one byte, 1 to 3), then for each node its palette index, little endian
+ * for graph1 then graph2: edges number, then for each edge sorted by (source, target)
+ *     source - previous source, and target - previous target if the source is the same
+ *     or target otherwise
+ * </pre>
+ *
+ * The index width is one byte as long as the palette has at most 256 colors.
+ */
+public class ResponseEncoder {
+
+  // Initial size of the buffer.
+  private static final int INITIAL_CAPACITY = 1 << 16;
+  // Buffers larger than this size are released after each response instead of being reused.
+  private static final int MAX_RETAINED_CAPACITY = 1 << 24;
+  // Responses smaller than this size are not compressed.
+  private static final int MIN_COMPRESSION_SIZE = 1024;
+  // Request header selecting the response format.
+  public static final String FORMAT_HEADER = "X-Response-Format";
+  // Value of the format header selecting the binary format.
+  public static final String BINARY_FORMAT = "binary";
+  // Version of the binary format.
+  private static final int BINARY_VERSION = 1;
+  // Upper case hexadecimal digits of the node colors.
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+  // One encoder per servlet thread, so that the buffer is reused across requests.
+  private static final ThreadLocal<ResponseEncoder> encoders = new ThreadLocal<ResponseEncoder>() {
+    @Override
+    protected ResponseEncoder initialValue() {
+      return new ResponseEncoder();
+    }
+  };
+
+  // Response bytes.
+  private byte[] buffer = new byte[INITIAL_CAPACITY];
+  // Number of bytes written to the buffer.
+  private int size = 0;
+  // Whether the response is written in the binary format.
+  private boolean binary = false;
+  // Current section of the response, 0 for the colors, 1 and 2 for graph1 and graph2 edges.
+  private int section = 0;
+  // Binary format palette, mapping each distinct color to its index.
+  private final HashMap<String, Integer> palette = new HashMap<String, Integer>();
+  // Binary format palette index of each 24-bit color written so far.
+  private final HashMap<Integer, Integer> rgbPalette = new HashMap<Integer, Integer>();
+  // Binary format palette colors in index order.
+  private String[] paletteColors = new String[256];
+  // Binary format palette index of each node.
+  private int[] colorIndexes = new int[INITIAL_CAPACITY];
+  // Number of node colors written.
+  private int colorsNumber = 0;
+  // Binary format edges of graph1 and graph2, the source in the high 32 bits.
+  private final long[][] edges = {new long[1024], new long[1024]};
+  // Number of edges written for graph1 and graph2.
+  private final int[] edgesNumber = new int[2];
+
+  /**
+   * Get the encoder of the current thread, emptied of any previous response.
+   *
+   * @return the encoder of the current thread.
+   */
+  public static ResponseEncoder get() {
+    ResponseEncoder encoder = encoders.get();
+    encoder.reset();
+    return encoder;
+  }
+
+  /**
+   * Get the encoder of the current thread, emptied of any previous response, in the format
+   * selected by the request header.
+   *
+   * @param request to read the format header from.
+   * @return the encoder of the current thread.
+   */
+  public static ResponseEncoder get(HttpServletRequest request) {
+    ResponseEncoder encoder = get();
+    encoder.binary = BINARY_FORMAT.equalsIgnoreCase(request.getHeader(FORMAT_HEADER));
+    return encoder;
+  }
+
+  /**
+   * Empty the buffer, releasing it if it grew too large.
+   */
+  public void reset() {
+    if (buffer.length > MAX_RETAINED_CAPACITY) {
+      buffer = new byte[INITIAL_CAPACITY];
+    }
+    size = 0;
+    binary = false;
+    section = 0;
+    palette.clear();
+    rgbPalette.clear();
+    colorsNumber = 0;
+    edgesNumber[0] = 0;
+    edgesNumber[1] = 0;
+  }
+
+  /**
+   * Write the color of the next node.
+   *
+   * @param color of the node, null is written as "null".
+   */
+  public void printColor(String color) {
+    if (!binary) {
+      print(color);
+      print(',');
+      return;
+    }
+    if (color == null) {
+      color = "null";
+    }
+    Integer index = palette.get(color);
+    if (index == null) {
+      index = palette.size();
+      palette.put(color, index);
+      if (index == paletteColors.length) {
+        paletteColors = Arrays.copyOf(paletteColors, index * 2);
+      }
+      paletteColors[index] = color;
+    }
+    if (colorsNumber == colorIndexes.length) {
+      colorIndexes = Arrays.copyOf(colorIndexes, colorsNumber * 2);
+    }
+    colorIndexes[colorsNumber++] = index;
+  }
+
+  /**
+   * Write the color of the next node, formatting it as #RRGGBB only the first time the color is
+   * used in the binary format.
+   *
+   * @param rgb 24-bit color of the node, a negative color is written as "null".
+   */
+  public void printColor(int rgb) {
+    if (rgb < 0) {
+      printColor((String) null);
+      return;
+    }
+    if (!binary) {
+      ensureCapacity(8);
+      buffer[size++] = '#';
+      for (int shift = 20; shift >= 0; shift -= 4) {
+        buffer[size++] = (byte) HEX_DIGITS[(rgb >>> shift) & 0xF];
+      }
+      buffer[size++] = ',';
+      return;
+    }
+    Integer index = rgbPalette.get(rgb);
+    if (index == null) {
+      printColor(toHexColor(rgb));
+      rgbPalette.put(rgb, colorIndexes[colorsNumber - 1]);
+      return;
+    }
+    if (colorsNumber == colorIndexes.length) {
+      colorIndexes = Arrays.copyOf(colorIndexes, colorsNumber * 2);
+    }
+    colorIndexes[colorsNumber++] = index;
+  }
+
+  /**
+   * Format a 24-bit color as #RRGGBB, same as String.format("#%06X", rgb) without the format
+   * parsing.
+   *
+   * @param rgb 24-bit color, negative for no color.
+   * @return formatted color, or null for a negative color.
+   */
+  public static String toHexColor(int rgb) {
+    if (rgb < 0) {
+      return null;
+    }
+    char[] chars = new char[7];
+    chars[0] = '#';
+    for (int shift = 20, index = 1; shift >= 0; shift -= 4) {
+      chars[index++] = HEX_DIGITS[(rgb >>> shift) & 0xF];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * End the current section, the colors are followed by the graph1 edges then the graph2 edges.
+   */
+  public void nextSection() {
+    section++;
+    if (!binary) {
+      print('_');
+    }
+  }
+
+  /**
+   * Write an edge of the current graph section.
+   *
+   * @param edge in the format source,target.
+   */
+  public void printEdge(String edge) {
+    if (!binary) {
+      print(edge);
+      print('-');
+      return;
+    }
+    int comma = edge.indexOf(',');
+    long source = parseId(edge, 0, comma);
+    long target = parseId(edge, comma + 1, edge.length());
+    int graph = section - 1;
+    long[] graphEdges = edges[graph];
+    if (edgesNumber[graph] == graphEdges.length) {
+      graphEdges = edges[graph] = Arrays.copyOf(graphEdges, graphEdges.length * 2);
+    }
+    graphEdges[edgesNumber[graph]++] = (source << 32) | target;
+  }
+
+  /**
+   * Write an error message, replacing anything written so far. Errors are always sent in the text
+   * format.
+   *
+   * @param message error message.
+   */
+  public void printError(String message) {
+    reset();
+    print(message);
+    print('\n');
+  }
+
+  /**
+   * Parse a node id, written either as an integer or as a double such as 12.0.
+   *
+   * @param text containing the id.
+   * @param start index of the first character of the id.
+   * @param end index after the last character of the id.
+   * @return node id.
+   */
+  private static long parseId(String text, int start, int end) {
+    long id = 0;
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      if (c == '.') {
+        break;
+      }
+      if (c < '0' || c > '9') {
+        return (long) Double.parseDouble(text.substring(start, end)) & 0xFFFFFFFFL;
+      }
+      id = id * 10 + (c - '0');
+    }
+    return id & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Write an unsigned LEB128 varint.
+   *
+   * @param value to write, treated as unsigned.
+   */
+  private void writeVarint(long value) {
+    ensureCapacity(10);
+    while ((value & ~0x7FL) != 0) {
+      buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[size++] = (byte) value;
+  }
+
+  /**
+   * Encode the collected colors and edges in the binary format into the buffer.
+   */
+  private void encodeBinary() {
+    size = 0;
+    ensureCapacity(1);
+    buffer[size++] = BINARY_VERSION;
+    writeVarint(colorsNumber);
+    int paletteSize = palette.size();
+    writeVarint(paletteSize);
+    for (int i = 0; i < paletteSize; i++) {
+      writeVarint(paletteColors[i].length());
+      print(paletteColors[i]);
+    }
+    int indexWidth = paletteSize <= (1 << 8) ? 1 : paletteSize <= (1 << 16) ? 2 : 3;
+    ensureCapacity(1 + colorsNumber * indexWidth);
+    buffer[size++] = (byte) indexWidth;
+    for (int i = 0; i < colorsNumber; i++) {
+      int index = colorIndexes[i];
+      for (int b = 0; b < indexWidth; b++) {
+        buffer[size++] = (byte) (index >>> (8 * b));
+      }
+    }
+    for (int graph = 0; graph < 2; graph++) {
+      long[] graphEdges = edges[graph];
+      int number = edgesNumber[graph];
+      Arrays.sort(graphEdges, 0, number);
+      writeVarint(number);
+      long previousSource = 0;
+      long previousTarget = 0;
+      for (int i = 0; i < number; i++) {
+        long source = graphEdges[i] >>> 32;
+        long target = graphEdges[i] & 0xFFFFFFFFL;
+        writeVarint(source - previousSource);
+        writeVarint(source == previousSource ? target - previousTarget : target);
+        previousSource = source;
+        previousTarget = target;
+      }
+    }
+  }
+
+  /**
+   * Ensure that the buffer can hold extra more bytes.
+   *
+   * @param extra number of bytes to be written.
+   */
+  private void ensureCapacity(int extra) {
+    if (size + extra > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+    }
+  }
+
+  /**
+   * Write a single ASCII character.
+   *
+   * @param c character to write.
+   */
+  public void print(char c) {
+    ensureCapacity(1);
+    buffer[size++] = (byte) c;
+  }
+
+  /**
+   * Write a string, the node colors and edges are ASCII so they are copied without encoding.
+   *
+   * @param value string to write, null is written as "null".
+   */
+  public void print(String value) {
+    if (value == null) {
+      value = "null";
+    }
+    int length = value.length();
+    ensureCapacity(length);
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c >= 0x80) { // Not ASCII, encode the rest of the string as UTF-8.
+        byte[] bytes = value.substring(i).getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+        return;
+      }
+      buffer[size++] = (byte) c;
+    }
+  }
+
+  /**
+   * Write the decimal digits of an integer.
+   *
+   * @param value integer to write.
+   */
+  public void print(int value) {
+    if (value == Integer.MIN_VALUE) {
+      print(Integer.toString(value));
+      return;
+    }
+    ensureCapacity(11);
+    if (value < 0) {
+      buffer[size++] = '-';
+      value = -value;
+    }
+    int digits = 1;
+    for (int remaining = value / 10; remaining > 0; remaining /= 10) {
+      digits++;
+    }
+    for (int i = size + digits - 1; i >= size; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    size += digits;
+  }
+
+  /**
+   * Get the number of bytes written so far.
+   *
+   * @return number of bytes in the buffer.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Send the response body, compressed with gzip or deflate if the request accepts it.
+   *
+   * @param request to read the Accept-Encoding header from.
+   * @param response to write to.
+   * @throws IOException
+   */
+  public void writeTo(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    if (binary) {
+      encodeBinary();
+      response.setContentType("application/octet-stream");
+    } else {
+      response.setContentType("text/plain");
+      response.setCharacterEncoding("UTF-8");
+    }
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    if (acceptEncoding == null || size < MIN_COMPRESSION_SIZE) {
+      acceptEncoding = "";
+    }
+    double gzipQuality = getQuality(acceptEncoding, "gzip");
+    double deflateQuality = getQuality(acceptEncoding, "deflate");
+    OutputStream out;
+    if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+      response.setHeader("Content-Encoding", "gzip");
+      out = new GZIPOutputStream(response.getOutputStream(), INITIAL_CAPACITY);
+    } else if (deflateQuality > 0) {
+      response.setHeader("Content-Encoding", "deflate");
+      out = new DeflaterOutputStream(response.getOutputStream());
+    } else {
+      response.setContentLength(size);
+      out = response.getOutputStream();
+    }
+    out.write(buffer, 0, size);
+    out.close();
+  }
+
+  /**
+   * Get the quality value an Accept-Encoding header gives a content coding, such as 0.5 for gzip
+   * in "deflate, gzip;q=0.5". A coding the header doesn't list gets the quality of *, if listed.
+   *
+   * @param acceptEncoding header value.
+   * @param coding content coding.
+   * @return quality from 0 to 1, 0 if the coding is not acceptable.
+   */
+  private static double getQuality(String acceptEncoding, String coding) {
+    double wildcardQuality = 0;
+    for (String item : acceptEncoding.split(",")) {
+      String[] parameters = item.split(";");
+      String name = parameters[0].trim();
+      double quality = 1;
+      for (int i = 1; i < parameters.length; i++) {
+        String parameter = parameters[i].trim();
+        if (parameter.length() > 2 && Character.toLowerCase(parameter.charAt(0)) == 'q'
+            && parameter.charAt(1) == '=') {
+          try {
+            quality = Double.parseDouble(parameter.substring(2).trim());
+          } catch (NumberFormatException ex) { // Ignore the malformed coding.
+            quality = 0;
+          }
+        }
+      }
+      if (name.equalsIgnoreCase(coding)) {
+        return quality;
+      } else if (name.equals("*")) {
+        wildcardQuality = quality;
+      }
+    }
+    return wildcardQuality;
+  }
+}
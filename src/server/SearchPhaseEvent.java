@@ -0,0 +1,141 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event covering one phase of the region search: graph load, delta
+ * calculation, thresholding, graph cut segmentation, region expansion, region scoring, sorting,
+ * spectral solve and response serialization. The event is cheap when no recording is running, so
+ * the phases can be recorded continuously in production.
+ */
+@Name("server.SearchPhase")
+@Label("Region Search Phase")
+@Category("Dynamic Graph Visualization")
+@Description("Duration of a phase of the region search")
+@StackTrace(false)
+public class SearchPhaseEvent extends Event {
+
+  // Phase names.
+  public static final String GRAPH_LOAD = "graph_load";
+  public static final String DELTA = "delta";
+  public static final String THRESHOLDING = "thresholding";
+  public static final String SEGMENTATION = "segmentation";
+  public static final String REGION_EXPANSION = "region_expansion";
+  public static final String REGION_SCORING = "region_scoring";
+  public static final String SORTING = "sorting";
+  public static final String SPECTRAL_SOLVE = "spectral_solve";
+  public static final String RESPONSE_SERIALIZATION = "response_serialization";
+
+  @Label("Phase")
+  private String phase;
+
+  @Label("Method")
+  @Description("Region selection or traversal method")
+  private String method;
+
+  @Label("Graph Nodes")
+  private int nodes;
+
+  @Label("Region Number")
+  private int regionNumber;
+
+  @Label("Nodes Per Region")
+  private int nodesPerRegion;
+
+  @Label("Biased K")
+  private int biasedK;
+
+  @Label("Spectral K")
+  @Description("Number of eigenvectors used by the spectral method")
+  private int spectralK;
+
+  @Label("Batch Start")
+  @Description("Index of the first start vertex in the batch")
+  private int batchStart;
+
+  @Label("Batch Size")
+  @Description("Number of start vertices or items processed in the phase")
+  private int batchSize;
+
+  /**
+   * Create and begin the event of a phase.
+   *
+   * @param phase name of the phase.
+   * @param method region selection or traversal method.
+   * @param nodes number of nodes in the graph.
+   * @return the begun event.
+   */
+  public static SearchPhaseEvent begin(String phase, String method, int nodes) {
+    SearchPhaseEvent event = new SearchPhaseEvent();
+    event.phase = phase;
+    event.method = method;
+    event.nodes = nodes;
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Set the region search parameters.
+   *
+   * @param regionNumber number of regions to return.
+   * @param nodesPerRegion number of nodes per region.
+   * @param biasedK used in biased BFS.
+   * @return this event.
+   */
+  public SearchPhaseEvent setParameters(int regionNumber, int nodesPerRegion, int biasedK) {
+    this.regionNumber = regionNumber;
+    this.nodesPerRegion = nodesPerRegion;
+    this.biasedK = biasedK;
+    return this;
+  }
+
+  /**
+   * Set the number of nodes in the graph, for phases that only know it at the end.
+   *
+   * @param nodes number of nodes in the graph.
+   * @return this event.
+   */
+  public SearchPhaseEvent setNodes(int nodes) {
+    this.nodes = nodes;
+    return this;
+  }
+
+  /**
+   * Set the number of eigenvectors used by the spectral method.
+   *
+   * @param spectralK number of eigenvectors.
+   * @return this event.
+   */
+  public SearchPhaseEvent setSpectralK(int spectralK) {
+    this.spectralK = spectralK;
+    return this;
+  }
+
+  /**
+   * Set the batch processed by the phase.
+   *
+   * @param batchStart index of the first item in the batch.
+   * @param batchSize number of items in the batch.
+   * @return this event.
+   */
+  public SearchPhaseEvent setBatch(int batchStart, int batchSize) {
+    this.batchStart = batchStart;
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  /**
+   * End the event and commit it if it should be recorded.
+   */
+  public void finish() {
+    end();
+    if (shouldCommit()) {
+      commit();
+    }
+  }
+}
@@ -0,0 +1,279 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Aggregated snapshots over a sliding window of a snapshot series, such as the 1985-1995.txt file
+ * of the Related Work Format, which sums the edge weights of the years 1985 to 1994. The summed
+ * weights of the window are kept in a hash table and moving the window one snapshot on adds the
+ * snapshot entering the window and subtracts the one leaving it, so a step only touches the edges
+ * of those two snapshots whatever the window width is.
+ *
+ * <p>The delta change of a vertex from window t to window t + 1 is the delta change from the
+ * snapshot leaving to the snapshot entering the window, since the snapshots both windows contain
+ * cancel out.
+ */
+public class SlidingWindowSnapshots {
+
+  // Series the windows are taken from.
+  private final SnapshotSeries series;
+  // Number of snapshots in a window.
+  private final int width;
+  // Index of the first snapshot of the current window.
+  private int start;
+  // Summed weight of each edge of the current window.
+  private final EdgeWeights weights = new EdgeWeights();
+  // Graph array of the current window, built on first use.
+  private double[][] graphArray;
+
+  /**
+   * Hash table of edge weights with linear probing, keyed by source << 32 | target. Edges whose
+   * weight drops to zero are removed, so the table holds the edges of the current window only.
+   */
+  private static class EdgeWeights {
+    // Marks an empty slot, no edge has this key since the vertex indices are not negative.
+    private static final long EMPTY = -1;
+    private long[] keys = newKeys(1024);
+    private int[] values = new int[1024];
+    private int size = 0;
+
+    private static long[] newKeys(int capacity) {
+      long[] keys = new long[capacity];
+      Arrays.fill(keys, EMPTY);
+      return keys;
+    }
+
+    private int slot(long key) {
+      long hash = key * 0x9E3779B97F4A7C15L;
+      return (int) (hash >>> 32) & (keys.length - 1);
+    }
+
+    /**
+     * Add to the weight of an edge.
+     *
+     * @param key of the edge.
+     * @param value to add, negative to subtract.
+     */
+    private void add(long key, int value) {
+      int slot = slot(key);
+      while (keys[slot] != EMPTY && keys[slot] != key) {
+        slot = (slot + 1) & (keys.length - 1);
+      }
+      if (keys[slot] == EMPTY) {
+        if (value == 0) {
+          return;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length) {
+          resize(keys.length * 2);
+        }
+        return;
+      }
+      values[slot] += value;
+      if (values[slot] == 0) {
+        remove(slot);
+      }
+    }
+
+    /**
+     * Remove the edge of a slot, shifting back the edges probed past it.
+     *
+     * @param slot of the edge.
+     */
+    private void remove(int slot) {
+      int mask = keys.length - 1;
+      int next = slot;
+      while (true) {
+        next = (next + 1) & mask;
+        if (keys[next] == EMPTY) {
+          break;
+        }
+        int home = slot(keys[next]);
+        // Move the edge back unless its home slot lies cyclically in (slot, next].
+        if (slot <= next ? (home <= slot || home > next) : (home <= slot && home > next)) {
+          keys[slot] = keys[next];
+          values[slot] = values[next];
+          slot = next;
+        }
+      }
+      keys[slot] = EMPTY;
+      size--;
+    }
+
+    /**
+     * @param key of the edge.
+     * @return weight of the edge, 0 if the window doesn't contain it.
+     */
+    private int get(long key) {
+      int slot = slot(key);
+      while (keys[slot] != EMPTY) {
+        if (keys[slot] == key) {
+          return values[slot];
+        }
+        slot = (slot + 1) & (keys.length - 1);
+      }
+      return 0;
+    }
+
+    private void resize(int capacity) {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = newKeys(capacity);
+      values = new int[capacity];
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != EMPTY) {
+          int slot = slot(oldKeys[i]);
+          while (keys[slot] != EMPTY) {
+            slot = (slot + 1) & (capacity - 1);
+          }
+          keys[slot] = oldKeys[i];
+          values[slot] = oldValues[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Constructor, the first window starts at the first snapshot of the series.
+   *
+   * @param series to take the windows from.
+   * @param width number of snapshots in a window.
+   */
+  public SlidingWindowSnapshots(SnapshotSeries series, int width) {
+    if (width <= 0 || width > series.getSnapshotsNumber()) {
+      throw new IllegalArgumentException("Window width " + width + " is not between 1 and "
+          + series.getSnapshotsNumber());
+    }
+    this.series = series;
+    this.width = width;
+    this.start = 0;
+    for (int t = 0; t < width; t++) {
+      addSnapshot(series.getSnapshot(t), 1);
+    }
+  }
+
+  /**
+   * Add the edge weights of a snapshot to the window, or subtract them.
+   *
+   * @param snapshot to add.
+   * @param sign 1 to add the snapshot, -1 to subtract it.
+   */
+  private void addSnapshot(SnapshotSeries.Snapshot snapshot, int sign) {
+    for (int vertex = 0; vertex < snapshot.getVerticesNumber(); vertex++) {
+      long source = (long) vertex << 32;
+      for (int p = snapshot.getRowStart(vertex); p < snapshot.getRowEnd(vertex); p++) {
+        weights.add(source | snapshot.getTarget(p), sign * snapshot.getWeight(p));
+      }
+    }
+  }
+
+  /**
+   * @return index of the first snapshot of the current window.
+   */
+  public int getStart() {
+    return start;
+  }
+
+  /**
+   * @return label of the current window, as the labels of its first and last snapshots.
+   */
+  public String getLabel() {
+    return series.getSnapshot(start).getLabel() + "-"
+        + series.getSnapshot(start + width - 1).getLabel();
+  }
+
+  /**
+   * @return whether the window can move one snapshot on.
+   */
+  public boolean hasNext() {
+    return start + width < series.getSnapshotsNumber();
+  }
+
+  /**
+   * Move the window one snapshot on, adding the snapshot entering the window and subtracting the
+   * snapshot leaving it.
+   */
+  public void advance() {
+    if (!hasNext()) {
+      throw new IllegalStateException("The window " + getLabel() + " is the last one");
+    }
+    long startTime = Metrics.startTimer();
+    addSnapshot(series.getSnapshot(start + width), 1);
+    addSnapshot(series.getSnapshot(start), -1);
+    start++;
+    graphArray = null;
+    Metrics.observeSince("sliding_window_step_seconds", startTime);
+  }
+
+  /**
+   * Get the summed weight of an edge in the current window.
+   *
+   * @param source vertex index.
+   * @param target vertex index.
+   * @return summed weight of the edge.
+   */
+  public int getWeight(int source, int target) {
+    return weights.get(((long) source << 32) | target);
+  }
+
+  /**
+   * Get the delta change of each vertex from the current window to the next one, calculated from
+   * the snapshots leaving and entering the window.
+   *
+   * @return delta change of each vertex.
+   */
+  public double[] getNextDeltas() {
+    return series.getDeltas(start, start + width);
+  }
+
+  /**
+   * Build the current window as a snapshot of the series.
+   *
+   * @return window snapshot, labeled by its first and last snapshots.
+   */
+  public SnapshotSeries.Snapshot getSnapshot() {
+    int verticesNumber = series.getVerticesNumber();
+    int[] sources = new int[weights.size];
+    int[] targets = new int[weights.size];
+    int[] values = new int[weights.size];
+    int size = 0;
+    for (int i = 0; i < weights.keys.length; i++) {
+      long key = weights.keys[i];
+      if (key != EdgeWeights.EMPTY) {
+        sources[size] = (int) (key >>> 32);
+        targets[size] = (int) key;
+        values[size] = weights.values[i];
+        size++;
+      }
+    }
+    return SnapshotSeries.Snapshot.build(getLabel(), verticesNumber, sources, targets, values,
+        size);
+  }
+
+  /**
+   * Get the current window as a graph array, for the region calculators. The node ids are the
+   * vertex indices of the series plus 1 and each edge is listed once, as GraphReader.loadGraphArray
+   * adds both of its directions.
+   *
+   * @return edges as node1, node2, edge value.
+   */
+  public double[][] getGraphArray() {
+    if (graphArray == null) {
+      graphArray = getSnapshot().toGraphArray();
+    }
+    return graphArray;
+  }
+
+  /**
+   * Get the current window and the next one as graph arrays for region analysis, and move the
+   * window on. The next window becomes the current one, so its array is built only once.
+   *
+   * @return graph arrays of window t and window t + 1.
+   */
+  public double[][][] nextPair() {
+    double[][] graph1Array = getGraphArray();
+    advance();
+    return new double[][][] {graph1Array, getGraphArray()};
+  }
+}
@@ -0,0 +1,163 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Edge changes from one snapshot of a series to the next: the added, removed and reweighted
+ * edges, sorted by source and target vertex. A removed edge has a new weight of zero. The delta
+ * change of each vertex is the sum of the absolute weight changes of its edges, so the deltas of
+ * the two snapshots are calculated from the changes alone.
+ */
+public class SnapshotDiff {
+
+  // Label of the snapshot the changes lead to.
+  private final String label;
+  // Number of vertices with a row in the snapshot the changes lead to.
+  private final int verticesNumber;
+  // Source vertex of each changed edge.
+  private final int[] sources;
+  // Target vertex of each changed edge.
+  private final int[] targets;
+  // New weight of each changed edge, 0 if the edge is removed.
+  private final int[] weights;
+  // New weight minus old weight of each changed edge.
+  private final int[] changes;
+
+  private SnapshotDiff(String label, int verticesNumber, int[] sources, int[] targets,
+      int[] weights, int[] changes) {
+    this.label = label;
+    this.verticesNumber = verticesNumber;
+    this.sources = sources;
+    this.targets = targets;
+    this.weights = weights;
+    this.changes = changes;
+  }
+
+  /**
+   * Calculate the edge changes from one snapshot to another by merging their rows.
+   *
+   * @param snapshot1 snapshot the changes start from.
+   * @param snapshot2 snapshot the changes lead to.
+   * @return edge changes.
+   */
+  public static SnapshotDiff between(SnapshotSeries.Snapshot snapshot1,
+      SnapshotSeries.Snapshot snapshot2) {
+    int verticesNumber = Math.max(snapshot1.getVerticesNumber(), snapshot2.getVerticesNumber());
+    int capacity = 16;
+    int[] sources = new int[capacity];
+    int[] targets = new int[capacity];
+    int[] weights = new int[capacity];
+    int[] changes = new int[capacity];
+    int size = 0;
+    for (int vertex = 0; vertex < verticesNumber; vertex++) {
+      int position1 = snapshot1.getRowStart(vertex);
+      int end1 = snapshot1.getRowEnd(vertex);
+      int position2 = snapshot2.getRowStart(vertex);
+      int end2 = snapshot2.getRowEnd(vertex);
+      while (position1 < end1 || position2 < end2) {
+        int target1 = position1 < end1 ? snapshot1.getTarget(position1) : Integer.MAX_VALUE;
+        int target2 = position2 < end2 ? snapshot2.getTarget(position2) : Integer.MAX_VALUE;
+        int target;
+        int weight1 = 0;
+        int weight2 = 0;
+        if (target1 == target2) {
+          target = target1;
+          weight1 = snapshot1.getWeight(position1++);
+          weight2 = snapshot2.getWeight(position2++);
+        } else if (target1 < target2) {
+          target = target1;
+          weight1 = snapshot1.getWeight(position1++);
+        } else {
+          target = target2;
+          weight2 = snapshot2.getWeight(position2++);
+        }
+        if (weight1 == weight2) {
+          continue;
+        }
+        if (size == capacity) {
+          capacity *= 2;
+          sources = Arrays.copyOf(sources, capacity);
+          targets = Arrays.copyOf(targets, capacity);
+          weights = Arrays.copyOf(weights, capacity);
+          changes = Arrays.copyOf(changes, capacity);
+        }
+        sources[size] = vertex;
+        targets[size] = target;
+        weights[size] = weight2;
+        changes[size] = weight2 - weight1;
+        size++;
+      }
+    }
+    return new SnapshotDiff(snapshot2.getLabel(), snapshot2.getVerticesNumber(),
+        Arrays.copyOf(sources, size), Arrays.copyOf(targets, size), Arrays.copyOf(weights, size),
+        Arrays.copyOf(changes, size));
+  }
+
+  /**
+   * @return label of the snapshot the changes lead to.
+   */
+  public String getLabel() {
+    return label;
+  }
+
+  /**
+   * @return number of changed directed edges.
+   */
+  public int getChangesNumber() {
+    return sources.length;
+  }
+
+  /**
+   * Calculate the delta change of each vertex from the changes of its edges.
+   *
+   * @param verticesNumber number of vertices of the series.
+   * @return delta change of each vertex.
+   */
+  public double[] getDeltas(int verticesNumber) {
+    double[] deltas = new double[verticesNumber];
+    for (int i = 0; i < sources.length; i++) {
+      deltas[sources[i]] += Math.abs(changes[i]);
+    }
+    return deltas;
+  }
+
+  /**
+   * Apply the changes to the snapshot they start from.
+   *
+   * @param snapshot the changes start from.
+   * @return snapshot the changes lead to.
+   */
+  public SnapshotSeries.Snapshot apply(SnapshotSeries.Snapshot snapshot) {
+    int[] offsets = new int[verticesNumber + 1];
+    int capacity = snapshot.getEdgesNumber() + sources.length;
+    int[] newTargets = new int[capacity];
+    int[] newWeights = new int[capacity];
+    int size = 0;
+    int change = 0;
+    for (int vertex = 0; vertex < verticesNumber; vertex++) {
+      int position = snapshot.getRowStart(vertex);
+      int end = snapshot.getRowEnd(vertex);
+      while (position < end || (change < sources.length && sources[change] == vertex)) {
+        int target = position < end ? snapshot.getTarget(position) : Integer.MAX_VALUE;
+        int changedTarget = change < sources.length && sources[change] == vertex
+            ? targets[change] : Integer.MAX_VALUE;
+        if (target < changedTarget) {
+          newTargets[size] = target;
+          newWeights[size++] = snapshot.getWeight(position++);
+          continue;
+        }
+        if (target == changedTarget) {
+          position++;
+        }
+        if (weights[change] != 0) { // Added or reweighted.
+          newTargets[size] = changedTarget;
+          newWeights[size++] = weights[change];
+        }
+        change++;
+      }
+      offsets[vertex + 1] = size;
+    }
+    return new SnapshotSeries.Snapshot(label, offsets, Arrays.copyOf(newTargets, size),
+        Arrays.copyOf(newWeights, size));
+  }
+}
@@ -0,0 +1,639 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Series of graph snapshots, such as the yearly files of the Related Work Format, sharing one
+ * vertex dictionary. Each snapshot is kept as compressed sparse rows over the shared vertex
+ * indices, with the row targets sorted, so the delta change of any two snapshots is a merge of
+ * their rows and the deltas of all the consecutive snapshots are calculated together in parallel
+ * instead of loading every pair in its own GraphCalculator.
+ *
+ * <p>A long series can be delta encoded instead: only every checkpointInterval-th snapshot is kept
+ * in full and each other snapshot is kept as its edge changes from the previous one, unless the
+ * changes take more room than the snapshot, so the series takes about one snapshot plus the total
+ * change volume. The delta changes of consecutive
+ * snapshots are then calculated from their edge changes, and the other snapshots are rebuilt on
+ * demand from the closest checkpoint, keeping the last few rebuilt snapshots.
+ */
+public class SnapshotSeries {
+
+  // Maximum number of rebuilt snapshots kept, the least recently used one is dropped first.
+  private static final int MAX_MATERIALIZED = 4;
+
+  // Vertex index of each node id.
+  private final HashMap<String, Integer> vertices = new HashMap<String, Integer>();
+  // Node id of each vertex index.
+  private final ArrayList<String> ids = new ArrayList<String>();
+  // Number of snapshots between two snapshots kept in full, 1 if every snapshot is kept in full.
+  private final int checkpointInterval;
+  // Snapshots in series order, null for the snapshots kept as edge changes.
+  private final ArrayList<Snapshot> snapshots = new ArrayList<Snapshot>();
+  // Edge changes leading to each snapshot from the previous one, only kept if delta encoded and
+  // null for the snapshots whose changes take more room than the snapshot.
+  private final ArrayList<SnapshotDiff> diffs = new ArrayList<SnapshotDiff>();
+  // Last added snapshot, which the next one is compared to.
+  private Snapshot last;
+  // Rebuilt snapshots by index, in access order.
+  private final LinkedHashMap<Integer, Snapshot> materialized =
+      new LinkedHashMap<Integer, Snapshot>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Snapshot> eldest) {
+          return size() > MAX_MATERIALIZED;
+        }
+      };
+
+  /**
+   * Constructor of a series keeping every snapshot in full.
+   */
+  public SnapshotSeries() {
+    this(1);
+  }
+
+  /**
+   * Constructor of a delta encoded series.
+   *
+   * @param checkpointInterval number of snapshots between two snapshots kept in full, 1 to keep
+   *        every snapshot in full.
+   */
+  public SnapshotSeries(int checkpointInterval) {
+    if (checkpointInterval <= 0) {
+      throw new IllegalArgumentException("Checkpoint interval " + checkpointInterval
+          + " is not positive");
+    }
+    this.checkpointInterval = checkpointInterval;
+  }
+
+  /**
+   * Graph snapshot as compressed sparse rows over the vertex indices of its series.
+   */
+  public static class Snapshot {
+    // Name of the snapshot, such as its year.
+    private final String label;
+    // Start of the row of each vertex in targets, the row ends at the next vertex start.
+    private final int[] offsets;
+    // Neighbors as vertex indices, sorted within each row.
+    private final int[] targets;
+    // Weight of each edge in targets.
+    private final int[] weights;
+
+    /**
+     * Constructor.
+     *
+     * @param label name of the snapshot.
+     * @param offsets start of the row of each vertex in targets, followed by the number of targets.
+     * @param targets neighbors as vertex indices, sorted within each row.
+     * @param weights weight of each edge in targets.
+     */
+    public Snapshot(String label, int[] offsets, int[] targets, int[] weights) {
+      this.label = label;
+      this.offsets = offsets;
+      this.targets = targets;
+      this.weights = weights;
+    }
+
+    /**
+     * Build a snapshot from a list of directed edges. If an edge is listed more than once, its
+     * last weight is kept, as GraphReader does.
+     *
+     * @param label name of the snapshot.
+     * @param verticesNumber number of vertices, the edges are between 0 and verticesNumber - 1.
+     * @param sources source vertex of each edge.
+     * @param targets target vertex of each edge.
+     * @param weights weight of each edge.
+     * @param edgesNumber number of edges listed.
+     * @return snapshot.
+     */
+    public static Snapshot build(String label, int verticesNumber, int[] sources, int[] targets,
+        int[] weights, int edgesNumber) {
+      int[] offsets = new int[verticesNumber + 1];
+      for (int i = 0; i < edgesNumber; i++) {
+        offsets[sources[i] + 1]++;
+      }
+      for (int vertex = 0; vertex < verticesNumber; vertex++) {
+        offsets[vertex + 1] += offsets[vertex];
+      }
+      // Fill the rows in list order, so the edges listed later come later in their row.
+      int[] positions = Arrays.copyOf(offsets, verticesNumber);
+      int[] rowTargets = new int[edgesNumber];
+      int[] rowWeights = new int[edgesNumber];
+      for (int i = 0; i < edgesNumber; i++) {
+        int position = positions[sources[i]]++;
+        rowTargets[position] = targets[i];
+        rowWeights[position] = weights[i];
+      }
+      // Sort each row by target then list order, keeping the last weight of each target.
+      int[] sortedOffsets = new int[verticesNumber + 1];
+      int[] sortedTargets = new int[edgesNumber];
+      int[] sortedWeights = new int[edgesNumber];
+      long[] keys = new long[16];
+      int size = 0;
+      for (int vertex = 0; vertex < verticesNumber; vertex++) {
+        int rowStart = offsets[vertex];
+        int rowLength = offsets[vertex + 1] - rowStart;
+        if (rowLength > keys.length) {
+          keys = new long[Math.max(rowLength, keys.length * 2)];
+        }
+        for (int j = 0; j < rowLength; j++) {
+          keys[j] = ((long) rowTargets[rowStart + j] << 32) | j;
+        }
+        Arrays.sort(keys, 0, rowLength);
+        for (int j = 0; j < rowLength; j++) {
+          int target = (int) (keys[j] >>> 32);
+          if (j + 1 < rowLength && (int) (keys[j + 1] >>> 32) == target) {
+            continue; // Listed again later.
+          }
+          sortedTargets[size] = target;
+          sortedWeights[size] = rowWeights[rowStart + (int) keys[j]];
+          size++;
+        }
+        sortedOffsets[vertex + 1] = size;
+      }
+      return new Snapshot(label, sortedOffsets, Arrays.copyOf(sortedTargets, size),
+          Arrays.copyOf(sortedWeights, size));
+    }
+
+    /**
+     * @return name of the snapshot.
+     */
+    public String getLabel() {
+      return label;
+    }
+
+    /**
+     * Get the number of vertices with a row, the vertices added to the series after the snapshot
+     * have no edges in it.
+     *
+     * @return number of vertices with a row.
+     */
+    public int getVerticesNumber() {
+      return offsets.length - 1;
+    }
+
+    /**
+     * @return number of directed edges.
+     */
+    public int getEdgesNumber() {
+      return targets.length;
+    }
+
+    /**
+     * Get the start of the row of a vertex.
+     *
+     * @param vertex index.
+     * @return position of the first edge of the vertex.
+     */
+    public int getRowStart(int vertex) {
+      return vertex < offsets.length - 1 ? offsets[vertex] : targets.length;
+    }
+
+    /**
+     * Get the end of the row of a vertex.
+     *
+     * @param vertex index.
+     * @return position after the last edge of the vertex.
+     */
+    public int getRowEnd(int vertex) {
+      return vertex < offsets.length - 1 ? offsets[vertex + 1] : targets.length;
+    }
+
+    /**
+     * @param position of an edge.
+     * @return target vertex of the edge.
+     */
+    public int getTarget(int position) {
+      return targets[position];
+    }
+
+    /**
+     * @param position of an edge.
+     * @return weight of the edge.
+     */
+    public int getWeight(int position) {
+      return weights[position];
+    }
+
+    /**
+     * Get the weight of an edge.
+     *
+     * @param source vertex.
+     * @param target vertex.
+     * @return weight of the edge, 0 if the snapshot doesn't contain it.
+     */
+    public int getWeight(int source, int target) {
+      int rowStart = getRowStart(source);
+      int position = Arrays.binarySearch(targets, rowStart, getRowEnd(source), target);
+      return position >= rowStart ? weights[position] : 0;
+    }
+    /**
+     * Get the snapshot as a graph array, for the region calculators. The node ids are the vertex
+     * indices of the series plus 1, as the graph arrays number the nodes from 1, and each edge is
+     * listed once, as GraphReader.loadGraphArray adds both of its directions.
+     *
+     * @return edges as node1, node2, edge value.
+     */
+    public double[][] toGraphArray() {
+      double[][] edges = new double[targets.length][];
+      int size = 0;
+      for (int vertex = 0; vertex < offsets.length - 1; vertex++) {
+        for (int p = offsets[vertex]; p < offsets[vertex + 1]; p++) {
+          int target = targets[p];
+          // Skip the reverse of an edge listed in its other direction.
+          if (vertex > target && getWeight(target, vertex) != 0) {
+            continue;
+          }
+          edges[size++] = new double[] {vertex + 1, target + 1, weights[p]};
+        }
+      }
+      return Arrays.copyOf(edges, size);
+    }
+  }
+
+  /**
+   * Growable list of directed edges, built into a snapshot once all the edges are added.
+   */
+  private static class EdgeList {
+    private int[] sources = new int[1024];
+    private int[] targets = new int[1024];
+    private int[] weights = new int[1024];
+    private int size = 0;
+
+    private void add(int source, int target, int weight) {
+      if (size == sources.length) {
+        sources = Arrays.copyOf(sources, size * 2);
+        targets = Arrays.copyOf(targets, size * 2);
+        weights = Arrays.copyOf(weights, size * 2);
+      }
+      sources[size] = source;
+      targets[size] = target;
+      weights[size] = weight;
+      size++;
+    }
+
+    private Snapshot build(String label, int verticesNumber) {
+      return Snapshot.build(label, verticesNumber, sources, targets, weights, size);
+    }
+  }
+
+  /**
+   * Read the yearly snapshots of a Related Work Format directory, such as Coauthor_graphs, in year
+   * order. The aggregated files, such as 1985-1995.txt, are skipped.
+   *
+   * @param directory containing one file per year.
+   * @return series of the yearly snapshots, labeled by year.
+   * @throws IOException
+   */
+  public static SnapshotSeries readDirectory(String directory) throws IOException {
+    return readDirectory(directory, 1);
+  }
+
+  /**
+   * Read the yearly snapshots of a Related Work Format directory, such as Coauthor_graphs, in year
+   * order into a delta encoded series. The aggregated files, such as 1985-1995.txt, are skipped.
+   *
+   * @param directory containing one file per year.
+   * @param checkpointInterval number of snapshots between two snapshots kept in full.
+   * @return series of the yearly snapshots, labeled by year.
+   * @throws IOException
+   */
+  public static SnapshotSeries readDirectory(String directory, int checkpointInterval)
+      throws IOException {
+    File[] files = new File(directory).listFiles();
+    if (files == null) {
+      throw new IOException("Can't list " + directory);
+    }
+    ArrayList<File> yearFiles = new ArrayList<File>();
+    for (File file : files) {
+      if (file.isFile() && file.getName().matches("\\d+\\.txt")) {
+        yearFiles.add(file);
+      }
+    }
+    yearFiles.sort(new Comparator<File>() {
+      @Override
+      public int compare(File file1, File file2) {
+        return Long.compare(getYear(file1), getYear(file2));
+      }
+    });
+    SnapshotSeries series = new SnapshotSeries(checkpointInterval);
+    for (File file : yearFiles) {
+      series.readSnapshot(String.valueOf(getYear(file)), file.getPath());
+    }
+    return series;
+  }
+
+  /**
+   * @param file yearly snapshot file.
+   * @return year of the file.
+   */
+  private static long getYear(File file) {
+    String name = file.getName();
+    return Long.parseLong(name.substring(0, name.length() - ".txt".length()));
+  }
+
+  /**
+   * Get the vertex index of a node id, adding it to the dictionary if it is new.
+   *
+   * @param id node id.
+   * @return vertex index.
+   */
+  private int getOrAddVertex(String id) {
+    Integer vertex = vertices.get(id);
+    if (vertex == null) {
+      vertex = ids.size();
+      vertices.put(id, vertex);
+      ids.add(id);
+    }
+    return vertex;
+  }
+
+  /**
+   * Read a Related Work Format file and add it as the next snapshot. The line format is the one
+   * GraphReader reads: node_id,node_value,[neighbor_id:edge_value,..]
+   *
+   * @param label name of the snapshot.
+   * @param inputFile the graph file.
+   * @throws IOException
+   */
+  public void readSnapshot(String label, String inputFile) throws IOException {
+    long start = Metrics.startTimer();
+    SearchPhaseEvent event = SearchPhaseEvent.begin(SearchPhaseEvent.GRAPH_LOAD, "snapshot_series",
+        ids.size());
+    EdgeList edges = new EdgeList();
+    BufferedReader reader = new BufferedReader(new FileReader(inputFile));
+    try {
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        String[] splits = line.trim().split("\\[");
+        if (splits.length < 2) {
+          continue; // Empty line.
+        }
+        int vertex = getOrAddVertex(splits[0].split(",")[0]);
+        String[] neighbors = splits[1].substring(0, splits[1].length() - 1).split(",");
+        for (String neighbor : neighbors) {
+          if (neighbor.trim().length() == 0) {
+            // Extra spaces.
+            continue;
+          }
+          String[] neighborSplit = neighbor.split(":");
+          edges.add(vertex, getOrAddVertex(neighborSplit[0]), Integer.parseInt(neighborSplit[1]));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    addSnapshot(edges.build(label, ids.size()));
+    Metrics.observeSince("snapshot_series_read_seconds", start);
+    event.setNodes(ids.size()).finish();
+  }
+
+  /**
+   * Add a graph array as the next snapshot, each edge in both directions as
+   * GraphReader.loadGraphArray does.
+   *
+   * @param label name of the snapshot.
+   * @param graphArray edges as node1, node2, edge value.
+   */
+  public void loadSnapshot(String label, double[][] graphArray) {
+    EdgeList edges = new EdgeList();
+    for (int i = 0; i < graphArray.length; i++) {
+      // Integer ids, as readSnapshot reads them.
+      int vertex1 = getOrAddVertex(String.valueOf((long) graphArray[i][0]));
+      int vertex2 = getOrAddVertex(String.valueOf((long) graphArray[i][1]));
+      int edgeValue = (int) graphArray[i][2];
+      edges.add(vertex1, vertex2, edgeValue);
+      edges.add(vertex2, vertex1, edgeValue);
+    }
+    addSnapshot(edges.build(label, ids.size()));
+  }
+
+  /**
+   * Add the next snapshot, keeping it in full or as its edge changes from the previous one.
+   *
+   * @param snapshot to add.
+   */
+  private synchronized void addSnapshot(Snapshot snapshot) {
+    int index = snapshots.size();
+    if (checkpointInterval == 1) {
+      snapshots.add(snapshot);
+    } else {
+      SnapshotDiff diff = last == null ? null : SnapshotDiff.between(last, snapshot);
+      if (diff != null && diff.getChangesNumber() >= snapshot.getEdgesNumber()) {
+        // The snapshot changed so much that it takes less room in full.
+        diff = null;
+      }
+      diffs.add(diff);
+      snapshots.add(diff == null || index % checkpointInterval == 0 ? snapshot : null);
+    }
+    last = snapshot;
+  }
+
+  /**
+   * @return number of vertices in all the snapshots.
+   */
+  public int getVerticesNumber() {
+    return ids.size();
+  }
+
+  /**
+   * Get the vertex index of a node id.
+   *
+   * @param id node id.
+   * @return vertex index, or -1 if no snapshot contains the node.
+   */
+  public int getVertex(String id) {
+    Integer vertex = vertices.get(id);
+    return vertex == null ? -1 : vertex;
+  }
+
+  /**
+   * @param vertex index.
+   * @return node id of the vertex.
+   */
+  public String getVertexId(int vertex) {
+    return ids.get(vertex);
+  }
+
+  /**
+   * @return number of snapshots.
+   */
+  public int getSnapshotsNumber() {
+    return snapshots.size();
+  }
+
+  /**
+   * Get a snapshot, rebuilding it from the closest checkpoint or rebuilt snapshot before it if it
+   * is kept as edge changes.
+   *
+   * @param index of the snapshot in the series.
+   * @return snapshot.
+   */
+  public synchronized Snapshot getSnapshot(int index) {
+    Snapshot snapshot = snapshots.get(index);
+    if (snapshot != null) {
+      return snapshot;
+    }
+    if (index == snapshots.size() - 1) {
+      return last;
+    }
+    snapshot = materialized.get(index);
+    if (snapshot != null) {
+      return snapshot;
+    }
+    long start = Metrics.startTimer();
+    int base = index - 1;
+    while (snapshots.get(base) == null && !materialized.containsKey(base)) {
+      base--;
+    }
+    snapshot = snapshots.get(base) != null ? snapshots.get(base) : materialized.get(base);
+    for (int t = base + 1; t <= index; t++) {
+      snapshot = diffs.get(t).apply(snapshot);
+    }
+    materialized.put(index, snapshot);
+    Metrics.observeSince("snapshot_series_materialize_seconds", start);
+    return snapshot;
+  }
+
+  /**
+   * Get the edge changes leading to a snapshot from the previous one.
+   *
+   * @param index of the snapshot in the series, from 1.
+   * @return edge changes, calculated from the snapshots if they aren't kept.
+   */
+  public SnapshotDiff getDiff(int index) {
+    if (checkpointInterval > 1 && diffs.get(index) != null) {
+      return diffs.get(index);
+    }
+    return SnapshotDiff.between(getSnapshot(index - 1), getSnapshot(index));
+  }
+
+  /**
+   * Get the number of directed edges stored by the series, in the full snapshots and in the edge
+   * changes.
+   *
+   * @return number of stored edges.
+   */
+  public synchronized long getStoredEdgesNumber() {
+    long edgesNumber = 0;
+    for (Snapshot snapshot : snapshots) {
+      if (snapshot != null) {
+        edgesNumber += snapshot.getEdgesNumber();
+      }
+    }
+    if (last != null && snapshots.get(snapshots.size() - 1) == null) {
+      edgesNumber += last.getEdgesNumber(); // Kept to compare the next snapshot to.
+    }
+    for (SnapshotDiff diff : diffs) {
+      if (diff != null) {
+        edgesNumber += diff.getChangesNumber();
+      }
+    }
+    return edgesNumber;
+  }
+
+  /**
+   * Calculate the delta change of each vertex from one snapshot to another, in parallel. The
+   * delta changes of consecutive snapshots of a delta encoded series are calculated from their
+   * edge changes.
+   *
+   * @param from index of the first snapshot.
+   * @param to index of the second snapshot.
+   * @return delta change of each vertex.
+   */
+  public double[] getDeltas(int from, int to) {
+    if (checkpointInterval > 1 && to == from + 1 && diffs.get(to) != null) {
+      return diffs.get(to).getDeltas(ids.size());
+    }
+    return getDeltas(getSnapshot(from), getSnapshot(to), ids.size());
+  }
+
+  /**
+   * Calculate the delta change of each vertex for every pair of consecutive snapshots, all the
+   * pairs in parallel.
+   *
+   * @return delta change of each vertex from snapshot t to snapshot t + 1, for each t.
+   */
+  public double[][] getConsecutiveDeltas() {
+    long start = Metrics.startTimer();
+    SearchPhaseEvent event =
+        SearchPhaseEvent.begin(SearchPhaseEvent.DELTA, "snapshot_series", ids.size());
+    final double[][] deltas = new double[Math.max(0, snapshots.size() - 1)][];
+    IntStream.range(0, deltas.length).parallel().forEach(new IntConsumer() {
+      @Override
+      public void accept(int t) {
+        deltas[t] = getDeltas(t, t + 1);
+      }
+    });
+    Metrics.observeSince("snapshot_series_delta_seconds", start);
+    event.setBatch(0, deltas.length).finish();
+    return deltas;
+  }
+
+  /**
+   * Calculate the delta change of each vertex from one snapshot to another, in parallel.
+   *
+   * @param snapshot1 first snapshot.
+   * @param snapshot2 second snapshot.
+   * @param verticesNumber number of vertices of the series.
+   * @return delta change of each vertex.
+   */
+  public static double[] getDeltas(final Snapshot snapshot1, final Snapshot snapshot2,
+      int verticesNumber) {
+    final double[] deltas = new double[verticesNumber];
+    IntStream.range(0, verticesNumber).parallel().forEach(new IntConsumer() {
+      @Override
+      public void accept(int vertex) {
+        deltas[vertex] = getDelta(snapshot1, snapshot2, vertex);
+      }
+    });
+    return deltas;
+  }
+
+  /**
+   * Calculate the delta change of a vertex as GraphCalculator.calculateDeltaGraph does, the sum
+   * of the absolute difference of its edge weights in both snapshots, where an edge missing from
+   * a snapshot has weight zero.
+   *
+   * @param snapshot1 first snapshot.
+   * @param snapshot2 second snapshot.
+   * @param vertex index.
+   * @return delta change of the vertex.
+   */
+  public static double getDelta(Snapshot snapshot1, Snapshot snapshot2, int vertex) {
+    int position1 = snapshot1.getRowStart(vertex);
+    int end1 = snapshot1.getRowEnd(vertex);
+    int position2 = snapshot2.getRowStart(vertex);
+    int end2 = snapshot2.getRowEnd(vertex);
+    long delta = 0;
+    while (position1 < end1 && position2 < end2) {
+      int target1 = snapshot1.targets[position1];
+      int target2 = snapshot2.targets[position2];
+      if (target1 == target2) {
+        delta += Math.abs(snapshot1.weights[position1++] - snapshot2.weights[position2++]);
+      } else if (target1 < target2) {
+        delta += snapshot1.weights[position1++];
+      } else {
+        delta += snapshot2.weights[position2++];
+      }
+    }
+    while (position1 < end1) {
+      delta += snapshot1.weights[position1++];
+    }
+    while (position2 < end2) {
+      delta += snapshot2.weights[position2++];
+    }
+    return delta;
+  }
+}
@@ -0,0 +1,1129 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Java version of the E1, E2, E3 and E4 distortion measures of visualize_map.m, so that these
+ * measures don't need a MATLAB round trip. Like visualize_map, it takes the k eigenvectors e1 of
+ * F * L1 with the smallest eigenvalues, projects the measure matrices on them and solves the small
+ * k x k (generalized) eigenproblem of the measure. The measure matrices are never built densely,
+ * each projection e1' * X * e1 is a sparse matrix times the thin n x k block e1, computed in
+ * parallel over chunks of rows.
+ *
+ * <p>F * L1 is similar to the symmetric F^(1/2) * L1 * F^(1/2), so its eigenvectors come from a
+ * symmetric eigensolver and are scaled back by F^(1/2). Only the k smallest eigenpairs are needed,
+ * so the sparse matrix is never made dense: it is block diagonal over the connected components of
+ * graph1, the small components are solved densely and the large ones by block Lanczos over their
+ * compressed sparse rows. As in visualize_map, the graphs are
+ * undirected, listing each edge in both directions, and the nodes are numbered from 1 to the
+ * maximum node id.
+ */
+public class SpectralMeasures {
+
+  // Distortion measures computed in Java.
+  private static final String[] MEASURES = {"E1", "E2", "E3", "E4"};
+  // Eigenvalues of F * L1 with smaller absolute values are zero eigenvalues, as in visualize_map.
+  private static final double ZERO_EIGENVALUE = 1e-5;
+  // Number of rows in each chunk of the parallel projections.
+  private static final int CHUNK_ROWS = 1024;
+  // Connected components with at most this many nodes are solved with the dense eigensolver.
+  private static final int DENSE_COMPONENT_NODES = 200;
+  // Number of vectors block Lanczos adds to its basis at a time, the largest multiplicity of an
+  // eigenvalue of a component it is sure to find.
+  private static final int LANCZOS_BLOCK_SIZE = 4;
+  // Residual norm under which a block Lanczos eigenpair is converged, relative to the largest
+  // eigenvalue found.
+  private static final double LANCZOS_TOLERANCE = 1e-10;
+  // Maximum number of block Lanczos restarts.
+  private static final int LANCZOS_MAX_RESTARTS = 1000;
+  // Seed of the block Lanczos start vectors, so that the eigenvectors are repeatable.
+  private static final long LANCZOS_SEED = 1;
+
+  // Number of nodes, the maximum node id.
+  private final int nodesNumber;
+  // Graph1 adjacency matrix M.
+  private final SparseMatrix graph1;
+  // Graph2 adjacency matrix N.
+  private final SparseMatrix graph2;
+
+  // Square sparse matrix as compressed sparse rows, with the columns of each row sorted and the
+  // duplicate entries summed.
+  private static class SparseMatrix {
+    // Start of each row in columns and values, followed by the number of entries.
+    private final int[] offsets;
+    private final int[] columns;
+    private final double[] values;
+
+    private SparseMatrix(int[] offsets, int[] columns, double[] values) {
+      this.offsets = offsets;
+      this.columns = columns;
+      this.values = values;
+    }
+
+    /**
+     * Build the matrix of a graph, like sparse(G(:,1), G(:,2), G(:,3), n, n).
+     *
+     * @param edges graph edges as node1, node2, edge value.
+     * @param n number of nodes.
+     * @return adjacency matrix over node ids - 1.
+     */
+    private static SparseMatrix fromEdges(double[][] edges, int n) {
+      int[] offsets = new int[n + 1];
+      int entries = 0;
+      for (double[] edge : edges) {
+        if (edge[0] >= 1 && edge[1] >= 1) { // Skip the unused rows of the loaded graphs.
+          offsets[(int) edge[0]]++;
+          entries++;
+        }
+      }
+      for (int i = 0; i < n; i++) {
+        offsets[i + 1] += offsets[i];
+      }
+      int[] columns = new int[entries];
+      double[] values = new double[entries];
+      int[] next = Arrays.copyOf(offsets, n);
+      for (double[] edge : edges) {
+        if (edge[0] >= 1 && edge[1] >= 1) {
+          int row = (int) edge[0] - 1;
+          columns[next[row]] = (int) edge[1] - 1;
+          values[next[row]++] = edge[2];
+        }
+      }
+      // Transposing twice sorts the columns of each row.
+      return new SparseMatrix(offsets, columns, values).transpose().transpose().sumDuplicates();
+    }
+
+    /**
+     * @return transpose of the matrix, with sorted columns.
+     */
+    private SparseMatrix transpose() {
+      int n = offsets.length - 1;
+      int[] transposedOffsets = new int[n + 1];
+      for (int column : columns) {
+        transposedOffsets[column + 1]++;
+      }
+      for (int i = 0; i < n; i++) {
+        transposedOffsets[i + 1] += transposedOffsets[i];
+      }
+      int[] transposedColumns = new int[columns.length];
+      double[] transposedValues = new double[values.length];
+      int[] next = Arrays.copyOf(transposedOffsets, n);
+      for (int row = 0; row < n; row++) {
+        for (int j = offsets[row]; j < offsets[row + 1]; j++) {
+          int position = next[columns[j]]++;
+          transposedColumns[position] = row;
+          transposedValues[position] = values[j];
+        }
+      }
+      return new SparseMatrix(transposedOffsets, transposedColumns, transposedValues);
+    }
+
+    /**
+     * @return the matrix with the adjacent entries of the same column summed.
+     */
+    private SparseMatrix sumDuplicates() {
+      int n = offsets.length - 1;
+      int[] summedOffsets = new int[n + 1];
+      int[] summedColumns = new int[columns.length];
+      double[] summedValues = new double[values.length];
+      int entries = 0;
+      for (int row = 0; row < n; row++) {
+        for (int j = offsets[row]; j < offsets[row + 1]; j++) {
+          if (entries > summedOffsets[row] && summedColumns[entries - 1] == columns[j]) {
+            summedValues[entries - 1] += values[j];
+          } else {
+            summedColumns[entries] = columns[j];
+            summedValues[entries++] = values[j];
+          }
+        }
+        summedOffsets[row + 1] = entries;
+      }
+      return new SparseMatrix(summedOffsets, Arrays.copyOf(summedColumns, entries),
+          Arrays.copyOf(summedValues, entries));
+    }
+
+    /**
+     * Build a square matrix from its entries, summing the duplicate ones.
+     *
+     * @param rows row of each entry.
+     * @param columns column of each entry.
+     * @param values value of each entry.
+     * @param n number of rows.
+     * @return matrix.
+     */
+    private static SparseMatrix fromEntries(int[] rows, int[] columns, double[] values, int n) {
+      int[] offsets = new int[n + 1];
+      for (int row : rows) {
+        offsets[row + 1]++;
+      }
+      for (int i = 0; i < n; i++) {
+        offsets[i + 1] += offsets[i];
+      }
+      int[] rowColumns = new int[columns.length];
+      double[] rowValues = new double[values.length];
+      int[] next = Arrays.copyOf(offsets, n);
+      for (int j = 0; j < rows.length; j++) {
+        rowColumns[next[rows[j]]] = columns[j];
+        rowValues[next[rows[j]]++] = values[j];
+      }
+      // Transposing twice sorts the columns of each row.
+      return new SparseMatrix(offsets, rowColumns, rowValues).transpose().transpose()
+          .sumDuplicates();
+    }
+
+    /**
+     * Get the block of the rows and columns of some nodes. The nodes must be closed under the
+     * entries of the matrix, as a connected component is.
+     *
+     * @param nodes rows and columns of the block.
+     * @param local to fill with the index of each node in the block.
+     * @return block over the node indices in nodes.
+     */
+    private SparseMatrix restrict(int[] nodes, int[] local) {
+      for (int i = 0; i < nodes.length; i++) {
+        local[nodes[i]] = i;
+      }
+      int[] blockOffsets = new int[nodes.length + 1];
+      for (int i = 0; i < nodes.length; i++) {
+        blockOffsets[i + 1] = blockOffsets[i] + offsets[nodes[i] + 1] - offsets[nodes[i]];
+      }
+      int[] blockColumns = new int[blockOffsets[nodes.length]];
+      double[] blockValues = new double[blockColumns.length];
+      for (int i = 0; i < nodes.length; i++) {
+        int position = blockOffsets[i];
+        for (int j = offsets[nodes[i]]; j < offsets[nodes[i] + 1]; j++) {
+          blockColumns[position] = local[columns[j]];
+          blockValues[position++] = values[j];
+        }
+      }
+      return new SparseMatrix(blockOffsets, blockColumns, blockValues);
+    }
+
+    /**
+     * Multiply the matrix by a vector, in parallel over chunks of rows.
+     *
+     * @param x vector.
+     * @param y to fill with M * x.
+     */
+    private void multiply(final double[] x, final double[] y) {
+      final int n = offsets.length - 1;
+      IntStream.range(0, (n + CHUNK_ROWS - 1) / CHUNK_ROWS).parallel().forEach(new IntConsumer() {
+        @Override
+        public void accept(int chunk) {
+          for (int row = chunk * CHUNK_ROWS; row < Math.min(n, (chunk + 1) * CHUNK_ROWS); row++) {
+            double sum = 0;
+            for (int j = offsets[row]; j < offsets[row + 1]; j++) {
+              sum += values[j] * x[columns[j]];
+            }
+            y[row] = sum;
+          }
+        }
+      });
+    }
+
+    /**
+     * Label the connected components of the matrix graph, which must be symmetric.
+     *
+     * @param components to fill with the component of each row, numbered from 0 in the order of
+     *        their first row.
+     * @return number of components.
+     */
+    private int getComponents(int[] components) {
+      int n = offsets.length - 1;
+      Arrays.fill(components, -1);
+      int[] queue = new int[n];
+      int componentsNumber = 0;
+      for (int start = 0; start < n; start++) {
+        if (components[start] != -1) {
+          continue;
+        }
+        components[start] = componentsNumber;
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        while (head < tail) {
+          int row = queue[head++];
+          for (int j = offsets[row]; j < offsets[row + 1]; j++) {
+            if (components[columns[j]] == -1) {
+              components[columns[j]] = componentsNumber;
+              queue[tail++] = columns[j];
+            }
+          }
+        }
+        componentsNumber++;
+      }
+      return componentsNumber;
+    }
+
+    /**
+     * @return sum of each row, like sum(M, 2).
+     */
+    private double[] getRowSums() {
+      int n = offsets.length - 1;
+      double[] sums = new double[n];
+      for (int row = 0; row < n; row++) {
+        for (int j = offsets[row]; j < offsets[row + 1]; j++) {
+          sums[row] += values[j];
+        }
+      }
+      return sums;
+    }
+
+    /**
+     * Get (A - B).^2 over the entries of both matrices.
+     *
+     * @param a first matrix.
+     * @param b second matrix.
+     * @return squared differences.
+     */
+    private static SparseMatrix squaredDifference(SparseMatrix a, SparseMatrix b) {
+      int n = a.offsets.length - 1;
+      int[] offsets = new int[n + 1];
+      int[] columns = new int[a.columns.length + b.columns.length];
+      double[] values = new double[columns.length];
+      int entries = 0;
+      for (int row = 0; row < n; row++) {
+        int i = a.offsets[row];
+        int j = b.offsets[row];
+        while (i < a.offsets[row + 1] || j < b.offsets[row + 1]) {
+          int columnA = i < a.offsets[row + 1] ? a.columns[i] : Integer.MAX_VALUE;
+          int columnB = j < b.offsets[row + 1] ? b.columns[j] : Integer.MAX_VALUE;
+          int column = Math.min(columnA, columnB);
+          double difference = (columnA == column ? a.values[i++] : 0)
+              - (columnB == column ? b.values[j++] : 0);
+          columns[entries] = column;
+          values[entries++] = difference * difference;
+        }
+        offsets[row + 1] = entries;
+      }
+      return new SparseMatrix(offsets, columns, values);
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param graph1 first graph edges as node1, node2, edge value.
+   * @param graph2 second graph edges as node1, node2, edge value.
+   */
+  public SpectralMeasures(double[][] graph1, double[][] graph2) {
+    int n = 0;
+    for (double[][] graph : new double[][][] {graph1, graph2}) {
+      for (double[] edge : graph) {
+        n = (int) Math.max(n, Math.max(edge[0], edge[1]));
+      }
+    }
+    nodesNumber = n;
+    this.graph1 = SparseMatrix.fromEdges(graph1, n);
+    this.graph2 = SparseMatrix.fromEdges(graph2, n);
+  }
+
+  /**
+   * Check whether a distortion measure is computed in Java.
+   *
+   * @param measure distortion measure name.
+   * @return true for E1, E2, E3 and E4.
+   */
+  public static boolean isSupported(String measure) {
+    for (String supported : MEASURES) {
+      if (supported.equalsIgnoreCase(measure)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Compute the distortion values of each node, as visualize_map(G1, G2, k, r, measure).
+   *
+   * @param k smooth parameter, the number of eigenvectors of F * L1.
+   * @param r number of distortion areas to return.
+   * @param measure E1, E2, E3 or E4.
+   * @return distortion value of each node for each distortion area, stacked column wise.
+   */
+  public double[] getDistortionValues(int k, int r, String measure) {
+    if (!isSupported(measure)) {
+      throw new IllegalArgumentException("Unsupported distortion measure " + measure);
+    }
+    int n = nodesNumber;
+    k = Math.min(k, n);
+    r = Math.min(r, k);
+    double[] degrees1 = graph1.getRowSums();
+    double[] degrees2 = graph2.getRowSums();
+    // e1, the eigenvectors of F * L1 with the k smallest eigenvalues, as an n x k row major block.
+    double[] eigenvalues = new double[k];
+    double[] e1 = getSmoothEigenvectors(degrees1, k, eigenvalues);
+    int zeroEigenvalues = 0;
+    for (double eigenvalue : eigenvalues) {
+      if (Math.abs(eigenvalue) < ZERO_EIGENVALUE) {
+        zeroEigenvalues++;
+      }
+    }
+    // Measure matrix B and, for the generalized measures, A = e1' * diag(sum(M, 2)) * e1.
+    double[][] b;
+    double[][] a = null;
+    if (measure.equalsIgnoreCase("E1") || measure.equalsIgnoreCase("E2")) {
+      // U = (M - N).^2 with sum(U, 2) on the diagonal, and the off diagonal negated for E2.
+      SparseMatrix u = SparseMatrix.squaredDifference(graph1, graph2);
+      b = project(e1, k, u.getRowSums(), u, measure.equalsIgnoreCase("E1") ? 1 : -1);
+    } else {
+      double[] squaredDegreeChanges = new double[n];
+      for (int i = 0; i < n; i++) {
+        squaredDegreeChanges[i] = (degrees1[i] - degrees2[i]) * (degrees1[i] - degrees2[i]);
+      }
+      b = project(e1, k, squaredDegreeChanges, null, 0);
+    }
+    if (measure.equalsIgnoreCase("E1") || measure.equalsIgnoreCase("E4")) {
+      a = project(e1, k, degrees1, null, 0);
+    }
+    // Leave out the eigenvectors of the zero eigenvalues.
+    int m = k - zeroEigenvalues;
+    b = getBlock(b, zeroEigenvalues);
+    double[][] v = new double[m][m];
+    if (a == null) {
+      symmetricEigen(b, v);
+    } else {
+      generalizedEigen(b, getBlock(a, zeroEigenvalues), v);
+    }
+    r = Math.min(r, m);
+    // wh = e1 * V, where V are the eigenvectors of the r largest eigenvalues, padded with zero
+    // rows for the zero eigenvalues, and the distortion values are wh.^2.
+    double[] values = new double[n * r];
+    for (int i = 0; i < n; i++) {
+      for (int column = 0; column < r; column++) {
+        // The eigenvalues are ascending, so the largest ones are the last columns.
+        int eigenvector = m - 1 - column;
+        double wh = 0;
+        for (int j = 0; j < m; j++) {
+          wh += e1[i * k + zeroEigenvalues + j] * v[j][eigenvector];
+        }
+        values[column * n + i] = wh * wh;
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Get the eigenvectors of F * L1 with the k smallest eigenvalues, where L1 is the Laplacian of
+   * graph1 and F = diag(1 ./ (sum(M, 2) + 1)), each scaled to a unit norm as eig does.
+   *
+   * @param degrees1 graph1 degree of each node.
+   * @param k number of eigenvectors.
+   * @param eigenvalues to fill with the k smallest eigenvalues, ascending.
+   * @return eigenvectors as an n x k row major block.
+   */
+  private double[] getSmoothEigenvectors(double[] degrees1, int k, double[] eigenvalues) {
+    int n = nodesNumber;
+    double[] scales = new double[n];
+    for (int i = 0; i < n; i++) {
+      scales[i] = Math.sqrt(1 / (degrees1[i] + 1));
+    }
+    // F^(1/2) * L1 * F^(1/2), using (M + M') / 2 so that the matrix stays symmetric even if an
+    // edge is listed in one direction only.
+    int entries = n + 2 * graph1.columns.length;
+    int[] rows = new int[entries];
+    int[] columns = new int[entries];
+    double[] values = new double[entries];
+    for (int i = 0; i < n; i++) {
+      rows[i] = i;
+      columns[i] = i;
+      values[i] = scales[i] * scales[i] * degrees1[i];
+    }
+    int entry = n;
+    for (int i = 0; i < n; i++) {
+      for (int j = graph1.offsets[i]; j < graph1.offsets[i + 1]; j++) {
+        int column = graph1.columns[j];
+        double value = -scales[i] * graph1.values[j] * scales[column] / 2;
+        rows[entry] = i;
+        columns[entry] = column;
+        values[entry++] = value;
+        rows[entry] = column;
+        columns[entry] = i;
+        values[entry++] = value;
+      }
+    }
+    SparseMatrix s = SparseMatrix.fromEntries(rows, columns, values, n);
+    // The matrix is block diagonal over the connected components, so its k smallest eigenpairs are
+    // the k smallest eigenpairs of all the components. Solving each component also finds every
+    // zero eigenvalue, one per component, which a single Krylov space wouldn't.
+    int[] components = new int[n];
+    int componentsNumber = s.getComponents(components);
+    int[] componentOffsets = new int[componentsNumber + 1];
+    for (int component : components) {
+      componentOffsets[component + 1]++;
+    }
+    for (int c = 0; c < componentsNumber; c++) {
+      componentOffsets[c + 1] += componentOffsets[c];
+    }
+    int[] componentNodes = new int[n];
+    int[] next = Arrays.copyOf(componentOffsets, componentsNumber);
+    for (int i = 0; i < n; i++) {
+      componentNodes[next[components[i]]++] = i;
+    }
+    int[] local = new int[n];
+    ArrayList<Eigenpair> eigenpairs = new ArrayList<Eigenpair>();
+    for (int c = 0; c < componentsNumber; c++) {
+      int[] nodes = Arrays.copyOfRange(componentNodes, componentOffsets[c],
+          componentOffsets[c + 1]);
+      SparseMatrix block = s.restrict(nodes, local);
+      int count = Math.min(k, nodes.length);
+      double[][] vectors = new double[count][];
+      double[] blockValues;
+      if (nodes.length <= DENSE_COMPONENT_NODES) {
+        double[][] dense = new double[nodes.length][nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+          for (int j = block.offsets[i]; j < block.offsets[i + 1]; j++) {
+            dense[i][block.columns[j]] = block.values[j];
+          }
+        }
+        double[][] denseVectors = new double[nodes.length][nodes.length];
+        blockValues = symmetricEigen(dense, denseVectors);
+        for (int column = 0; column < count; column++) {
+          vectors[column] = new double[nodes.length];
+          for (int i = 0; i < nodes.length; i++) {
+            vectors[column][i] = denseVectors[i][column];
+          }
+        }
+      } else {
+        blockValues = smallestEigen(block, count, vectors);
+      }
+      for (int column = 0; column < count; column++) {
+        eigenpairs.add(new Eigenpair(blockValues[column], nodes, vectors[column]));
+      }
+    }
+    // The sort is stable, so equal eigenvalues keep the order of their components.
+    Collections.sort(eigenpairs);
+    double[] e1 = new double[n * k];
+    for (int column = 0; column < k; column++) {
+      Eigenpair eigenpair = eigenpairs.get(column);
+      eigenvalues[column] = eigenpair.value;
+      double norm = 0;
+      for (int i = 0; i < eigenpair.nodes.length; i++) {
+        double value = scales[eigenpair.nodes[i]] * eigenpair.vector[i];
+        e1[eigenpair.nodes[i] * k + column] = value;
+        norm += value * value;
+      }
+      norm = Math.sqrt(norm);
+      for (int node : eigenpair.nodes) {
+        e1[node * k + column] /= norm;
+      }
+    }
+    return e1;
+  }
+
+  // Eigenpair of the block of a connected component.
+  private static class Eigenpair implements Comparable<Eigenpair> {
+    private final double value;
+    // Nodes of the component.
+    private final int[] nodes;
+    // Unit eigenvector over the nodes of the component.
+    private final double[] vector;
+
+    private Eigenpair(double value, int[] nodes, double[] vector) {
+      this.value = value;
+      this.nodes = nodes;
+      this.vector = vector;
+    }
+
+    @Override
+    public int compareTo(Eigenpair other) {
+      return Double.compare(value, other.value);
+    }
+  }
+
+  /**
+   * Get the smallest eigenpairs of a sparse symmetric matrix by block Lanczos with thick restarts
+   * and full reorthogonalization. The Krylov basis grows by a block of vectors at a time, the
+   * images of the last block orthogonalized against the basis, up to a maximum size. Then the
+   * Ritz pairs of the basis are computed, and the basis restarts from the Ritz vectors of the
+   * smallest Ritz values and the last block images until the wanted pairs are converged. The
+   * products and the orthogonalizations, which cost O(n) per basis vector pair, run in parallel.
+   *
+   * @param matrix symmetric sparse matrix.
+   * @param count number of eigenpairs, at most the matrix size.
+   * @param vectors to fill with count orthonormal eigenvectors.
+   * @return count smallest eigenvalues ascending.
+   * @throws ArithmeticException if the eigenpairs aren't converged after LANCZOS_MAX_RESTARTS
+   *         restarts.
+   */
+  private static double[] smallestEigen(SparseMatrix matrix, int count, double[][] vectors) {
+    final int n = matrix.offsets.length - 1;
+    int blockSize = Math.min(LANCZOS_BLOCK_SIZE, count);
+    // Maximum basis size and number of Ritz vectors kept on restart.
+    int maxSize = Math.min(n, 3 * count + 8 * blockSize);
+    int kept = Math.min(maxSize - blockSize, count + 2 * blockSize);
+    // Orthonormal basis and its images by the matrix.
+    final double[][] basis = new double[maxSize][];
+    final double[][] images = new double[maxSize][];
+    int size = 0;
+    // Number of leading basis vectors that are Ritz vectors, whose projection is diagonal.
+    int ritzSize = 0;
+    double[] ritzValues = new double[0];
+    Random random = new Random(LANCZOS_SEED);
+    double[][] block = getRandomVectors(random, blockSize, n);
+    for (int restart = 0;; restart++) {
+      // Add whole blocks only, a block left out would lose its Krylov directions.
+      while (size + block.length <= maxSize) {
+        int blockStart = size;
+        for (double[] vector : block) {
+          if (orthonormalize(vector, basis, size)) {
+            basis[size] = vector;
+            images[size] = new double[n];
+            matrix.multiply(vector, images[size]);
+            size++;
+          }
+        }
+        if (size == blockStart) {
+          // The basis spans an invariant subspace, continue with new directions.
+          block = getRandomVectors(random, blockSize, n);
+        } else {
+          block = new double[size - blockStart][];
+          for (int i = 0; i < block.length; i++) {
+            block[i] = images[blockStart + i].clone();
+          }
+        }
+      }
+      // Rayleigh-Ritz on the basis.
+      final double[][] projection = new double[size][size];
+      for (int i = 0; i < ritzSize; i++) {
+        projection[i][i] = ritzValues[i];
+      }
+      final int knownSize = ritzSize;
+      IntStream.range(knownSize, size).parallel().forEach(new IntConsumer() {
+        @Override
+        public void accept(int j) {
+          for (int i = 0; i <= j; i++) {
+            double value = dot(basis[i], images[j]);
+            projection[i][j] = value;
+            projection[j][i] = value;
+          }
+        }
+      });
+      final int basisSize = size;
+      final double[][] coordinates = new double[size][size];
+      ritzValues = symmetricEigen(projection, coordinates);
+      double scale = Math.max(Math.abs(ritzValues[0]), Math.abs(ritzValues[size - 1]));
+      final double[][] ritzVectors = new double[Math.max(count, kept)][n];
+      final double[][] ritzImages = new double[ritzVectors.length][n];
+      IntStream.range(0, ritzVectors.length).parallel().forEach(new IntConsumer() {
+        @Override
+        public void accept(int column) {
+          double[] ritzVector = ritzVectors[column];
+          double[] ritzImage = ritzImages[column];
+          for (int j = 0; j < basisSize; j++) {
+            double coordinate = coordinates[j][column];
+            double[] vector = basis[j];
+            double[] image = images[j];
+            for (int i = 0; i < n; i++) {
+              ritzVector[i] += coordinate * vector[i];
+              ritzImage[i] += coordinate * image[i];
+            }
+          }
+        }
+      });
+      double maxResidual = 0;
+      for (int column = 0; column < count; column++) {
+        double residual = 0;
+        for (int i = 0; i < n; i++) {
+          double difference = ritzImages[column][i] - ritzValues[column] * ritzVectors[column][i];
+          residual += difference * difference;
+        }
+        maxResidual = Math.max(maxResidual, Math.sqrt(residual));
+      }
+      // A basis of the whole space gives the exact eigenpairs.
+      if (maxResidual <= LANCZOS_TOLERANCE * Math.max(1, scale) || size == n) {
+        for (int column = 0; column < count; column++) {
+          vectors[column] = ritzVectors[column];
+        }
+        return Arrays.copyOf(ritzValues, count);
+      }
+      if (restart == LANCZOS_MAX_RESTARTS) {
+        throw new ArithmeticException("Block Lanczos didn't converge after " + restart
+            + " restarts, residual " + maxResidual);
+      }
+      // Continue from the last block images, orthogonalized against the whole basis before it is
+      // replaced by the Ritz vectors, which span part of it.
+      int blockLength = 0;
+      for (double[] vector : block) {
+        if (orthonormalize(vector, basis, size)) {
+          block[blockLength++] = vector;
+        }
+      }
+      block = blockLength > 0 ? Arrays.copyOf(block, blockLength)
+          : getRandomVectors(random, blockSize, n);
+      for (int column = 0; column < kept; column++) {
+        basis[column] = ritzVectors[column];
+        images[column] = ritzImages[column];
+      }
+      size = kept;
+      ritzSize = kept;
+    }
+  }
+
+  /**
+   * @param random generator.
+   * @param number of vectors.
+   * @param n length of the vectors.
+   * @return vectors of standard normal entries.
+   */
+  private static double[][] getRandomVectors(Random random, int number, int n) {
+    double[][] vectors = new double[number][n];
+    for (double[] vector : vectors) {
+      for (int i = 0; i < n; i++) {
+        vector[i] = random.nextGaussian();
+      }
+    }
+    return vectors;
+  }
+
+  /**
+   * Orthogonalize a vector against an orthonormal basis by classical Gram-Schmidt, twice for
+   * accuracy, and normalize it. The dot products and the chunks of rows of the update run in
+   * parallel.
+   *
+   * @param vector to orthonormalize in place.
+   * @param basis orthonormal vectors.
+   * @param size number of basis vectors.
+   * @return false if the vector is numerically in the span of the basis.
+   */
+  private static boolean orthonormalize(final double[] vector, final double[][] basis,
+      final int size) {
+    final int n = vector.length;
+    double norm = Math.sqrt(dot(vector, vector));
+    final double[] coefficients = new double[size];
+    for (int pass = 0; pass < 2; pass++) {
+      IntStream.range(0, size).parallel().forEach(new IntConsumer() {
+        @Override
+        public void accept(int j) {
+          coefficients[j] = dot(basis[j], vector);
+        }
+      });
+      IntStream.range(0, (n + CHUNK_ROWS - 1) / CHUNK_ROWS).parallel().forEach(new IntConsumer() {
+        @Override
+        public void accept(int chunk) {
+          int end = Math.min(n, (chunk + 1) * CHUNK_ROWS);
+          for (int j = 0; j < size; j++) {
+            double coefficient = coefficients[j];
+            double[] basisVector = basis[j];
+            for (int i = chunk * CHUNK_ROWS; i < end; i++) {
+              vector[i] -= coefficient * basisVector[i];
+            }
+          }
+        }
+      });
+    }
+    double orthogonalNorm = Math.sqrt(dot(vector, vector));
+    if (orthogonalNorm <= 1e-8 * norm || orthogonalNorm == 0) {
+      return false;
+    }
+    for (int i = 0; i < n; i++) {
+      vector[i] /= orthogonalNorm;
+    }
+    return true;
+  }
+
+  /**
+   * @param x vector.
+   * @param y vector of the same length.
+   * @return dot product of x and y.
+   */
+  private static double dot(double[] x, double[] y) {
+    double sum = 0;
+    for (int i = 0; i < x.length; i++) {
+      sum += x[i] * y[i];
+    }
+    return sum;
+  }
+
+  /**
+   * Project a measure matrix on the eigenvectors, e1' * X * e1, where X is a diagonal plus the
+   * off diagonal entries of a sparse matrix. Each chunk of rows is multiplied by the thin block e1
+   * in parallel and the partial k x k products are summed.
+   *
+   * @param e1 n x k row major block.
+   * @param k number of columns of e1.
+   * @param diagonal of X.
+   * @param offDiagonal matrix whose off diagonal entries are the off diagonal of X, or null.
+   * @param sign to multiply the off diagonal entries by.
+   * @return symmetric k x k projection.
+   */
+  private static double[][] project(final double[] e1, final int k, final double[] diagonal,
+      final SparseMatrix offDiagonal, final double sign) {
+    final int n = diagonal.length;
+    final int chunks = (n + CHUNK_ROWS - 1) / CHUNK_ROWS;
+    final double[][] partials = new double[chunks][k * k];
+    IntStream.range(0, chunks).parallel().forEach(new IntConsumer() {
+      @Override
+      public void accept(int chunk) {
+        double[] partial = partials[chunk];
+        double[] row = new double[k];
+        for (int i = chunk * CHUNK_ROWS; i < Math.min(n, (chunk + 1) * CHUNK_ROWS); i++) {
+          // row = (X * e1)(i, :).
+          for (int c = 0; c < k; c++) {
+            row[c] = diagonal[i] * e1[i * k + c];
+          }
+          if (offDiagonal != null) {
+            for (int j = offDiagonal.offsets[i]; j < offDiagonal.offsets[i + 1]; j++) {
+              int column = offDiagonal.columns[j];
+              if (column == i) {
+                continue;
+              }
+              double value = sign * offDiagonal.values[j];
+              for (int c = 0; c < k; c++) {
+                row[c] += value * e1[column * k + c];
+              }
+            }
+          }
+          for (int a = 0; a < k; a++) {
+            double e = e1[i * k + a];
+            for (int c = 0; c < k; c++) {
+              partial[a * k + c] += e * row[c];
+            }
+          }
+        }
+      }
+    });
+    double[][] projection = new double[k][k];
+    for (double[] partial : partials) {
+      for (int a = 0; a < k; a++) {
+        for (int c = 0; c < k; c++) {
+          projection[a][c] += partial[a * k + c];
+        }
+      }
+    }
+    // Remove the rounding asymmetry.
+    for (int a = 0; a < k; a++) {
+      for (int c = 0; c < a; c++) {
+        double value = (projection[a][c] + projection[c][a]) / 2;
+        projection[a][c] = value;
+        projection[c][a] = value;
+      }
+    }
+    return projection;
+  }
+
+  /**
+   * Get the trailing block of a square matrix, like B(start:end, start:end).
+   *
+   * @param matrix square matrix.
+   * @param start first row and column of the block.
+   * @return block.
+   */
+  private static double[][] getBlock(double[][] matrix, int start) {
+    int m = matrix.length - start;
+    double[][] block = new double[m][m];
+    for (int i = 0; i < m; i++) {
+      System.arraycopy(matrix[start + i], start, block[i], 0, m);
+    }
+    return block;
+  }
+
+  /**
+   * Solve the generalized eigenproblem B * v = lambda * A * v for symmetric B and symmetric
+   * positive definite A, with the eigenvectors normalized so that v' * A * v = 1 as eig(B, A)
+   * does. With A = L * L', it is the symmetric problem of inv(L) * B * inv(L').
+   *
+   * @param b symmetric matrix.
+   * @param a symmetric positive definite matrix.
+   * @param vectors to fill with the eigenvectors as columns.
+   * @return eigenvalues ascending.
+   */
+  private static double[] generalizedEigen(double[][] b, double[][] a, double[][] vectors) {
+    int m = b.length;
+    // Cholesky factor L of A.
+    double[][] l = new double[m][m];
+    for (int i = 0; i < m; i++) {
+      for (int j = 0; j <= i; j++) {
+        double sum = a[i][j];
+        for (int p = 0; p < j; p++) {
+          sum -= l[i][p] * l[j][p];
+        }
+        if (i == j) {
+          if (sum <= 0) {
+            throw new ArithmeticException("Measure matrix A isn't positive definite");
+          }
+          l[i][i] = Math.sqrt(sum);
+        } else {
+          l[i][j] = sum / l[j][j];
+        }
+      }
+    }
+    // C = inv(L) * B * inv(L'), first solving L * X = B and then L * C' = X'.
+    double[][] x = new double[m][m];
+    for (int column = 0; column < m; column++) {
+      for (int i = 0; i < m; i++) {
+        double sum = b[i][column];
+        for (int p = 0; p < i; p++) {
+          sum -= l[i][p] * x[p][column];
+        }
+        x[i][column] = sum / l[i][i];
+      }
+    }
+    double[][] c = new double[m][m];
+    for (int row = 0; row < m; row++) {
+      for (int i = 0; i < m; i++) {
+        double sum = x[row][i];
+        for (int p = 0; p < i; p++) {
+          sum -= l[i][p] * c[row][p];
+        }
+        c[row][i] = sum / l[i][i];
+      }
+    }
+    double[][] y = new double[m][m];
+    double[] eigenvalues = symmetricEigen(c, y);
+    // v = inv(L') * y.
+    for (int column = 0; column < m; column++) {
+      for (int i = m - 1; i >= 0; i--) {
+        double sum = y[i][column];
+        for (int p = i + 1; p < m; p++) {
+          sum -= l[p][i] * vectors[p][column];
+        }
+        vectors[i][column] = sum / l[i][i];
+      }
+    }
+    return eigenvalues;
+  }
+
+  /**
+   * Eigendecomposition of a symmetric matrix by Householder tridiagonalization followed by the
+   * implicit QL algorithm, the EISPACK tred2 and tql2 routines.
+   *
+   * @param matrix symmetric matrix, left unchanged.
+   * @param vectors to fill with the orthonormal eigenvectors as columns.
+   * @return eigenvalues ascending.
+   */
+  private static double[] symmetricEigen(double[][] matrix, double[][] vectors) {
+    int n = matrix.length;
+    double[] d = new double[n];
+    double[] e = new double[n];
+    if (n == 0) {
+      return d;
+    }
+    double[][] v = new double[n][];
+    for (int i = 0; i < n; i++) {
+      v[i] = matrix[i].clone();
+    }
+    tridiagonalize(v, d, e);
+    // Keep the transformation transposed, so that the QL rotations combine contiguous rows.
+    double[][] z = new double[n][n];
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < n; j++) {
+        z[j][i] = v[i][j];
+      }
+    }
+    diagonalize(z, d, e);
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    final double[] unsorted = d.clone();
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i, Integer j) {
+        return Double.compare(unsorted[i], unsorted[j]);
+      }
+    });
+    for (int column = 0; column < n; column++) {
+      d[column] = unsorted[order[column]];
+      double[] vector = z[order[column]];
+      for (int i = 0; i < n; i++) {
+        vectors[i][column] = vector[i];
+      }
+    }
+    return d;
+  }
+
+  /**
+   * Householder reduction to a tridiagonal matrix, tred2.
+   *
+   * @param v symmetric matrix, replaced by the orthogonal transformation.
+   * @param d to fill with the diagonal.
+   * @param e to fill with the subdiagonal in e[1..n - 1].
+   */
+  private static void tridiagonalize(double[][] v, double[] d, double[] e) {
+    int n = d.length;
+    for (int j = 0; j < n; j++) {
+      d[j] = v[n - 1][j];
+    }
+    for (int i = n - 1; i > 0; i--) {
+      // Scale to avoid under/overflow.
+      double scale = 0.0;
+      double h = 0.0;
+      for (int k = 0; k < i; k++) {
+        scale += Math.abs(d[k]);
+      }
+      if (scale == 0.0) {
+        e[i] = d[i - 1];
+        for (int j = 0; j < i; j++) {
+          d[j] = v[i - 1][j];
+          v[i][j] = 0.0;
+          v[j][i] = 0.0;
+        }
+      } else {
+        // Generate the Householder vector.
+        for (int k = 0; k < i; k++) {
+          d[k] /= scale;
+          h += d[k] * d[k];
+        }
+        double f = d[i - 1];
+        double g = Math.sqrt(h);
+        if (f > 0) {
+          g = -g;
+        }
+        e[i] = scale * g;
+        h = h - f * g;
+        d[i - 1] = f - g;
+        for (int j = 0; j < i; j++) {
+          e[j] = 0.0;
+        }
+        // Apply the similarity transformation to the remaining columns.
+        for (int j = 0; j < i; j++) {
+          f = d[j];
+          v[j][i] = f;
+          g = e[j] + v[j][j] * f;
+          for (int k = j + 1; k <= i - 1; k++) {
+            g += v[k][j] * d[k];
+            e[k] += v[k][j] * f;
+          }
+          e[j] = g;
+        }
+        f = 0.0;
+        for (int j = 0; j < i; j++) {
+          e[j] /= h;
+          f += e[j] * d[j];
+        }
+        double hh = f / (h + h);
+        for (int j = 0; j < i; j++) {
+          e[j] -= hh * d[j];
+        }
+        for (int j = 0; j < i; j++) {
+          f = d[j];
+          g = e[j];
+          for (int k = j; k <= i - 1; k++) {
+            v[k][j] -= (f * e[k] + g * d[k]);
+          }
+          d[j] = v[i - 1][j];
+          v[i][j] = 0.0;
+        }
+      }
+      d[i] = h;
+    }
+    // Accumulate the transformations.
+    for (int i = 0; i < n - 1; i++) {
+      v[n - 1][i] = v[i][i];
+      v[i][i] = 1.0;
+      double h = d[i + 1];
+      if (h != 0.0) {
+        for (int k = 0; k <= i; k++) {
+          d[k] = v[k][i + 1] / h;
+        }
+        for (int j = 0; j <= i; j++) {
+          double g = 0.0;
+          for (int k = 0; k <= i; k++) {
+            g += v[k][i + 1] * v[k][j];
+          }
+          for (int k = 0; k <= i; k++) {
+            v[k][j] -= g * d[k];
+          }
+        }
+      }
+      for (int k = 0; k <= i; k++) {
+        v[k][i + 1] = 0.0;
+      }
+    }
+    for (int j = 0; j < n; j++) {
+      d[j] = v[n - 1][j];
+      v[n - 1][j] = 0.0;
+    }
+    v[n - 1][n - 1] = 1.0;
+    e[0] = 0.0;
+  }
+
+  /**
+   * Implicit QL algorithm on a symmetric tridiagonal matrix, tql2.
+   *
+   * @param z transposed transformation of the tridiagonalization, replaced by the eigenvectors
+   *        as rows.
+   * @param d diagonal, replaced by the unsorted eigenvalues.
+   * @param e subdiagonal in e[1..n - 1], destroyed.
+   */
+  private static void diagonalize(double[][] z, double[] d, double[] e) {
+    int n = d.length;
+    for (int i = 1; i < n; i++) {
+      e[i - 1] = e[i];
+    }
+    e[n - 1] = 0.0;
+    double f = 0.0;
+    double tst1 = 0.0;
+    double eps = Math.pow(2.0, -52.0);
+    for (int l = 0; l < n; l++) {
+      // Find a small subdiagonal element.
+      tst1 = Math.max(tst1, Math.abs(d[l]) + Math.abs(e[l]));
+      int m = l;
+      while (m < n - 1 && Math.abs(e[m]) > eps * tst1) {
+        m++;
+      }
+      // If m == l, d[l] is already an eigenvalue, otherwise iterate.
+      if (m > l) {
+        do {
+          // Compute the implicit shift.
+          double g = d[l];
+          double p = (d[l + 1] - g) / (2.0 * e[l]);
+          double r = Math.hypot(p, 1.0);
+          if (p < 0) {
+            r = -r;
+          }
+          d[l] = e[l] / (p + r);
+          d[l + 1] = e[l] * (p + r);
+          double dl1 = d[l + 1];
+          double h = g - d[l];
+          for (int i = l + 2; i < n; i++) {
+            d[i] -= h;
+          }
+          f = f + h;
+          // Implicit QL transformation.
+          p = d[m];
+          double c = 1.0;
+          double c2 = c;
+          double c3 = c;
+          double el1 = e[l + 1];
+          double s = 0.0;
+          double s2 = 0.0;
+          for (int i = m - 1; i >= l; i--) {
+            c3 = c2;
+            c2 = c;
+            s2 = s;
+            g = c * e[i];
+            h = c * p;
+            r = Math.hypot(p, e[i]);
+            e[i + 1] = s * r;
+            s = e[i] / r;
+            c = p / r;
+            p = c * d[i] - s * g;
+            d[i + 1] = h + s * (c * g + s * d[i]);
+            // Accumulate the transformation.
+            double[] zi = z[i];
+            double[] zi1 = z[i + 1];
+            for (int k = 0; k < n; k++) {
+              h = zi1[k];
+              zi1[k] = s * zi[k] + c * h;
+              zi[k] = c * zi[k] - s * h;
+            }
+          }
+          p = -s * s2 * c3 * el1 * e[l] / dl1;
+          e[l] = s * p;
+          d[l] = c * p;
+          // Check for convergence.
+        } while (Math.abs(e[l]) > eps * tst1);
+      }
+      d[l] = d[l] + f;
+      e[l] = 0.0;
+    }
+  }
+}
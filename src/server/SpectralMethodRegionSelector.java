@@ -13,8 +13,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 // This class selects the highest distortion regions.
 public class SpectralMethodRegionSelector {
@@ -26,11 +30,27 @@ public class SpectralMethodRegionSelector {
 	// and used in getRegions for sorting nodes
 	// based on their distortion values.
 	private ArrayList<SpectralNode> nodesList = null;
+	// Nodes indexed by their ID, used by the priority queue BFS.
+	private SpectralNode[] nodesById = null;
+	// Visited marks of the priority queue BFS not in use, by node ID, reused
+	// by the next traversals.
+	private final ConcurrentLinkedQueue<VisitedMarks> freeVisitedMarks =
+			new ConcurrentLinkedQueue<VisitedMarks>();
 	// Average delta change of nodes in the region.
 	private double regionChangeValue;
 	// Six evaluation measures used taking into account the region size.
 	private double[] evaluationMeasures;
 	private ArrayList<Double[]> regionEvaluationMeasures;
+	// Neighbors of each node sorted by distortion value from the highest to
+	// the lowest, built on first use by biased BFS and dropped whenever the
+	// graph changes.
+	private volatile HashMap<SpectralNode, SpectralNode[]> sortedNeighbors = null;
+	// Number of changes to the graphs or the delta changes of any selector,
+	// which may also belong to the graphs another selector scores.
+	private static final AtomicInteger graphChanges = new AtomicInteger();
+	// Region scorer built on first use by the region measures, with the
+	// graphs it was built from, and dropped whenever the graph changes.
+	private volatile CachedScorer regionScorer = null;
 	// Min delta change of a node.
 	private double minDelta;
 	// Max delta change of a node.
@@ -50,11 +70,13 @@ public class SpectralMethodRegionSelector {
 		// Create nodes with the distortion values.
 		nodes = new HashMap<Integer, SpectralNode>();
 		nodesList = new ArrayList<SpectralNode>();
+		nodesById = new SpectralNode[distortionValues.length + 1];
 		int index = 1;
 		for (double distoritionValue : distortionValues) {
 			SpectralNode node = new SpectralNode(distoritionValue, index);
 			nodes.put(index, node);
 			nodesList.add(node);
+			nodesById[index] = node;
 			index++;
 		}
 		// Load the graph from the graphFile.
@@ -71,6 +93,9 @@ public class SpectralMethodRegionSelector {
 	 *            graph array representing the graph.
 	 */
 	public void loadGraphArray(double[][] graphArray) {
+		sortedNeighbors = null;
+		regionScorer = null;
+		graphChanges.incrementAndGet();
 		for (int i = 1; i <= nodes.size(); i++) {
 			graph.put(nodes.get(i), new HashMap<SpectralNode, Integer>());
 		}
@@ -90,6 +115,9 @@ public class SpectralMethodRegionSelector {
 	 *            file storing graph data.
 	 */
 	public void loadGraph(String file) throws IOException {
+		sortedNeighbors = null;
+		regionScorer = null;
+		graphChanges.incrementAndGet();
 		for (int i = 1; i <= nodes.size(); i++) {
 			graph.put(nodes.get(i), new HashMap<SpectralNode, Integer>());
 		}
@@ -170,6 +198,7 @@ public class SpectralMethodRegionSelector {
 	 **/
 	public HashMap<SpectralNode, HashSet<SpectralNode>> BFSBiased(
 			SpectralNode n, int maxNodes) {
+		HashMap<SpectralNode, SpectralNode[]> neighborsMap = getSortedNeighbors();
 		HashMap<SpectralNode, HashSet<SpectralNode>> BFSGraph = new HashMap<SpectralNode, HashSet<SpectralNode>>();
 		HashSet<Integer> found = new HashSet<Integer>();
 		Queue<SpectralNode> queue = new LinkedList<SpectralNode>();
@@ -183,15 +212,9 @@ public class SpectralMethodRegionSelector {
 			if (BFSGraph.size() == maxNodes) {
 				break;
 			}
-			HashMap<SpectralNode, Integer> neighbors = graph.get(node);
-			SpectralNode[] neighborNodes = new SpectralNode[neighbors.size()];
-			int index = 0;
-			for (SpectralNode neighbor : neighbors.keySet()) {
-				neighborNodes[index++] = neighbor;
-			}
-			// Sort the neighbors of the nodes based on their distortion values
-			// from highest to smallest.
-			Arrays.sort(neighborNodes);
+			// Neighbors sorted based on their distortion values from highest
+			// to smallest.
+			SpectralNode[] neighborNodes = neighborsMap.get(node);
 			int addedCount = 0; // Add only the top BIASEDK neighbors.
 			for (int i = 0; i < neighborNodes.length; i++) {
 				if (!found.contains(neighborNodes[i].getId())) {
@@ -218,6 +241,49 @@ public class SpectralMethodRegionSelector {
 		return BFSGraph;
 	}
 
+	/**
+	 * Get the neighbors of each node sorted by distortion value from the
+	 * highest to the lowest. The distortion values are fixed once the selector
+	 * is created, so the neighbors are sorted once, in parallel, instead of on
+	 * every biased BFS expansion.
+	 * 
+	 * @return sorted neighbors of each node.
+	 */
+	public HashMap<SpectralNode, SpectralNode[]> getSortedNeighbors() {
+		HashMap<SpectralNode, SpectralNode[]> neighborsMap = sortedNeighbors;
+		if (neighborsMap != null) {
+			return neighborsMap;
+		}
+		synchronized (this) {
+			if (sortedNeighbors == null) {
+				final SpectralNode[] graphNodes = graph.keySet().toArray(
+						new SpectralNode[graph.size()]);
+				final SpectralNode[][] neighbors = new SpectralNode[graphNodes.length][];
+				IntStream.range(0, graphNodes.length).parallel()
+						.forEach(new IntConsumer() {
+							@Override
+							public void accept(int i) {
+								Set<SpectralNode> nodeNeighbors = graph.get(
+										graphNodes[i]).keySet();
+								neighbors[i] = nodeNeighbors
+										.toArray(new SpectralNode[nodeNeighbors
+												.size()]);
+								// Stable sort, so that ties keep the adjacency
+								// list order.
+								Arrays.sort(neighbors[i]);
+							}
+						});
+				neighborsMap = new HashMap<SpectralNode, SpectralNode[]>(
+						graphNodes.length * 2);
+				for (int i = 0; i < graphNodes.length; i++) {
+					neighborsMap.put(graphNodes[i], neighbors[i]);
+				}
+				sortedNeighbors = neighborsMap;
+			}
+			return sortedNeighbors;
+		}
+	}
+
 	/**
 	 * Start priority queue BFS from node until the BFS graph number of nodes is
 	 * equal to the parameter maxNodes. The priority queue BFS uses a priority
@@ -233,26 +299,61 @@ public class SpectralMethodRegionSelector {
 	 */
 	public HashMap<SpectralNode, HashSet<SpectralNode>> BFSPriorityQueue(
 			SpectralNode n, int maxNodes) {
+		return BFSPriorityQueue(n, maxNodes, null);
+	}
+
+	/**
+	 * Start priority queue BFS from node until the BFS graph number of nodes is
+	 * equal to the parameter maxNodes. The priority queue BFS uses a priority
+	 * queue instead of traditional queue, where the priority is the distortion
+	 * value of the node and the higher this value is, the higher its priority
+	 * will be.
+	 * 
+	 * @param n
+	 *            to start the BFS from.
+	 * @param maxNodes
+	 *            number of nodes in the BFS graph.
+	 * @param accumulator
+	 *            to add the nodes of the BFS graph to as they are added, or
+	 *            null.
+	 * @return BFS graph.
+	 */
+	public HashMap<SpectralNode, HashSet<SpectralNode>> BFSPriorityQueue(
+			SpectralNode n, int maxNodes, RegionScorer.Accumulator accumulator) {
 		HashMap<SpectralNode, HashSet<SpectralNode>> BFSGraph = new HashMap<SpectralNode, HashSet<SpectralNode>>();
-		HashSet<Integer> found = new HashSet<Integer>();
-		PriorityQueue<SpectralNode> queue = new PriorityQueue<SpectralNode>();
-		queue.add(n);
-		BFSGraph.put(n, new HashSet<SpectralNode>());
-		found.add(n.getId());
-		while (!queue.isEmpty()) {
-			SpectralNode node = queue.poll();
-			// Add node to BFSGraph
-			BFSGraph.put(node, new HashSet<SpectralNode>());
-			if (BFSGraph.size() == maxNodes) {
-				break;
-			}
-			HashMap<SpectralNode, Integer> neighbors = graph.get(node);
-			for (SpectralNode neighbor : neighbors.keySet()) {
-				if (!found.contains(neighbor.getId())) {
-					queue.add(neighbor);
-					found.add(neighbor.getId());
+		// Nodes found so far, borrowed from the free marks so that concurrent
+		// traversals don't share them.
+		VisitedMarks found = freeVisitedMarks.poll();
+		if (found == null) {
+			found = new VisitedMarks(nodesById.length);
+		}
+		try {
+			found.clear();
+			// Priority queue of node IDs keyed by their distortion values.
+			IntMaxHeap queue = IntMaxHeap.get();
+			queue.add(n.getId(), n.getDistortionValue());
+			BFSGraph.put(n, new HashSet<SpectralNode>());
+			found.visit(n.getId());
+			while (!queue.isEmpty()) {
+				SpectralNode node = nodesById[queue.poll()];
+				// Add node to BFSGraph
+				BFSGraph.put(node, new HashSet<SpectralNode>());
+				if (accumulator != null) {
+					accumulator.add(node.getId());
+				}
+				if (BFSGraph.size() == maxNodes) {
+					break;
+				}
+				HashMap<SpectralNode, Integer> neighbors = graph.get(node);
+				for (SpectralNode neighbor : neighbors.keySet()) {
+					if (found.visit(neighbor.getId())) {
+						queue.add(neighbor.getId(),
+								neighbor.getDistortionValue());
+					}
 				}
 			}
+		} finally {
+			freeVisitedMarks.add(found);
 		}
 		// Copy edges of subgraph that belong to the subgraph.
 		for (SpectralNode node : BFSGraph.keySet()) {
@@ -312,6 +413,10 @@ public class SpectralMethodRegionSelector {
 	 */
 	public HashMap<Integer, String[]> getRegions(int regionNum, int maxNodes,
 			int bfsSelection) {
+		long start = Metrics.startTimer();
+		SearchPhaseEvent event = SearchPhaseEvent.begin(
+				SearchPhaseEvent.REGION_EXPANSION, "spectral_bfs_" + bfsSelection,
+				nodesList.size());
 		HashMap<Integer, String[]> regions = new HashMap<Integer, String[]>();
 		// Sort the nodes based on their distortion values descendingly.
 		Collections.sort(nodesList);
@@ -342,6 +447,9 @@ public class SpectralMethodRegionSelector {
 				break;
 			}
 		}
+		Metrics.observeSince("spectral_region_search_seconds", start);
+		event.setParameters(regionNum, maxNodes, (int) GraphServlet.getBiasedK())
+				.setBatch(0, regions.size()).finish();
 		return regions;
 	}
 
@@ -363,46 +471,30 @@ public class SpectralMethodRegionSelector {
 			HashMap<SpectralNode, HashMap<SpectralNode, Integer>> graph2,
 			HashMap<Integer, SpectralNode> node1Mapping,
 			HashMap<Integer, SpectralNode> node2Mapping) {
+		// Score the regions while they grow by the delta change over the
+		// minimum number of edges within the region in graph1 and graph2.
+		RegionScorer scorer = getRegionScorer(graph1, graph2, node1Mapping,
+				node2Mapping);
 		ArrayList<SpectralRegion> regionsList = new ArrayList<SpectralRegion>();
-		// Nodes selected in any region.
+		RegionScorer.Accumulator accumulator = scorer.getAccumulator();
 		for (int i = 0; i < nodesList.size(); i++) {
 			SpectralNode node = nodesList.get(i);
+			accumulator.clear();
 			// Start BFS from node i.
 			HashMap<SpectralNode, HashSet<SpectralNode>> bfsGraph = BFSPriorityQueue(
-					nodes.get(node.getId()), maxNodes);
+					nodes.get(node.getId()), maxNodes, accumulator);
 			if (bfsGraph.size() != maxNodes) { // Ensure that each returned
 												// region is exactly equal to
 												// the
 												// max nodes.
 				continue;
 			}
-			double distortionValue = 0;
-			double regionSizeGraph1 = 0;
-			double regionSizeGraph2 = 0;
-			for (SpectralNode bfsNode : bfsGraph.keySet()) {
-				distortionValue += bfsNode.getDelta();
-				HashMap<SpectralNode, Integer> bfsNodeNbrs1 = graph1.get(node1Mapping
-						.get(bfsNode.getId()));
-				for (SpectralNode nbr1 : bfsNodeNbrs1.keySet()) {
-					if (bfsGraph.containsKey(node2Mapping.get(nbr1.getId()))) {
-						regionSizeGraph1++;
-					}
-				}
-				HashMap<SpectralNode, Integer> bfsNodeNbrs2 = graph2.get(node2Mapping
-						.get(bfsNode.getId()));
-				for (SpectralNode nbr2 : bfsNodeNbrs2.keySet()) {
-					if (bfsGraph.containsKey(node2Mapping.get(nbr2.getId()))) {
-						regionSizeGraph2++;
-					}
-				}
-			}
-			distortionValue = distortionValue
-					/ (Math.min(Math.max(1, regionSizeGraph1),
-							Math.max(1, regionSizeGraph2)));
 			SpectralRegion region = new SpectralRegion(bfsGraph,
-					distortionValue, 0, bfsGraph.size());
+					accumulator.getMeasures()[RegionScorer.MIN_EDGES_MEASURE],
+					0, bfsGraph.size());
 			regionsList.add(region);
 		}
+		scorer.releaseAccumulator(accumulator);
 		// Sort the regions based on distortion values from the highest to the
 		// smallest.
 		Collections.sort(regionsList);
@@ -432,78 +524,267 @@ public class SpectralMethodRegionSelector {
 			HashMap<SpectralNode, HashMap<SpectralNode, Integer>> graph1,
 			HashMap<SpectralNode, HashMap<SpectralNode, Integer>> graph2,
 			HashMap<Integer, SpectralNode> node2Mapping, int regionMax) {
+		long start = Metrics.startTimer();
+		SearchPhaseEvent event = SearchPhaseEvent.begin(
+				SearchPhaseEvent.REGION_SCORING, "spectral_mapping", nodes.size());
 		evaluationMeasures = new double[6];
 		HashMap<Integer, String[]> graph1Results = new HashMap<Integer, String[]>();
-		int regionCount = 1;
+		// We only take the highest region in each one of the singular vectors.
+		ArrayList<Integer> regionKeys = new ArrayList<Integer>();
 		for (int region : graph2Results.keySet()) {
-			String[] edges = graph2Results.get(region);
+			if (regionKeys.size() >= regionMax) {
+				break;
+			}
+			regionKeys.add(region);
+		}
+		ArrayList<HashSet<SpectralNode>> regionNodes = new ArrayList<HashSet<SpectralNode>>();
+		int[][] regionIds = new int[regionKeys.size()][];
+		for (int i = 0; i < regionIds.length; i++) {
 			// Retrieve the nodes that appeared in this subgraph2.
-			HashSet<SpectralNode> graph2Nodes = new HashSet<SpectralNode>();
-			for (String edge : edges) {
-				String[] edgeNodes = edge.split(",");
-				SpectralNode node1 = nodes.get(Integer.parseInt(edgeNodes[0]));
-				SpectralNode node2 = nodes.get(Integer.parseInt(edgeNodes[1]));
-				graph2Nodes.add(node1);
-				graph2Nodes.add(node2);
+			HashSet<SpectralNode> graph2Nodes = getRegionNodes(graph2Results
+					.get(regionKeys.get(i)));
+			regionNodes.add(graph2Nodes);
+			regionIds[i] = toIds(graph2Nodes);
+		}
+		double[][] measures = getRegionScorer(graph1, graph2, nodes,
+				node2Mapping).score(regionIds);
+		for (int i = 0; i < regionIds.length; i++) {
+			HashSet<SpectralNode> graph2Nodes = regionNodes.get(i);
+			regionChangeValue = getDeltaSum(regionIds[i]) / graph2Nodes.size();
+			for (int j = 0; j < evaluationMeasures.length; j++) {
+				evaluationMeasures[j] += measures[i][j];
 			}
-			// Construct the corresponding subgraph 1.
-			HashMap<SpectralNode, HashSet<SpectralNode>> subgraph1 = new HashMap<SpectralNode, HashSet<SpectralNode>>();
-			double distortionValue = 0.0;
-			double edgesWithinRegionInGraph1 = 0.0;
-			double edgesWithinRegionInGraph2 = 0.0;
-			double regionNodesDegreeInGraph1 = 0.0;
-			double regionNodesDegreeInGraph2 = 0.0;
-			for (SpectralNode node : graph2Nodes) {
-				// Get the nodes that are connected to this node in graph2.
-				HashMap<SpectralNode, Integer> graph1Nodes = graph1.get(nodes.get(node
-						.getId()));
-				regionNodesDegreeInGraph1 += graph1Nodes.size();
-				HashMap<SpectralNode, Integer> graph2NodeNeibours = graph2
-						.get(node2Mapping.get(node.getId()));
-				regionNodesDegreeInGraph2 += graph2NodeNeibours.size();
-				// Only keep nodes that appear in subgraph1.
-				HashSet<SpectralNode> subNodes = new HashSet<SpectralNode>();
-				for (SpectralNode graph1Node : graph1Nodes.keySet()) {
-					if (graph2Nodes.contains(graph1Node)) {
-						subNodes.add(graph1Node);
-						edgesWithinRegionInGraph1++;
-					}
+			// Construct the corresponding subgraph 1 and convert it to the
+			// array format.
+			String[] subGraphArray = convertGraphToArray(getSubgraph1(
+					graph2Nodes, graph1, nodes));
+			graph1Results.put(regionKeys.get(i), subGraphArray);
+		}
+		Metrics.observeSince("spectral_get_mapping_seconds", start);
+		event.setParameters(regionMax, 0, 0).setBatch(0, graph2Results.size())
+				.finish();
+		return graph1Results;
+	}
+
+	/**
+	 * Get the nodes of a region given its edges.
+	 * 
+	 * @param edges
+	 *            region edges in the format source,destination.
+	 * @return nodes of the region.
+	 */
+	private HashSet<SpectralNode> getRegionNodes(String[] edges) {
+		HashSet<SpectralNode> regionNodes = new HashSet<SpectralNode>();
+		for (String edge : edges) {
+			String[] edgeNodes = edge.split(",");
+			SpectralNode node1 = nodes.get(Integer.parseInt(edgeNodes[0]));
+			SpectralNode node2 = nodes.get(Integer.parseInt(edgeNodes[1]));
+			regionNodes.add(node1);
+			regionNodes.add(node2);
+		}
+		return regionNodes;
+	}
+
+	/**
+	 * Get the subgraph of graph 1 induced by the nodes of a region.
+	 * 
+	 * @param regionNodes
+	 *            nodes of the region.
+	 * @param graph1
+	 *            graph 1 adjacency list.
+	 * @param node1Mapping
+	 *            mapping between node ID and graph 1 node.
+	 * @return graph 1 neighbors of each region node that are in the region.
+	 */
+	private HashMap<SpectralNode, HashSet<SpectralNode>> getSubgraph1(
+			HashSet<SpectralNode> regionNodes,
+			HashMap<SpectralNode, HashMap<SpectralNode, Integer>> graph1,
+			HashMap<Integer, SpectralNode> node1Mapping) {
+		HashMap<SpectralNode, HashSet<SpectralNode>> subgraph1 = new HashMap<SpectralNode, HashSet<SpectralNode>>();
+		for (SpectralNode node : regionNodes) {
+			// Get the nodes that are connected to this node in graph1.
+			HashMap<SpectralNode, Integer> graph1Nodes = graph1.get(node1Mapping
+					.get(node.getId()));
+			// Only keep nodes that appear in subgraph1.
+			HashSet<SpectralNode> subNodes = new HashSet<SpectralNode>();
+			for (SpectralNode graph1Node : graph1Nodes.keySet()) {
+				if (regionNodes.contains(graph1Node)) {
+					subNodes.add(graph1Node);
 				}
-				subgraph1.put(node, subNodes);
-				distortionValue = distortionValue + node.getDelta();
-				for (SpectralNode graph2Node : graph2NodeNeibours.keySet()) {
-					if (graph2Nodes.contains(nodes.get(graph2Node.getId()))) {
-						edgesWithinRegionInGraph2++;
-					}
+			}
+			subgraph1.put(node, subNodes);
+		}
+		return subgraph1;
+	}
+
+	/**
+	 * Get the IDs of the region nodes.
+	 * 
+	 * @param regionNodes
+	 *            nodes of the region.
+	 * @return node IDs.
+	 */
+	private static int[] toIds(Set<SpectralNode> regionNodes) {
+		int[] ids = new int[regionNodes.size()];
+		int index = 0;
+		for (SpectralNode node : regionNodes) {
+			ids[index++] = node.getId();
+		}
+		return ids;
+	}
+
+	/**
+	 * Sum the delta changes of the region nodes.
+	 * 
+	 * @param ids
+	 *            node IDs of the region.
+	 * @return sum of the delta changes.
+	 */
+	private double getDeltaSum(int[] ids) {
+		double sum = 0;
+		for (int id : ids) {
+			sum += nodesById[id].getDelta();
+		}
+		return sum;
+	}
+
+	/**
+	 * Region scorer with the graphs, the node mappings and the number of graph
+	 * changes it was built from.
+	 */
+	private static class CachedScorer {
+		private final RegionScorer scorer;
+		private final Object[] sources;
+		private final int changes;
+
+		private CachedScorer(RegionScorer scorer, Object[] sources,
+				int changes) {
+			this.scorer = scorer;
+			this.sources = sources;
+			this.changes = changes;
+		}
+
+		/**
+		 * @return true if the scorer was built from the same graphs and node
+		 *         mappings, with no change since.
+		 */
+		private boolean isBuiltFrom(Object[] otherSources, int otherChanges) {
+			if (changes != otherChanges) {
+				return false;
+			}
+			for (int i = 0; i < sources.length; i++) {
+				if (sources[i] != otherSources[i]) {
+					return false;
 				}
 			}
-			if (regionCount <= regionMax) { // We only take the highest region
-											// in each one of the singular
-											// vectors.
-				regionChangeValue = distortionValue / graph2Nodes.size();
-				evaluationMeasures[0] += distortionValue
-						/ Math.max(1, edgesWithinRegionInGraph1);
-				evaluationMeasures[1] += distortionValue
-						/ Math.max(1, edgesWithinRegionInGraph2);
-				evaluationMeasures[2] += distortionValue
-						/ Math.min(Math.max(1, edgesWithinRegionInGraph1),
-								Math.max(1, edgesWithinRegionInGraph2));
-				evaluationMeasures[3] += distortionValue
-						/ Math.max(1, regionNodesDegreeInGraph1);
-				evaluationMeasures[4] += distortionValue
-						/ Math.max(1, regionNodesDegreeInGraph2);
-				evaluationMeasures[5] += distortionValue
-						/ Math.min(Math.max(1, regionNodesDegreeInGraph1),
-								Math.max(1, regionNodesDegreeInGraph2));
-			} else {
-				break;
+			return true;
+		}
+	}
+
+	/**
+	 * Get the region scorer of graph 1 and graph 2, building it only the
+	 * first time these graphs are scored or after they changed.
+	 * 
+	 * @param graph1
+	 *            graph 1 adjacency list.
+	 * @param graph2
+	 *            graph 2 adjacency list.
+	 * @param node1Mapping
+	 *            mapping between node ID and graph 1 node.
+	 * @param node2Mapping
+	 *            mapping between node ID and graph 2 node.
+	 * @return region scorer of the two graphs.
+	 */
+	private RegionScorer getRegionScorer(
+			HashMap<SpectralNode, HashMap<SpectralNode, Integer>> graph1,
+			HashMap<SpectralNode, HashMap<SpectralNode, Integer>> graph2,
+			HashMap<Integer, SpectralNode> node1Mapping,
+			HashMap<Integer, SpectralNode> node2Mapping) {
+		Object[] sources = { graph1, graph2, node1Mapping, node2Mapping };
+		int changes = graphChanges.get();
+		CachedScorer cached = regionScorer;
+		if (cached != null && cached.isBuiltFrom(sources, changes)) {
+			return cached.scorer;
+		}
+		RegionScorer scorer = buildRegionScorer(graph1, graph2, node1Mapping,
+				node2Mapping);
+		regionScorer = new CachedScorer(scorer, sources, changes);
+		return scorer;
+	}
+
+	/**
+	 * Build the region scorer of graph 1 and graph 2 over the node IDs, with
+	 * the delta changes of the nodes of this selector. Neighbors are matched
+	 * to the region nodes by their ID.
+	 * 
+	 * @param graph1
+	 *            graph 1 adjacency list.
+	 * @param graph2
+	 *            graph 2 adjacency list.
+	 * @param node1Mapping
+	 *            mapping between node ID and graph 1 node.
+	 * @param node2Mapping
+	 *            mapping between node ID and graph 2 node.
+	 * @return region scorer of the two graphs.
+	 */
+	private RegionScorer buildRegionScorer(
+			HashMap<SpectralNode, HashMap<SpectralNode, Integer>> graph1,
+			HashMap<SpectralNode, HashMap<SpectralNode, Integer>> graph2,
+			HashMap<Integer, SpectralNode> node1Mapping,
+			HashMap<Integer, SpectralNode> node2Mapping) {
+		int n = nodesById.length;
+		int[] offsets1 = new int[n + 1];
+		int[] offsets2 = new int[n + 1];
+		double[] deltas = new double[n];
+		ArrayList<HashMap<SpectralNode, Integer>> rows1 = new ArrayList<HashMap<SpectralNode, Integer>>(
+				n);
+		ArrayList<HashMap<SpectralNode, Integer>> rows2 = new ArrayList<HashMap<SpectralNode, Integer>>(
+				n);
+		for (int id = 0; id < n; id++) {
+			SpectralNode node = nodesById[id];
+			HashMap<SpectralNode, Integer> row1 = node == null ? null : graph1
+					.get(node1Mapping.get(id));
+			HashMap<SpectralNode, Integer> row2 = node == null ? null : graph2
+					.get(node2Mapping.get(id));
+			rows1.add(row1);
+			rows2.add(row2);
+			offsets1[id + 1] = offsets1[id] + (row1 == null ? 0 : row1.size());
+			offsets2[id + 1] = offsets2[id] + (row2 == null ? 0 : row2.size());
+			deltas[id] = node == null ? 0 : node.getDelta();
+		}
+		int[] targets1 = new int[offsets1[n]];
+		int[] targets2 = new int[offsets2[n]];
+		for (int id = 0; id < n; id++) {
+			HashMap<SpectralNode, Integer> row1 = rows1.get(id);
+			if (row1 != null) {
+				int j = offsets1[id];
+				for (SpectralNode neighbor : row1.keySet()) {
+					targets1[j++] = toIndex(neighbor);
+				}
+			}
+			HashMap<SpectralNode, Integer> row2 = rows2.get(id);
+			if (row2 != null) {
+				int j = offsets2[id];
+				for (SpectralNode neighbor : row2.keySet()) {
+					targets2[j++] = toIndex(neighbor);
+				}
 			}
-			regionCount++;
-			// Convert to the array format.
-			String[] subGraphArray = convertGraphToArray(subgraph1);
-			graph1Results.put(region, subGraphArray);
 		}
-		return graph1Results;
+		return new RegionScorer(offsets1, targets1, offsets2, targets2, deltas);
+	}
+
+	/**
+	 * Get the scorer vertex index of a neighbor.
+	 * 
+	 * @param neighbor
+	 *            node of either graph.
+	 * @return ID of the neighbor, or -1 if this selector has no node with its
+	 *         ID.
+	 */
+	private int toIndex(SpectralNode neighbor) {
+		int id = neighbor.getId();
+		return id >= 0 && id < nodesById.length && nodesById[id] != null ? id
+				: -1;
 	}
 
 	/**
@@ -525,82 +806,42 @@ public class SpectralMethodRegionSelector {
 		HashMap<Double, String[]> graph1Results = new HashMap<Double, String[]>();
 		// sort graph2results
 		List<Entry<Double, Double>> SortedGrahResultMapping = entriesSortedByValues(grahResultMapping);
-		int regionCount = 1;
+		// We only take the highest region in each one of the singular vectors.
+		ArrayList<Double> regionKeys = new ArrayList<Double>();
 		for (Entry<Double, Double> regionPair : SortedGrahResultMapping) {
-			Double region = regionPair.getKey();
-			String[] edges = graph2Results.get(region);
-			// Retrieve the nodes that appeared in this subgraph2.
-			HashSet<SpectralNode> graph2Nodes = new HashSet<SpectralNode>();
-			for (String edge : edges) {
-				String[] edgeNodes = edge.split(",");
-				SpectralNode node1 = nodes.get(Integer.parseInt(edgeNodes[0]));
-				SpectralNode node2 = nodes.get(Integer.parseInt(edgeNodes[1]));
-				graph2Nodes.add(node1);
-				graph2Nodes.add(node2);
-			}
-			// Construct the corresponding subgraph 1.
-			HashMap<SpectralNode, HashSet<SpectralNode>> subgraph1 = new HashMap<SpectralNode, HashSet<SpectralNode>>();
-			double distortionValue = 0.0;
-			double edgesWithinRegionInGraph1 = 0.0;
-			double edgesWithinRegionInGraph2 = 0.0;
-			double regionNodesDegreeInGraph1 = 0.0;
-			double regionNodesDegreeInGraph2 = 0.0;
-			for (SpectralNode node : graph2Nodes) {
-				// Get the nodes that are connected to this node in graph2.
-
-				HashMap<SpectralNode, Integer> graph1Nodes = graph1.get(node1Mapping
-						.get(node.getId()));
-				regionNodesDegreeInGraph1 += graph1Nodes.size();
-				HashMap<SpectralNode, Integer> graph2NodeNeibours = graph2
-						.get(node2Mapping.get(node.getId()));
-				regionNodesDegreeInGraph2 += graph2NodeNeibours.size();
-				// Only keep nodes that appear in subgraph1.
-				HashSet<SpectralNode> subNodes = new HashSet<SpectralNode>();
-				for (SpectralNode graph1Node : graph1Nodes.keySet()) {
-					if (graph2Nodes.contains(graph1Node)) {
-						subNodes.add(graph1Node);
-						edgesWithinRegionInGraph1++;
-					}
-				}
-				subgraph1.put(node, subNodes);
-				distortionValue = distortionValue + node.getDelta();
-				for (SpectralNode graph2Node : graph2NodeNeibours.keySet()) {
-					if (graph2Nodes.contains(nodes.get(graph2Node.getId()))) {
-						edgesWithinRegionInGraph2++;
-					}
-				}
+			if (regionKeys.size() >= regionMax) {
+				break;
 			}
-			if (regionCount <= regionMax) { // We only take the highest region
-											// in each one of the singular
-											// vectors.
-				regionChangeValue = distortionValue / graph2Nodes.size();
-				Double[] measure = new Double[6];
-				measure[0] = distortionValue
-						/ Math.max(1, edgesWithinRegionInGraph1);
-				measure[1] = distortionValue
-						/ Math.max(1, edgesWithinRegionInGraph2);
-				measure[2] = distortionValue
-						/ Math.min(Math.max(1, edgesWithinRegionInGraph1),
-								Math.max(1, edgesWithinRegionInGraph2));
-				measure[3] = distortionValue
-						/ Math.max(1, regionNodesDegreeInGraph1);
-				measure[4] = distortionValue
-						/ Math.max(1, regionNodesDegreeInGraph2);
-				measure[5] = distortionValue
-						/ Math.min(Math.max(1, regionNodesDegreeInGraph1),
-								Math.max(1, regionNodesDegreeInGraph2));
-				for (int i = 0; i < measure.length; i++) {
-					evaluationMeasures[i] += measure[i];
-				}
-				regionEvaluationMeasures.add(measure);
+			regionKeys.add(regionPair.getKey());
+		}
+		ArrayList<HashSet<SpectralNode>> regionNodes = new ArrayList<HashSet<SpectralNode>>();
+		int[][] regionIds = new int[regionKeys.size()][];
+		for (int i = 0; i < regionIds.length; i++) {
+			// Retrieve the nodes that appeared in this subgraph2.
+			HashSet<SpectralNode> graph2Nodes = getRegionNodes(graph2Results
+					.get(regionKeys.get(i)));
+			regionNodes.add(graph2Nodes);
+			regionIds[i] = toIds(graph2Nodes);
+		}
+		double[][] measures = getRegionScorer(graph1, graph2, node1Mapping,
+				node2Mapping).score(regionIds);
+		for (int i = 0; i < regionIds.length; i++) {
+			HashSet<SpectralNode> graph2Nodes = regionNodes.get(i);
+			regionChangeValue = getDeltaSum(regionIds[i]) / graph2Nodes.size();
+			Double[] measure = new Double[6];
+			for (int j = 0; j < measure.length; j++) {
+				measure[j] = measures[i][j];
+				evaluationMeasures[j] += measures[i][j];
 			}
-			regionCount++;
-			if (regionCount > regionMax) {
-				break;
+			regionEvaluationMeasures.add(measure);
+			// The subgraph 1 of the last region isn't returned.
+			if (i + 1 < regionMax) {
+				// Construct the corresponding subgraph 1 and convert it to the
+				// array format.
+				String[] subGraphArray = convertGraphToArray(getSubgraph1(
+						graph2Nodes, graph1, node1Mapping));
+				graph1Results.put(regionKeys.get(i), subGraphArray);
 			}
-			// Convert to the array format.
-			String[] subGraphArray = convertGraphToArray(subgraph1);
-			graph1Results.put(region, subGraphArray);
 		}
 		return graph1Results;
 	}
@@ -641,6 +882,9 @@ public class SpectralMethodRegionSelector {
 			HashMap<Integer, SpectralNode> nodeMapping1,
 			HashMap<SpectralNode, HashMap<SpectralNode, Integer>> graph2,
 			HashMap<Integer, SpectralNode> nodeMapping2) {
+		// The delta changes may belong to the nodes another selector scores.
+		regionScorer = null;
+		graphChanges.incrementAndGet();
 		int test = 0;
 		for (SpectralNode node1 : graph1.keySet()) { // For each node in graph1.
 			// Get the node neighbors.
@@ -693,6 +937,10 @@ public class SpectralMethodRegionSelector {
 			HashMap<Integer, SpectralNode> nodeMapping1, ArrayList<SpectralNode> nodeList1,
 			HashMap<SpectralNode, HashMap<SpectralNode, Integer>> graph2,
 			HashMap<Integer, SpectralNode> nodeMapping2, ArrayList<SpectralNode> nodeList2) {
+		// The removed nodes may belong to this selector graph.
+		sortedNeighbors = null;
+		regionScorer = null;
+		graphChanges.incrementAndGet();
 		HashSet<SpectralNode> graph1Nodes = new HashSet<SpectralNode>();
 		// get graph1 nodes.
 		graph1Nodes.addAll(graph1.keySet());
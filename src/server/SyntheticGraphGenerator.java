@@ -0,0 +1,437 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Generates a pair of synthetic graphs (graph1, graph2) with power-law degrees, where graph2 is a
+ * copy of graph1 with a number of planted dense change regions. The planted regions are known, so
+ * benchmarks and correctness checks can verify that the region selection methods recover them.
+ */
+public class SyntheticGraphGenerator {
+
+  // Number of nodes in the graphs, nodes are numbered from 1 to nodesNumber.
+  private int nodesNumber;
+  // Average node degree of graph1.
+  private double averageDegree;
+  // Power-law exponent of the degree distribution.
+  private double exponent;
+  // Number of planted change regions.
+  private int regionsNumber;
+  // Number of nodes in each planted change region.
+  private int regionSize;
+  // Probability of adding an edge between two nodes of the same planted region in graph2.
+  private double regionDensity;
+  // Random generator, seeded to make the generated graphs reproducible.
+  private Random random;
+  // Edges of graph1, each edge is encoded as (min node id << 32 | max node id), sorted and unique.
+  private long[] edges1;
+  // Edges of graph2 in the same encoding as edges1.
+  private long[] edges2;
+  // Nodes of the planted regions, plantedRegions[i] holds the node ids of region i.
+  private int[][] plantedRegions;
+
+  /**
+   * Constructor.
+   *
+   * @param nodesNumber number of nodes in the graphs.
+   * @param averageDegree average node degree of graph1.
+   * @param exponent power-law exponent of the degree distribution, it should be greater than 2.
+   * @param regionsNumber number of planted change regions.
+   * @param regionSize number of nodes in each planted change region.
+   * @param regionDensity probability of adding an edge inside a planted region in graph2.
+   * @param seed random seed.
+   * @throws IllegalArgumentException if a parameter is out of its range or the planted regions
+   *         don't fit in the graphs without overlapping.
+   */
+  public SyntheticGraphGenerator(int nodesNumber, double averageDegree, double exponent,
+      int regionsNumber, int regionSize, double regionDensity, long seed) {
+    if (nodesNumber <= 0) {
+      throw new IllegalArgumentException("Nodes number " + nodesNumber + " is not positive");
+    }
+    // Negated comparisons, so that NaN parameters are rejected too.
+    if (!(averageDegree >= 0) || Double.isInfinite(averageDegree)) {
+      throw new IllegalArgumentException("Average degree " + averageDegree
+          + " is not a finite non-negative number");
+    }
+    // The degree weights i^(-1/(exponent-1)) are NaN or degenerate below 1, and the degree
+    // variance is unbounded up to 2.
+    if (!(exponent > 2)) {
+      throw new IllegalArgumentException("Exponent " + exponent + " is not greater than 2");
+    }
+    if (regionsNumber < 0) {
+      throw new IllegalArgumentException("Regions number " + regionsNumber + " is negative");
+    }
+    if (regionSize <= 0) {
+      throw new IllegalArgumentException("Region size " + regionSize + " is not positive");
+    }
+    if (!(regionDensity >= 0 && regionDensity <= 1)) {
+      throw new IllegalArgumentException("Region density " + regionDensity
+          + " is not a probability");
+    }
+    // The regions don't overlap, so they need regionsNumber * regionSize distinct nodes.
+    if ((long) regionsNumber * regionSize > nodesNumber) {
+      throw new IllegalArgumentException(regionsNumber + " regions of " + regionSize
+          + " nodes don't fit in " + nodesNumber + " nodes");
+    }
+    this.nodesNumber = nodesNumber;
+    this.averageDegree = averageDegree;
+    this.exponent = exponent;
+    this.regionsNumber = regionsNumber;
+    this.regionSize = regionSize;
+    this.regionDensity = regionDensity;
+    this.random = new Random(seed);
+  }
+
+  /**
+   * Generate graph1 with power-law degrees, then plant the dense change regions in graph2.
+   */
+  public void generate() {
+    edges1 = generatePowerLawEdges();
+    plantedRegions = new int[regionsNumber][];
+    // Nodes already used by a planted region, so that the regions don't overlap.
+    boolean[] used = new boolean[nodesNumber + 1];
+    int[][] adjacency1 = buildAdjacency(edges1);
+    long[] addedEdges = new long[0];
+    int addedEdgesNumber = 0;
+    for (int r = 0; r < regionsNumber; r++) {
+      int[] region = growRegion(adjacency1, used);
+      plantedRegions[r] = region;
+      // Densify the region in graph2.
+      for (int i = 0; i < region.length; i++) {
+        for (int j = i + 1; j < region.length; j++) {
+          if (random.nextDouble() >= regionDensity) {
+            continue;
+          }
+          if (addedEdgesNumber == addedEdges.length) {
+            addedEdges = Arrays.copyOf(addedEdges, Math.max(16, addedEdges.length * 2));
+          }
+          addedEdges[addedEdgesNumber++] = encodeEdge(region[i], region[j]);
+        }
+      }
+    }
+    long[] allEdges = Arrays.copyOf(edges1, edges1.length + addedEdgesNumber);
+    System.arraycopy(addedEdges, 0, allEdges, edges1.length, addedEdgesNumber);
+    edges2 = sortUnique(allEdges, allEdges.length);
+  }
+
+  /**
+   * Generate the edges of a Chung-Lu graph, where node i has an expected degree proportional to
+   * i^(-1/(exponent-1)).
+   *
+   * @return sorted unique edges.
+   */
+  private long[] generatePowerLawEdges() {
+    // Cumulative weights used to sample the edge end points.
+    double[] cumulativeWeights = new double[nodesNumber];
+    double sum = 0;
+    for (int i = 0; i < nodesNumber; i++) {
+      sum += Math.pow(i + 1, -1.0 / (exponent - 1));
+      cumulativeWeights[i] = sum;
+    }
+    int edgesNumber = (int) Math.min(Integer.MAX_VALUE - 8, (long) (nodesNumber * averageDegree / 2));
+    long[] edges = new long[edgesNumber];
+    int index = 0;
+    for (int e = 0; e < edgesNumber; e++) {
+      int node1 = sampleNode(cumulativeWeights, sum);
+      int node2 = sampleNode(cumulativeWeights, sum);
+      if (node1 == node2) { // Ignore self loops.
+        continue;
+      }
+      edges[index++] = encodeEdge(node1, node2);
+    }
+    return sortUnique(edges, index);
+  }
+
+  /**
+   * Sample a node id with probability proportional to its weight.
+   *
+   * @param cumulativeWeights cumulative node weights.
+   * @param sum total weight.
+   * @return sampled node id, starting from 1.
+   */
+  private int sampleNode(double[] cumulativeWeights, double sum) {
+    int position = Arrays.binarySearch(cumulativeWeights, random.nextDouble() * sum);
+    if (position < 0) {
+      position = -position - 1;
+    }
+    return Math.min(position, nodesNumber - 1) + 1;
+  }
+
+  /**
+   * Grow a connected region of regionSize nodes by BFS from a random unused node in graph1. If the
+   * BFS gets stuck, random unused nodes are added to reach regionSize.
+   *
+   * @param adjacency graph1 adjacency list.
+   * @param used nodes already selected in previous regions.
+   * @return node ids of the region.
+   */
+  private int[] growRegion(int[][] adjacency, boolean[] used) {
+    int[] region = new int[regionSize];
+    int size = 0;
+    int start = 1 + random.nextInt(nodesNumber);
+    while (used[start]) {
+      start = 1 + random.nextInt(nodesNumber);
+    }
+    // The region array is used as the BFS queue.
+    int head = 0;
+    region[size++] = start;
+    used[start] = true;
+    while (size < regionSize) {
+      if (head == size) { // BFS got stuck, add a random unused node.
+        int node = 1 + random.nextInt(nodesNumber);
+        if (!used[node]) {
+          region[size++] = node;
+          used[node] = true;
+        }
+        continue;
+      }
+      int node = region[head++];
+      for (int neighbor : adjacency[node]) {
+        if (!used[neighbor]) {
+          region[size++] = neighbor;
+          used[neighbor] = true;
+          if (size == regionSize) {
+            break;
+          }
+        }
+      }
+    }
+    return region;
+  }
+
+  /**
+   * Build the adjacency list of the given edges.
+   *
+   * @param edges sorted unique edges.
+   * @return adjacency[i] is the neighbors of node i.
+   */
+  private int[][] buildAdjacency(long[] edges) {
+    int[] degrees = new int[nodesNumber + 1];
+    for (long edge : edges) {
+      degrees[(int) (edge >>> 32)]++;
+      degrees[(int) edge]++;
+    }
+    int[][] adjacency = new int[nodesNumber + 1][];
+    for (int i = 0; i <= nodesNumber; i++) {
+      adjacency[i] = new int[degrees[i]];
+      degrees[i] = 0;
+    }
+    for (long edge : edges) {
+      int node1 = (int) (edge >>> 32);
+      int node2 = (int) edge;
+      adjacency[node1][degrees[node1]++] = node2;
+      adjacency[node2][degrees[node2]++] = node1;
+    }
+    return adjacency;
+  }
+
+  /**
+   * Encode an undirected edge in a single long value.
+   *
+   * @param node1 first node id.
+   * @param node2 second node id.
+   * @return encoded edge.
+   */
+  private static long encodeEdge(int node1, int node2) {
+    return ((long) Math.min(node1, node2) << 32) | Math.max(node1, node2);
+  }
+
+  /**
+   * Sort the first length edges and remove the duplicates.
+   *
+   * @param edges to sort.
+   * @param length number of valid edges.
+   * @return sorted unique edges.
+   */
+  private static long[] sortUnique(long[] edges, int length) {
+    Arrays.sort(edges, 0, length);
+    int unique = 0;
+    for (int i = 0; i < length; i++) {
+      if (unique == 0 || edges[unique - 1] != edges[i]) {
+        edges[unique++] = edges[i];
+      }
+    }
+    return Arrays.copyOf(edges, unique);
+  }
+
+  /**
+   * Convert the edges into the graph array format used by GraphCalculator.readGraphs, where each
+   * index has from node id, to node id and the weight of the edge.
+   *
+   * @param edges to convert.
+   * @return graph array.
+   */
+  private static double[][] toGraphArray(long[] edges) {
+    double[][] graph = new double[edges.length][3];
+    for (int i = 0; i < edges.length; i++) {
+      graph[i][0] = (int) (edges[i] >>> 32);
+      graph[i][1] = (int) edges[i];
+      graph[i][2] = 1;
+    }
+    return graph;
+  }
+
+  /**
+   * Get graph1 in the graph array format.
+   *
+   * @return graph1 array.
+   */
+  public double[][] getGraph1Array() {
+    return toGraphArray(edges1);
+  }
+
+  /**
+   * Get graph2 in the graph array format.
+   *
+   * @return graph2 array.
+   */
+  public double[][] getGraph2Array() {
+    return toGraphArray(edges2);
+  }
+
+  /**
+   * Get the planted regions.
+   *
+   * @return plantedRegions[i] holds the node ids of region i.
+   */
+  public int[][] getPlantedRegions() {
+    return plantedRegions;
+  }
+
+  /**
+   * Calculate the fraction of planted region nodes that are covered by the given regions.
+   *
+   * @param regions returned by one of the region selection methods.
+   * @return recall of the planted region nodes, between 0 and 1.
+   */
+  public double getPlantedRegionsRecall(ArrayList<HashSet<Node>> regions) {
+    boolean[] found = new boolean[nodesNumber + 1];
+    for (HashSet<Node> region : regions) {
+      for (Node node : region) {
+        int number = node.getNumber();
+        found[number >= 0 ? number : (int) Double.parseDouble(node.getId())] = true;
+      }
+    }
+    double plantedNodes = 0;
+    double recoveredNodes = 0;
+    for (int[] plantedRegion : plantedRegions) {
+      for (int node : plantedRegion) {
+        plantedNodes++;
+        if (found[node]) {
+          recoveredNodes++;
+        }
+      }
+    }
+    return recoveredNodes / Math.max(1, plantedNodes);
+  }
+
+  /**
+   * Write the edges in the Spectral Method Format, which is a single line of edges where each edge
+   * is written in both directions as node1,node2,edge_value-.
+   *
+   * @param edges to write.
+   * @param outputFile file to write to.
+   * @throws IOException
+   */
+  private void writeSpectralFormat(long[] edges, String outputFile) throws IOException {
+    BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile), 1 << 16);
+    for (long edge : edges) {
+      int node1 = (int) (edge >>> 32);
+      int node2 = (int) edge;
+      writer.write(node1 + "," + node2 + ",1-," + node2 + "," + node1 + ",1-");
+    }
+    writer.newLine();
+    writer.close();
+  }
+
+  /**
+   * Write the edges in the node list format, where each line represents a node as follows:
+   * node_id,node_value,[neighbor_id:edge_value,..].
+   *
+   * @param edges to write.
+   * @param outputFile file to write to.
+   * @throws IOException
+   */
+  private void writeNodeListFormat(long[] edges, String outputFile) throws IOException {
+    int[][] adjacency = buildAdjacency(edges);
+    BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile), 1 << 16);
+    for (int node = 1; node <= nodesNumber; node++) {
+      writer.write(node + ",1,[");
+      int[] neighbors = adjacency[node];
+      for (int i = 0; i < neighbors.length; i++) {
+        if (i > 0) {
+          writer.write(',');
+        }
+        writer.write(neighbors[i] + ":1");
+      }
+      writer.write(']');
+      writer.newLine();
+    }
+    writer.close();
+  }
+
+  /**
+   * Write graph1 and graph2 in the Spectral Method Format and the node list format, and write the
+   * planted regions with a line of comma separated node ids for each region.
+   *
+   * @param outputDirectory directory to write the files to.
+   * @param name suffix of the file names.
+   * @throws IOException
+   */
+  public void write(String outputDirectory, String name) throws IOException {
+    File spectralDirectory = new File(outputDirectory, "Spectral Method Format");
+    File nodeListDirectory = new File(outputDirectory, "Related Work Format");
+    spectralDirectory.mkdirs();
+    nodeListDirectory.mkdirs();
+    writeSpectralFormat(edges1, new File(spectralDirectory, "graph_1_" + name + ".txt").getPath());
+    writeSpectralFormat(edges2, new File(spectralDirectory, "graph_2_" + name + ".txt").getPath());
+    writeNodeListFormat(edges1, new File(nodeListDirectory, "graph_1_" + name + ".txt").getPath());
+    writeNodeListFormat(edges2, new File(nodeListDirectory, "graph_2_" + name + ".txt").getPath());
+    BufferedWriter writer =
+        new BufferedWriter(new FileWriter(new File(outputDirectory, "planted_regions_" + name
+            + ".txt")));
+    for (int[] region : plantedRegions) {
+      for (int node : region) {
+        writer.write(node + ",");
+      }
+      writer.newLine();
+    }
+    writer.close();
+  }
+
+  /**
+   * @param args argument sent for the program.
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 8) {
+      System.out.println("Java -jar SyntheticGraphGenerator.jar outputDirectory nodesNumber averageDegree exponent regionsNumber regionSize regionDensity seed");
+      return;
+    }
+    String outputDirectory = args[0];
+    int nodesNumber = Integer.parseInt(args[1]); // 1000000
+    double averageDegree = Double.parseDouble(args[2]); // 10
+    double exponent = Double.parseDouble(args[3]); // 2.5
+    int regionsNumber = Integer.parseInt(args[4]); // 10
+    int regionSize = Integer.parseInt(args[5]); // 16
+    double regionDensity = Double.parseDouble(args[6]); // 0.8
+    long seed = Long.parseLong(args[7]); // 1
+    SyntheticGraphGenerator generator =
+        new SyntheticGraphGenerator(nodesNumber, averageDegree, exponent, regionsNumber,
+            regionSize, regionDensity, seed);
+    generator.generate();
+    String name =
+        "synthetic_" + nodesNumber + "_" + generator.edges1.length + "_" + regionsNumber + "_"
+            + seed;
+    generator.write(outputDirectory, name);
+    System.out.println("Graph 1 edges = " + generator.edges1.length);
+    System.out.println("Graph 2 edges = " + generator.edges2.length);
+  }
+}
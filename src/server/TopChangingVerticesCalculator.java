@@ -11,6 +11,10 @@ public class TopChangingVerticesCalculator {
 
   // GraphCalculator contains the graphs and common operation to do on them.
   private GraphCalculator graphCalculator;
+  // Metrics recorded by every search.
+  private static final Metrics.Histogram SEARCH_SECONDS =
+      Metrics.histogram("calculator_region_search_seconds",
+          "calculator=\"top_changing_vertices\"");
   // Input file for graph1.
   private String inputFile1;
   // Input file for graph2.
@@ -87,6 +91,7 @@ public class TopChangingVerticesCalculator {
    */
   public ArrayList<HashSet<Node>> getTopChangingVertcies(int regionNumber, int nodesNumPerRegion,
       int baisedk, TraversalMethods traversalMethod) {
+    long start = Metrics.startTimer();
     HashMap<Node, HashMap<Node, Integer>> graph2 = graphCalculator.getGraph2();
     // If the region number is greater than the number of nodes, then
     // set the region number to the number of nodes in the graph.
@@ -98,15 +103,25 @@ public class TopChangingVerticesCalculator {
       nodes[index++] = node1;
     }
     // Sort the nodes based on their distortion values from the highest to lowest.
+    SearchPhaseEvent sortingEvent =
+        SearchPhaseEvent.begin(SearchPhaseEvent.SORTING, traversalMethod.name(), graph2.size());
     Arrays.sort(nodes);
+    sortingEvent.setParameters(regionNumber, nodesNumPerRegion, baisedk)
+        .setBatch(0, nodes.length).finish();
+    SearchPhaseEvent expansionEvent =
+        SearchPhaseEvent.begin(SearchPhaseEvent.REGION_EXPANSION, traversalMethod.name(),
+            graph2.size());
     ArrayList<HashSet<Node>> highestDistortionRegions = new ArrayList<HashSet<Node>>();
+    // Traditional BFS from all the start nodes run in batches that share the adjacency rows.
+    int[][] bfsRegions = traversalMethod == TraversalMethods.BFS
+        ? graphCalculator.BFS(nodes, 0, regionNumber, nodesNumPerRegion) : null;
     for (int i = 0; i < regionNumber; i++) {
       // Start from the nodes of high distortion value and do BFS or its variations to return the
       // ith region.
       HashSet<Node> regionI = null;
       switch (traversalMethod) {
         case BFS:
-          regionI = graphCalculator.BFS(nodes[i], nodesNumPerRegion);
+          regionI = graphCalculator.toNodes(bfsRegions[i]);
           break;
         case BiasedBFS:
           regionI = graphCalculator.BFSBiased(nodes[i], nodesNumPerRegion, baisedk);
@@ -117,6 +132,9 @@ public class TopChangingVerticesCalculator {
       }
       highestDistortionRegions.add(regionI);
     }
+    expansionEvent.setParameters(regionNumber, nodesNumPerRegion, baisedk)
+        .setBatch(0, regionNumber).finish();
+    SEARCH_SECONDS.observeSince(start);
     return highestDistortionRegions;
   }
 
@@ -165,75 +183,33 @@ public class TopChangingVerticesCalculator {
    * @return regions.
    * @throws IOException
    */
-  public ArrayList<ArrayList<String>> runWithUI(int regionNumber, int nodesNumPerRegion,
+  public RegionCache.Result runWithUI(int regionNumber, int nodesNumPerRegion,
       double[][] graph1, double[][] graph2, int selectedRegion, int selectedTraversalMethod,
       int biasedk) throws IOException {
-    // Load the graphs.
-    graphCalculator.readGraphs(graph1, graph2);
-    // Calculate delta change for each node.
-    graphCalculator.calculateDeltaGraph();
-    ArrayList<HashSet<Node>> topChangingVertciesBFSRegions = null;
-    if (selectedTraversalMethod == 0) {
-      topChangingVertciesBFSRegions =
-          getTopChangingVertcies(regionNumber, nodesNumPerRegion, 0, TraversalMethods.BFS);
-    } else if (selectedTraversalMethod == 1) {
-      topChangingVertciesBFSRegions =
-          getTopChangingVertcies(regionNumber, nodesNumPerRegion, biasedk,
-              TraversalMethods.BiasedBFS);
-    } else if (selectedTraversalMethod == 2) {
-      topChangingVertciesBFSRegions =
-          getTopChangingVertcies(regionNumber, nodesNumPerRegion, 0,
-              TraversalMethods.BFSPriorityQueue);
-    }
-    // Get graph1 region.
-    HashSet<Node> selectedNodes = topChangingVertciesBFSRegions.get(selectedRegion);
-    HashMap<Node, HashMap<Node, Integer>> graph1Map = graphCalculator.getGraph1();
-    HashMap<String, Node> nodeMapping1 = graphCalculator.getNodeMapping1();
-    HashMap<String, Node> nodeMapping2 = graphCalculator.getNodeMapping2();
-    ArrayList<String> graph1Region = new ArrayList<String>();
-    for (Node node : selectedNodes) {
-      HashMap<Node, Integer> neighborNodes = graph1Map.get(nodeMapping1.get(node.getId()));
-      if (neighborNodes == null) {
-    	  neighborNodes = new HashMap<Node, Integer>();      }
-      for (Node neighborNode : neighborNodes.keySet()) {
-        if (selectedNodes.contains(nodeMapping2.get(neighborNode.getId()))) {
-          graph1Region.add((int)Double.parseDouble(node.getId()) + "," + (int)Double.parseDouble(neighborNode.getId()));
-        }
+    String key = RegionCache.key(graph1, graph2, "top_changing_vertices_" + selectedTraversalMethod,
+        regionNumber, nodesNumPerRegion, selectedTraversalMethod == 1 ? biasedk : 0);
+    RegionCache.Entry entry = RegionCache.get(key);
+    if (entry == null) {
+      // Load the graphs.
+      graphCalculator.readGraphs(graph1, graph2);
+      // Calculate delta change for each node.
+      graphCalculator.calculateDeltaGraph();
+      ArrayList<HashSet<Node>> topChangingVertciesBFSRegions = null;
+      if (selectedTraversalMethod == 0) {
+        topChangingVertciesBFSRegions =
+            getTopChangingVertcies(regionNumber, nodesNumPerRegion, 0, TraversalMethods.BFS);
+      } else if (selectedTraversalMethod == 1) {
+        topChangingVertciesBFSRegions =
+            getTopChangingVertcies(regionNumber, nodesNumPerRegion, biasedk,
+                TraversalMethods.BiasedBFS);
+      } else if (selectedTraversalMethod == 2) {
+        topChangingVertciesBFSRegions =
+            getTopChangingVertcies(regionNumber, nodesNumPerRegion, 0,
+                TraversalMethods.BFSPriorityQueue);
       }
+      entry = RegionCache.put(key, graphCalculator, topChangingVertciesBFSRegions);
     }
-    // Get graph2 region.
-    HashMap<Node, HashMap<Node, Integer>> graph2Map = graphCalculator.getGraph2();
-    ArrayList<String> graph2Region = new ArrayList<String>();
-    for (Node node : selectedNodes) {
-      HashMap<Node, Integer> neighborNodes = graph2Map.get(node);
-      if (neighborNodes == null) {
-    	  neighborNodes = new HashMap<Node, Integer>();
-      }
-      for (Node neighborNode : neighborNodes.keySet()) {
-        if (selectedNodes.contains(neighborNode)) {
-          graph2Region.add((int)Double.parseDouble(node.getId()) + "," + (int) Double.parseDouble(neighborNode.getId()));
-        }
-      }
-    }
-    // Get node colors.
-    double max = -1;
-    double min = 100000;
-    for (Node node : graph2Map.keySet()) {
-      max = Math.max(max, node.getDistortionValue());
-      min = Math.min(min, node.getDistortionValue());
-    }
-    ArrayList<String> nodeColors = new ArrayList<String>();
-    for (Node node : graph2Map.keySet()) {
-      int normalizedDistortionValue =
-          (int) ((((node.getDistortionValue() - min) / (max - min))) * (Integer.MAX_VALUE - 100000));
-      String hexColor = String.format("#%06X", (0xFFFFFF & normalizedDistortionValue));
-      nodeColors.add(node.getId() + "," + hexColor);
-    }
-    ArrayList<ArrayList<String>> bothGraphRegions = new ArrayList<ArrayList<String>>();
-    bothGraphRegions.add(graph1Region);
-    bothGraphRegions.add(graph2Region);
-    bothGraphRegions.add(nodeColors);
-    return bothGraphRegions;
+    return entry.getRegion(selectedRegion);
   }
 
 
@@ -252,6 +228,7 @@ public class TopChangingVerticesCalculator {
     int regionNumber = Integer.parseInt(args[2]); //10
     int nodesNumPerRegion = Integer.parseInt(args[3]); //16
     int baisedk = Integer.parseInt(args[4]); //5
+    Metrics.startServerIfConfigured();
     TopChangingVerticesCalculator calculator =
         new TopChangingVerticesCalculator(inputFile1, inputFile2);
     calculator.run(regionNumber, nodesNumPerRegion, baisedk);
@@ -3,8 +3,20 @@ package server;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 public class TopChangingVerticesExhaustiveCalculator {
@@ -16,6 +28,40 @@ public class TopChangingVerticesExhaustiveCalculator {
   // Input file for graph2.
   private String inputFile2;
 
+  // Metrics recorded by every search and every expanded batch.
+  private static final Metrics.Histogram EXHAUSTIVE_SEARCH_SECONDS =
+      Metrics.histogram("calculator_region_search_seconds",
+          "calculator=\"top_changing_vertices_exhaustive\"");
+  private static final Metrics.Histogram APPROXIMATE_SEARCH_SECONDS =
+      Metrics.histogram("calculator_region_search_seconds",
+          "calculator=\"top_changing_vertices_approximate\"");
+  private static final Metrics.Counter APPROXIMATE_EXPANDED =
+      Metrics.counter("approximate_search_expanded_total", null);
+  private static final Metrics.Counter REFINEMENTS_DISCARDED =
+      Metrics.counter("approximate_search_refinements_discarded_total", null);
+
+  // Number of start nodes expanded and scored together in the exhaustive search.
+  private static final int BATCH_SIZE = 1024;
+  // Number of start nodes the approximate search of the browser tool expands before answering.
+  private static final int APPROXIMATE_BUDGET = 8192;
+  // Maximum number of refinements waiting for the refinement thread, each keeps its graphs alive.
+  private static final int MAX_PENDING_REFINEMENTS = 4;
+  // Refines approximate searches to exact ones, on a daemon thread so that it doesn't keep the
+  // program running. A refinement submitted while the queue is full is discarded.
+  private static final ExecutorService refinementExecutor = new ThreadPoolExecutor(1, 1, 0,
+      TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING_REFINEMENTS),
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "region-search-refinement");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  // Keys of the searches queued or being refined, so that a key isn't queued twice. The region
+  // cache holds the keys already refined.
+  private static final Set<String> refinementKeys = ConcurrentHashMap.newKeySet();
+
   // Traversal methods.
   private enum TraversalMethods {
     BFS, BiasedBFS, BFSPriorityQueue
@@ -59,79 +105,386 @@ public class TopChangingVerticesExhaustiveCalculator {
    */
   public ArrayList<HashSet<Node>> getTopChangingVertciesExhaustiveSearch(int regionNumber,
       int nodesNumPerRegion, int biasedk, TraversalMethods traversalMethod) {
+    return getTopChangingVertciesExhaustiveSearch(regionNumber, new int[] {nodesNumPerRegion},
+        biasedk, traversalMethod).get(nodesNumPerRegion);
+  }
+
+  /**
+   * Start from every vertex, do BFS or its variations until the largest region size, and keep the
+   * top regions of every region size with the highest distortion measure. Each BFS grows through
+   * the smaller sizes on its way to the largest one, and stopping it at a smaller size gives the
+   * same region, so a whole region size sweep costs a single pass over the start vertices.
+   * 
+   * @param regionNumber number of regions to return for each region size.
+   * @param regionSizes numbers of nodes per region.
+   * @param biasedk to be used if biased BFS is chosen.
+   * @param traversalMethod which method to use in constructing the regions, BFS, biased BFS or BFS
+   *        with priority Queue.
+   * @return regions of each region size, where each region is represented by HashSet of nodes it
+   *         contains, from the highest to the lowest distortion measure.
+   */
+  public HashMap<Integer, ArrayList<HashSet<Node>>> getTopChangingVertciesExhaustiveSearch(
+      int regionNumber, int[] regionSizes, int biasedk, TraversalMethods traversalMethod) {
+    long start = Metrics.startTimer();
     // Get graph2 adjacency list.
     HashMap<Node, HashMap<Node, Integer>> graph2 = graphCalculator.getGraph2();
-    // Get graph1 adjacency list.
-    HashMap<Node, HashMap<Node, Integer>> graph1 = graphCalculator.getGraph1();
-    // Get graph2 node mapping.
-    HashMap<String, Node> nodeMapping2 = graphCalculator.getNodeMapping2();
-    // Get graph1 node mapping.
-    HashMap<String, Node> nodeMapping1 = graphCalculator.getNodeMapping1();
     regionNumber = Math.min(regionNumber, graph2.size());
-    Region[] regions = new Region[graph2.size()];
-    int index = 0;
-    for (Node node : graph2.keySet()) {
-      HashSet<Node> region = null;
-      switch (traversalMethod) {
-        case BFS:
-          region = graphCalculator.BFS(node, nodesNumPerRegion);
-          break;
-        case BiasedBFS:
-          region = graphCalculator.BFSBiased(node, nodesNumPerRegion, biasedk);
-          break;
-        case BFSPriorityQueue:
-          region = graphCalculator.BFSPriorityQueue(node, nodesNumPerRegion);
-          break;
-      }
-      // Get region size in graph 1.
-      double regionSizeGraph1 = 0;
-      double regionSizeGraph2 = 0;
-      double distortionValue = 0;
-      for (Node regionNode : region) {
-        distortionValue += regionNode.getDistortionValue();
-        // Get graph 1 region size.
-        HashMap<Node, Integer> regionNodeNeighborsG1 =
-            graph1.get(nodeMapping1.get(regionNode.getId()));
-        if (regionNodeNeighborsG1 != null) {
-          for (Node regionNodeNeighborG1 : regionNodeNeighborsG1.keySet()) {
-            if (region.contains(nodeMapping2.get(regionNodeNeighborG1.getId()))) {
-              regionSizeGraph1++;
-            }
+    int[] sizes = getSortedSizes(regionSizes);
+    int maxSize = sizes.length == 0 ? 0 : sizes[sizes.length - 1];
+    TopRegions[] topRegions = new TopRegions[sizes.length];
+    for (int i = 0; i < sizes.length; i++) {
+      topRegions[i] = new TopRegions(regionNumber);
+    }
+    Node[] startNodes = graph2.keySet().toArray(new Node[graph2.size()]);
+    RegionScorer scorer = graphCalculator.getRegionScorer();
+    double[] sums = new double[RegionScorer.SUMS_NUMBER];
+    double[] measures = new double[RegionScorer.MEASURES_NUMBER];
+    RegionScorer.Accumulator accumulator = scorer.getAccumulator();
+    accumulator.setCheckpoints(sizes);
+    // Expand the regions in batches of start nodes, so that each batch is recorded separately. The
+    // regions are scored while they grow, so scoring costs nothing beyond the traversal.
+    for (int batchStart = 0; batchStart < startNodes.length; batchStart += BATCH_SIZE) {
+      int batchEnd = Math.min(startNodes.length, batchStart + BATCH_SIZE);
+      SearchPhaseEvent expansionEvent =
+          SearchPhaseEvent.begin(SearchPhaseEvent.REGION_EXPANSION, traversalMethod.name(),
+              graph2.size());
+      // Traditional BFS from the whole batch run 64 start nodes at a time, sharing the rows.
+      int[][] bfsRegions = traversalMethod == TraversalMethods.BFS
+          ? graphCalculator.BFS(startNodes, batchStart, batchEnd, maxSize) : null;
+      for (int index = batchStart; index < batchEnd; index++) {
+        accumulator.clear();
+        if (bfsRegions != null) {
+          for (int vertex : bfsRegions[index - batchStart]) {
+            accumulator.add(vertex);
           }
+        } else {
+          expand(startNodes[index], maxSize, biasedk, traversalMethod, accumulator);
         }
-        // Get graph 2 region size.
-        HashMap<Node, Integer> regionNodeNeighborsG2 =
-            graph2.get(nodeMapping2.get(regionNode.getId()));
-        if (regionNodeNeighborsG2 != null) {
-          for (Node regionNodeNeighborG2 : regionNodeNeighborsG2.keySet()) {
-            if (region.contains(regionNodeNeighborG2)) {
-              regionSizeGraph2++;
-            }
+        // Keep the region of each size it reached if its distortion value, the delta change over
+        // the minimum number of edges within the region in graph1 and graph2, is high enough.
+        for (int i = 0; i < accumulator.getCheckpointsReached(); i++) {
+          accumulator.getCheckpointSums(i, sums);
+          RegionScorer.getMeasures(sums, measures);
+          double distortionValue = measures[RegionScorer.MIN_EDGES_MEASURE];
+          if (topRegions[i].accepts(distortionValue, index)) {
+            topRegions[i].add(distortionValue, index, accumulator.getVertices(sizes[i]));
           }
         }
       }
-      // Store the region with its distortion value.
-      regions[index++] =
-          new Region(region, distortionValue
-              / Math.min(Math.max(1, regionSizeGraph1), Math.max(1, regionSizeGraph2)), 0,
-              region.size());
+      expansionEvent.setParameters(regionNumber, maxSize, biasedk)
+          .setBatch(batchStart, batchEnd - batchStart).finish();
     }
-    // Sort the regions based on distortion values from the highest to the smallest.
-    Arrays.sort(regions);
-    ArrayList<HashSet<Node>> highestDistortionRegions = new ArrayList<HashSet<Node>>();
-    for (int i = 0; i < graph2.size(); i++) {
-      if (regions[i].getRegionSize() != nodesNumPerRegion) { // Ignore regions with different sizes.
-        continue;
-      }
-      highestDistortionRegions.add(regions[i].getNodes());
-      if (highestDistortionRegions.size() == regionNumber) { // Reached the desired regions number
-                                                             // to return.
-        break;
+    scorer.releaseAccumulator(accumulator);
+    HashMap<Integer, ArrayList<HashSet<Node>>> highestDistortionRegions =
+        new HashMap<Integer, ArrayList<HashSet<Node>>>();
+    for (int size : regionSizes) {
+      highestDistortionRegions.put(size, new ArrayList<HashSet<Node>>());
+    }
+    for (int i = 0; i < sizes.length; i++) {
+      ArrayList<HashSet<Node>> regions = highestDistortionRegions.get(sizes[i]);
+      for (int[] vertices : topRegions[i].getRegions()) {
+        regions.add(graphCalculator.toNodes(vertices));
       }
     }
+    EXHAUSTIVE_SEARCH_SECONDS.observeSince(start);
     return highestDistortionRegions;
   }
 
+  /**
+   * Approximate exhaustive search, which grows regions only from a budget of start nodes. Most
+   * low delta nodes can't start a top region, so the start nodes are sampled without replacement in
+   * proportion to their delta mass, the delta change of the node and its graph2 neighbors. The
+   * regions are ranked as in the exhaustive search, so expanding more start nodes refines the
+   * result and expanding all of them gives exactly the exhaustive search regions.
+   */
+  public class ApproximateSearch {
+    // Number of regions to return.
+    private final int regionNumber;
+    // Number of nodes per region.
+    private final int nodesNumPerRegion;
+    // Used if biased BFS is chosen.
+    private final int biasedk;
+    // Method used in constructing the regions.
+    private final TraversalMethods traversalMethod;
+    // Start nodes, in the exhaustive search order.
+    private final Node[] startNodes;
+    // Sampling weight of each start node, its delta mass.
+    private final double[] weights;
+    // Start node positions in sampling order.
+    private final Integer[] samplingOrder;
+    // Top regions found so far.
+    private final TopRegions topRegions;
+    // Scorer of the regions.
+    private final RegionScorer scorer;
+    // Number of start nodes expanded so far, the first ones in sampling order.
+    private int expandedNumber = 0;
+
+    /**
+     * Constructor, samples the order in which the start nodes are expanded.
+     * 
+     * @param regionNumber number of regions to return.
+     * @param nodesNumPerRegion number of nodes per region.
+     * @param biasedk to be used if biased BFS is chosen.
+     * @param traversalMethod which method to use in constructing the regions, BFS, biased BFS or
+     *        BFS with priority Queue.
+     * @param seed of the sampling.
+     */
+    private ApproximateSearch(int regionNumber, int nodesNumPerRegion, int biasedk,
+        TraversalMethods traversalMethod, long seed) {
+      HashMap<Node, HashMap<Node, Integer>> graph2 = graphCalculator.getGraph2();
+      this.regionNumber = Math.min(regionNumber, graph2.size());
+      this.nodesNumPerRegion = nodesNumPerRegion;
+      this.biasedk = biasedk;
+      this.traversalMethod = traversalMethod;
+      startNodes = graph2.keySet().toArray(new Node[graph2.size()]);
+      topRegions = new TopRegions(this.regionNumber);
+      scorer = graphCalculator.getRegionScorer();
+      double[] deltaMass = scorer.getDeltaMass();
+      weights = new double[startNodes.length];
+      // Weighted sampling without replacement: the start nodes with the highest keys
+      // log(u) / weight are a weighted sample, with the zero weight nodes last.
+      final double[] keys = new double[startNodes.length];
+      Random random = new Random(seed);
+      samplingOrder = new Integer[startNodes.length];
+      for (int i = 0; i < startNodes.length; i++) {
+        weights[i] = deltaMass[startNodes[i].getIndex()];
+        double u = 1 - random.nextDouble();
+        keys[i] = weights[i] > 0 ? Math.log(u) / weights[i] : Double.NEGATIVE_INFINITY;
+        samplingOrder[i] = i;
+      }
+      Arrays.sort(samplingOrder, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer position1, Integer position2) {
+          return Double.compare(keys[position2], keys[position1]);
+        }
+      });
+    }
+
+    /**
+     * Expand the next start nodes in sampling order.
+     * 
+     * @param budget number of start nodes to expand.
+     */
+    public synchronized void expand(int budget) {
+      int end = (int) Math.min(startNodes.length, (long) expandedNumber + Math.max(0, budget));
+      double[] sums = new double[RegionScorer.SUMS_NUMBER];
+      double[] measures = new double[RegionScorer.MEASURES_NUMBER];
+      SearchPhaseEvent expansionEvent =
+          SearchPhaseEvent.begin(SearchPhaseEvent.REGION_EXPANSION,
+              "approximate_" + traversalMethod.name(), startNodes.length);
+      int batchStart = expandedNumber;
+      RegionScorer.Accumulator accumulator = scorer.getAccumulator();
+      for (; expandedNumber < end; expandedNumber++) {
+        int position = samplingOrder[expandedNumber];
+        accumulator.clear();
+        TopChangingVerticesExhaustiveCalculator.this.expand(startNodes[position],
+            nodesNumPerRegion, biasedk, traversalMethod, accumulator);
+        if (accumulator.size() != nodesNumPerRegion) { // Ignore regions with different sizes.
+          continue;
+        }
+        accumulator.getSums(sums);
+        RegionScorer.getMeasures(sums, measures);
+        double distortionValue = measures[RegionScorer.MIN_EDGES_MEASURE];
+        if (topRegions.accepts(distortionValue, position)) {
+          topRegions.add(distortionValue, position, accumulator.getVertices(nodesNumPerRegion));
+        }
+      }
+      scorer.releaseAccumulator(accumulator);
+      expansionEvent.setParameters(regionNumber, nodesNumPerRegion, biasedk)
+          .setBatch(batchStart, end - batchStart).finish();
+      APPROXIMATE_EXPANDED.add(end - batchStart);
+    }
+
+    /**
+     * Expand all the remaining start nodes, making the search exact.
+     */
+    public void refine() {
+      while (!isExact()) {
+        expand(BATCH_SIZE);
+      }
+    }
+
+    /**
+     * Expand all the remaining start nodes on a background thread, and cache the exact regions for
+     * the browser tool once the search is refined. A search whose key is queued, being refined or
+     * already cached isn't queued again, and neither is a search submitted while the refinement
+     * queue is full.
+     * 
+     * @param key of the exact search in the region cache, or null not to cache the regions.
+     * @return the exact regions once the search is refined, or null if the refinement wasn't
+     *         queued.
+     */
+    public Future<ArrayList<HashSet<Node>>> refineInBackground(final String key) {
+      if (key != null && (RegionCache.contains(key) || !refinementKeys.add(key))) {
+        return null;
+      }
+      try {
+        return refinementExecutor.submit(new Callable<ArrayList<HashSet<Node>>>() {
+          @Override
+          public ArrayList<HashSet<Node>> call() {
+            try {
+              refine();
+              ArrayList<HashSet<Node>> regions = getRegions();
+              if (key != null) {
+                RegionCache.put(key, graphCalculator, regions);
+              }
+              return regions;
+            } finally {
+              forgetRefinement(key);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        forgetRefinement(key);
+        REFINEMENTS_DISCARDED.increment();
+        return null;
+      }
+    }
+
+    /**
+     * Forget that a search is queued or being refined.
+     * 
+     * @param key of the exact search in the region cache, or null.
+     */
+    private void forgetRefinement(String key) {
+      if (key != null) {
+        refinementKeys.remove(key);
+      }
+    }
+
+    /**
+     * Check whether all the start nodes were expanded.
+     * 
+     * @return true if the regions are the exact exhaustive search regions.
+     */
+    public synchronized boolean isExact() {
+      return expandedNumber == startNodes.length;
+    }
+
+    /**
+     * Get the number of start nodes expanded so far.
+     * 
+     * @return number of expanded start nodes.
+     */
+    public synchronized int getExpandedNumber() {
+      return expandedNumber;
+    }
+
+    /**
+     * Estimate the confidence that the top regions found are the exact top regions. The start
+     * nodes that are at least as heavy as the lightest start node of a top region are competitive,
+     * and each expanded competitive node made a top region with the rate q. Assuming that the
+     * remaining competitive nodes do as well, the estimate is the probability that none of them
+     * makes a top region, (1 - q) ^ remaining competitive nodes. Lighter start nodes are assumed
+     * not to make a top region.
+     * 
+     * @return confidence from 0 to 1, 1 once the search is exact.
+     */
+    public synchronized double getConfidence() {
+      if (isExact()) {
+        return 1;
+      }
+      if (topRegions.size() < regionNumber) { // Any remaining start node may add a region.
+        return 0;
+      }
+      double minWeight = Double.POSITIVE_INFINITY;
+      for (int position : topRegions.getOrders()) {
+        minWeight = Math.min(minWeight, weights[position]);
+      }
+      int expandedCompetitive = 0;
+      int remainingCompetitive = 0;
+      for (int i = 0; i < startNodes.length; i++) {
+        if (weights[samplingOrder[i]] >= minWeight) {
+          if (i < expandedNumber) {
+            expandedCompetitive++;
+          } else {
+            remainingCompetitive++;
+          }
+        }
+      }
+      if (remainingCompetitive == 0) {
+        return 1;
+      }
+      double rate = (double) topRegions.size() / Math.max(1, expandedCompetitive);
+      return Math.pow(Math.max(0, 1 - rate), remainingCompetitive);
+    }
+
+    /**
+     * Get the top regions found so far.
+     * 
+     * @return regions from the highest to the lowest distortion measure, where each region is
+     *         represented by HashSet of nodes it contains.
+     */
+    public synchronized ArrayList<HashSet<Node>> getRegions() {
+      ArrayList<HashSet<Node>> regions = new ArrayList<HashSet<Node>>();
+      for (int[] vertices : topRegions.getRegions()) {
+        regions.add(graphCalculator.toNodes(vertices));
+      }
+      return regions;
+    }
+  }
+
+  /**
+   * Start an approximate exhaustive search and expand a budget of sampled start nodes.
+   * 
+   * @param regionNumber number of regions to return.
+   * @param nodesNumPerRegion number of nodes per region.
+   * @param biasedk to be used if biased BFS is chosen.
+   * @param traversalMethod which method to use in constructing the regions, BFS, biased BFS or BFS
+   *        with priority Queue.
+   * @param budget number of start nodes to expand.
+   * @param seed of the start node sampling.
+   * @return the search, which can be refined further.
+   */
+  public ApproximateSearch getTopChangingVertciesApproximateSearch(int regionNumber,
+      int nodesNumPerRegion, int biasedk, TraversalMethods traversalMethod, int budget, long seed) {
+    long start = Metrics.startTimer();
+    ApproximateSearch search =
+        new ApproximateSearch(regionNumber, nodesNumPerRegion, biasedk, traversalMethod, seed);
+    search.expand(budget);
+    APPROXIMATE_SEARCH_SECONDS.observeSince(start);
+    return search;
+  }
+
+  /**
+   * Grow a region from a start node with the chosen traversal method.
+   * 
+   * @param node to start the traversal from.
+   * @param nodesNumPerRegion number of nodes to grow the region to.
+   * @param biasedk to be used if biased BFS is chosen.
+   * @param traversalMethod BFS, biased BFS or BFS with priority Queue.
+   * @param accumulator to add the region nodes to.
+   * @return HashSet of nodes in the region.
+   */
+  private HashSet<Node> expand(Node node, int nodesNumPerRegion, int biasedk,
+      TraversalMethods traversalMethod, RegionScorer.Accumulator accumulator) {
+    switch (traversalMethod) {
+      case BiasedBFS:
+        return graphCalculator.BFSBiased(node, nodesNumPerRegion, biasedk, accumulator);
+      case BFSPriorityQueue:
+        return graphCalculator.BFSPriorityQueue(node, nodesNumPerRegion, accumulator);
+      default:
+        return graphCalculator.BFS(node, nodesNumPerRegion, accumulator);
+    }
+  }
+
+  /**
+   * Get the distinct positive region sizes in ascending order.
+   * 
+   * @param regionSizes numbers of nodes per region.
+   * @return sorted distinct positive sizes.
+   */
+  private static int[] getSortedSizes(int[] regionSizes) {
+    int[] sizes = regionSizes.clone();
+    Arrays.sort(sizes);
+    int number = 0;
+    for (int size : sizes) {
+      if (size > 0 && (number == 0 || sizes[number - 1] != size)) {
+        sizes[number++] = size;
+      }
+    }
+    return Arrays.copyOf(sizes, number);
+  }
 
   /**
    * Run the different variations of top changing vertices exhaustive search with BFS, Biased BFS
@@ -168,6 +521,34 @@ public class TopChangingVerticesExhaustiveCalculator {
 
   }
 
+  /**
+   * Run the different variations of top changing vertices exhaustive search with BFS, Biased BFS
+   * and BFS with priority queue for several region sizes, with a single search per variation.
+   * 
+   * @param regionNumber number of regions to return for each region size.
+   * @param regionSizes numbers of nodes per region.
+   * @param baisedk used in biased BFS.
+   * @throws IOException
+   */
+  public void runWithRegionSizes(int regionNumber, int[] regionSizes, int baisedk)
+      throws IOException {
+    // Read graph1 and graph2 data.
+    graphCalculator.readGraphs(inputFile1, inputFile2);
+    // Calculate delta change for each node.
+    graphCalculator.calculateDeltaGraph();
+    for (TraversalMethods traversalMethod : TraversalMethods.values()) {
+      HashMap<Integer, ArrayList<HashSet<Node>>> regions =
+          getTopChangingVertciesExhaustiveSearch(regionNumber, regionSizes,
+              traversalMethod == TraversalMethods.BiasedBFS ? baisedk : 0, traversalMethod);
+      for (int regionSize : regionSizes) {
+        System.out.println("Top Changing Vertcies Exhaustive Search " + traversalMethod
+            + " with " + regionSize + " nodes per region");
+        graphCalculator.evaluateEdges(regions.get(regionSize));
+        System.out.println("========================================");
+      }
+    }
+  }
+
   /**
    * Run the different variations of top changing vertices exhaustive search with BFS, Biased BFS
    * and BFS with priority queue, while removing vertices below delta change threshold.
@@ -227,80 +608,137 @@ public class TopChangingVerticesExhaustiveCalculator {
    * @return regions.
    * @throws IOException
    */
-  public ArrayList<ArrayList<String>> runWithUI(int regionNumber, int nodesNumPerRegion,
+  public RegionCache.Result runWithUI(int regionNumber, int nodesNumPerRegion,
       double[][] graph1, double[][] graph2, int selectedRegion, int selectedTraversalMethod,
       int biasedk) throws IOException {
+    return runWithUI(regionNumber, nodesNumPerRegion, graph1, graph2, selectedRegion,
+        selectedTraversalMethod, biasedk, false);
+  }
+
+  /**
+   * Run the top changing vertices exhaustive search methods with the browser tool, optionally
+   * answering from an approximate search. The returned result tells whether its regions are exact
+   * and the confidence that they are.
+   * 
+   * @param regionNumber number of regions to return.
+   * @param nodesNumPerRegion number of nodes per regions.
+   * @param graph1 data.
+   * @param graph2 data.
+   * @param region to select.
+   * @param selectedTraversalMethod whether use BFS, Biased BFS or BFS with priority queue.
+   * @param biasedk used in Biased BFS.
+   * @param approximate whether the client accepts approximate regions, which are much faster to
+   *        find on large graphs.
+   * @return regions.
+   * @throws IOException
+   */
+  public RegionCache.Result runWithUI(int regionNumber, int nodesNumPerRegion,
+      double[][] graph1, double[][] graph2, int selectedRegion, int selectedTraversalMethod,
+      int biasedk, boolean approximate) throws IOException {
+    String key = RegionCache.key(graph1, graph2, "top_changing_regions_" + selectedTraversalMethod,
+        regionNumber, nodesNumPerRegion, selectedTraversalMethod == 1 ? biasedk : 0);
+    // The approximate regions are cached under their own key, so that a client paging through
+    // them keeps their ranking after the exact regions are cached.
+    String approximateKey = key + ":approximate";
+    RegionCache.Entry entry = approximate ? RegionCache.get(approximateKey) : null;
+    if (entry == null) {
+      entry = RegionCache.get(key);
+    }
+    if (entry == null) {
+      // Load the graphs.
+      graphCalculator.readGraphs(graph1, graph2);
+      // Calculate delta change for each node.
+      graphCalculator.calculateDeltaGraph();
+      if (approximate) {
+        return runApproximateWithUI(key, approximateKey, regionNumber, nodesNumPerRegion,
+            selectedRegion, selectedTraversalMethod, biasedk);
+      }
+      ArrayList<HashSet<Node>> topChangingVertciesBFSRegions =
+          search(regionNumber, nodesNumPerRegion, selectedTraversalMethod, biasedk);
+      entry = RegionCache.put(key, graphCalculator, topChangingVertciesBFSRegions);
+    }
+    return entry.getRegion(selectedRegion);
+  }
+
+  /**
+   * Run the top changing vertices exhaustive search on two graph arrays.
+   * 
+   * @param regionNumber number of regions to return.
+   * @param nodesNumPerRegion number of nodes per regions.
+   * @param graph1 data.
+   * @param graph2 data.
+   * @param selectedTraversalMethod whether use BFS, Biased BFS or BFS with priority queue.
+   * @param biasedk used in Biased BFS.
+   * @return ArrayList of regions, where each region is represented by HashSet of nodes it contains.
+   * @throws IOException
+   */
+  public ArrayList<HashSet<Node>> runWithArrays(int regionNumber, int nodesNumPerRegion,
+      double[][] graph1, double[][] graph2, int selectedTraversalMethod, int biasedk)
+      throws IOException {
+    graphCalculator = new GraphCalculator();
     // Load the graphs.
     graphCalculator.readGraphs(graph1, graph2);
     // Calculate delta change for each node.
     graphCalculator.calculateDeltaGraph();
-    ArrayList<HashSet<Node>> topChangingVertciesBFSRegions = null;
+    return search(regionNumber, nodesNumPerRegion, selectedTraversalMethod, biasedk);
+  }
+
+  /**
+   * Run the exhaustive search of the selected traversal method on the loaded graphs.
+   * 
+   * @param regionNumber number of regions to return.
+   * @param nodesNumPerRegion number of nodes per regions.
+   * @param selectedTraversalMethod whether use BFS, Biased BFS or BFS with priority queue.
+   * @param biasedk used in Biased BFS.
+   * @return ArrayList of regions, where each region is represented by HashSet of nodes it contains.
+   */
+  private ArrayList<HashSet<Node>> search(int regionNumber, int nodesNumPerRegion,
+      int selectedTraversalMethod, int biasedk) {
     if (selectedTraversalMethod == 0) {
-      topChangingVertciesBFSRegions =
-          getTopChangingVertciesExhaustiveSearch(regionNumber, nodesNumPerRegion, 0,
-              TraversalMethods.BFS);
+      return getTopChangingVertciesExhaustiveSearch(regionNumber, nodesNumPerRegion, 0,
+          TraversalMethods.BFS);
     } else if (selectedTraversalMethod == 1) {
-      topChangingVertciesBFSRegions =
-          getTopChangingVertciesExhaustiveSearch(regionNumber, nodesNumPerRegion, biasedk,
-              TraversalMethods.BiasedBFS);
+      return getTopChangingVertciesExhaustiveSearch(regionNumber, nodesNumPerRegion, biasedk,
+          TraversalMethods.BiasedBFS);
     } else if (selectedTraversalMethod == 2) {
-      topChangingVertciesBFSRegions =
-          getTopChangingVertciesExhaustiveSearch(regionNumber, nodesNumPerRegion, 0,
-              TraversalMethods.BFSPriorityQueue);
-    }
-    // Get graph1 region.
-    HashSet<Node> selectedNodes = topChangingVertciesBFSRegions.get(selectedRegion);
-    HashMap<Node, HashMap<Node, Integer>> graph1Map = graphCalculator.getGraph1();
-    HashMap<String, Node> nodeMapping1 = graphCalculator.getNodeMapping1();
-    HashMap<String, Node> nodeMapping2 = graphCalculator.getNodeMapping2();
-    ArrayList<String> graph1Region = new ArrayList<String>();
-    for (Node node : selectedNodes) {
-      HashMap<Node, Integer> neighborNodes = graph1Map.get(nodeMapping1.get(node.getId()));
-      if (neighborNodes == null) {
-    	  neighborNodes = new HashMap<Node, Integer>();
-      }
-      for (Node neighborNode : neighborNodes.keySet()) {
-        if (selectedNodes.contains(nodeMapping2.get(neighborNode.getId()))) {
-          graph1Region.add((int) Double.parseDouble(node.getId()) + "," + (int) Double.parseDouble(neighborNode.getId()));
-        }
-      }
-    }
-    // Get graph2 region.
-    HashMap<Node, HashMap<Node, Integer>> graph2Map = graphCalculator.getGraph2();
-    ArrayList<String> graph2Region = new ArrayList<String>();
-    for (Node node : selectedNodes) {
-      HashMap<Node, Integer> neighborNodes = graph2Map.get(node);
-      if (neighborNodes == null) {
-    	  neighborNodes = new HashMap<Node, Integer>();
-      }
-      for (Node neighborNode : neighborNodes.keySet()) {
-        if (selectedNodes.contains(neighborNode)) {
-          graph2Region.add((int) Double.parseDouble(node.getId()) + "," + (int) Double.parseDouble(neighborNode.getId()));
-        }
-      }
+      return getTopChangingVertciesExhaustiveSearch(regionNumber, nodesNumPerRegion, 0,
+          TraversalMethods.BFSPriorityQueue);
     }
-    // Get node colors.
-    double max = -1;
-    double min = 100000;
-    for (Node node : graph2Map.keySet()) {
-      max = Math.max(max, node.getDistortionValue());
-      min = Math.min(min, node.getDistortionValue());
-    }
-    ArrayList<String> nodeColors = new ArrayList<String>();
-    for (Node node : graph2Map.keySet()) {
-      int normalizedDistortionValue =
-          (int) ((((node.getDistortionValue() - min) / (max - min))) * (Integer.MAX_VALUE - 100000));
-      String hexColor = String.format("#%06X", (0xFFFFFF & normalizedDistortionValue));
-      nodeColors.add(node.getId() + "," + hexColor);
-    }
-    ArrayList<ArrayList<String>> bothGraphRegions = new ArrayList<ArrayList<String>>();
-    bothGraphRegions.add(graph1Region);
-    bothGraphRegions.add(graph2Region);
-    bothGraphRegions.add(nodeColors);
-    return bothGraphRegions;
+    return null;
   }
 
 
+  /**
+   * Answer the browser tool with an approximate search, and cache the exact regions once the
+   * search is refined in the background. A search that expanded every start node is exact and is
+   * cached as such.
+   * 
+   * @param key of the exact search in the region cache.
+   * @param approximateKey of the approximate search in the region cache.
+   * @param regionNumber number of regions to return.
+   * @param nodesNumPerRegion number of nodes per regions.
+   * @param selectedRegion region to select.
+   * @param selectedTraversalMethod whether use BFS, Biased BFS or BFS with priority queue.
+   * @param biasedk used in Biased BFS.
+   * @return regions.
+   */
+  private RegionCache.Result runApproximateWithUI(String key, String approximateKey,
+      int regionNumber, int nodesNumPerRegion, int selectedRegion, int selectedTraversalMethod,
+      int biasedk) {
+    TraversalMethods traversalMethod = TraversalMethods.values()[selectedTraversalMethod];
+    ApproximateSearch search =
+        getTopChangingVertciesApproximateSearch(regionNumber, nodesNumPerRegion,
+            traversalMethod == TraversalMethods.BiasedBFS ? biasedk : 0, traversalMethod,
+            APPROXIMATE_BUDGET, key.hashCode());
+    if (search.isExact()) {
+      return RegionCache.put(key, graphCalculator, search.getRegions()).getRegion(selectedRegion);
+    }
+    RegionCache.Entry entry = RegionCache.put(approximateKey, graphCalculator,
+        search.getRegions(), false, search.getConfidence());
+    search.refineInBackground(key);
+    return entry.getRegion(selectedRegion);
+  }
+
   /**
    * @param args argument sent for the program.
    * @throws IOException
@@ -314,10 +752,21 @@ public class TopChangingVerticesExhaustiveCalculator {
     String inputFile1 = args[0];
     String inputFile2 = args[1];
     int regionNumber = Integer.parseInt(args[2]);
-    int nodesNumPerRegion = Integer.parseInt(args[3]);
     int baisedk = Integer.parseInt(args[4]);
+    Metrics.startServerIfConfigured();
     TopChangingVerticesExhaustiveCalculator calculator =
         new TopChangingVerticesExhaustiveCalculator(inputFile1, inputFile2);
+    if (args[3].contains(",")) {
+      // Several region sizes, such as 8,16,32, are swept with one search per traversal method.
+      String[] sizeSplits = args[3].split(",");
+      int[] regionSizes = new int[sizeSplits.length];
+      for (int i = 0; i < sizeSplits.length; i++) {
+        regionSizes[i] = Integer.parseInt(sizeSplits[i].trim());
+      }
+      calculator.runWithRegionSizes(regionNumber, regionSizes, baisedk);
+      return;
+    }
+    int nodesNumPerRegion = Integer.parseInt(args[3]);
     calculator.run(regionNumber, nodesNumPerRegion, baisedk);
     System.out.println("==================Run with Thresholding======================");
     calculator.runWithThresholding(regionNumber, nodesNumPerRegion, baisedk);
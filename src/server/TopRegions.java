@@ -0,0 +1,143 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Bounded set of the regions with the highest distortion values seen so far. Regions are ranked
+ * by distortion value from the highest to the lowest and then by the order they were found in, the
+ * same order a stable sort of all the regions gives, so only the kept regions are ever stored.
+ */
+public class TopRegions {
+
+  // Ranks the worst region first.
+  private static final Comparator<Candidate> WORST_FIRST = new Comparator<Candidate>() {
+    @Override
+    public int compare(Candidate candidate1, Candidate candidate2) {
+      if (candidate1.value < candidate2.value) {
+        return -1;
+      } else if (candidate1.value > candidate2.value) {
+        return 1;
+      }
+      return Integer.compare(candidate2.order, candidate1.order);
+    }
+  };
+
+  // Maximum number of regions kept.
+  private final int capacity;
+  // Kept regions, the worst one at the head.
+  private final PriorityQueue<Candidate> heap;
+
+  // A kept region.
+  private static class Candidate {
+    // Distortion value of the region.
+    private final double value;
+    // Order in which the region was found, earlier regions win ties.
+    private final int order;
+    // Vertex indices of the region.
+    private final int[] vertices;
+
+    private Candidate(double value, int order, int[] vertices) {
+      this.value = value;
+      this.order = order;
+      this.vertices = vertices;
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity maximum number of regions to keep.
+   */
+  public TopRegions(int capacity) {
+    this.capacity = Math.max(0, capacity);
+    this.heap = new PriorityQueue<Candidate>(Math.max(1, this.capacity), WORST_FIRST);
+  }
+
+  /**
+   * Check whether a region would be kept, before building its vertices.
+   *
+   * @param value distortion value of the region.
+   * @param order in which the region was found.
+   * @return true if the region ranks among the kept regions.
+   */
+  public boolean accepts(double value, int order) {
+    if (heap.size() < capacity) {
+      return true;
+    }
+    if (capacity == 0) {
+      return false;
+    }
+    Candidate worst = heap.peek();
+    return value > worst.value || (value == worst.value && order < worst.order);
+  }
+
+  /**
+   * Keep a region if it ranks among the kept regions, dropping the worst one if full.
+   *
+   * @param value distortion value of the region.
+   * @param order in which the region was found.
+   * @param vertices vertex indices of the region.
+   */
+  public void add(double value, int order, int[] vertices) {
+    if (!accepts(value, order)) {
+      return;
+    }
+    if (heap.size() == capacity) {
+      heap.poll();
+    }
+    heap.add(new Candidate(value, order, vertices));
+  }
+
+  /**
+   * Get the number of regions kept.
+   *
+   * @return number of regions.
+   */
+  public int size() {
+    return heap.size();
+  }
+
+  /**
+   * Get the lowest distortion value a region needs to be kept.
+   *
+   * @return distortion value of the worst kept region, or negative infinity if not full.
+   */
+  public double getMinValue() {
+    if (capacity == 0) {
+      return Double.POSITIVE_INFINITY;
+    }
+    return heap.size() < capacity ? Double.NEGATIVE_INFINITY : heap.peek().value;
+  }
+
+  /**
+   * Get the order in which each kept region was found.
+   *
+   * @return orders of the kept regions.
+   */
+  public int[] getOrders() {
+    int[] orders = new int[heap.size()];
+    int index = 0;
+    for (Candidate candidate : heap) {
+      orders[index++] = candidate.order;
+    }
+    return orders;
+  }
+
+  /**
+   * Get the kept regions.
+   *
+   * @return vertex indices of the kept regions, from the highest to the lowest distortion value.
+   */
+  public ArrayList<int[]> getRegions() {
+    ArrayList<Candidate> candidates = new ArrayList<Candidate>(heap);
+    Collections.sort(candidates, Collections.reverseOrder(WORST_FIRST));
+    ArrayList<int[]> regions = new ArrayList<int[]>(candidates.size());
+    for (Candidate candidate : candidates) {
+      regions.add(candidate.vertices);
+    }
+    return regions;
+  }
+}
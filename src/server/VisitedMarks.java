@@ -0,0 +1,57 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Visited marks over dense node indices for the priority queue BFS. A node is visited if its stamp
+ * equals the current epoch, so starting a new traversal doesn't clear the array. The marks hold the
+ * state of one traversal at a time, so each traversal borrows its own from a pool of free marks.
+ */
+class VisitedMarks {
+
+  // Epoch in which each node was visited.
+  private final int[] stamps;
+  // Epoch of the current traversal.
+  private int epoch = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param nodesNumber number of node indices.
+   */
+  VisitedMarks(int nodesNumber) {
+    stamps = new int[nodesNumber];
+  }
+
+  /**
+   * @return number of node indices.
+   */
+  int size() {
+    return stamps.length;
+  }
+
+  /**
+   * Start a new traversal with no visited node.
+   */
+  void clear() {
+    epoch++;
+    if (epoch == Integer.MAX_VALUE) {
+      Arrays.fill(stamps, 0);
+      epoch = 1;
+    }
+  }
+
+  /**
+   * Mark a node as visited.
+   *
+   * @param index of the node.
+   * @return true if the node wasn't visited before.
+   */
+  boolean visit(int index) {
+    if (stamps[index] == epoch) {
+      return false;
+    }
+    stamps[index] = epoch;
+    return true;
+  }
+}
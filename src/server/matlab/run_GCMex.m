@@ -4,6 +4,8 @@ G1 = load('Synthetic_0.txt')+1;
 G2 = load('Synthetic_1.txt')+1;
 G1(:,3) = 1;
 G2(:,3) = 1;
+% G1 and G2 no longer hold the snapshots loaded by the servlets.
+clear G1_hash G2_hash;
 k = 56;
 r = 2;
 measure_method = 'conformal-based';
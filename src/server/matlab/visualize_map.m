@@ -7,12 +7,16 @@
 % k is the smooth parameter.
 % r is the number of singular values and vectors computed, which corresponds to the number of distortion areas to return.
 % measure_method is the distortion measure.
+% with_colors is optional, false skips computing colors_nodes, for callers that color the nodes themselves.
 % The method outputs are:
 % colors_nodes is a vector nx1 where each entry is a color for each node of the graphs.
 % distortion_values is a vector nx1 where each entry is a distortion value for the nodes.
 % Note that, the method currently only work for undirected graphs. 
 %}
-function [colors_nodes, distortion_values] = visualize_map(G1, G2, k, r, measure_method)
+function [colors_nodes, distortion_values] = visualize_map(G1, G2, k, r, measure_method, with_colors)
+if nargin < 6
+    with_colors = true;
+end
 % get number of nodes as the max node id.
 rng(1); % fix randomization.
 nv = max(max(max(G1(:,1)), max(G1(:,2))), max(max(G2(:,1)), max(G2(:,2))));
@@ -169,6 +173,9 @@ wh = e1*V(:,1:r);
 distortion_values = wh.^2;
 
 colors_nodes = cell(nv, r);
+if ~with_colors
+    return;
+end
 
 colors = jet(100);
 for i=1:r